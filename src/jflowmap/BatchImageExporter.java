@@ -0,0 +1,357 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+import jflowmap.data.ViewConfig;
+import jflowmap.util.ConcurrencyUtils;
+import jflowmap.util.piccolo.PDisplayList;
+import jflowmap.util.piccolo.PTiledLayer;
+import jflowmap.views.VisualCanvas;
+import jflowmap.views.flowmap.FlowMapView;
+import jflowmap.views.flowmap.VisualFlowMap;
+
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.apache.log4j.Logger;
+
+import at.fhj.utils.misc.FileUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Exports the images of a view without opening a window. The view config is
+ * loaded once and the view (with its graph, area map and edge bundling) is
+ * reused for all the images: for a flow map an image is exported for every flow
+ * weight attr, for the other views one image of the whole view.
+ * <p>
+ * The scene graph can only be painted by one thread, so the images are painted
+ * on the event dispatch thread one after another: a PNG image is recorded into a
+ * {@link PDisplayList} which is rasterized and encoded on the workers, and an SVG
+ * document is generated and then written on the workers.
+ *
+ * @author Ilya Boyandin
+ */
+public class BatchImageExporter {
+
+  private static Logger logger = Logger.getLogger(BatchImageExporter.class);
+
+  private static final String USAGE =
+    "Usage: java -Djava.awt.headless=true -cp jflowmap.jar jflowmap.BatchImageExporter\n" +
+    "    [-format png|svg] [-size <width>x<height>] [-scale <factor>, png only]\n" +
+    "    [-out <dir>] [-threads <n>] [-bundle]\n" +
+    "    <view-config" + JFlowMapMain.VIEWCONF_EXT + ">";
+
+  private static final Dimension DEFAULT_SIZE = new Dimension(1024, 768);
+
+  enum Format {
+    PNG, SVG;
+
+    String ext() {
+      return "." + name().toLowerCase();
+    }
+  }
+
+  private final IView view;
+  private final Format format;
+  private final Dimension size;
+  /** The PNG images are scaled up by it (e.g. for posters), the SVG ones are never scaled */
+  private final double scale;
+  private final File outDir;
+  private final ExecutorService workers;
+  /** Limits the number of painted images waiting for the workers */
+  private final Semaphore pending;
+
+  public BatchImageExporter(IView view, Format format, Dimension size, double scale,
+      File outDir, int numThreads) {
+    this.view = view;
+    this.format = format;
+    this.size = size;
+    this.scale = scale;
+    this.outDir = outDir;
+    this.workers = ConcurrencyUtils.newDaemonPool(numThreads, "imageExporter");
+    this.pending = new Semaphore(numThreads + 1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+
+    Format format = Format.PNG;
+    Dimension size = null;
+    double scale = 1;
+    String outDir = null;
+    int numThreads = ConcurrencyUtils.numberOfWorkers();
+    boolean bundle = false;
+    String configLocation = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-format")) {
+          format = Format.valueOf(args[++i].toUpperCase());
+        } else if (args[i].equals("-size")) {
+          size = parseSize(args[++i]);
+        } else if (args[i].equals("-scale")) {
+          scale = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("-out")) {
+          outDir = args[++i];
+        } else if (args[i].equals("-threads")) {
+          numThreads = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-bundle")) {
+          bundle = true;
+        } else if (configLocation == null  &&  !args[i].startsWith("-")) {
+          configLocation = args[i];
+        } else {
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      }
+    } catch (RuntimeException re) {  // missing option values, bad numbers and formats
+      configLocation = null;
+    }
+    if (configLocation == null  ||  !(scale > 0)  ||  (scale != 1  &&  format != Format.PNG)) {
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+
+    try {
+      long start = System.currentTimeMillis();
+      ViewConfig config = ViewConfig.load(configLocation);
+      IView view = config.createView();
+      if (size == null) {
+        size = parseSize(config.getString(ViewConfig.PROP_WINDOW_SIZE));
+      }
+      String name = FileUtils.getFilename(configLocation);
+      if (name.endsWith(JFlowMapMain.VIEWCONF_EXT)) {
+        name = name.substring(0, name.length() - JFlowMapMain.VIEWCONF_EXT.length());
+      }
+      File dir = new File(outDir != null ? outDir : name + "-images");
+      if (!dir.isDirectory()  &&  !dir.mkdirs()) {
+        throw new IOException("Cannot create directory " + dir);
+      }
+      System.out.println("View '" + config.getName() + "' loaded in " +
+          (System.currentTimeMillis() - start) + "ms");
+
+      new BatchImageExporter(view, format, size, scale, dir, numThreads).exportAll(name, bundle);
+      System.exit(0);
+    } catch (Exception ex) {
+      logger.error("Export failed", ex);
+      System.err.println("Export failed: " + ex);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return The size or the default one if the size is null or malformed
+   */
+  private static Dimension parseSize(String size) {
+    if (size != null) {
+      Matcher m = Pattern.compile("(\\d+)x(\\d+)").matcher(size.trim());
+      if (m.matches()) {
+        return new Dimension(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+      }
+    }
+    return DEFAULT_SIZE;
+  }
+
+  /**
+   * Exports the images into files named after the prefix and the flow weight attrs.
+   * If bundle is true, the edges of a flow map are bundled before the first image
+   * and the bundling is reused for the following images unless it depends on the
+   * flow weights.
+   */
+  public void exportAll(String namePrefix, boolean bundle) throws Exception {
+    long start = System.currentTimeMillis();
+    final VisualCanvas canvas = view.getVisualCanvas();
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+        canvas.setBounds(0, 0, size.width, size.height);
+        view.fitInView();
+      }
+    });
+
+    final FlowMapView flowMapView = (view instanceof FlowMapView ? (FlowMapView)view : null);
+    List<String> attrs = (flowMapView != null ?
+        flowMapView.getVisualFlowMap().getFlowMapGraph().getEdgeWeightAttrs() :
+        Collections.<String>singletonList(null));
+
+    List<Future<?>> written = Lists.newArrayList();
+    try {
+      for (final String attr : attrs) {
+        if (flowMapView != null) {
+          SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+              flowMapView.setSelectedFlowWeightAttr(attr);
+            }
+          });
+          if (bundle) {
+            bundleIfNeeded(flowMapView.getVisualFlowMap());
+          }
+        }
+        File file = new File(outDir, namePrefix + (attr != null ? "-" + fileNameFor(attr) : "") +
+            format.ext());
+        if (format == Format.PNG  &&  scale != 1) {
+          paintTiled(file);
+        } else {
+          pending.acquire();
+          written.add(workers.submit(paint(file)));
+        }
+      }
+      for (Future<?> f : written) {
+        ConcurrencyUtils.getResult(f);
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+    System.out.println(attrs.size() + " images exported in " +
+        (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private void bundleIfNeeded(VisualFlowMap visualFlowMap) throws Exception {
+    if (!visualFlowMap.isBundled()) {
+      long start = System.currentTimeMillis();
+      visualFlowMap.bundleEdgesAndWait(visualFlowMap.createForceDirectedBundlerParameters());
+      System.out.println("Edges bundled in " + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  /**
+   * Paints and writes the scaled image in tiles on the event dispatch thread:
+   * only a row of tiles is kept in memory, however large the image is.
+   */
+  private void paintTiled(final File file) throws Exception {
+    final VisualCanvas canvas = view.getVisualCanvas();
+    final int width = (int)Math.round(size.width * scale);
+    final int height = (int)Math.round(size.height * scale);
+    final Exception[] error = new Exception[1];
+    long start = System.currentTimeMillis();
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          canvas.getRoot().processInputs();
+          canvas.paintToPng(new FileOutputStream(file), width, height);
+        } catch (Exception ex) {
+          error[0] = ex;
+        }
+      }
+    });
+    if (error[0] != null) {
+      throw error[0];
+    }
+    System.out.println(file.getPath() + ": " + width + "x" + height + " painted in tiles and " +
+        "written in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Paints the image on the event dispatch thread.
+   *
+   * @return The task writing the painted image into the file
+   */
+  private Callable<Void> paint(final File file) throws Exception {
+    final VisualCanvas canvas = view.getVisualCanvas();
+    final Object[] painted = new Object[1];
+    final Exception[] error = new Exception[1];
+    final long start = System.currentTimeMillis();
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          canvas.getRoot().processInputs();  // validates the bounds and the layout
+          if (format == Format.SVG) {
+            painted[0] = canvas.paintToSvgGenerator();
+          } else {
+            PDisplayList list = new PDisplayList();
+            Graphics2D g = list.createGraphics();
+            g.setRenderingHint(PTiledLayer.KEY_TILE_CACHE, PTiledLayer.VALUE_TILE_CACHE_OFF);
+            canvas.paintComponent(g);
+            g.dispose();
+            painted[0] = list;
+          }
+        } catch (Exception ex) {
+          error[0] = ex;
+        }
+      }
+    });
+    if (error[0] != null) {
+      pending.release();
+      throw error[0];
+    }
+    final long paintTime = System.currentTimeMillis() - start;
+
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try {
+          long renderStart = System.currentTimeMillis();
+          long renderTime = 0;
+          if (format == Format.SVG) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+              ((SVGGraphics2D)painted[0]).stream(out, false);
+            } finally {
+              out.close();
+            }
+          } else {
+            BufferedImage image = new BufferedImage(
+                size.width, size.height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            try {
+              ((PDisplayList)painted[0]).replay(g);
+            } finally {
+              g.dispose();
+            }
+            renderTime = System.currentTimeMillis() - renderStart;
+            ImageIO.write(image, "PNG", file);
+          }
+          long writeTime = System.currentTimeMillis() - renderStart - renderTime;
+          System.out.println(file.getPath() + ": painted in " + paintTime + "ms, " +
+              (format == Format.PNG ? "rendered in " + renderTime + "ms, " : "") +
+              "written in " + writeTime + "ms");
+          return null;
+        } finally {
+          painted[0] = null;
+          pending.release();
+        }
+      }
+    };
+  }
+
+  private static String fileNameFor(String attr) {
+    return attr.replaceAll("[^A-Za-z0-9._-]+", "_");
+  }
+
+}
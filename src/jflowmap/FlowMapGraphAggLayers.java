@@ -1,24 +1,31 @@
 package jflowmap;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import jflowmap.data.EdgeListFlowMapStats;
 import jflowmap.data.FlowMapGraphEdgeAggregator;
 import jflowmap.data.FlowMapStats;
+import jflowmap.util.ConcurrencyUtils;
+import jflowmap.util.OrderedLinkedSet;
 import jflowmap.views.flowstrates.AggLayersBuilder;
 import prefuse.data.Edge;
 import prefuse.data.Graph;
 import prefuse.data.Node;
+import prefuse.data.Table;
 
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * @author Ilya Boyandin
@@ -27,41 +34,72 @@ public class FlowMapGraphAggLayers {
 
   public static class Builder {
 
-    private final Map<String, AggLayer> layersByName = Maps.newLinkedHashMap();
+    private final Map<String, LayerSpec> specsByName = Maps.newLinkedHashMap();
+    private final Map<String, AggLayer> layersByName = Maps.newHashMap();
     private final AggLayer baseLayer;
+    private boolean concurrent = true;
+    private boolean lazy = false;
 
     public Builder(String baseLayerName, FlowMapGraph fmg) {
       baseLayer = new AggLayer(baseLayerName, null, fmg);
     }
 
+    /**
+     * If true (default), the layers which don't depend on each other
+     * are built concurrently.
+     */
+    public Builder withConcurrentBuilding(boolean concurrent) {
+      this.concurrent = concurrent;
+      return this;
+    }
+
+    /**
+     * If true, the layers (except for the initial one) aren't built in {@link #build(String)},
+     * but when they are first selected or otherwise needed.
+     */
+    public Builder withLazyLayers(boolean lazy) {
+      this.lazy = lazy;
+      return this;
+    }
+
     public Builder addAggregationLayer(String layerName, String prevLayerName,
         Function<Edge, Object> aggFunc) {
       return addAggregationLayer(layerName, prevLayerName,
           edgeAggregatorFor(aggFunc, prevLayerName));
     }
 
+    /**
+     * The layers are not aggregated immediately, but in {@link #build(String)}
+     * in the order of their dependencies, so prevLayerName may refer to a layer
+     * which is added later.
+     */
     public Builder addAggregationLayer(String layerName, String prevLayerName,
         FlowMapGraphEdgeAggregator agg) {
 
-      if (layersByName.containsKey(layerName)) {
+      if (specsByName.containsKey(layerName)  ||  layerName.equals(baseLayer.getName())) {
         throw new IllegalArgumentException("Agg layer '" + layerName + "' exists");
       }
-      AggLayer prevLayer = layer(prevLayerName);
-
-
-      FlowMapGraph newFmg = agg.aggregate();
-
-      layersByName.put(layerName, new AggLayer(layerName, prevLayer, newFmg));
+      if (!layersByName.isEmpty()) {
+        throw new IllegalStateException("Cannot add layers after the layers were resolved");
+      }
+      specsByName.put(layerName, new LayerSpec(layerName, prevLayerName, agg));
 
       return this;
     }
 
-
+    /**
+     * Creates an aggregator which will be applied to the graph of the layer
+     * prevLayerName once it's built. The prevLayerName is only needed for the
+     * aggregator to be passed to {@link #addAggregationLayer} with the same prevLayerName.
+     */
     public FlowMapGraphEdgeAggregator edgeAggregatorFor(Function<Edge, Object> aggFunc,
          String prevLayerName) {
-      return new FlowMapGraphEdgeAggregator(layerFlowMapGraph(prevLayerName), aggFunc);
+      return new FlowMapGraphEdgeAggregator(aggFunc);
     }
 
+    /**
+     * Note: This forces the layer and the layers it depends on to be built.
+     */
     public FlowMapGraph layerFlowMapGraph(String layerName) {
       return layer(layerName).getFlowMapGraph();
     }
@@ -71,7 +109,7 @@ public class FlowMapGraphAggLayers {
       if (layerName == null) {
         layer = baseLayer;
       } else {
-        layer = layersByName.get(layerName);
+        layer = resolveLayers().get(layerName);
         if (layer == null) {
           throw new IllegalArgumentException("Layer '"+ layerName + "' not found");
         }
@@ -80,22 +118,162 @@ public class FlowMapGraphAggLayers {
     }
 
     public FlowMapGraphAggLayers build(String initialLayer) {
-      return new FlowMapGraphAggLayers(baseLayer, layersByName.values(), layer(initialLayer));
+      Map<String, AggLayer> layers = resolveLayers();
+      AggLayer initial = layer(initialLayer);
+      if (lazy) {
+        initial.getFlowMapGraph();
+      } else {
+        buildAll(layers.values());
+      }
+      List<AggLayer> ordered = Lists.newArrayListWithCapacity(specsByName.size());
+      for (String name : specsByName.keySet()) {
+        ordered.add(layers.get(name));
+      }
+      return new FlowMapGraphAggLayers(baseLayer, ordered, initial);
+    }
+
+    /**
+     * Creates the (yet unbuilt) layers linking each of them to its prev layer.
+     */
+    private Map<String, AggLayer> resolveLayers() {
+      if (layersByName.isEmpty()) {
+        for (LayerSpec spec : specsByName.values()) {
+          resolve(spec, Lists.<String>newArrayList());
+        }
+      }
+      return layersByName;
+    }
+
+    private AggLayer resolve(LayerSpec spec, List<String> path) {
+      AggLayer layer = layersByName.get(spec.name);
+      if (layer == null) {
+        if (path.contains(spec.name)) {
+          throw new IllegalArgumentException("Cyclic agg layer dependency: " + path + " -> " + spec.name);
+        }
+        path.add(spec.name);
+        AggLayer prev;
+        if (spec.prevLayerName == null) {
+          prev = baseLayer;
+        } else {
+          LayerSpec prevSpec = specsByName.get(spec.prevLayerName);
+          if (prevSpec == null) {
+            throw new IllegalArgumentException("Layer '"+ spec.prevLayerName + "' not found");
+          }
+          prev = resolve(prevSpec, path);
+        }
+        layer = new AggLayer(spec.name, prev, spec.aggregator);
+        layersByName.put(spec.name, layer);
+      }
+      return layer;
+    }
+
+    /**
+     * Builds the layers level by level: all the layers whose prev layers
+     * are already built don't depend on each other, so they can be built concurrently.
+     */
+    private void buildAll(Collection<AggLayer> layers) {
+      List<AggLayer> remaining = Lists.newArrayList(layers);
+      while (!remaining.isEmpty()) {
+        List<AggLayer> level = Lists.newArrayList();
+        for (Iterator<AggLayer> it = remaining.iterator(); it.hasNext(); ) {
+          AggLayer layer = it.next();
+          if (layer.isBuilt()) {
+            it.remove();
+          } else if (layer.getPrevLayer().isBuilt()) {
+            level.add(layer);
+            it.remove();
+          }
+        }
+        if (level.isEmpty()) {
+          continue;
+        }
+        if (concurrent  &&  level.size() > 1) {
+          List<Callable<FlowMapGraph>> tasks = Lists.newArrayList();
+          for (final AggLayer layer : level) {
+            // prefuse creates tuples lazily and not thread-safely,
+            // so they must all be created before the graph is read concurrently
+            createAllTuples(layer.getPrevLayer().getFlowMapGraph().getGraph());
+            tasks.add(new Callable<FlowMapGraph>() {
+              @Override
+              public FlowMapGraph call() {
+                return layer.getFlowMapGraph();
+              }
+            });
+          }
+          ConcurrencyUtils.invokeAll(tasks, "aggLayers");
+        } else {
+          for (AggLayer layer : level) {
+            layer.getFlowMapGraph();
+          }
+        }
+      }
+    }
+  }
+
+  private static class LayerSpec {
+    final String name;
+    final String prevLayerName;
+    final FlowMapGraphEdgeAggregator aggregator;
+
+    LayerSpec(String name, String prevLayerName, FlowMapGraphEdgeAggregator aggregator) {
+      this.name = name;
+      this.prevLayerName = prevLayerName;
+      this.aggregator = aggregator;
     }
   }
 
+  private static void createAllTuples(Graph graph) {
+    graph.getNodeTable().getSchema();
+    graph.getEdgeTable().getSchema();
+    for (Iterator<?> it = graph.nodes(); it.hasNext(); ) {
+      it.next();
+    }
+    for (Iterator<?> it = graph.edges(); it.hasNext(); ) {
+      it.next();
+    }
+  }
+
+  /**
+   * Called for the graph of every layer once the layer is built.
+   */
+  public interface LayerInitializer {
+    void init(FlowMapGraph fmg);
+  }
+
 
   private final List<AggLayer> aggLayers;
-  private List<Edge> edges;  // possibly of different graphs
+  private final Map<Graph, AggLayer> layersByGraph = new IdentityHashMap<Graph, AggLayer>();
+  private OrderedLinkedSet<Edge> edges;  // possibly of different graphs
   private final AggLayer baseLayer;
   private FlowMapStats edgesStats;
 
   private FlowMapGraphAggLayers(AggLayer base, Iterable<AggLayer> layers, AggLayer initialLayer) {
     baseLayer = base;
     aggLayers = ImmutableList.copyOf(Iterables.concat(ImmutableList.of(base), layers));
-    setEdges(Lists.newArrayList(initialLayer.getFlowMapGraph().edges()));
+    setEdges(initialLayer.getFlowMapGraph().edges());
+  }
+
+  /**
+   * Sets the initializer which is called for the graphs of all of the layers which
+   * are built already (concurrently) and for the lazy layers when they are built.
+   */
+  public void setLayerInitializer(final LayerInitializer initializer) {
+    List<Callable<Void>> tasks = Lists.newArrayList();
+    for (final AggLayer layer : aggLayers) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          layer.setInitializer(initializer);
+          return null;
+        }
+      });
+    }
+    ConcurrencyUtils.invokeAll(tasks, "aggLayersInit");
   }
 
+  /**
+   * Note: This forces all of the lazy layers to be built.
+   */
   public Iterable<FlowMapGraph> getFlowMapGraphs() {
     return Iterables.transform(aggLayers, new Function<AggLayer, FlowMapGraph>() {
       @Override
@@ -109,12 +287,34 @@ public class FlowMapGraphAggLayers {
     return baseLayer.getFlowMapGraph();
   }
 
+  /**
+   * @return An immutable list of the visible edges. The list is cached until
+   *         the visible edges are changed, so after every expand or collapse it
+   *         is copied again. Use {@link #edges()} to only iterate over the edges.
+   */
   public List<Edge> getEdges() {
-    return edges;
+    return edges.asList();
   }
 
-  private void setEdges(List<Edge> edges) {
-    this.edges = edges;
+  /**
+   * @return A read-only live view of the visible edges which doesn't copy them.
+   *         The iterators fail if the edges are changed during the iteration.
+   */
+  public Iterable<Edge> edges() {
+    return new Iterable<Edge>() {
+      @Override
+      public Iterator<Edge> iterator() {
+        return edges.iterator();
+      }
+    };
+  }
+
+  private void setEdges(Iterable<Edge> edges) {
+    this.edges = new OrderedLinkedSet<Edge>(edges);
+    edgesChanged();
+  }
+
+  private void edgesChanged() {
     this.edgesStats = null;
   }
 
@@ -143,7 +343,7 @@ public class FlowMapGraphAggLayers {
     if (layer == null) {
       throw new IllegalArgumentException("Layer " + layerName + " not found");
     }
-    setEdges(ImmutableList.copyOf(layer.getFlowMapGraph().edges()));
+    setEdges(layer.getFlowMapGraph().edges());
   }
 
   public Iterable<String> getLayerNames() {
@@ -164,10 +364,15 @@ public class FlowMapGraphAggLayers {
     }
 
     // replace aggEdge with all edges it aggregates
-    List<Edge> deagg = FlowMapGraphEdgeAggregator.getAggregateList(aggEdge);
-    List<Edge> newEdges = replaceEdgeWithListOfEdges(edges, aggEdge, deagg);
+    List<Edge> deagg = Lists.newArrayList();
+    for (Edge e : FlowMapGraphEdgeAggregator.getAggregateList(aggEdge)) {
+      if (!edges.contains(e)) {
+        deagg.add(e);
+      }
+    }
+    edges.replace(aggEdge, deagg);
 
-    setEdges(Collections.unmodifiableList(newEdges));
+    edgesChanged();
   }
 
   public void collapseSource(Edge e) {
@@ -189,9 +394,9 @@ public class FlowMapGraphAggLayers {
 
 //    if (isExpanded(aggEdge)) {
     List<Edge> deagg = FlowMapGraphEdgeAggregator.getAggregateList(aggEdge);
-    List<Edge> newEdges = replaceListOfEdgesWithEdge(edges, deagg, aggEdge, false);
+    replaceListOfEdgesWithEdge(edges, deagg, aggEdge, false);
 
-    setEdges(Collections.unmodifiableList(newEdges));
+    edgesChanged();
 //    }
   }
 
@@ -204,97 +409,85 @@ public class FlowMapGraphAggLayers {
 //    return true;
 //  }
 
-  private static List<Edge> replaceEdgeWithListOfEdges(List<Edge> edges, Edge what, List<Edge> replaceWith) {
-    int index = edges.indexOf(what);
-    if (index < 0) {
-      throw new IllegalArgumentException("Edge not found in list: " + edges);
-    }
-
-    List<Edge> newEdges = new ArrayList<Edge>(edges.size() - 1 + replaceWith.size());
-    newEdges.addAll(edges.subList(0, index));
-    newEdges.addAll(replaceWith);
-    newEdges.addAll(edges.subList(index + 1, edges.size()));
-
-    return newEdges;
-  }
-
-  /*
-  private static List<Edge> replaceListOfEdgesWithEdge(List<Edge> edges, List<Edge> what, Edge replaceWith) {
-    List<Edge> newEdges = new ArrayList<Edge>(edges.size() - what.size() + 1);
-    int numFound = 0;
-    for (Edge edge : edges) {
-      if (what.contains(edge)) {
-        if (numFound == 0) {
-          newEdges.add(replaceWith);
-        }
-        numFound++;
-      } else {
-        newEdges.add(edge);
-      }
-    }
-    if (numFound != what.size()) {
-      throw new IllegalArgumentException("Not all edges were found: " + numFound + " of " + what.size());
-    }
-    return newEdges;
-  }
-  */
-
-  private static List<Edge> replaceListOfEdgesWithEdge(
-      List<Edge> edges, List<Edge> what, Edge replaceWith, boolean requireAllToBeFound) {
-    List<Edge> newEdges = Lists.newArrayList(edges);
+  /**
+   * Removes from edges the 'what' edges or the edges they (recursively) aggregate
+   * and puts replaceWith at the position of the first of the removed edges.
+   * Only the aggregation trees of the 'what' edges are traversed, not the whole list.
+   */
+  private static void replaceListOfEdgesWithEdge(
+      OrderedLinkedSet<Edge> edges, List<Edge> what, Edge replaceWith, boolean requireAllToBeFound) {
     List<Edge> toReplace = Lists.newArrayList(what);
-
-    // Remove from newEdges the 'what' edges or edges they aggregate
-    int min = 0;
+    List<Edge> found = Lists.newArrayList();
+    Edge first = null;
     while (!toReplace.isEmpty()) {
-      for (ListIterator<Edge> it = newEdges.listIterator(); it.hasNext(); ) {
-        Edge e = it.next();
-        if (toReplace.contains(e)) {
-          int i = (it.nextIndex() - 1);
-          if (i < min) min = i;
-          it.remove();
-          toReplace.remove(e);
+      Edge edge = toReplace.remove(toReplace.size() - 1);
+      if (edges.contains(edge)) {
+        if (first == null  ||  edges.compareOrder(edge, first) < 0) {
+          first = edge;
         }
-      }
-
-      if (!toReplace.isEmpty()) {
-        // Replace nodes which were not found in 'what' with the nodes they aggregate
-        List<Edge> newToReplace = Lists.newArrayList();
-        for (Edge edge : toReplace) {
-          if (FlowMapGraphEdgeAggregator.isAggregate(edge)) {
-            newToReplace.addAll(FlowMapGraphEdgeAggregator.getAggregateList(edge));
-          } else {
-            if (requireAllToBeFound) {
-              throw new IllegalStateException("Edge to be replaced was not found: " + edge);
-            }
+        found.add(edge);
+      } else {
+        // Replace edges which were not found with the edges they aggregate
+        if (FlowMapGraphEdgeAggregator.isAggregate(edge)) {
+          toReplace.addAll(FlowMapGraphEdgeAggregator.getAggregateList(edge));
+        } else {
+          if (requireAllToBeFound) {
+            throw new IllegalStateException("Edge to be replaced was not found: " + edge);
           }
         }
-        toReplace = newToReplace;
       }
     }
 
-    newEdges.add(min, replaceWith);
-
-    return newEdges;
+    if (!edges.contains(replaceWith)) {
+      List<Edge> replacement = ImmutableList.of(replaceWith);
+      if (first != null) {
+        edges.insertBefore(first, replacement);
+      } else if (edges.isEmpty()) {
+        edges.addAll(replacement);
+      } else {
+        edges.insertBefore(edges.getFirst(), replacement);
+      }
+    }
+    for (Edge edge : found) {
+      edges.remove(edge);
+    }
   }
 
+  /**
+   * @return The edge with the lowest row among the edges of the node's graph
+   *         which have the node as the given endpoint.
+   */
   private Edge getFlowMapGraphEdgeWith(Node node, FlowEndpoint as) {
-    FlowMapGraph fmg = getFlowMapGraphOf(node);
-    for (Edge e : fmg.edges()) {
-      if (as.nodeOf(e) == node) {
-        return e;
+    Edge found = null;
+    for (Iterator<?> it = adjacentEdges(node, as); it.hasNext(); ) {
+      Edge e = (Edge) it.next();
+      if (found == null  ||  e.getRow() < found.getRow()) {
+        found = e;
       }
     }
-    return null;
+    return found;
   }
 
+  /**
+   * @return The first of the visible edges which have the node as the given endpoint.
+   */
   private Edge getEdgeWith(Node node, FlowEndpoint as) {
-    for (Edge e : getEdges()) {
-      if (as.nodeOf(e) == node) {
-        return e;
+    Edge found = null;
+    for (Iterator<?> it = adjacentEdges(node, as); it.hasNext(); ) {
+      Edge e = (Edge) it.next();
+      if (edges.contains(e)  &&  (found == null  ||  edges.compareOrder(e, found) < 0)) {
+        found = e;
       }
     }
-    return null;
+    return found;
+  }
+
+  private static Iterator<?> adjacentEdges(Node node, FlowEndpoint as) {
+    switch (as) {
+      case ORIGIN: return node.outEdges();
+      case DEST: return node.inEdges();
+      default: throw new AssertionError();
+    }
   }
 
   private Edge requireEdgeWith(Node node, FlowEndpoint as) {
@@ -328,21 +521,96 @@ public class FlowMapGraphAggLayers {
   private static class AggLayer {
     private final String name;
     private final AggLayer prevLayer;
-    private final FlowMapGraph flowMapGraph;
-    public AggLayer(String name, AggLayer prevLayer, FlowMapGraph flowMapGraph) {
+    private final FlowMapGraphEdgeAggregator aggregator;
+    private volatile FlowMapGraph flowMapGraph;
+    private LayerInitializer initializer;
+    /** The columns added by the initializer, which the next layers must not inherit */
+    private volatile Set<String> initializerNodeColumns = ImmutableSet.of();
+    private volatile Set<String> initializerEdgeColumns = ImmutableSet.of();
+
+    private AggLayer(String name, AggLayer prevLayer, FlowMapGraph flowMapGraph) {
       this.name = name;
       this.prevLayer = prevLayer;
+      this.aggregator = null;
       this.flowMapGraph = flowMapGraph;
     }
+
+    private AggLayer(String name, AggLayer prevLayer, FlowMapGraphEdgeAggregator aggregator) {
+      this.name = name;
+      this.prevLayer = prevLayer;
+      this.aggregator = aggregator;
+    }
     public String getName() {
       return name;
     }
-    public AggLayer getPrevLayerName() {
+    public AggLayer getPrevLayer() {
       return prevLayer;
     }
+    public boolean isBuilt() {
+      return flowMapGraph != null;
+    }
+    /**
+     * Builds the layer (and the layers it depends on) if it wasn't built yet.
+     */
     public FlowMapGraph getFlowMapGraph() {
+      FlowMapGraph fmg = flowMapGraph;
+      if (fmg == null) {
+        fmg = build();
+      }
+      return fmg;
+    }
+    private synchronized FlowMapGraph build() {
+      if (flowMapGraph == null) {
+        FlowMapGraph fmg;
+        if (aggregator.isBound()) {
+          fmg = aggregator.aggregate();
+        } else {
+          fmg = aggregator.aggregate(prevLayer.getFlowMapGraph());
+          // the aggregated graph has the schema of the prev one
+          prevLayer.removeInitializerColumns(fmg);
+        }
+        if (initializer != null) {
+          initialize(fmg);
+        }
+        flowMapGraph = fmg;
+      }
       return flowMapGraph;
     }
+    private synchronized void setInitializer(LayerInitializer initializer) {
+      if (this.initializer != null) {
+        throw new IllegalStateException("Layer initializer is already set");
+      }
+      this.initializer = initializer;
+      if (flowMapGraph != null) {
+        initialize(flowMapGraph);
+      }
+    }
+    private void initialize(FlowMapGraph fmg) {
+      Set<String> nodeColumns = columnNames(fmg.getGraph().getNodeTable());
+      Set<String> edgeColumns = columnNames(fmg.getGraph().getEdgeTable());
+      initializer.init(fmg);
+      initializerNodeColumns = ImmutableSet.copyOf(
+          Sets.difference(columnNames(fmg.getGraph().getNodeTable()), nodeColumns));
+      initializerEdgeColumns = ImmutableSet.copyOf(
+          Sets.difference(columnNames(fmg.getGraph().getEdgeTable()), edgeColumns));
+    }
+    private void removeInitializerColumns(FlowMapGraph aggregated) {
+      Table nodeTable = aggregated.getGraph().getNodeTable();
+      for (String column : initializerNodeColumns) {
+        nodeTable.removeColumn(column);
+      }
+      Table edgeTable = aggregated.getGraph().getEdgeTable();
+      for (String column : initializerEdgeColumns) {
+        edgeTable.removeColumn(column);
+      }
+    }
+    private static Set<String> columnNames(Table table) {
+      Set<String> names = Sets.newHashSet();
+      for (int i = 0, n = table.getColumnCount(); i < n; i++) {
+        names.add(table.getColumnName(i));
+      }
+      return names;
+    }
   }
 
   public FlowMapGraph getFlowMapGraphOf(Node n) {
@@ -354,12 +622,22 @@ public class FlowMapGraphAggLayers {
   }
 
   private AggLayer getLayerOf(Graph graph) {
-    for (AggLayer layer : aggLayers) {
-      if (graph == layer.getFlowMapGraph().getGraph()) {
-        return layer;
+    synchronized (layersByGraph) {
+      AggLayer found = layersByGraph.get(graph);
+      if (found == null) {
+        // lazy layers might have been built since the last lookup
+        for (AggLayer layer : aggLayers) {
+          if (layer.isBuilt()) {
+            Graph g = layer.getFlowMapGraph().getGraph();
+            layersByGraph.put(g, layer);
+            if (g == graph) {
+              found = layer;
+            }
+          }
+        }
       }
+      return found;
     }
-    return null;
   }
 
   private AggLayer getLayerByName(String layerName) {
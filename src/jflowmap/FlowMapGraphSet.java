@@ -21,10 +21,12 @@ package jflowmap;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import jflowmap.data.FlowMapStats;
 import jflowmap.data.StaxGraphMLReader;
 import jflowmap.data.MultiFlowMapStats;
+import jflowmap.util.ConcurrencyUtils;
 
 import org.apache.log4j.Logger;
 
@@ -142,16 +144,20 @@ public class FlowMapGraphSet {
    * <p>
    * NOTE: If nodes of different graphs in this set have different values of nodeAttrToGroupBy,
    * the grouped nodes of these graphs will not be the same.
+   * <p>
+   * The graphs are grouped concurrently.
    */
-  public FlowMapGraphSet groupNodesBy(String nodeAttrToGroupBy) {
-    List<Graph> groupedGraphs = Lists.newArrayList();
-
-    for (FlowMapGraph fmg : asList()) {
-      FlowMapGraph grouped = fmg.groupNodesBy(nodeAttrToGroupBy);
-      groupedGraphs.add(grouped.getGraph());
+  public FlowMapGraphSet groupNodesBy(final String nodeAttrToGroupBy) {
+    List<Callable<Graph>> tasks = Lists.newArrayList();
+    for (final FlowMapGraph fmg : asList()) {
+      tasks.add(new Callable<Graph>() {
+        @Override
+        public Graph call() {
+          return fmg.groupNodesBy(nodeAttrToGroupBy).getGraph();
+        }
+      });
     }
-
-    return new FlowMapGraphSet(groupedGraphs, attrSpec);
+    return new FlowMapGraphSet(ConcurrencyUtils.invokeAll(tasks, "groupNodes"), attrSpec);
   }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.util.Arrays;
+
+/**
+ * Scans numbers separated by commas and/or whitespace from character buffers
+ * (e.g. the text chunks of a StAX parser) into a growable double array without
+ * creating a String per number. A number can be split between two chunks.
+ * <p>
+ * Numbers with at most 15 significant digits and a small exponent are converted
+ * exactly with one multiplication or division; all the others are passed to
+ * Double.parseDouble.
+ *
+ * @author Ilya Boyandin
+ */
+class CoordinatesScanner {
+
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private double[] values = new double[256];
+  private int numValues;
+
+  private char[] token = new char[32];
+  private int tokenLength;
+
+  public void reset() {
+    numValues = 0;
+    tokenLength = 0;
+  }
+
+  public void scan(char[] chars, int start, int length) {
+    for (int i = start, end = start + length; i < end; i++) {
+      char c = chars[i];
+      if (c == ','  ||  c == ' '  ||  c == '\n'  ||  c == '\t'  ||  c == '\r') {
+        endToken();
+      } else {
+        if (tokenLength == token.length) {
+          token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = c;
+      }
+    }
+  }
+
+  /**
+   * @return The number of values scanned since the last reset (including
+   *         the last one if the text didn't end with a separator)
+   */
+  public int finish() {
+    endToken();
+    return numValues;
+  }
+
+  public double get(int i) {
+    return values[i];
+  }
+
+  private void endToken() {
+    if (tokenLength > 0) {
+      if (numValues == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[numValues++] = parseDouble(token, tokenLength);
+      tokenLength = 0;
+    }
+  }
+
+  static double parseDouble(char[] chars, int length) {
+    int i = 0;
+    boolean negative = false;
+    if (chars[0] == '-') {
+      negative = true;
+      i++;
+    } else if (chars[0] == '+') {
+      i++;
+    }
+    long mantissa = 0;
+    int numDigits = 0, exp = 0;
+    boolean anyDigits = false, dot = false;
+    for (; i < length; i++) {
+      char c = chars[i];
+      if (c >= '0'  &&  c <= '9') {
+        anyDigits = true;
+        if (numDigits < 18) {
+          mantissa = mantissa * 10 + (c - '0');
+          if (mantissa != 0) numDigits++;
+          if (dot) exp--;
+        } else if (!dot) {
+          exp++;
+        }
+      } else if (c == '.'  &&  !dot) {
+        dot = true;
+      } else {
+        break;
+      }
+    }
+    if (anyDigits  &&  i < length  &&  (chars[i] == 'e'  ||  chars[i] == 'E')) {
+      i++;
+      boolean negativeExp = false;
+      if (i < length  &&  (chars[i] == '-'  ||  chars[i] == '+')) {
+        negativeExp = (chars[i] == '-');
+        i++;
+      }
+      int e = 0, start = i;
+      for (; i < length  &&  chars[i] >= '0'  &&  chars[i] <= '9'  &&  e < 10000; i++) {
+        e = e * 10 + (chars[i] - '0');
+      }
+      if (i == start) {
+        anyDigits = false;
+      }
+      exp += (negativeExp ? -e : e);
+    }
+    if (!anyDigits  ||  i < length  ||  numDigits > 15  ||
+        exp < -(POWERS_OF_TEN.length - 1)  ||  exp > POWERS_OF_TEN.length - 1) {
+      // not a simple number, let the JDK handle (or reject) it
+      return Double.parseDouble(new String(chars, 0, length));
+    }
+    double v = mantissa;
+    v = (exp < 0 ? v / POWERS_OF_TEN[-exp] : v * POWERS_OF_TEN[exp]);
+    return (negative ? -v : v);
+  }
+
+}
@@ -1,79 +1,361 @@
 package jflowmap.data;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import jflowmap.FlowMapAttrSpec;
-import au.com.bytecode.opencsv.CSVReader;
 
+import org.apache.log4j.Logger;
+
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
+ * Reads flows file in which every line is a single disaggregated flow
+ * and the weight attr which it counts to is specified in the weightAttrsAttr column.
+ * The file is read in one pass: the flows are counted by their origin, dest and weight
+ * attr in primitive arrays while the weight attrs are discovered, and only then
+ * the nodes and the edges are added to the graph.
+ *
  * @author Ilya Boyandin
  */
 public class CsvDisaggregatedFlowMapGraphReader {
 
-  public static FlowMapGraphBuilder readFlowMapGraph(String nodesLocation, String flowsLocation,
-      FlowMapAttrSpec attrSpec, String weightAttrsAttr,
-      char separator, String charset) throws IOException {
+  private static Logger logger = Logger.getLogger(CsvDisaggregatedFlowMapGraphReader.class);
 
-    CsvFlowMapGraphReader reader = new CsvFlowMapGraphReader(
-        attrSpec, nodesLocation, flowsLocation, separator, charset);
+  private final String flowsLocation;
+  private final String flowSrcNodeAttr;
+  private final String flowTargetNodeAttr;
+  private final String weightAttrsAttr;
+  private final char separator;
+  private final String charset;
 
-    final FlowMapGraphBuilder builder = reader.getBuilder();
-    //builder.withCumulatedEdges();
-    builder.withDisaggregatedEdges(weightAttrsAttr);
-    /*
-    reader.setFlowsLineParser(new CsvFlowMapGraphReader.LineParser() {
-      public void apply(Map<String, String> attrs) {
-        builder.addEdge(attrs);
-      }
-    });
-    */
-    return reader.read();
+  private boolean flowsRead;
+  private final StringIndex nodeIds = new StringIndex();
+  private final StringIndex weightAttrs = new StringIndex();
+  private final LongIntMap edgesByNodeIds = new LongIntMap();
+  private int[] edgeSrcIds = new int[1024];
+  private int[] edgeTargetIds = new int[1024];
+  private int numEdges;
+  private final List<int[]> countsByAttr = Lists.newArrayList();  // [weightAttr][edge]
+
+  public CsvDisaggregatedFlowMapGraphReader(String flowsLocation,
+      String flowSrcNodeAttr, String flowTargetNodeAttr, String weightAttrsAttr,
+      char separator, String charset) {
+    this.flowsLocation = flowsLocation;
+    this.flowSrcNodeAttr = flowSrcNodeAttr;
+    this.flowTargetNodeAttr = flowTargetNodeAttr;
+    this.weightAttrsAttr = weightAttrsAttr;
+    this.separator = separator;
+    this.charset = charset;
   }
 
-  public static Iterable<String> readAttrNames(String csvLocation, String weightAttrsAttr,
-      char separator, String charset) throws IOException {
-    CSVReader csv = null;
+  /**
+   * Reads the whole flows file (which doesn't have to be read again by
+   * {@link #read(String, FlowMapAttrSpec)} afterwards) and returns the distinct values
+   * of the weightAttrsAttr column in the natural order.
+   */
+  public Iterable<String> readWeightAttrs() throws IOException {
+    if (!flowsRead) {
+      readFlows(null);
+    }
     Set<String> attrNames = Sets.newTreeSet();
-    int lineNum = 1;
-    try {
-      csv = CsvFlowMapGraphReader.createReader(csvLocation, separator, charset);
-      String[] header = csv.readNext();
+    for (int i = 0; i < weightAttrs.size(); i++) {
+      attrNames.add(weightAttrs.get(i));
+    }
+    return attrNames;
+  }
+
+  /**
+   * If the flows file wasn't read by {@link #readWeightAttrs()}, only the flows
+   * of the weight attrs of the attrSpec are counted when reading it.
+   */
+  public FlowMapGraphBuilder read(String nodesLocation, FlowMapAttrSpec attrSpec)
+      throws IOException {
+    return read(nodesLocation, attrSpec, RecordFilters.NONE);
+  }
+
+  /**
+   * Same as {@link #read(String, FlowMapAttrSpec)}, but the nodes which don't satisfy
+   * the filters are dropped while they are read, and so are the edges which don't satisfy
+   * them as soon as they are created from the counts.
+   */
+  public FlowMapGraphBuilder read(String nodesLocation, FlowMapAttrSpec attrSpec,
+      RecordFilters filters) throws IOException {
+    List<String> attrs = attrSpec.getFlowWeightAttrs();
+    if (!flowsRead) {
+      readFlows(attrs);
+    }
+
+    CsvFlowMapGraphReader reader = new CsvFlowMapGraphReader(
+        attrSpec, nodesLocation, flowsLocation, separator, charset);
+    FlowMapGraphBuilder builder = filters.applyTo(reader.getBuilder());
+    reader.readNodes();
+
+    Map<String, Node> nodesById = builder.getNodesById();
+    Node[] nodes = new Node[nodeIds.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      String id = nodeIds.get(i);
+      nodes[i] = nodesById.get(id);
+      if (nodes[i] == null  &&  !builder.isFilteredOut(id)) {
+        throw new IOException("Error loading '" + flowsLocation + "': " +
+            "Node could not be found by id '" + id + "'");
+      }
+    }
 
+    // counts of the attrs in the order of attrSpec
+    int[][] counts = new int[attrs.size()][];
+    for (int i = 0; i < counts.length; i++) {
+      int attrIdx = weightAttrs.indexOf(attrs.get(i));
+      if (attrIdx >= 0) {
+        counts[i] = countsByAttr.get(attrIdx);
+      }
+    }
+    for (int e = 0; e < numEdges; e++) {
+      Node from = nodes[edgeSrcIds[e]], to = nodes[edgeTargetIds[e]];
+      if (from == null  ||  to == null) {
+        builder.skipEdgeOfFilteredOutNode();
+      } else {
+        builder.keepEdge(builder.addDisaggregatedEdge(from, to, counts, e));
+      }
+    }
 
-      // find column corresponding to weightAttrsAttr
-      int attrsColumnIndex = findAttrValuesAttrColumn(weightAttrsAttr, header);
-      if (attrsColumnIndex < 0)
-        throw new IOException("Column '"+weightAttrsAttr+"' is missing");
+    return builder;
+  }
 
-      String[] values;
-      while ((values = csv.readNext()) != null) {
-        lineNum++;
-        if (values.length <= attrsColumnIndex)
-          throw new IOException("No value for '"+weightAttrsAttr+"' (to few values in the line)");
-        attrNames.add(values[attrsColumnIndex].trim());
+  /**
+   * @param onlyAttrs If null, the flows of all weight attrs are counted
+   */
+  private void readFlows(List<String> onlyAttrs) throws IOException {
+    if (onlyAttrs != null) {
+      for (String attr : onlyAttrs) {
+        addWeightAttr(attr);
       }
+    }
 
+    logger.info("Parsing CSV '" + flowsLocation + "'");
+    long start = System.currentTimeMillis();
+    CsvRowReader csv = null;
+    int numRows = 0, numSkipped = 0;
+    try {
+      csv = CsvFlowMapGraphReader.createRowReader(flowsLocation, separator, charset);
+      if (csv.next()) {
+        List<String> header = Arrays.asList(csv.toArray());
+        int srcCol = requireColumn(header, flowSrcNodeAttr);
+        int targetCol = requireColumn(header, flowTargetNodeAttr);
+        int attrCol = requireColumn(header, weightAttrsAttr);
 
+        while (csv.next()) {
+          numRows++;
+          int attrIdx = weightAttrs.indexOf(csv, attrCol);
+          if (attrIdx < 0) {
+            if (onlyAttrs != null) {
+              numSkipped++;
+              continue;
+            }
+            attrIdx = addWeightAttr(csv.getString(attrCol));
+          }
+          int edge = edgeOf(nodeIds.add(csv, srcCol), nodeIds.add(csv, targetCol));
+          int[] counts = countsByAttr.get(attrIdx);
+          if (counts.length <= edge) {
+            counts = grow(counts, edge + 1);
+            countsByAttr.set(attrIdx, counts);
+          }
+          counts[edge]++;
+        }
+      }
     } catch (Exception ioe) {
-      throw new IOException("Error loading '" + csvLocation + "' (line " + lineNum + "): " +
-          ioe.getMessage(), ioe);
+      throw new IOException("Error loading '" + flowsLocation + "' (line " +
+          (csv != null ? csv.getLineNum() : 0) + "): " + ioe.getMessage(), ioe);
     } finally {
       try { if (csv != null) csv.close(); } catch (IOException ioe) {}
     }
-    return attrNames;
+    flowsRead = true;
+
+    long time = Math.max(1, System.currentTimeMillis() - start);
+    logger.info("Parsed " + numRows + " rows of '" + flowsLocation + "' in " + time + "ms (" +
+        Math.round(numRows * 1000.0 / time) + " rows/sec): " + numEdges + " edges, " +
+        weightAttrs.size() + " weight attrs" +
+        (numSkipped > 0 ? ", " + numSkipped + " rows of other weight attrs skipped" : ""));
+  }
+
+  private int addWeightAttr(String attr) {
+    int idx = weightAttrs.add(attr);
+    if (idx == countsByAttr.size()) {
+      countsByAttr.add(new int[Math.max(16, numEdges)]);
+    }
+    return idx;
+  }
+
+  private int edgeOf(int srcId, int targetId) {
+    long key = ((long)srcId << 32) | (targetId & 0xffffffffL);
+    int edge = edgesByNodeIds.putIfAbsent(key, numEdges);
+    if (edge == numEdges) {
+      if (numEdges == edgeSrcIds.length) {
+        edgeSrcIds = grow(edgeSrcIds, numEdges + 1);
+        edgeTargetIds = grow(edgeTargetIds, numEdges + 1);
+      }
+      edgeSrcIds[numEdges] = srcId;
+      edgeTargetIds[numEdges] = targetId;
+      numEdges++;
+    }
+    return edge;
   }
 
-  private static int findAttrValuesAttrColumn(String weightAttrsAttr, String[] header) {
-    for (int i = 0; i < header.length; i++) {
-      if (weightAttrsAttr.equals(header[i])) {
-        return i;
+  private static int requireColumn(List<String> header, String attr) throws IOException {
+    int col = header.lastIndexOf(attr);
+    if (col < 0) {
+      throw new IOException("Column '" + attr + "' is missing");
+    }
+    return col;
+  }
+
+  private static int[] grow(int[] array, int minSize) {
+    int[] a = new int[Math.max(minSize, array.length * 2)];
+    System.arraycopy(array, 0, a, 0, array.length);
+    return a;
+  }
+
+  /**
+   * Assigns consecutive indices to distinct strings. The strings can be looked up
+   * by a value of a CSV row without creating a String for it.
+   */
+  private static class StringIndex {
+    private String[] keys = new String[64];
+    private int[] indices = new int[64];
+    private final List<String> values = Lists.newArrayList();
+
+    public int size() {
+      return values.size();
+    }
+
+    public String get(int index) {
+      return values.get(index);
+    }
+
+    public int indexOf(String str) {
+      int i = slot(str.hashCode());
+      while (keys[i] != null) {
+        if (keys[i].equals(str)) {
+          return indices[i];
+        }
+        i = (i + 1) & (keys.length - 1);
+      }
+      return -1;
+    }
+
+    public int indexOf(CsvRowReader row, int col) {
+      int i = slot(row.hashCode(col));
+      while (keys[i] != null) {
+        if (row.contentEquals(col, keys[i])) {
+          return indices[i];
+        }
+        i = (i + 1) & (keys.length - 1);
+      }
+      return -1;
+    }
+
+    public int add(CsvRowReader row, int col) {
+      int idx = indexOf(row, col);
+      return (idx >= 0 ? idx : add(row.getString(col)));
+    }
+
+    public int add(String str) {
+      int idx = indexOf(str);
+      if (idx < 0) {
+        idx = values.size();
+        values.add(str);
+        if (values.size() * 2 > keys.length) {
+          rehash(keys.length * 2);
+        } else {
+          put(str, idx);
+        }
+      }
+      return idx;
+    }
+
+    private void put(String str, int idx) {
+      int i = slot(str.hashCode());
+      while (keys[i] != null) {
+        i = (i + 1) & (keys.length - 1);
+      }
+      keys[i] = str;
+      indices[i] = idx;
+    }
+
+    private void rehash(int capacity) {
+      keys = new String[capacity];
+      indices = new int[capacity];
+      for (int i = 0; i < values.size(); i++) {
+        put(values.get(i), i);
       }
     }
-    return -1;
+
+    private int slot(int h) {
+      return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
   }
 
+  /**
+   * Open addressing map of long keys to non-negative int values.
+   */
+  private static class LongIntMap {
+    private long[] keys = new long[1024];
+    private int[] values = newEmptyValues(1024);
+    private int size;
+
+    /**
+     * @return The value which was already in the map or the given value if it was put
+     */
+    public int putIfAbsent(long key, int value) {
+      int i = slot(key, keys.length);
+      while (values[i] >= 0) {
+        if (keys[i] == key) {
+          return values[i];
+        }
+        i = (i + 1) & (keys.length - 1);
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+      if (size * 2 > keys.length) {
+        rehash(keys.length * 2);
+      }
+      return value;
+    }
+
+    private void rehash(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[capacity];
+      values = newEmptyValues(capacity);
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldValues[j] >= 0) {
+          int i = slot(oldKeys[j], capacity);
+          while (values[i] >= 0) {
+            i = (i + 1) & (capacity - 1);
+          }
+          keys[i] = oldKeys[j];
+          values[i] = oldValues[j];
+        }
+      }
+    }
+
+    private static int slot(long key, int capacity) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h >>> 32) & (capacity - 1);
+    }
+
+    private static int[] newEmptyValues(int capacity) {
+      int[] a = new int[capacity];
+      Arrays.fill(a, -1);
+      return a;
+    }
+  }
 
 }
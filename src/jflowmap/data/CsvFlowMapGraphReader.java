@@ -23,16 +23,24 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import jflowmap.FlowMapAttrSpec;
+import jflowmap.geom.Point;
 import jflowmap.util.IOUtils;
 
 import org.apache.log4j.Logger;
 
+import prefuse.data.Edge;
+import prefuse.data.Node;
+import prefuse.data.Tuple;
 import at.fhj.utils.misc.FileUtils;
 import au.com.bytecode.opencsv.CSVReader;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
@@ -102,48 +110,63 @@ public class CsvFlowMapGraphReader {
 
   public static FlowMapGraphBuilder readFlowMapGraph(String nodesLocation, String flowsLocation,
       FlowMapAttrSpec attrSpec, char separator, String charset) throws IOException {
-    return new CsvFlowMapGraphReader(
-        attrSpec, nodesLocation, flowsLocation, separator, charset).read();
+    return readFlowMapGraph(nodesLocation, flowsLocation, attrSpec, separator, charset,
+        RecordFilters.NONE);
+  }
+
+  /**
+   * The nodes and flows which don't satisfy the filters are dropped
+   * while the files are read.
+   */
+  public static FlowMapGraphBuilder readFlowMapGraph(String nodesLocation, String flowsLocation,
+      FlowMapAttrSpec attrSpec, char separator, String charset, RecordFilters filters)
+      throws IOException {
+    CsvFlowMapGraphReader reader = new CsvFlowMapGraphReader(
+        attrSpec, nodesLocation, flowsLocation, separator, charset);
+    filters.applyTo(reader.getBuilder());
+    return reader.read();
   }
 
   FlowMapGraphBuilder read() throws IOException {
-    parseCsv(nodesLocation, new LineParser() {
-      public void apply(Map<String, String> attrs) { builder.addNode(attrs); }
-    });
+    readNodes();
 
     if (flowsLineParser != null) {
-      parseCsv(flowsLocation, flowsLineParser);
-    } else {
-      parseCsv(flowsLocation, new LineParser() {
+      parseCsv(flowsLocation, new MapRowParser(flowsLineParser));
+    } else if (builder.hasDisaggregatedEdges()) {
+      parseCsv(flowsLocation, new MapRowParser(new LineParser() {
         public void apply(Map<String, String> attrs) { builder.addEdge(attrs); }
-      });
+      }));
+    } else {
+      parseCsv(flowsLocation, new EdgeRowParser(
+          new NodeIndex(builder.getNodesById(), builder.getFilteredOutNodeIds())));
     }
 
     return builder;
   }
 
-  private void parseCsv(String csvLocation, LineParser lp) throws IOException {
+  void readNodes() throws IOException {
+    parseCsv(nodesLocation, new NodeRowParser());
+  }
+
+  private void parseCsv(String csvLocation, RowParser rp) throws IOException {
     logger.info("Parsing CSV '" + csvLocation + "'");
-    CSVReader csv = null;
-    int lineNum = 1;
+    long start = System.currentTimeMillis();
+    CsvRowReader csv = null;
+    int numRows = 0;
     try {
-      Map<String, Integer> colsByName = null;
-      csv = createReader(csvLocation, separator, charset);
-      String[] csvLine;
-      while ((csvLine = csv.readNext()) != null) {
-        if (lineNum == 1) {
-          // parse header
-          colsByName = createColsByNameMap(csvLine);
-        } else {
-          // parse the rest of the lines
-          Map<String, String> attrs = asAttrValuesMap(csvLine, colsByName);
-          lp.apply(attrs);
+      csv = createRowReader(csvLocation, separator, charset);
+      if (csv.next()) {
+        // parse header
+        rp.header(createColsByNameMap(csv.toArray()));
+        // parse the rest of the lines
+        while (csv.next()) {
+          rp.apply(csv);
+          numRows++;
         }
-        lineNum++;
       }
     } catch (Exception ioe) {
-      throw new IOException("Error loading '" + csvLocation + "' (line " + lineNum + "): " +
-          ioe.getMessage(), ioe);
+      throw new IOException("Error loading '" + csvLocation + "' (line " +
+          (csv != null ? csv.getLineNum() : 0) + "): " + ioe.getMessage(), ioe);
     } finally {
       try {
         if (csv != null) csv.close();
@@ -151,27 +174,36 @@ public class CsvFlowMapGraphReader {
         // can't do anything about it
       }
     }
+    long time = Math.max(1, System.currentTimeMillis() - start);
+    logger.info("Parsed " + numRows + " rows of '" + csvLocation + "' in " + time + "ms (" +
+        Math.round(numRows * 1000.0 / time) + " rows/sec)");
   }
 
-  public static CSVReader createReader(String csvLocation, char separator, String charset)
+  static CsvRowReader createRowReader(String csvLocation, char separator, String charset)
   throws IOException {
-    return new CSVReader(new InputStreamReader(
+    return new CsvRowReader(new InputStreamReader(
         IOUtils.asInputStream(csvLocation), charset), separator);
   }
 
-  private Map<String, String> asAttrValuesMap(final String[] csvLine,
-      Map<String, Integer> colsByName) {
-    return Maps.transformValues(colsByName, new Function<Integer, String>() {
-      public String apply(Integer col) {
-        return csvLine[col].trim();
-      }
-    });
+  public static CSVReader createReader(String csvLocation, char separator, String charset)
+  throws IOException {
+    return new CSVReader(new InputStreamReader(
+        IOUtils.asInputStream(csvLocation), charset), separator);
   }
 
   interface LineParser {
     void apply(Map<String, String> attrValues) throws IOException;
   }
 
+  /**
+   * Receives the columns of the header once and then every row.
+   * The values of the rows can only be accessed within apply().
+   */
+  private interface RowParser {
+    void header(Map<String, Integer> colsByName);
+    void apply(CsvRowReader row) throws IOException;
+  }
+
   private Map<String, Integer> createColsByNameMap(String[] line) {
     Map<String, Integer> map = Maps.newHashMap();
     for (int i = 0; i < line.length; i++) {
@@ -179,4 +211,206 @@ public class CsvFlowMapGraphReader {
     }
     return map;
   }
+
+  private static int columnOf(String attr, Map<String, Integer> colsByName) {
+    Integer col = colsByName.get(attr);
+    return (col != null ? col : -1);
+  }
+
+  private static int requireColumn(int col, String attr) {
+    if (col < 0) {
+      throw new IllegalArgumentException("No value for column '" + attr + "'");
+    }
+    return col;
+  }
+
+  /**
+   * Passes the values of every row as a map of the values by column names
+   * to a LineParser.
+   */
+  private static class MapRowParser implements RowParser {
+    private final LineParser lineParser;
+    private Map<String, Integer> colsByName;
+
+    public MapRowParser(LineParser lineParser) {
+      this.lineParser = lineParser;
+    }
+
+    public void header(Map<String, Integer> colsByName) {
+      this.colsByName = colsByName;
+    }
+
+    public void apply(final CsvRowReader row) throws IOException {
+      lineParser.apply(Maps.transformValues(colsByName, new Function<Integer, String>() {
+        public String apply(Integer col) {
+          return row.getString(col);
+        }
+      }));
+    }
+  }
+
+  /**
+   * The columns of the custom attrs in the same order as they are iterated over
+   * in FlowMapGraphBuilder.setCustomAttrs(), so that the table columns are
+   * added in the same order.
+   */
+  private class CustomAttrs {
+    private final String[] attrs;
+    private final int[] cols;
+
+    public CustomAttrs(Map<String, Integer> colsByName, Predicate<String> isCustomAttr) {
+      List<String> names = Lists.newArrayList(Iterables.filter(colsByName.keySet(), isCustomAttr));
+      attrs = names.toArray(new String[names.size()]);
+      cols = new int[attrs.length];
+      for (int i = 0; i < attrs.length; i++) {
+        cols[i] = colsByName.get(attrs[i]);
+      }
+    }
+
+    public int size() {
+      return attrs.length;
+    }
+
+    public void set(Tuple tuple, CsvRowReader row) {
+      for (int i = 0; i < attrs.length; i++) {
+        int col = cols[i];
+        if (!row.isEmpty(col)) {
+          double v = row.parsePlainDecimal(col);
+          if (Double.isNaN(v)  ||  !builder.setCustomAttr(tuple, attrs[i], v)) {
+            builder.setCustomAttr(tuple, attrs[i], row.getString(col));
+          }
+        }
+      }
+    }
+  }
+
+  private class NodeRowParser implements RowParser {
+    private int idCol, lonCol, latCol, labelCol;
+    private CustomAttrs customAttrs;
+
+    public void header(Map<String, Integer> colsByName) {
+      idCol = columnOf(attrSpec.getNodeIdAttr(), colsByName);
+      lonCol = columnOf(attrSpec.getNodeLonAttr(), colsByName);
+      latCol = columnOf(attrSpec.getNodeLatAttr(), colsByName);
+      labelCol = columnOf(attrSpec.getNodeLabelAttr(), colsByName);
+      customAttrs = new CustomAttrs(colsByName, new Predicate<String>() {
+        public boolean apply(String attrName) { return !attrSpec.isRequiredNodeAttr(attrName); }
+      });
+    }
+
+    public void apply(CsvRowReader row) {
+      Node node = builder.addNode(
+          row.getString(requireColumn(idCol, attrSpec.getNodeIdAttr())),
+          new Point(
+              row.getDouble(requireColumn(lonCol, attrSpec.getNodeLonAttr())),
+              row.getDouble(requireColumn(latCol, attrSpec.getNodeLatAttr()))),
+          row.getString(requireColumn(labelCol, attrSpec.getNodeLabelAttr())));
+      customAttrs.set(node, row);
+      builder.keepNode(node);
+    }
+  }
+
+  private class EdgeRowParser implements RowParser {
+    private final NodeIndex nodeIndex;
+    private int srcCol, targetCol;
+    private int[] weightCols;
+    private double[] weights;
+    private CustomAttrs customAttrs;
+
+    public EdgeRowParser(NodeIndex nodeIndex) {
+      this.nodeIndex = nodeIndex;
+    }
+
+    public void header(Map<String, Integer> colsByName) {
+      srcCol = columnOf(attrSpec.getFlowSrcNodeAttr(), colsByName);
+      targetCol = columnOf(attrSpec.getFlowTargetNodeAttr(), colsByName);
+      List<String> weightAttrs = attrSpec.getFlowWeightAttrs();
+      weightCols = new int[weightAttrs.size()];
+      for (int i = 0; i < weightCols.length; i++) {
+        weightCols[i] = columnOf(weightAttrs.get(i), colsByName);
+      }
+      weights = new double[weightCols.length];
+      customAttrs = new CustomAttrs(colsByName, new Predicate<String>() {
+        public boolean apply(String attrName) { return builder.isCustomEdgeAttrToStore(attrName); }
+      });
+      int numSkipped = colsByName.size() - weightCols.length - customAttrs.size();
+      if (numSkipped > 0) {
+        logger.info("Skipping " + numSkipped + " of " + colsByName.size() + " flow columns" +
+            " which are not used as weight, node id or filter attrs");
+      }
+    }
+
+    public void apply(CsvRowReader row) {
+      Node from = nodeIndex.require(row, requireColumn(srcCol, attrSpec.getFlowSrcNodeAttr()));
+      Node to = nodeIndex.require(row, requireColumn(targetCol, attrSpec.getFlowTargetNodeAttr()));
+      if (from == null  ||  to == null) {
+        // the weights of the flows of the filtered out nodes aren't even parsed
+        builder.skipEdgeOfFilteredOutNode();
+        return;
+      }
+      for (int i = 0; i < weightCols.length; i++) {
+        weights[i] = row.getDouble(
+            requireColumn(weightCols[i], attrSpec.getFlowWeightAttrs().get(i)));
+      }
+      Edge edge = builder.addEdge(from, to, weights);
+      customAttrs.set(edge, row);
+      builder.keepEdge(edge);
+    }
+  }
+
+  /**
+   * Open addressing hash table of the nodes by their ids which can be looked up
+   * by a value of a CSV row without creating a String for it. The ids of the
+   * filtered out nodes are mapped to null.
+   */
+  private static class NodeIndex {
+    private final String[] ids;
+    private final Node[] nodes;
+    private final int mask;
+
+    public NodeIndex(Map<String, Node> nodesById, Set<String> filteredOutIds) {
+      int capacity = 2;
+      while (capacity < (nodesById.size() + filteredOutIds.size()) * 2) {
+        capacity <<= 1;
+      }
+      ids = new String[capacity];
+      nodes = new Node[capacity];
+      mask = capacity - 1;
+      for (Map.Entry<String, Node> e : nodesById.entrySet()) {
+        put(e.getKey(), e.getValue());
+      }
+      for (String id : filteredOutIds) {
+        put(id, null);
+      }
+    }
+
+    private void put(String id, Node node) {
+      if (id != null) {
+        int i = spread(id.hashCode()) & mask;
+        while (ids[i] != null) {
+          i = (i + 1) & mask;
+        }
+        ids[i] = id;
+        nodes[i] = node;
+      }
+    }
+
+    /**
+     * @return The node or null if it was filtered out
+     */
+    public Node require(CsvRowReader row, int col) {
+      int i = spread(row.hashCode(col)) & mask;
+      while (ids[i] != null) {
+        if (row.contentEquals(col, ids[i])) {
+          return nodes[i];
+        }
+        i = (i + 1) & mask;
+      }
+      throw new IllegalArgumentException("Node could not be found by id '" + row.getString(col) + "'");
+    }
+
+    private static int spread(int h) {
+      return h ^ (h >>> 16);
+    }
+  }
 }
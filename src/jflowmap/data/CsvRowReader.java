@@ -0,0 +1,366 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/**
+ * Streaming CSV reader which keeps the current row in reusable char buffers
+ * instead of creating a String for every value. The values are trimmed
+ * and can be read by their column index as strings or parsed as numbers
+ * directly from the buffer.
+ * <p>
+ * The lines are split exactly as {@link au.com.bytecode.opencsv.CSVReader} with the
+ * default quote and escape chars would split them: lines without quotes and escapes are
+ * split on the separator here, all other lines (and the lines which are continued
+ * in quoted values) are passed to opencsv's CSVParser.
+ *
+ * @author Ilya Boyandin
+ */
+class CsvRowReader implements Closeable {
+
+  private static final char QUOTE_CHAR = CSVParser.DEFAULT_QUOTE_CHARACTER;
+  private static final char ESCAPE_CHAR = CSVParser.DEFAULT_ESCAPE_CHARACTER;
+
+  /** Powers of ten which are exactly representable as doubles */
+  private static final double[] EXACT_POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  private final Reader in;
+  private final char separator;
+  private final CSVParser quotedLineParser;
+
+  private final char[] readBuf = new char[1 << 16];
+  private int readPos, readLen;
+  private boolean skipLF;
+  private int lineNum;
+
+  private char[] line = new char[1024];
+  private int lineLen;
+
+  private char[] quotedValues = new char[1024];
+
+  private char[] values;    // either line or quotedValues
+  private int[] valueStarts = new int[32];
+  private int[] valueEnds = new int[32];
+  private int numValues;
+
+  public CsvRowReader(Reader in, char separator) {
+    this.in = in;
+    this.separator = separator;
+    this.quotedLineParser = new CSVParser(separator);
+  }
+
+  /**
+   * Reads the next row. The values of the previous row are not available afterwards.
+   *
+   * @return False if there are no more rows
+   */
+  public boolean next() throws IOException {
+    if (!readLine()) {
+      return false;
+    }
+    if (hasQuotesOrEscapes(line, lineLen)) {
+      parseWithCsvParser();
+    } else {
+      split();
+    }
+    return true;
+  }
+
+  /**
+   * @return The number of the last physical line which was read
+   */
+  public int getLineNum() {
+    return lineNum;
+  }
+
+  public int size() {
+    return numValues;
+  }
+
+  public String[] toArray() {
+    String[] array = new String[numValues];
+    for (int i = 0; i < numValues; i++) {
+      array[i] = getString(i);
+    }
+    return array;
+  }
+
+  public String getString(int col) {
+    checkColumn(col);
+    return new String(values, valueStarts[col], valueEnds[col] - valueStarts[col]);
+  }
+
+  public boolean isEmpty(int col) {
+    checkColumn(col);
+    return valueStarts[col] == valueEnds[col];
+  }
+
+  /**
+   * @return True if the value is equal to the given string
+   */
+  public boolean contentEquals(int col, String str) {
+    checkColumn(col);
+    int start = valueStarts[col];
+    int len = valueEnds[col] - start;
+    if (len != str.length()) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (values[start + i] != str.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The same hash code as getString(col).hashCode() would return
+   */
+  public int hashCode(int col) {
+    checkColumn(col);
+    int h = 0;
+    for (int i = valueStarts[col], end = valueEnds[col]; i < end; i++) {
+      h = 31 * h + values[i];
+    }
+    return h;
+  }
+
+  /**
+   * Parses the value in the same way as Double.parseDouble would do.
+   * An empty value is parsed as NaN.
+   *
+   * @throws IllegalArgumentException If the value cannot be parsed
+   */
+  public double getDouble(int col) {
+    if (isEmpty(col)) {
+      return Double.NaN;
+    }
+    double v = parsePlainDecimal(col);
+    if (Double.isNaN(v)) {
+      String str = getString(col);
+      try {
+        v = Double.parseDouble(str);
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException("Cannot parse number '" + str + "'");
+      }
+    }
+    return v;
+  }
+
+  /**
+   * Parses plain decimal numbers (optional sign, digits, optional fraction)
+   * without creating a String. Only numbers whose digits fit into the 53 bits
+   * of a double's mantissa and which have at most 22 fraction digits are accepted.
+   * For those, the division of the mantissa by the exactly representable power of ten
+   * is correctly rounded, so the result is the same as the one of Double.parseDouble.
+   *
+   * @return The parsed value or NaN if the value isn't a plain decimal number
+   *         or is out of the range of the fast path
+   */
+  public double parsePlainDecimal(int col) {
+    checkColumn(col);
+    int i = valueStarts[col];
+    int end = valueEnds[col];
+    if (i == end) {
+      return Double.NaN;
+    }
+    boolean negative = false;
+    char c = values[i];
+    if (c == '-'  ||  c == '+') {
+      negative = (c == '-');
+      i++;
+    }
+    long mantissa = 0;
+    int numDigits = 0;
+    int fractionDigits = -1;
+    for (; i < end; i++) {
+      c = values[i];
+      if (c >= '0'  &&  c <= '9') {
+        mantissa = mantissa * 10 + (c - '0');
+        if (mantissa > MAX_EXACT_MANTISSA) {
+          return Double.NaN;
+        }
+        numDigits++;
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+      } else if (c == '.'  &&  fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        return Double.NaN;
+      }
+    }
+    if (numDigits == 0  ||  fractionDigits >= EXACT_POWERS_OF_TEN.length) {
+      return Double.NaN;
+    }
+    double v = mantissa;
+    if (fractionDigits > 0) {
+      v /= EXACT_POWERS_OF_TEN[fractionDigits];
+    }
+    return (negative ? -v : v);
+  }
+
+  private void checkColumn(int col) {
+    if (col < 0  ||  col >= numValues) {
+      throw new IllegalArgumentException(
+          "No value in column " + (col + 1) + " (too few values in the line)");
+    }
+  }
+
+  /**
+   * Reads the next line into the line buffer. Lines are terminated
+   * in the same way as by BufferedReader.readLine().
+   */
+  private boolean readLine() throws IOException {
+    lineLen = 0;
+    while (true) {
+      if (readPos >= readLen) {
+        readLen = in.read(readBuf, 0, readBuf.length);
+        readPos = 0;
+        if (readLen <= 0) {
+          readLen = 0;
+          if (lineLen > 0) {
+            lineNum++;
+            return true;
+          }
+          return false;
+        }
+      }
+      char c = readBuf[readPos++];
+      if (skipLF) {
+        skipLF = false;
+        if (c == '\n') {
+          continue;
+        }
+      }
+      if (c == '\n'  ||  c == '\r') {
+        skipLF = (c == '\r');
+        lineNum++;
+        return true;
+      }
+      if (lineLen == line.length) {
+        line = grow(line, lineLen + 1);
+      }
+      line[lineLen++] = c;
+    }
+  }
+
+  private static boolean hasQuotesOrEscapes(char[] chars, int len) {
+    for (int i = 0; i < len; i++) {
+      char c = chars[i];
+      if (c == QUOTE_CHAR  ||  c == ESCAPE_CHAR) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void split() {
+    values = line;
+    numValues = 0;
+    int start = 0;
+    for (int i = 0; i <= lineLen; i++) {
+      if (i == lineLen  ||  line[i] == separator) {
+        addValue(start, i);
+        start = i + 1;
+      }
+    }
+  }
+
+  /**
+   * Same as CSVReader.readNext(): if a quoted value spans several lines,
+   * all of them are read.
+   */
+  private void parseWithCsvParser() throws IOException {
+    String[] result = null;
+    do {
+      String[] r = quotedLineParser.parseLineMulti(new String(line, 0, lineLen));
+      if (result == null) {
+        result = r;
+      } else {
+        String[] merged = new String[result.length + r.length];
+        System.arraycopy(result, 0, merged, 0, result.length);
+        System.arraycopy(r, 0, merged, result.length, r.length);
+        result = merged;
+      }
+    } while (quotedLineParser.isPending()  &&  readLine());
+
+    int total = 0;
+    for (String v : result) {
+      total += v.length();
+    }
+    if (quotedValues.length < total) {
+      quotedValues = grow(quotedValues, total);
+    }
+    values = quotedValues;
+    numValues = 0;
+    int pos = 0;
+    for (String v : result) {
+      v.getChars(0, v.length(), quotedValues, pos);
+      addValue(pos, pos + v.length());
+      pos += v.length();
+    }
+  }
+
+  /**
+   * Adds the bounds of the value trimmed as with String.trim().
+   */
+  private void addValue(int start, int end) {
+    while (start < end  &&  values[start] <= ' ') {
+      start++;
+    }
+    while (end > start  &&  values[end - 1] <= ' ') {
+      end--;
+    }
+    if (numValues == valueStarts.length) {
+      valueStarts = grow(valueStarts);
+      valueEnds = grow(valueEnds);
+    }
+    valueStarts[numValues] = start;
+    valueEnds[numValues] = end;
+    numValues++;
+  }
+
+  private static char[] grow(char[] array, int minSize) {
+    char[] a = new char[Math.max(minSize, array.length * 2)];
+    System.arraycopy(array, 0, a, 0, array.length);
+    return a;
+  }
+
+  private static int[] grow(int[] array) {
+    int[] a = new int[array.length * 2];
+    System.arraycopy(array, 0, a, 0, array.length);
+    return a;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import prefuse.data.Table;
+import prefuse.data.Tuple;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+/**
+ * Reads the records of a dBase (.dbf) file one by one. Only the current record is
+ * kept in memory: it is available as the only row of a table, so that prefuse
+ * predicates can be evaluated on it.
+ * <p>
+ * See http://www.dbase.com/KnowledgeBase/int/db7_file_fmt.htm
+ *
+ * @author Ilya Boyandin
+ */
+class DbfReader {
+
+  private static final Charset CHARSET = Charsets.ISO_8859_1;
+
+  private final DataInputStream in;
+  private final int numRecords;
+  private final String[] fieldNames;
+  private final char[] fieldTypes;
+  private final int[] fieldOffsets;
+  private final int[] fieldLengths;
+  private final byte[] record;
+  private final ByteBuffer recordBuf;
+  private final Table table;
+  private int recordIndex = -1;
+
+  public DbfReader(InputStream is) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+
+    ByteBuffer header = readLittleEndian(32);
+    this.numRecords = header.getInt(4);
+    int headerLength = header.getShort(8) & 0xffff;
+    int recordLength = header.getShort(10) & 0xffff;
+    if (headerLength < 33  ||  recordLength < 1) {
+      throw new IOException("Invalid DBF header");
+    }
+
+    ByteBuffer fields = readLittleEndian(headerLength - 32);
+    List<String> names = Lists.newArrayList();
+    List<Character> types = Lists.newArrayList();
+    List<Integer> lengths = Lists.newArrayList();
+    for (int pos = 0; pos + 32 <= fields.limit()  &&  fields.get(pos) != 0x0D; pos += 32) {
+      int nameLength = 0;
+      while (nameLength < 11  &&  fields.get(pos + nameLength) != 0) {
+        nameLength++;
+      }
+      names.add(new String(fields.array(), pos, nameLength, CHARSET));
+      types.add((char)fields.get(pos + 11));
+      lengths.add(fields.get(pos + 16) & 0xff);
+    }
+
+    int numFields = names.size();
+    this.fieldNames = names.toArray(new String[numFields]);
+    this.fieldTypes = new char[numFields];
+    this.fieldOffsets = new int[numFields];
+    this.fieldLengths = new int[numFields];
+    this.table = new Table();
+    int offset = 1;  // the first byte of a record is the deletion flag
+    for (int i = 0; i < numFields; i++) {
+      fieldTypes[i] = types.get(i);
+      fieldOffsets[i] = offset;
+      fieldLengths[i] = lengths.get(i);
+      offset += fieldLengths[i];
+      table.addColumn(fieldNames[i], fieldClass(fieldTypes[i]));
+    }
+    if (offset > recordLength) {
+      throw new IOException("The DBF fields don't fit in records of length " + recordLength);
+    }
+    table.addRow();
+
+    this.record = new byte[recordLength];
+    this.recordBuf = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private ByteBuffer readLittleEndian(int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static Class<?> fieldClass(char type) {
+    switch (type) {
+    case 'N':
+    case 'F':
+    case 'O':
+      return double.class;
+    case 'I':
+      return int.class;
+    default:
+      return String.class;
+    }
+  }
+
+  public int getNumRecords() {
+    return numRecords;
+  }
+
+  public String[] getFieldNames() {
+    return fieldNames.clone();
+  }
+
+  public int getFieldIndex(String name) {
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (fieldNames[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return False if there are no more records
+   */
+  public boolean next() throws IOException {
+    if (recordIndex + 1 >= numRecords) {
+      return false;
+    }
+    try {
+      in.readFully(record);
+    } catch (EOFException eof) {
+      throw new IOException("The DBF file ended after " + (recordIndex + 1) + " records " +
+          "instead of " + numRecords);
+    }
+    recordIndex++;
+    for (int i = 0; i < fieldNames.length; i++) {
+      switch (fieldTypes[i]) {
+      case 'N':
+      case 'F':
+        table.setDouble(0, i, parseDouble(textValue(i)));
+        break;
+      case 'O':
+        table.setDouble(0, i, fieldLengths[i] == 8 ?
+            recordBuf.getDouble(fieldOffsets[i]) : parseDouble(textValue(i)));
+        break;
+      case 'I':
+        table.setInt(0, i, fieldLengths[i] == 4 ?
+            recordBuf.getInt(fieldOffsets[i]) : (int)parseDouble(textValue(i)));
+        break;
+      default:
+        table.set(0, i, textValue(i));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The index of the record read last by {@link #next()}
+   */
+  public int getRecordIndex() {
+    return recordIndex;
+  }
+
+  /**
+   * @return The tuple holding the values of the current record. It is reused
+   *         for all the records.
+   */
+  public Tuple getRecord() {
+    return table.getTuple(0);
+  }
+
+  public Object get(int field) {
+    return table.get(0, field);
+  }
+
+  private String textValue(int field) {
+    int start = fieldOffsets[field], end = start + fieldLengths[field];
+    while (start < end  &&  (record[start] == ' '  ||  record[start] == 0)) start++;
+    while (end > start  &&  (record[end - 1] == ' '  ||  record[end - 1] == 0)) end--;
+    return new String(record, start, end - start, CHARSET);
+  }
+
+  private static double parseDouble(String text) {
+    // empty or overflown ("***") numeric fields have no value
+    if (text.length() == 0  ||  text.charAt(0) == '*') {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException nfe) {
+      return Double.NaN;
+    }
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+}
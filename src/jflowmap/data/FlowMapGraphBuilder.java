@@ -19,9 +19,11 @@
 package jflowmap.data;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import jflowmap.FlowMapAttrSpec;
 import jflowmap.FlowMapGraph;
@@ -47,6 +49,7 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * @author Ilya Boyandin
@@ -66,7 +69,18 @@ public class FlowMapGraphBuilder {
   private String edgeWeightAttrExistsFilterExpr;
   private String edgeWeightAttrForAllFilterExpr;
 
+  private boolean recordFiltersCompiled;
+  private prefuse.data.expression.Predicate nodeRecordFilter;
+  private prefuse.data.expression.Predicate edgeRecordFilter;
+  private Set<String> nodeFilterColumns, edgeFilterColumns;
+  private boolean nodeFilterColumnsAdded, edgeFilterColumnsAdded;
+  private final Set<String> filteredOutNodeIds = Sets.newHashSet();
+  private int numFilteredOutEdges;
+  private int numAddedNodes, numCheckedNodes;
+  private int numAddedEdges, numCheckedEdges;
+
   private String disaggregatedAttrValuesAttr;
+  private Set<String> customEdgeAttrsToStore;
 
   static {
     FunctionTable.addFunction("ISNAN", IsNaNFunction.class);
@@ -102,6 +116,7 @@ public class FlowMapGraphBuilder {
   }
 
   public FlowMapGraphBuilder withCumulatedEdges() {
+    checkFiltersNotCompiled();
     this.cumulatedEdges = new HashMap<EdgeKey, Edge>();
     return this;
   }
@@ -111,26 +126,167 @@ public class FlowMapGraphBuilder {
     return withCumulatedEdges();
   }
 
+  /**
+   * Only the weight attrs, the flow source/target attrs, the given attrs and those
+   * used by the edge filters are stored for the edges. The values of the other
+   * custom edge attrs (e.g. the unused ones of many yearly columns) are skipped
+   * without being parsed.
+   */
+  public FlowMapGraphBuilder withEdgeAttrsProjection(String ... customAttrsToStore) {
+    checkFiltersNotCompiled();
+    customEdgeAttrsToStore = Sets.newHashSet(customAttrsToStore);
+    customEdgeAttrsToStore.add(attrSpec.getFlowSrcNodeAttr());
+    customEdgeAttrsToStore.add(attrSpec.getFlowTargetNodeAttr());
+    return this;
+  }
+
+  /**
+   * @return True if the values of the attr must be stored for the edges
+   *         as a custom attr (one which is not a weight attr).
+   */
+  boolean isCustomEdgeAttrToStore(String attrName) {
+    compileRecordFilters();
+    return !attrSpec.isFlowWeightAttr(attrName)  &&
+      (customEdgeAttrsToStore == null  ||  customEdgeAttrsToStore.contains(attrName));
+  }
+
   public FlowMapGraphBuilder withEdgeFilter(String expr) {
+    checkFiltersNotCompiled();
     edgeFilterExpr = expr;
     return this;
   }
 
   public FlowMapGraphBuilder withNodeFilter(String expr) {
+    checkFiltersNotCompiled();
     nodeFilterExpr = expr;
     return this;
   }
 
   public FlowMapGraphBuilder withEdgeWeightAttrExistsFilter(String expr) {
+    checkFiltersNotCompiled();
     edgeWeightAttrExistsFilterExpr = expr;
     return this;
   }
 
   public FlowMapGraphBuilder withEdgeWeightAttrForAllFilter(String expr) {
+    checkFiltersNotCompiled();
     edgeWeightAttrForAllFilterExpr = expr;
     return this;
   }
 
+  private void checkFiltersNotCompiled() {
+    if (recordFiltersCompiled) {
+      throw new IllegalStateException("The builder must be configured before adding nodes or edges");
+    }
+  }
+
+  /**
+   * The filters are compiled when the first node is added, so that every node and
+   * edge can be checked right after it's added instead of filtering the built graph.
+   * The edge filters can't be applied to the cumulated edges before all of them are added.
+   */
+  private void compileRecordFilters() {
+    if (!recordFiltersCompiled) {
+      RecordFilters filters = new RecordFilters(nodeFilterExpr, edgeFilterExpr,
+          edgeWeightAttrExistsFilterExpr, edgeWeightAttrForAllFilterExpr);
+      nodeRecordFilter = filters.nodePredicate();
+      if (nodeRecordFilter != null) {
+        nodeFilterColumns = RecordFilters.referencedColumns(nodeRecordFilter);
+      }
+      if (cumulatedEdges == null) {
+        edgeRecordFilter = filters.edgePredicate(attrSpec.getFlowWeightAttrs());
+        if (edgeRecordFilter != null) {
+          edgeFilterColumns = RecordFilters.referencedColumns(edgeRecordFilter);
+        }
+      }
+      if (customEdgeAttrsToStore != null) {
+        customEdgeAttrsToStore.addAll(filters.referencedEdgeColumns(attrSpec.getFlowWeightAttrs()));
+      }
+      recordFiltersCompiled = true;
+      if (nodeRecordFilter != null  ||  edgeRecordFilter != null) {
+        logger.info("Filtering records while loading: " + filters);
+      }
+    }
+  }
+
+  /**
+   * Checks the node against the node filter and removes it if it doesn't satisfy it.
+   * Must be called after all the attrs of the node are set. Its table row is then
+   * reused by the next added node.
+   * <p>
+   * The custom columns are only added at their first non-empty value. Until all the
+   * columns used by the filter exist, the nodes are kept unchecked and are filtered
+   * when the graph is built.
+   *
+   * @return True if the node was kept
+   */
+  boolean keepNode(Node node) {
+    compileRecordFilters();
+    if (nodeRecordFilter != null  &&  !nodeFilterColumnsAdded) {
+      nodeFilterColumnsAdded = hasColumns(graph.getNodeTable(), nodeFilterColumns);
+      if (!nodeFilterColumnsAdded) {
+        return true;
+      }
+    }
+    numCheckedNodes++;
+    if (nodeRecordFilter == null  ||  nodeRecordFilter.getBoolean(node)) {
+      return true;
+    }
+    String id = node.getString(graphNodeIdAttr);
+    nodesById.remove(id);
+    filteredOutNodeIds.add(id);
+    graph.removeNode(node);
+    return false;
+  }
+
+  /**
+   * Same as {@link #keepNode(Node)} for edges.
+   */
+  boolean keepEdge(Edge edge) {
+    compileRecordFilters();
+    if (edgeRecordFilter != null  &&  !edgeFilterColumnsAdded) {
+      edgeFilterColumnsAdded = hasColumns(graph.getEdgeTable(), edgeFilterColumns);
+      if (!edgeFilterColumnsAdded) {
+        return true;
+      }
+    }
+    numCheckedEdges++;
+    if (edgeRecordFilter == null  ||  edgeRecordFilter.getBoolean(edge)) {
+      return true;
+    }
+    graph.removeEdge(edge);
+    numFilteredOutEdges++;
+    return false;
+  }
+
+  private static boolean hasColumns(Table table, Set<String> columns) {
+    for (String column : columns) {
+      if (table.getColumnNumber(column) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return True if the node with this id was added, but didn't satisfy the node filter.
+   *         The edges incident to it must then be skipped.
+   */
+  boolean isFilteredOut(String nodeId) {
+    return filteredOutNodeIds.contains(nodeId);
+  }
+
+  /**
+   * @return Unmodifiable view of the ids of the nodes which didn't satisfy the node filter.
+   */
+  Set<String> getFilteredOutNodeIds() {
+    return Collections.unmodifiableSet(filteredOutNodeIds);
+  }
+
+  void skipEdgeOfFilteredOutNode() {
+    numFilteredOutEdges++;
+  }
+
   public Node addNode(String id, String label) {
     return addNode(id, null, label);
   }
@@ -140,9 +296,11 @@ public class FlowMapGraphBuilder {
   }
 
   public Node addNode(String id, Point position, String label) {
+    compileRecordFilters();
+    numAddedNodes++;
     Node node = graph.addNode();
     node.setString(graphNodeIdAttr, id);
-    if (nodesById.containsKey(id)) {
+    if (nodesById.containsKey(id)  ||  filteredOutNodeIds.contains(id)) {
       throw new IllegalArgumentException("Duplicate node id '" + id + "'");
     }
     if (attrSpec.hasNodePositions()) {
@@ -169,6 +327,7 @@ public class FlowMapGraphBuilder {
     setCustomAttrs(node, attrValues, new Predicate<String>() {
       public boolean apply(String attrName) { return !attrSpec.isRequiredNodeAttr(attrName); }
     });
+    keepNode(node);
   }
 
   /**
@@ -179,22 +338,46 @@ public class FlowMapGraphBuilder {
   private void setCustomAttrs(Tuple tuple, Map<String, String> attrValues,
       Predicate<String> isCustomAttr) {
 
-    Table table = tuple.getTable();
-
     for (String attr : Iterables.filter(attrValues.keySet(), isCustomAttr)) {
-      String value = attrValues.get(attr);
-      if (!isEmptyValue(value)) {
-        Class<?> type = determineType(value);
-        if (!table.canSet(attr, type)) {
-          table.addColumn(attr, type);
-        }
-        tuple.set(attr, value);
+      setCustomAttr(tuple, attr, attrValues.get(attr));
+    }
+  }
+
+  void setCustomAttr(Tuple tuple, String attr, String value) {
+    if (!isEmptyValue(value)) {
+      Class<?> type = determineType(value);
+      Table table = tuple.getTable();
+      if (!table.canSet(attr, type)) {
+        table.addColumn(attr, type);
       }
+      tuple.set(attr, value);
     }
   }
 
+  /**
+   * Same as {@link #setCustomAttr(Tuple, String, String)} for a value which is known
+   * to be a plain decimal number, but without formatting and re-parsing it.
+   *
+   * @return False if the value wasn't set, because the column isn't of type double.
+   *         The caller must then use {@link #setCustomAttr(Tuple, String, String)}.
+   */
+  boolean setCustomAttr(Tuple tuple, String attr, double value) {
+    Table table = tuple.getTable();
+    if (!table.canSet(attr, double.class)) {
+      table.addColumn(attr, double.class);
+    }
+    if (table.getColumnType(attr) != double.class) {
+      return false;
+    }
+    tuple.setDouble(attr, value);
+    return true;
+  }
+
   // TODO: Use type Number (and BigDecimals?) instead of Double
   private Class<?> determineType(String value) {
+    if (!canStartNumber(value)) {
+      return String.class;  // avoid the costly exception for the typical string values
+    }
     try {
       Double.parseDouble(value);
       return double.class;
@@ -204,6 +387,29 @@ public class FlowMapGraphBuilder {
     return String.class;
   }
 
+  /**
+   * Rejects the strings which Double.parseDouble would certainly reject: after an
+   * optional sign there must be a digit, a dot, "NaN" or "Infinity".
+   */
+  private static boolean canStartNumber(String value) {
+    String str = value.trim();
+    int i = 0;
+    if (i < str.length()  &&  (str.charAt(i) == '+'  ||  str.charAt(i) == '-')) {
+      i++;
+    }
+    if (i >= str.length()) {
+      return false;
+    }
+    char c = str.charAt(i);
+    if (c == 'N') {
+      return str.startsWith("NaN", i);
+    }
+    if (c == 'I') {
+      return str.startsWith("Infinity", i);
+    }
+    return (c >= '0'  &&  c <= '9')  ||  c == '.';
+  }
+
   private boolean isEmptyValue(String valueStr) {
     return valueStr == null  ||  valueStr.trim().length() == 0;
   }
@@ -241,8 +447,14 @@ public class FlowMapGraphBuilder {
 
   public void addEdge(Map<String, String> attrValues) {
 
-    Node from = requireNode(requireValue(attrSpec.getFlowSrcNodeAttr(), attrValues));
-    Node to = requireNode(requireValue(attrSpec.getFlowTargetNodeAttr(), attrValues));
+    String srcId = requireValue(attrSpec.getFlowSrcNodeAttr(), attrValues);
+    String targetId = requireValue(attrSpec.getFlowTargetNodeAttr(), attrValues);
+    if (isFilteredOut(srcId)  ||  isFilteredOut(targetId)) {
+      skipEdgeOfFilteredOutNode();
+      return;
+    }
+    Node from = requireNode(srcId);
+    Node to = requireNode(targetId);
 
     if (disaggregatedAttrValuesAttr == null) {
 
@@ -250,9 +462,12 @@ public class FlowMapGraphBuilder {
       setCustomAttrs(edge, attrValues, new Predicate<String>() {
         public boolean apply(String attrName) {
          //return !attrSpec.isRequiredFlowAttr(attrName);
-          return !attrSpec.isFlowWeightAttr(attrName);
+          return isCustomEdgeAttrToStore(attrName);
         }
       });
+      if (cumulatedEdges == null) {
+        keepEdge(edge);
+      }
 
     } else {
 
@@ -261,7 +476,7 @@ public class FlowMapGraphBuilder {
       String attr = requireValue(disaggregatedAttrValuesAttr, attrValues);
       int count = 1;
       if (edge == null) {
-        edge = graph.addEdge(from, to);
+        edge = newEdge(from, to);
         cumulatedEdges.put(key, edge);
       } else {
         if (edge.canGetDouble(attr)) {
@@ -274,10 +489,41 @@ public class FlowMapGraphBuilder {
     }
   }
 
+  /**
+   * Adds an edge with the numbers of the disaggregated flows counted for each of
+   * the weight attrs. As with {@link #addEdge(Map)} in the disaggregated edges mode,
+   * the weights of the attrs without flows are not set.
+   *
+   * @param countsByAttr Counts in the order of the weight attrs of the attrSpec
+   *          indexed by edge. Null or a too short array means no flows.
+   */
+  Edge addDisaggregatedEdge(Node from, Node to, int[][] countsByAttr, int edgeIndex) {
+    Edge edge = newEdge(from, to);
+    List<String> weightAttrs = attrSpec.getFlowWeightAttrs();
+    for (int i = 0; i < weightAttrs.size(); i++) {
+      int[] counts = countsByAttr[i];
+      if (counts != null  &&  edgeIndex < counts.length  &&  counts[edgeIndex] > 0) {
+        edge.setDouble(weightAttrs.get(i), counts[edgeIndex]);
+      }
+    }
+    return edge;
+  }
+
   public Edge addEdge(String srcId, String targetId, Iterable<Double> weights) {
     return addEdge(requireNode(srcId), requireNode(targetId), weights);
   }
 
+  /**
+   * @return Unmodifiable view of the nodes added so far.
+   */
+  Map<String, Node> getNodesById() {
+    return Collections.unmodifiableMap(nodesById);
+  }
+
+  boolean hasDisaggregatedEdges() {
+    return disaggregatedAttrValuesAttr != null;
+  }
+
   private Node requireNode(String nodeId) {
     Node node = nodesById.get(nodeId);
     if (node == null) {
@@ -297,47 +543,72 @@ public class FlowMapGraphBuilder {
     }
     List<String> weightAttrs = attrSpec.getFlowWeightAttrs();
 
-    EdgeKey key = new EdgeKey(from, to);
-
     if (weights.length != weightAttrs.size()) {
       throw new IllegalArgumentException(
           "Number of supplied weights doesn't match the number of weight attrs");
     }
 
-    double[] sumWeights = weights.clone();
-    Edge edge;
-    if (cumulatedEdges == null) {
-      edge = graph.addEdge(from, to);
-    } else {
+    // the weights array is not modified or kept, so that the callers can reuse it
+    Edge edge = null;
+    if (cumulatedEdges != null) {
+      EdgeKey key = new EdgeKey(from, to);
       edge = cumulatedEdges.get(key);
       if (edge == null) {
-        edge = graph.addEdge(from, to);
+        edge = newEdge(from, to);
         cumulatedEdges.put(key, edge);
       } else {
         for (int i = 0; i < weightAttrs.size(); i++) {
-          sumWeights[i] += edge.getDouble(weightAttrs.get(i));
+          String attr = weightAttrs.get(i);
+          edge.setDouble(attr, weights[i] + edge.getDouble(attr));
         }
+        return edge;
       }
+    } else {
+      edge = newEdge(from, to);
     }
 
     for (int i = 0; i < weightAttrs.size(); i++) {
-      edge.setDouble(weightAttrs.get(i), sumWeights[i]);
+      edge.setDouble(weightAttrs.get(i), weights[i]);
     }
 
 
     return edge;
   }
 
+  private Edge newEdge(Node from, Node to) {
+    compileRecordFilters();
+    numAddedEdges++;
+    return graph.addEdge(from, to);
+  }
+
   private Graph buildGraph() {
     cumulatedEdges = null;
-    filterNodes(graph, nodeFilterExpr);
-    filterEdges(graph, edgeFilterExpr);
-    List<String> attrs = attrSpec.getFlowWeightAttrs();
-    filterEdgesWithWeightAttrForAll(graph, edgeWeightAttrForAllFilterExpr, attrs);
-    filterEdgesWithWeightAttrExists(graph, edgeWeightAttrExistsFilterExpr, attrs);
+    compileRecordFilters();
+    // the records which were added without being checked (e.g. by the callers
+    // which don't use keepNode/keepEdge) must still be filtered
+    if (nodeRecordFilter == null  ||  numCheckedNodes < numAddedNodes) {
+      filterNodes(graph, nodeFilterExpr);
+    }
+    if (edgeRecordFilter == null  ||  numCheckedEdges < numAddedEdges) {
+      filterEdges(graph, edgeFilterExpr);
+      List<String> attrs = attrSpec.getFlowWeightAttrs();
+      filterEdgesWithWeightAttrForAll(graph, edgeWeightAttrForAllFilterExpr, attrs);
+      filterEdgesWithWeightAttrExists(graph, edgeWeightAttrExistsFilterExpr, attrs);
+    }
+    if (nodeRecordFilter != null  ||  edgeRecordFilter != null) {
+      logFilteredOutRecords("Nodes", filteredOutNodeIds.size(), graph.getNodeTable());
+      logFilteredOutRecords("Edges", numFilteredOutEdges, graph.getEdgeTable());
+    }
     return graph;
   }
 
+  static void logFilteredOutRecords(String what, int numFilteredOut, Table table) {
+    logger.info(what + " filtered out while loading: " + numFilteredOut +
+        " of " + (numFilteredOut + table.getRowCount()) + ", left: " + table.getRowCount() +
+        " (~" + (numFilteredOut * RecordFilters.estimateRowSize(table) / 1024) +
+        "KB of table rows not retained, no removal pass after loading)");
+  }
+
   public static void filterEdgesWithWeightAttrForAll(Graph g, String expr, Iterable<String> weightAttrs) {
     filterEdgesWithWeightAttr(g, expr, weightAttrs, new AndPredicate());
   }
@@ -1,7 +1,8 @@
 package jflowmap.data;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
@@ -16,14 +17,14 @@ import prefuse.data.Graph;
 import prefuse.data.Node;
 import prefuse.data.Table;
 import prefuse.data.Tuple;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 
 /**
  * @author Ilya Boyandin
@@ -33,10 +34,8 @@ public class FlowMapGraphEdgeAggregator {
   private static Logger logger = Logger.getLogger(FlowMapGraphEdgeAggregator.class);
 
   private static final String AGGREGATE_LIST_COLUMN = "_:agg-list";
-  private Map<List<String>, Node> nodesByIds;
   private final FlowMapGraph flowMapGraph;
   private final Function<Edge, Object> groupFunction;
-  private Graph aggGraph;
   private Map<String, ValueAggregator> customValueAggregators;
 
   public FlowMapGraphEdgeAggregator(FlowMapGraph fmg, Function<Edge, Object> groupFunction) {
@@ -44,6 +43,19 @@ public class FlowMapGraphEdgeAggregator {
     this.groupFunction = groupFunction;
   }
 
+  /**
+   * Creates an aggregator which is not bound to a FlowMapGraph. It can only be used
+   * with {@link #aggregate(FlowMapGraph)}. This allows to configure an aggregator
+   * before the graph it will be applied to is built.
+   */
+  public FlowMapGraphEdgeAggregator(Function<Edge, Object> groupFunction) {
+    this(null, groupFunction);
+  }
+
+  public boolean isBound() {
+    return flowMapGraph != null;
+  }
+
   /**
    * When edges are aggregated their nodes are as well aggregated.
    * A -> B  &  A -> C   ==>  A -> (B,C)
@@ -124,84 +136,376 @@ public class FlowMapGraphEdgeAggregator {
   }
 
   public FlowMapGraph aggregate() {
+    if (flowMapGraph == null) {
+      throw new IllegalStateException("The aggregator is not bound to a FlowMapGraph");
+    }
+    return aggregate(flowMapGraph);
+  }
+
+  /**
+   * The edges are grouped by assigning each distinct value of the group function
+   * a dense int key. The nodes of each group are identified by the sorted ranks
+   * of their ids (ranks are computed once for the whole graph), so that the
+   * aggregated nodes can be shared between groups without building lists of id strings.
+   * The double columns which use the default aggregator (sum ignoring NaNs) are
+   * accumulated into primitive arrays in a single pass over the edges. The other
+   * columns and the custom {@link ValueAggregator}s are handled as before over
+   * the tuples of each group. The aggregated graph is then built in bulk.
+   */
+  public FlowMapGraph aggregate(FlowMapGraph flowMapGraph) {
     logger.info("Aggregating FlowMapGraph id='" + flowMapGraph.getId() + "', group function: " +
         groupFunction);
-    Multimap<Object, Edge> groups = ArrayListMultimap.create();
-    for (Edge e : flowMapGraph.edges()) {
-      groups.put(groupFunction.apply(e), e);
-    }
+    long start = System.currentTimeMillis();
 
-    nodesByIds = Maps.newHashMap();
     Graph graph = flowMapGraph.getGraph();
-    aggGraph = Graph2.create(
+    EdgeGroups groups = EdgeGroups.groupBy(graph, groupFunction);
+
+    Graph aggGraph = Graph2.create(
         (Table2)graph.getNodeTable().getSchema().instantiate(),
         (Table2)graph.getEdgeTable().getSchema().instantiate());
 
     addAggListColumn(aggGraph.getNodeTable());
     addAggListColumn(aggGraph.getEdgeTable());
 
-    for (Object group : groups.keySet()) {
-      Collection<Edge> edges = groups.get(group);
-      Edge newEdge = aggGraph.addEdge(
-          aggregateNodes(Nodes.distinctNodesOfEdges(edges, FlowEndpoint.ORIGIN), AggEntity.SOURCE_NODE),
-          aggregateNodes(Nodes.distinctNodesOfEdges(edges, FlowEndpoint.DEST), AggEntity.TARGET_NODE));
+    // Create the aggregated nodes (a node having degree > 1 mustn't be recreated for each edge)
+    int numGroups = groups.size();
+    int[] srcNodes = new int[numGroups];
+    int[] trgNodes = new int[numGroups];
+    int[] nodeRanks = rankNodesById(graph);
+    Map<NodeKey, Integer> aggNodes = Maps.newHashMap();
+    List<int[]> aggNodeMembers = Lists.newArrayList();
+    List<AggEntity> aggNodeEntities = Lists.newArrayList();
+    int[] stamps = new int[nodeRanks.length == 0 ? 0 : max(nodeRanks) + 1];
+    Arrays.fill(stamps, -1);
+    int stamp = 0;
+    for (int g = 0; g < numGroups; g++) {
+      srcNodes[g] = aggNodeFor(groups.distinctNodesOf(g, FlowEndpoint.ORIGIN, nodeRanks, stamps, stamp++),
+          nodeRanks, AggEntity.SOURCE_NODE, aggNodes, aggNodeMembers, aggNodeEntities);
+      trgNodes[g] = aggNodeFor(groups.distinctNodesOf(g, FlowEndpoint.DEST, nodeRanks, stamps, stamp++),
+          nodeRanks, AggEntity.TARGET_NODE, aggNodes, aggNodeMembers, aggNodeEntities);
+    }
 
-      aggregateEdges(edges, newEdge);
+    // Nodes
+    Table nodeTable = graph.getNodeTable();
+    Table aggNodeTable = aggGraph.getNodeTable();
+    int[] aggNodeRows = new int[aggNodeMembers.size()];
+    for (int i = 0; i < aggNodeRows.length; i++) {
+      aggNodeRows[i] = aggGraph.addNodeRow();
+      List<Node> nodes = Lists.newArrayListWithCapacity(aggNodeMembers.get(i).length);
+      for (int row : aggNodeMembers.get(i)) {
+        nodes.add(graph.getNode(row));
+      }
+      aggNodeTable.set(aggNodeRows[i], AGGREGATE_LIST_COLUMN, ImmutableList.copyOf(nodes));
+    }
+    for (String column : flowMapGraph.getAggregatableNodeColumns()) {
+      ValueAggregator agg = getAggregator(column, aggNodeTable.getColumnType(column));
+      Column aggCol = aggNodeTable.getColumn(column);
+      if (isSumOfDoubles(agg, aggNodeTable, column)) {
+        Column col = nodeTable.getColumn(column);
+        for (int i = 0; i < aggNodeRows.length; i++) {
+          double sum = 0;
+          int cnt = 0;
+          for (int row : aggNodeMembers.get(i)) {
+            double v = col.getDouble(row);
+            if (!Double.isNaN(v)) {
+              sum += v;
+              cnt++;
+            }
+          }
+          aggCol.setDouble(cnt == 0 ? Double.NaN : sum, aggNodeRows[i]);
+        }
+      } else {
+        for (int i = 0; i < aggNodeRows.length; i++) {
+          @SuppressWarnings("unchecked")
+          List<Tuple> nodes = (List<Tuple>) aggNodeTable.get(aggNodeRows[i], AGGREGATE_LIST_COLUMN);
+          aggCol.set(aggregate(agg, nodes, column, aggNodeEntities.get(i)), aggNodeRows[i]);
+        }
+      }
+    }
+
+    // Edges
+    Table edgeTable = graph.getEdgeTable();
+    Table aggEdgeTable = aggGraph.getEdgeTable();
+    int[] aggEdgeRows = new int[numGroups];
+    List<List<Tuple>> groupEdges = Lists.newArrayListWithCapacity(numGroups);
+    for (int g = 0; g < numGroups; g++) {
+      aggEdgeRows[g] = aggGraph.addEdge(aggNodeRows[srcNodes[g]], aggNodeRows[trgNodes[g]]);
+      List<Edge> edges = Lists.newArrayListWithCapacity(groups.sizeOf(g));
+      for (int i = groups.start(g), end = groups.start(g + 1); i < end; i++) {
+        edges.add(graph.getEdge(groups.edgeRow(i)));
+      }
+      List<Edge> aggList = ImmutableList.copyOf(edges);
+      aggEdgeTable.set(aggEdgeRows[g], AGGREGATE_LIST_COLUMN, aggList);
+      groupEdges.add(ImmutableList.<Tuple>copyOf(aggList));
+    }
 
-      newEdge.set(AGGREGATE_LIST_COLUMN, ImmutableList.copyOf(edges));
+    List<String> fastColumns = Lists.newArrayList();
+    for (String column : flowMapGraph.getAggregatableEdgeColumns()) {
+      ValueAggregator agg = getAggregator(column, aggEdgeTable.getColumnType(column));
+      if (isSumOfDoubles(agg, aggEdgeTable, column)) {
+        fastColumns.add(column);
+      } else {
+        Column aggCol = aggEdgeTable.getColumn(column);
+        for (int g = 0; g < numGroups; g++) {
+          aggCol.set(aggregate(agg, groupEdges.get(g), column, AggEntity.EDGE), aggEdgeRows[g]);
+        }
+      }
     }
+    sumEdgeColumns(groups, edgeTable, aggEdgeTable, aggEdgeRows, fastColumns);
 
     FlowMapGraph.setGraphId(aggGraph, flowMapGraph.getId() + " aggregated by " + groupFunction);
 
+    if (logger.isDebugEnabled()) {
+      logger.debug("Aggregated " + groups.numEdges() + " edges into " + numGroups + " edges and " +
+          aggNodeRows.length + " nodes in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
     return new FlowMapGraph(aggGraph, flowMapGraph.getAttrSpec());
   }
 
-  private void addAggListColumn(Table et) {
-    if (!et.canGet(AGGREGATE_LIST_COLUMN, List.class)) {
-      et.addColumn(AGGREGATE_LIST_COLUMN, List.class);
+  /**
+   * Sums up the double columns of the edges of each group in a single pass over the edges.
+   */
+  private static void sumEdgeColumns(EdgeGroups groups, Table edgeTable, Table aggEdgeTable,
+      int[] aggEdgeRows, List<String> columns) {
+    int numCols = columns.size();
+    if (numCols == 0) {
+      return;
+    }
+    Column[] cols = new Column[numCols];
+    for (int c = 0; c < numCols; c++) {
+      cols[c] = edgeTable.getColumn(columns.get(c));
+    }
+    int numGroups = groups.size();
+    double[][] sums = new double[numCols][numGroups];
+    int[][] counts = new int[numCols][numGroups];
+    for (int g = 0; g < numGroups; g++) {
+      for (int i = groups.start(g), end = groups.start(g + 1); i < end; i++) {
+        int row = groups.edgeRow(i);
+        for (int c = 0; c < numCols; c++) {
+          double v = cols[c].getDouble(row);
+          if (!Double.isNaN(v)) {
+            sums[c][g] += v;
+            counts[c][g]++;
+          }
+        }
+      }
+    }
+    for (int c = 0; c < numCols; c++) {
+      Column aggCol = aggEdgeTable.getColumn(columns.get(c));
+      for (int g = 0; g < numGroups; g++) {
+        aggCol.setDouble(counts[c][g] == 0 ? Double.NaN : sums[c][g], aggEdgeRows[g]);
+      }
     }
   }
 
-  private void aggregateEdges(Collection<Edge> edges, Edge newEdge) {
-    aggregateColumns(edges, newEdge, flowMapGraph.getAggregatableEdgeColumns(), AggEntity.EDGE);
+  private static boolean isSumOfDoubles(ValueAggregator agg, Table table, String column) {
+    return agg == AttrDataTypes.DOUBLE  &&  table.getColumnType(column) == double.class;
   }
 
-  public enum AggEntity {
-    SOURCE_NODE, TARGET_NODE, EDGE;
+  private static Object aggregate(ValueAggregator agg, List<Tuple> tuples, final String column,
+      AggEntity entity) {
+    return agg.aggregate(Iterables.transform(tuples, new Function<Tuple, Object>() {
+      @Override
+      public Object apply(Tuple t) {
+        return t.get(column);
+      }
+    }), tuples, entity);
   }
 
-  private Node aggregateNodes(Iterable<Node> nodes, AggEntity entity) {
-//    nodes = Nodes.unique(nodes);
-    List<String> nodeIds = nodeIdsOf(nodes);
-    Node newNode = nodesByIds.get(nodeIds);  // if a node has degree > 1, we mustn't recreate it
-                                             // for each edge
-    if (newNode == null) {
-      newNode = aggregateColumns(nodes, aggGraph.addNode(),
-          flowMapGraph.getAggregatableNodeColumns(), entity);
-      nodesByIds.put(nodeIds, newNode);
+  private static int aggNodeFor(int[] nodeRows, int[] nodeRanks, AggEntity entity,
+      Map<NodeKey, Integer> aggNodes, List<int[]> aggNodeMembers, List<AggEntity> aggNodeEntities) {
+    int[] ranks = new int[nodeRows.length];
+    for (int i = 0; i < nodeRows.length; i++) {
+      ranks[i] = nodeRanks[nodeRows[i]];
+    }
+    NodeKey key = new NodeKey(ranks);
+    Integer idx = aggNodes.get(key);
+    if (idx == null) {
+      idx = aggNodeMembers.size();
+      aggNodes.put(key, idx);
+      aggNodeMembers.add(nodeRows);
+      aggNodeEntities.add(entity);
+    }
+    return idx;
+  }
+
+  /**
+   * Nodes having the same id get the same rank. The ranks follow the order
+   * of {@link FlowMapGraph#COMPARE_NODES_BY_IDS}.
+   *
+   * @return Array of ranks indexed by node row
+   */
+  private static int[] rankNodesById(Graph graph) {
+    final Table nodeTable = graph.getNodeTable();
+    List<Integer> rows = Lists.newArrayListWithCapacity(nodeTable.getRowCount());
+    for (IntIterator it = nodeTable.rows(); it.hasNext(); ) {
+      rows.add(it.nextInt());
+    }
+    final String[] ids = new String[nodeTable.getMaximumRow() + 1];
+    for (int row : rows) {
+      ids[row] = nodeTable.getString(row, FlowMapGraph.GRAPH_NODE_ID_COLUMN);
+    }
+    Collections.sort(rows, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer r1, Integer r2) {
+        return ids[r1].compareTo(ids[r2]);
+      }
+    });
+    int[] ranks = new int[ids.length];
+    int rank = -1;
+    String prevId = null;
+    for (int row : rows) {
+      if (prevId == null  ||  !prevId.equals(ids[row])) {
+        rank++;
+        prevId = ids[row];
+      }
+      ranks[row] = rank;
+    }
+    return ranks;
+  }
 
-      newNode.set(AGGREGATE_LIST_COLUMN, ImmutableList.copyOf(nodes));
+  private static int max(int[] a) {
+    int max = Integer.MIN_VALUE;
+    for (int v : a) {
+      if (v > max) max = v;
     }
-    return newNode;
+    return max;
   }
 
-  @SuppressWarnings("unchecked")
-  private <T extends Tuple> T aggregateColumns(Iterable<T> tuples, T newTuple,
-      Iterable<String> columns, AggEntity entity) {
-//    if (logger.isDebugEnabled()) {
-//      logger.debug("Aggregating columns: " + Iterables.toString(columns));
-//    }
-    for (final String column : columns) {
-      ValueAggregator agg = getAggregator(column, newTuple.getColumnType(column));
-      Object aggValue = agg.aggregate(Iterables.transform(tuples, new Function<Tuple, Object>() {
-        @Override
-        public Object apply(Tuple t) {
-          return t.get(column);
+  /**
+   * Edges grouped by the value of the group function. The groups are numbered
+   * in the order of their first appearance and the edges of each group are stored
+   * contiguously (preserving their order in the graph).
+   */
+  private static class EdgeGroups {
+    private final Graph graph;
+    private final int[] edgeRows;      // edge rows sorted by group
+    private final int[] groupStarts;   // groupStarts[g]..groupStarts[g + 1] in edgeRows
+
+    private EdgeGroups(Graph graph, int[] edgeRows, int[] groupStarts) {
+      this.graph = graph;
+      this.edgeRows = edgeRows;
+      this.groupStarts = groupStarts;
+    }
+
+    static EdgeGroups groupBy(Graph graph, Function<Edge, Object> groupFunction) {
+      Table edgeTable = graph.getEdgeTable();
+      int numEdges = edgeTable.getRowCount();
+      int[] rows = new int[numEdges];
+      int[] groupOf = new int[numEdges];
+      Map<Object, Integer> keys = Maps.newHashMap();
+      int[] counts = new int[16];
+      int i = 0;
+      for (IntIterator it = edgeTable.rows(); it.hasNext(); i++) {
+        int row = it.nextInt();
+        Object key = groupFunction.apply(graph.getEdge(row));
+        Integer g = keys.get(key);
+        if (g == null) {
+          g = keys.size();
+          keys.put(key, g);
+          if (g == counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+          }
+        }
+        rows[i] = row;
+        groupOf[i] = g;
+        counts[g]++;
+      }
+      int numGroups = keys.size();
+      int[] starts = new int[numGroups + 1];
+      for (int g = 0; g < numGroups; g++) {
+        starts[g + 1] = starts[g] + counts[g];
+      }
+      int[] next = Arrays.copyOf(starts, numGroups);
+      int[] sorted = new int[numEdges];
+      for (i = 0; i < numEdges; i++) {
+        sorted[next[groupOf[i]]++] = rows[i];
+      }
+      return new EdgeGroups(graph, sorted, starts);
+    }
+
+    int size() {
+      return groupStarts.length - 1;
+    }
+
+    int numEdges() {
+      return edgeRows.length;
+    }
+
+    int sizeOf(int group) {
+      return groupStarts[group + 1] - groupStarts[group];
+    }
+
+    int start(int group) {
+      return groupStarts[group];
+    }
+
+    int edgeRow(int index) {
+      return edgeRows[index];
+    }
+
+    /**
+     * @return The rows of the distinct nodes (by id) of the given endpoint
+     *         of the group's edges sorted by node id.
+     */
+    int[] distinctNodesOf(int group, FlowEndpoint ep, final int[] nodeRanks, int[] stamps, int stamp) {
+      int[] nodes = new int[sizeOf(group)];
+      int count = 0;
+      for (int i = groupStarts[group], end = groupStarts[group + 1]; i < end; i++) {
+        int edgeRow = edgeRows[i];
+        int node = (ep == FlowEndpoint.ORIGIN ? graph.getSourceNode(edgeRow) : graph.getTargetNode(edgeRow));
+        int rank = nodeRanks[node];
+        if (stamps[rank] != stamp) {
+          stamps[rank] = stamp;
+          nodes[count++] = node;
+        }
+      }
+      // sort by rank (insertion sort, since groups are usually small and almost sorted)
+      for (int i = 1; i < count; i++) {
+        int node = nodes[i];
+        int rank = nodeRanks[node];
+        int j = i - 1;
+        while (j >= 0  &&  nodeRanks[nodes[j]] > rank) {
+          nodes[j + 1] = nodes[j];
+          j--;
         }
-      }), (Iterable<Tuple>)tuples, entity);
-      newTuple.set(column, aggValue);
+        nodes[j + 1] = node;
+      }
+      return Arrays.copyOf(nodes, count);
+    }
+  }
+
+  private static class NodeKey {
+    private final int[] ranks;
+    private final int hash;
+
+    NodeKey(int[] ranks) {
+      this.ranks = ranks;
+      this.hash = Arrays.hashCode(ranks);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof NodeKey)) return false;
+      return Arrays.equals(ranks, ((NodeKey)obj).ranks);
     }
-    return newTuple;
+  }
+
+  private void addAggListColumn(Table et) {
+    if (!et.canGet(AGGREGATE_LIST_COLUMN, List.class)) {
+      et.addColumn(AGGREGATE_LIST_COLUMN, List.class);
+    }
+  }
+
+  public enum AggEntity {
+    SOURCE_NODE, TARGET_NODE, EDGE;
   }
 
   private ValueAggregator getAggregator(String columnName, Class<?> columnType) {
@@ -249,12 +553,4 @@ public class FlowMapGraphEdgeAggregator {
     Object aggregate(Iterable<Object> values, Iterable<Tuple> tuples, AggEntity entity);
   }
 
-  private List<String> nodeIdsOf(Iterable<Node> nodes) {
-    List<String> ids = new ArrayList<String>();
-    for (Node node : nodes) {
-      ids.add(flowMapGraph.getNodeId(node));
-    }
-    return ids;
-  }
-
 }
@@ -0,0 +1,490 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.data.Graph2.Schema2;
+import jflowmap.data.Graph2.Table2;
+import jflowmap.geom.Point;
+
+import org.apache.log4j.Logger;
+
+import prefuse.data.Graph;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Binary columnar snapshot of a fully built FlowMapGraph: the node and edge columns
+ * (including the node totals and the edge subdivision points if they were computed),
+ * the attr spec and the graph id. A snapshot records the checksum of the sources
+ * it was built from, so that it is ignored once they change.
+ * <p>
+ * Snapshots are read through a memory-mapped buffer with bulk reads of the columns,
+ * which is much faster than parsing the original CSV or GraphML files again.
+ *
+ * @author Ilya Boyandin
+ */
+public class FlowMapGraphSnapshot {
+
+  private static Logger logger = Logger.getLogger(FlowMapGraphSnapshot.class);
+
+  private static final int MAGIC = 0x4A464D53;  // "JFMS"
+  private static final int VERSION = 1;
+
+  private static final byte TYPE_INT = 1;
+  private static final byte TYPE_LONG = 2;
+  private static final byte TYPE_FLOAT = 3;
+  private static final byte TYPE_DOUBLE = 4;
+  private static final byte TYPE_BOOLEAN = 5;
+  private static final byte TYPE_STRING = 6;
+  private static final byte TYPE_POINTS = 7;
+
+  private FlowMapGraphSnapshot() {
+  }
+
+  /**
+   * Writes the snapshot into a temporary file which then replaces the given one,
+   * so that a partially written snapshot is never read.
+   *
+   * @throws IOException If the graph has columns of types which snapshots don't support
+   */
+  public static void write(FlowMapGraph fmg, File file, long sourceChecksum) throws IOException {
+    long start = System.currentTimeMillis();
+    Graph graph = fmg.getGraph();
+    if (graph.getNodeKeyField() != null) {
+      throw new IOException("Graphs with a node key field are not supported");
+    }
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory()  &&  !dir.mkdirs()) {
+      throw new IOException("Cannot create directory " + dir);
+    }
+    File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sourceChecksum);
+        writeString(out, fmg.getGraphId());
+        out.writeBoolean(graph.isDirected());
+        writeAttrSpec(out, fmg.getAttrSpec());
+
+        Table nodeTable = graph.getNodeTable();
+        int[] nodeRows = validRows(nodeTable);
+        int[] newNodeRows = new int[nodeTable.getMaximumRow() + 1];
+        for (int i = 0; i < nodeRows.length; i++) {
+          newNodeRows[nodeRows[i]] = i;
+        }
+        writeTable(out, nodeTable, nodeRows, Collections.<String>emptySet(), null);
+        writeTable(out, graph.getEdgeTable(), validRows(graph.getEdgeTable()),
+            ImmutableSet.of(graph.getEdgeSourceField(), graph.getEdgeTargetField()), newNodeRows);
+      } finally {
+        out.close();
+      }
+      if (file.exists()  &&  !file.delete()) {
+        throw new IOException("Cannot replace " + file);
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot rename " + tmp + " to " + file);
+      }
+    } finally {
+      tmp.delete();
+    }
+    logger.info("Snapshot of '" + fmg.getId() + "' written to " + file + " (" +
+        (file.length() >> 10) + "KB) in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * @return The graph stored in the snapshot or null if the file doesn't exist, was written
+   *         by another version or for sources with a different checksum
+   * @throws IOException Also if the snapshot is truncated or corrupt
+   */
+  public static FlowMapGraph read(File file, long sourceChecksum) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    long start = System.currentTimeMillis();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.remaining() < 16  ||  in.getInt() != MAGIC  ||  in.getInt() != VERSION) {
+        logger.info("Ignoring snapshot " + file + " written in a different format");
+        return null;
+      }
+      if (in.getLong() != sourceChecksum) {
+        logger.info("Ignoring outdated snapshot " + file);
+        return null;
+      }
+      String graphId = readString(in);
+      boolean directed = (in.get() != 0);
+      FlowMapAttrSpec attrSpec = readAttrSpec(in);
+      Table2 nodeTable = readTable(in);
+      Table2 edgeTable = readTable(in);
+
+      Graph graph;
+      if (directed) {
+        graph = Graph2.create(nodeTable, edgeTable);
+      } else {
+        graph = new Graph(nodeTable, edgeTable, false);
+      }
+      FlowMapGraph.setGraphId(graph, graphId);
+
+      logger.info("Snapshot " + file + " with " + nodeTable.getRowCount() + " nodes and " +
+          edgeTable.getRowCount() + " flows read in " + (System.currentTimeMillis() - start) + "ms");
+
+      return new FlowMapGraph(graph, attrSpec);
+    } catch (RuntimeException re) {  // e.g. BufferUnderflowException
+      throw new IOException("Corrupt snapshot " + file + ": " + re, re);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Computes a checksum of the given source locations and of the extra string (e.g. the
+   * properties the graph was built with). The contents of the sources aren't read:
+   * a local file is identified by its path, length and modification time, and a URL by
+   * the length and the modification time which are reported for it (for HTTP by a HEAD
+   * request), so that the checksum is cheap compared to loading the sources.
+   *
+   * @throws IOException If a source cannot be found or if its modification time is unknown,
+   *         so that it cannot be told whether it has changed
+   */
+  public static long checksumOf(Iterable<String> locations, String extra) throws IOException {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    ByteBuffer buf = ByteBuffer.allocate(16);
+    for (String location : locations) {
+      md5.update(location.getBytes(Charsets.UTF_8));
+      long length, lastModified;
+      File file = new File(location);
+      if (file.isFile()) {
+        md5.update(file.getCanonicalPath().getBytes(Charsets.UTF_8));
+        length = file.length();
+        lastModified = file.lastModified();
+      } else {
+        URLConnection conn = new URL(location).openConnection();
+        if (conn instanceof HttpURLConnection) {
+          ((HttpURLConnection)conn).setRequestMethod("HEAD");
+        }
+        try {
+          length = conn.getContentLength();
+          lastModified = conn.getLastModified();
+        } finally {
+          if (conn instanceof HttpURLConnection) {
+            ((HttpURLConnection)conn).disconnect();
+          }
+        }
+        if (lastModified == 0) {
+          throw new IOException("Modification time of '" + location + "' is unknown");
+        }
+      }
+      buf.clear();
+      buf.putLong(length).putLong(lastModified);
+      md5.update(buf.array());
+    }
+    if (extra != null) {
+      md5.update(extra.getBytes(Charsets.UTF_8));
+    }
+    return ByteBuffer.wrap(md5.digest()).getLong();
+  }
+
+  private static void writeAttrSpec(DataOutputStream out, FlowMapAttrSpec spec) throws IOException {
+    writeString(out, spec.getFlowSrcNodeAttr());
+    writeString(out, spec.getFlowTargetNodeAttr());
+    writeString(out, spec.getLegendCaption());
+    writeString(out, spec.getNodeIdAttr());
+    writeString(out, spec.getNodeLabelAttr());
+    writeString(out, spec.getNodeLonAttr());
+    writeString(out, spec.getNodeLatAttr());
+    List<String> weightAttrs = spec.getFlowWeightAttrs();
+    out.writeInt(weightAttrs.size());
+    for (String attr : weightAttrs) {
+      writeString(out, attr);
+    }
+  }
+
+  private static FlowMapAttrSpec readAttrSpec(ByteBuffer in) {
+    String srcAttr = readString(in);
+    String targetAttr = readString(in);
+    String legendCaption = readString(in);
+    String nodeIdAttr = readString(in);
+    String nodeLabelAttr = readString(in);
+    String nodeLonAttr = readString(in);
+    String nodeLatAttr = readString(in);
+    int numWeightAttrs = in.getInt();
+    ImmutableList.Builder<String> weightAttrs = ImmutableList.builder();
+    for (int i = 0; i < numWeightAttrs; i++) {
+      weightAttrs.add(readString(in));
+    }
+    return new FlowMapAttrSpec(srcAttr, targetAttr, legendCaption, weightAttrs.build(),
+        nodeIdAttr, nodeLabelAttr, nodeLonAttr, nodeLatAttr);
+  }
+
+  /**
+   * @param nodeRefColumns Columns (the edge source and target) whose values are
+   *        node rows which must be remapped using newNodeRows
+   */
+  private static void writeTable(DataOutputStream out, Table table, int[] rows,
+      Set<String> nodeRefColumns, int[] newNodeRows) throws IOException {
+    out.writeInt(rows.length);
+    out.writeInt(table.getColumnCount());
+    for (int ci = 0; ci < table.getColumnCount(); ci++) {
+      String name = table.getColumnName(ci);
+      Class<?> type = table.getColumnType(ci);
+      Column col = table.getColumn(ci);
+      writeString(out, name);
+      if (type == int.class) {
+        boolean isNodeRef = nodeRefColumns.contains(name);
+        out.writeByte(TYPE_INT);
+        out.writeInt(((Integer)col.getDefaultValue()));
+        for (int row : rows) {
+          int v = col.getInt(row);
+          out.writeInt(isNodeRef  &&  v >= 0 ? newNodeRows[v] : v);
+        }
+      } else if (type == long.class) {
+        out.writeByte(TYPE_LONG);
+        out.writeLong(((Long)col.getDefaultValue()));
+        for (int row : rows) out.writeLong(col.getLong(row));
+      } else if (type == float.class) {
+        out.writeByte(TYPE_FLOAT);
+        out.writeFloat(((Float)col.getDefaultValue()));
+        for (int row : rows) out.writeFloat(col.getFloat(row));
+      } else if (type == double.class) {
+        out.writeByte(TYPE_DOUBLE);
+        out.writeDouble(((Double)col.getDefaultValue()));
+        for (int row : rows) out.writeDouble(col.getDouble(row));
+      } else if (type == boolean.class) {
+        out.writeByte(TYPE_BOOLEAN);
+        out.writeBoolean(((Boolean)col.getDefaultValue()));
+        for (int row : rows) out.writeBoolean(col.getBoolean(row));
+      } else if (type == String.class) {
+        out.writeByte(TYPE_STRING);
+        writeString(out, (String)col.getDefaultValue());
+        writeStringColumn(out, col, rows);
+      } else if (type == List.class) {
+        out.writeByte(TYPE_POINTS);
+        writePointsColumn(out, name, col, rows);
+      } else {
+        throw new IOException("Unsupported type " + type + " of column '" + name + "'");
+      }
+    }
+  }
+
+  /**
+   * The distinct values are written once followed by the indices of the values of the rows.
+   */
+  private static void writeStringColumn(DataOutputStream out, Column col, int[] rows)
+      throws IOException {
+    Map<String, Integer> dict = Maps.newLinkedHashMap();
+    int[] indices = new int[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      String value = col.getString(rows[i]);
+      if (value == null) {
+        indices[i] = -1;
+      } else {
+        Integer index = dict.get(value);
+        if (index == null) {
+          index = dict.size();
+          dict.put(value, index);
+        }
+        indices[i] = index;
+      }
+    }
+    out.writeInt(dict.size());
+    for (String value : dict.keySet()) {
+      writeString(out, value);
+    }
+    for (int index : indices) {
+      out.writeInt(index);
+    }
+  }
+
+  private static void writePointsColumn(DataOutputStream out, String name, Column col, int[] rows)
+      throws IOException {
+    for (int row : rows) {
+      List<?> points = (List<?>)col.get(row);
+      if (points == null) {
+        out.writeInt(-1);
+        continue;
+      }
+      out.writeInt(points.size());
+      for (Object obj : points) {
+        if (!(obj instanceof Point)) {
+          throw new IOException("Unsupported list element in column '" + name + "': " + obj);
+        }
+        Point p = (Point)obj;
+        out.writeDouble(p.x());
+        out.writeDouble(p.y());
+      }
+    }
+  }
+
+  private static Table2 readTable(ByteBuffer in) throws IOException {
+    int numRows = in.getInt();
+    int numColumns = in.getInt();
+    Schema2 schema = new Schema2();
+    Table2 table = (Table2)schema.instantiate();
+    table.addRows(numRows);
+    for (int ci = 0; ci < numColumns; ci++) {
+      String name = readString(in);
+      byte type = in.get();
+      Column col;
+      switch (type) {
+      case TYPE_INT: {
+        table.addColumn(name, int.class, in.getInt());
+        col = table.getColumn(name);
+        int[] values = new int[numRows];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + numRows * 4);
+        for (int row = 0; row < numRows; row++) col.setInt(values[row], row);
+        break;
+      }
+      case TYPE_LONG: {
+        table.addColumn(name, long.class, in.getLong());
+        col = table.getColumn(name);
+        long[] values = new long[numRows];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + numRows * 8);
+        for (int row = 0; row < numRows; row++) col.setLong(values[row], row);
+        break;
+      }
+      case TYPE_FLOAT: {
+        table.addColumn(name, float.class, in.getFloat());
+        col = table.getColumn(name);
+        float[] values = new float[numRows];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + numRows * 4);
+        for (int row = 0; row < numRows; row++) col.setFloat(values[row], row);
+        break;
+      }
+      case TYPE_DOUBLE: {
+        table.addColumn(name, double.class, in.getDouble());
+        col = table.getColumn(name);
+        double[] values = new double[numRows];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + numRows * 8);
+        for (int row = 0; row < numRows; row++) col.setDouble(values[row], row);
+        break;
+      }
+      case TYPE_BOOLEAN: {
+        table.addColumn(name, boolean.class, in.get() != 0);
+        col = table.getColumn(name);
+        for (int row = 0; row < numRows; row++) col.setBoolean(in.get() != 0, row);
+        break;
+      }
+      case TYPE_STRING: {
+        table.addColumn(name, String.class, readString(in));
+        col = table.getColumn(name);
+        String[] dict = new String[in.getInt()];
+        for (int i = 0; i < dict.length; i++) {
+          dict[i] = readString(in);
+        }
+        int[] indices = new int[numRows];
+        in.asIntBuffer().get(indices);
+        in.position(in.position() + numRows * 4);
+        for (int row = 0; row < numRows; row++) {
+          col.setString(indices[row] >= 0 ? dict[indices[row]] : null, row);
+        }
+        break;
+      }
+      case TYPE_POINTS: {
+        table.addColumn(name, List.class);
+        col = table.getColumn(name);
+        for (int row = 0; row < numRows; row++) {
+          int numPoints = in.getInt();
+          if (numPoints >= 0) {
+            List<Point> points = Lists.newArrayListWithCapacity(numPoints);
+            for (int i = 0; i < numPoints; i++) {
+              points.add(new Point(in.getDouble(), in.getDouble()));
+            }
+            col.set(points, row);
+          }
+        }
+        break;
+      }
+      default:
+        throw new IOException("Unknown type " + type + " of column '" + name + "'");
+      }
+    }
+    return table;
+  }
+
+  private static int[] validRows(Table table) {
+    int[] rows = new int[table.getRowCount()];
+    int count = 0;
+    for (IntIterator it = table.rows(); it.hasNext(); ) {
+      rows[count++] = it.nextInt();
+    }
+    return rows;
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    if (str == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = str.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+}
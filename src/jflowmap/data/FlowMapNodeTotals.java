@@ -23,17 +23,25 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import jflowmap.FlowDirection;
 import jflowmap.FlowEndpoint;
 import jflowmap.FlowMapGraph;
 import jflowmap.FlowMapGraphSet;
+import jflowmap.util.ConcurrencyUtils;
+
+import org.apache.log4j.Logger;
+
 import prefuse.data.Edge;
 import prefuse.data.Graph;
 import prefuse.data.Node;
 import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
@@ -52,6 +60,13 @@ public class FlowMapNodeTotals {
   private static final String NODE_COLUMN__SUM_INCOMING_PREFIX= "sumIn:stat:";
 
 
+  private static Logger logger = Logger.getLogger(FlowMapNodeTotals.class);
+
+  /**
+   * Graphs with fewer edges than twice this number are summed up in the calling thread.
+   */
+  private static final int MIN_EDGES_PER_TOTALS_CHUNK = 50000;
+
   private FlowMapNodeTotals() {
   }
 
@@ -63,10 +78,21 @@ public class FlowMapNodeTotals {
     return node.getDouble(attrName);
   }
 
+  /**
+   * The totals of the graphs in the set are computed concurrently.
+   */
   public static void supplyNodesWithWeightTotals(FlowMapGraphSet flowMapGraphSet) {
-    for (FlowMapGraph flowMapGraph : flowMapGraphSet.asList()) {
-      supplyNodesWithWeightTotals(flowMapGraph);
+    List<Callable<Void>> tasks = Lists.newArrayList();
+    for (final FlowMapGraph flowMapGraph : flowMapGraphSet.asList()) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          supplyNodesWithWeightTotals(flowMapGraph);
+          return null;
+        }
+      });
     }
+    ConcurrencyUtils.invokeAll(tasks, "graphTotals");
   }
 
   /**
@@ -77,9 +103,154 @@ public class FlowMapNodeTotals {
     supplyNodesWithWeightTotals(flowMapGraph, flowMapGraph.getEdgeWeightAttrs());
   }
 
+  /**
+   * Computes the incoming and outgoing totals for all of the given weight attrs
+   * in a single pass over the edges. The sums are accumulated in primitive arrays
+   * indexed by node row (split over several threads for large graphs)
+   * and then written into the node table column by column.
+   */
   public static void supplyNodesWithWeightTotals(FlowMapGraph flowMapGraph, List<String> attrNames) {
-    for (String weightAttrName : attrNames) {
-      supplyNodesWithWeightTotals(flowMapGraph, weightAttrName);
+    if (attrNames.isEmpty()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+
+    Graph g = flowMapGraph.getGraph();
+    Table edgeTable = g.getEdgeTable();
+    Column[] weightColumns = new Column[attrNames.size()];
+    for (int i = 0; i < weightColumns.length; i++) {
+      weightColumns[i] = edgeTable.getColumn(attrNames.get(i));
+      if (weightColumns[i] == null) {
+        throw new IllegalArgumentException("No edge weight column '" + attrNames.get(i) + "'");
+      }
+    }
+
+    int[] edgeRows = validRows(edgeTable);
+    int maxNodeRow = g.getNodeTable().getMaximumRow();
+
+    int numChunks = 1;
+    if (edgeRows.length >= MIN_EDGES_PER_TOTALS_CHUNK * 2) {
+      numChunks = Math.min(ConcurrencyUtils.numberOfWorkers(),
+          edgeRows.length / MIN_EDGES_PER_TOTALS_CHUNK);
+    }
+
+    WeightTotals totals;
+    if (numChunks <= 1) {
+      totals = new WeightTotals(weightColumns.length, maxNodeRow + 1);
+      totals.accumulate(g, weightColumns, edgeRows, 0, edgeRows.length);
+    } else {
+      List<Callable<WeightTotals>> tasks = Lists.newArrayListWithCapacity(numChunks);
+      for (int chunk = 0; chunk < numChunks; chunk++) {
+        tasks.add(new TotalsTask(g, weightColumns, edgeRows,
+            (int)((long)edgeRows.length * chunk / numChunks),
+            (int)((long)edgeRows.length * (chunk + 1) / numChunks),
+            maxNodeRow + 1));
+      }
+      List<WeightTotals> partials = ConcurrencyUtils.invokeAll(tasks, "nodeTotals");
+      totals = partials.get(0);
+      for (int i = 1; i < partials.size(); i++) {
+        totals.add(partials.get(i));
+      }
+    }
+
+    totals.writeTo(g.getNodeTable(), attrNames);
+
+    if (logger.isDebugEnabled()) {
+      logger.debug("Node totals for " + attrNames.size() + " attrs over " + edgeRows.length +
+          " edges calculated in " + (System.currentTimeMillis() - start) + "ms" +
+          (numChunks > 1 ? " using " + numChunks + " threads" : ""));
+    }
+  }
+
+  private static int[] validRows(Table table) {
+    int[] rows = new int[table.getRowCount()];
+    int count = 0;
+    for (IntIterator it = table.rows(); it.hasNext(); ) {
+      rows[count++] = it.nextInt();
+    }
+    return rows;
+  }
+
+  /**
+   * Outgoing and incoming weight sums: [attrIndex][nodeRow].
+   */
+  private static class WeightTotals {
+    final double[][] out;
+    final double[][] in;
+
+    WeightTotals(int numAttrs, int numNodeRows) {
+      out = new double[numAttrs][numNodeRows];
+      in = new double[numAttrs][numNodeRows];
+    }
+
+    void accumulate(Graph g, Column[] weightColumns, int[] edgeRows, int from, int to) {
+      for (int i = from; i < to; i++) {
+        int row = edgeRows[i];
+        int srcRow = g.getSourceNode(row);
+        int trgRow = g.getTargetNode(row);
+        for (int attr = 0; attr < weightColumns.length; attr++) {
+          double v = weightColumns[attr].getDouble(row);
+          if (!Double.isNaN(v)) {
+            out[attr][srcRow] += v;
+            in[attr][trgRow] += v;
+          }
+        }
+      }
+    }
+
+    void add(WeightTotals other) {
+      for (int attr = 0; attr < out.length; attr++) {
+        double[] o = out[attr], oo = other.out[attr];
+        double[] n = in[attr], on = other.in[attr];
+        for (int row = 0; row < o.length; row++) {
+          o[row] += oo[row];
+          n[row] += on[row];
+        }
+      }
+    }
+
+    void writeTo(Table nodeTable, List<String> attrNames) {
+      int[] nodeRows = validRows(nodeTable);
+      for (int attr = 0; attr < attrNames.size(); attr++) {
+        String weightAttrName = attrNames.get(attr);
+        writeColumn(nodeTable, nodeRows,
+            getTotalWeightNodeAttr(weightAttrName, FlowDirection.OUTGOING), out[attr]);
+        writeColumn(nodeTable, nodeRows,
+            getTotalWeightNodeAttr(weightAttrName, FlowDirection.INCOMING), in[attr]);
+      }
+    }
+
+    private static void writeColumn(Table nodeTable, int[] nodeRows, String name, double[] values) {
+      nodeTable.addColumn(name, double.class);
+      Column col = nodeTable.getColumn(name);
+      for (int row : nodeRows) {
+        col.setDouble(values[row], row);
+      }
+    }
+  }
+
+  private static class TotalsTask implements Callable<WeightTotals> {
+    private final Graph graph;
+    private final Column[] weightColumns;
+    private final int[] edgeRows;
+    private final int from, to;
+    private final int numNodeRows;
+
+    TotalsTask(Graph graph, Column[] weightColumns, int[] edgeRows, int from, int to,
+        int numNodeRows) {
+      this.graph = graph;
+      this.weightColumns = weightColumns;
+      this.edgeRows = edgeRows;
+      this.from = from;
+      this.to = to;
+      this.numNodeRows = numNodeRows;
+    }
+
+    @Override
+    public WeightTotals call() {
+      WeightTotals totals = new WeightTotals(weightColumns.length, numNodeRows);
+      totals.accumulate(graph, weightColumns, edgeRows, from, to);
+      return totals;
     }
   }
 
@@ -117,59 +288,6 @@ public class FlowMapNodeTotals {
 
 
 
-  private static void supplyNodesWithWeightTotals(FlowMapGraph fmg, String weightAttrName) {
-    Graph g = fmg.getGraph();
-    Table nodeTable = g.getNodeTable();
-
-    Map<Integer, Double> outsums = Maps.newHashMap();
-    Map<Integer, Double> insums = Maps.newHashMap();
-
-    for (Edge e : fmg.edges()) {
-
-      double v = e.getDouble(weightAttrName);
-      if (!Double.isNaN(v)) {
-        Node src = e.getSourceNode();
-        Node trg = e.getTargetNode();
-        int srcRow = src.getRow();
-        int trgRow = trg.getRow();
-
-        Double outsum = outsums.get(srcRow);
-        if (outsum == null) {
-          outsums.put(srcRow, v);
-        } else {
-          outsums.put(srcRow, outsum + v);
-        }
-
-        Double inval = insums.get(trgRow);
-        if (inval == null) {
-          insums.put(trgRow, v);
-        } else {
-          insums.put(trgRow, inval + v);
-        }
-      }
-    }
-
-    String outgoingSumAttrName = getTotalWeightNodeAttr(weightAttrName, FlowDirection.OUTGOING);
-    String incomingSumAttrName = getTotalWeightNodeAttr(weightAttrName, FlowDirection.INCOMING);
-
-    nodeTable.addColumn(outgoingSumAttrName, double.class);
-    nodeTable.addColumn(incomingSumAttrName, double.class);
-
-    for (int i = 0, numNodes = g.getNodeCount(); i < numNodes; i++) {
-      Node node = g.getNode(i);
-      if (outsums.containsKey(i)) {
-        node.setDouble(outgoingSumAttrName, outsums.get(i));
-      }
-      if (insums.containsKey(i)) {
-        node.setDouble(incomingSumAttrName, insums.get(i));
-      }
-    }
-  }
-
-
-
-
-
   // TODO: fix intrareg summaries to support wildcarded weight attrs
 
   public static void supplyNodesWithIntraregTotals(FlowMapGraphSet fmset, String nodeRegionAttr,
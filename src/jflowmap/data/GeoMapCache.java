@@ -0,0 +1,335 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import jflowmap.models.map.GeoMap;
+import jflowmap.models.map.MapArea;
+import jflowmap.models.map.Polygon;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Binary cache of area maps, so that the XML area maps and shapefiles don't have to be
+ * parsed every time a view is loaded. The cache files are keyed by the checksum
+ * of the map sources. They contain the areas followed by the numbers of rings of
+ * the polygons, the ring offsets, the bounding boxes of the polygons and one block
+ * of packed coordinates, and are read through a memory-mapped buffer.
+ * <p>
+ * As GeoMaps are immutable, the maps which were loaded once are also kept in memory
+ * (as long as there is enough of it) and shared by all the views which use them.
+ * Different maps can be loaded concurrently, but a map which is being loaded
+ * isn't loaded a second time by another thread.
+ *
+ * @author Ilya Boyandin
+ */
+public class GeoMapCache {
+
+  private static Logger logger = Logger.getLogger(GeoMapCache.class);
+
+  private static final int MAGIC = 0x4A464D41;  // "JFMA"
+  private static final int VERSION = 2;
+
+  public static final String FILE_EXT = ".geomap";
+
+  private static final Map<Long, SoftReference<GeoMap>> loadedMaps = Maps.newHashMap();
+  private static final Map<Long, FutureTask<GeoMap>> loadingMaps = Maps.newHashMap();
+
+  private GeoMapCache() {
+  }
+
+  /**
+   * @return The map loaded before for sources with the given checksum or null
+   */
+  public static GeoMap getLoaded(long sourceChecksum) {
+    synchronized (loadedMaps) {
+      SoftReference<GeoMap> ref = loadedMaps.get(sourceChecksum);
+      return (ref != null ? ref.get() : null);
+    }
+  }
+
+  public static void putLoaded(long sourceChecksum, GeoMap map) {
+    synchronized (loadedMaps) {
+      loadedMaps.put(sourceChecksum, new SoftReference<GeoMap>(map));
+    }
+  }
+
+  /**
+   * @return The map loaded before for sources with the given checksum or the one
+   *         returned by the loader. If another thread is already loading the map,
+   *         waits for it instead of calling the loader.
+   */
+  public static GeoMap getOrLoad(final long sourceChecksum, final Callable<GeoMap> loader)
+      throws IOException {
+    FutureTask<GeoMap> task;
+    boolean loadHere = false;
+    synchronized (loadedMaps) {
+      GeoMap map = getLoaded(sourceChecksum);
+      if (map != null) {
+        return map;
+      }
+      task = loadingMaps.get(sourceChecksum);
+      if (task == null) {
+        task = new FutureTask<GeoMap>(new Callable<GeoMap>() {
+          @Override
+          public GeoMap call() throws Exception {
+            GeoMap map = loader.call();
+            putLoaded(sourceChecksum, map);  // before the task is removed from loadingMaps
+            return map;
+          }
+        });
+        loadingMaps.put(sourceChecksum, task);
+        loadHere = true;
+      }
+    }
+    if (loadHere) {
+      task.run();
+      synchronized (loadedMaps) {
+        loadingMaps.remove(sourceChecksum);
+      }
+    } else {
+      logger.info("Waiting for the area map which is being loaded by another view");
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  public static File cacheFile(File dir, long sourceChecksum) {
+    return new File(dir, Long.toHexString(sourceChecksum) + FILE_EXT);
+  }
+
+  /**
+   * Writes the cache into a temporary file which then replaces the given one,
+   * so that a partially written cache is never read.
+   */
+  public static void write(GeoMap map, File file, long sourceChecksum) throws IOException {
+    long start = System.currentTimeMillis();
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory()  &&  !dir.mkdirs()) {
+      throw new IOException("Cannot create directory " + dir);
+    }
+    List<Polygon> allPolygons = Lists.newArrayList();
+    File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sourceChecksum);
+        writeString(out, map.getName());
+
+        out.writeInt(map.getAreas().size());
+        for (MapArea area : map.getAreas()) {
+          writeString(out, area.getId());
+          writeString(out, area.getName());
+          Polygon[] polygons = area.getPolygons();
+          out.writeInt(polygons.length);
+          allPolygons.addAll(Arrays.asList(polygons));
+        }
+
+        out.writeInt(allPolygons.size());
+        int numRings = 0;
+        for (Polygon poly : allPolygons) {
+          out.writeInt(poly.getNumRings());
+          numRings += poly.getNumRings();
+        }
+        out.writeInt(numRings);
+        int offset = 0;
+        out.writeInt(offset);
+        for (Polygon poly : allPolygons) {
+          for (int ring = 0; ring < poly.getNumRings(); ring++) {
+            out.writeInt(offset + poly.getRingEnd(ring));
+          }
+          offset += poly.getNumPoints();
+        }
+        for (Polygon poly : allPolygons) {
+          Rectangle2D bb = poly.getBounds();
+          if (bb == null) {
+            bb = new Rectangle2D.Double(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+          }
+          out.writeDouble(bb.getX());
+          out.writeDouble(bb.getY());
+          out.writeDouble(bb.getWidth());
+          out.writeDouble(bb.getHeight());
+        }
+        for (Polygon poly : allPolygons) {
+          for (int i = 0, n = poly.getNumPoints(); i < n; i++) {
+            out.writeDouble(poly.getX(i));
+            out.writeDouble(poly.getY(i));
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (file.exists()  &&  !file.delete()) {
+        throw new IOException("Cannot replace " + file);
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot rename " + tmp + " to " + file);
+      }
+    } finally {
+      tmp.delete();
+    }
+    logger.info("Area map cache with " + map.getAreas().size() + " areas written to " + file +
+        " (" + (file.length() >> 10) + "KB) in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * @return The cached map or null if the file doesn't exist, was written
+   *         by another version or for sources with a different checksum
+   * @throws IOException Also if the cache is truncated or corrupt
+   */
+  public static GeoMap read(File file, long sourceChecksum) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    long start = System.currentTimeMillis();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.remaining() < 16  ||  in.getInt() != MAGIC  ||  in.getInt() != VERSION) {
+        logger.info("Ignoring area map cache " + file + " written in a different format");
+        return null;
+      }
+      if (in.getLong() != sourceChecksum) {
+        logger.info("Ignoring outdated area map cache " + file);
+        return null;
+      }
+      String name = readString(in);
+
+      int numAreas = in.getInt();
+      String[] ids = new String[numAreas];
+      String[] names = new String[numAreas];
+      int[] numPolygons = new int[numAreas];
+      for (int i = 0; i < numAreas; i++) {
+        ids[i] = readString(in);
+        names[i] = readString(in);
+        numPolygons[i] = in.getInt();
+      }
+
+      int numAllPolygons = in.getInt();
+      int[] numRings = new int[numAllPolygons];
+      in.asIntBuffer().get(numRings);
+      in.position(in.position() + numRings.length * 4);
+
+      int numAllRings = in.getInt();
+      int[] offsets = new int[numAllRings + 1];
+      in.asIntBuffer().get(offsets);
+      in.position(in.position() + offsets.length * 4);
+
+      double[] bounds = new double[numAllPolygons * 4];
+      in.asDoubleBuffer().get(bounds);
+      in.position(in.position() + bounds.length * 8);
+
+      double[] coords = new double[offsets[numAllRings] * 2];
+      in.asDoubleBuffer().get(coords);
+
+      List<MapArea> areas = Lists.newArrayListWithCapacity(numAreas);
+      int poly = 0, ring = 0;
+      for (int i = 0; i < numAreas; i++) {
+        Polygon[] polygons = new Polygon[numPolygons[i]];
+        for (int j = 0; j < polygons.length; j++, poly++) {
+          int from = offsets[ring], to = offsets[ring + numRings[poly]];
+          Rectangle2D bb = null;
+          if (to > from) {
+            bb = new Rectangle2D.Double(bounds[poly * 4], bounds[poly * 4 + 1],
+                bounds[poly * 4 + 2], bounds[poly * 4 + 3]);
+          }
+          int[] ringStarts = new int[numRings[poly]];
+          for (int r = 0; r < ringStarts.length; r++) {
+            ringStarts[r] = offsets[ring + r] - from;
+          }
+          ring += ringStarts.length;
+          polygons[j] = new Polygon(
+              Arrays.copyOfRange(coords, from * 2, to * 2), ringStarts, bb);
+        }
+        areas.add(new MapArea(ids[i], names[i], polygons));
+      }
+
+      logger.info("Area map cache " + file + " with " + numAreas + " areas and " +
+          offsets[numAllRings] + " points read in " + (System.currentTimeMillis() - start) + "ms");
+
+      return new GeoMap(name, areas);
+    } catch (RuntimeException re) {  // e.g. BufferUnderflowException
+      throw new IOException("Corrupt area map cache " + file + ": " + re, re);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    if (str == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = str.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.data;
+
+import java.util.Collections;
+import java.util.Set;
+
+import prefuse.data.Table;
+import prefuse.data.expression.AndPredicate;
+import prefuse.data.expression.ColumnExpression;
+import prefuse.data.expression.CompositePredicate;
+import prefuse.data.expression.Expression;
+import prefuse.data.expression.ExpressionVisitor;
+import prefuse.data.expression.OrPredicate;
+import prefuse.data.expression.Predicate;
+import prefuse.data.tuple.TableTuple;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
+
+/**
+ * The node and flow selection expressions (data.select.*) which the readers
+ * evaluate on every record while loading, so that the records which don't satisfy
+ * them are dropped before the graph is built instead of being removed from it afterwards.
+ *
+ * @author Ilya Boyandin
+ */
+public class RecordFilters {
+
+  public static final RecordFilters NONE = new RecordFilters(null, null, null, null);
+
+  private static final String ALL_WEIGHT_ATTRS_PLACEHOLDER = "#weightAttr#";
+
+  private final String nodeFilter;
+  private final String edgeFilter;
+  private final String edgeWeightAttrExistsFilter;
+  private final String edgeWeightAttrForAllFilter;
+
+  public RecordFilters(String nodeFilter, String edgeFilter,
+      String edgeWeightAttrExistsFilter, String edgeWeightAttrForAllFilter) {
+    this.nodeFilter = Strings.emptyToNull(nodeFilter);
+    this.edgeFilter = Strings.emptyToNull(edgeFilter);
+    this.edgeWeightAttrExistsFilter = Strings.emptyToNull(edgeWeightAttrExistsFilter);
+    this.edgeWeightAttrForAllFilter = Strings.emptyToNull(edgeWeightAttrForAllFilter);
+  }
+
+  public boolean isEmpty() {
+    return nodeFilter == null  &&  edgeFilter == null  &&
+      edgeWeightAttrExistsFilter == null  &&  edgeWeightAttrForAllFilter == null;
+  }
+
+  public FlowMapGraphBuilder applyTo(FlowMapGraphBuilder builder) {
+    builder.withNodeFilter(nodeFilter);
+    builder.withEdgeFilter(edgeFilter);
+    builder.withEdgeWeightAttrExistsFilter(edgeWeightAttrExistsFilter);
+    builder.withEdgeWeightAttrForAllFilter(edgeWeightAttrForAllFilter);
+    return builder;
+  }
+
+  /**
+   * @return The compiled node filter or null if there is none
+   */
+  public Predicate nodePredicate() {
+    return (nodeFilter != null ? FlowMapGraphBuilder.filterPredicate(nodeFilter) : null);
+  }
+
+  /**
+   * Compiles the edge filter and the weight attr filters (expanded for every weight attr)
+   * into one predicate which an edge must satisfy to be kept.
+   *
+   * @return The compiled predicate or null if there are no edge filters
+   */
+  public Predicate edgePredicate(Iterable<String> weightAttrs) {
+    AndPredicate and = new AndPredicate();
+    if (edgeFilter != null) {
+      and.add(FlowMapGraphBuilder.filterPredicate(edgeFilter));
+    }
+    if (edgeWeightAttrForAllFilter != null) {
+      and.add(weightAttrsPredicate(edgeWeightAttrForAllFilter, weightAttrs, new AndPredicate()));
+    }
+    if (edgeWeightAttrExistsFilter != null) {
+      and.add(weightAttrsPredicate(edgeWeightAttrExistsFilter, weightAttrs, new OrPredicate()));
+    }
+    return (and.size() > 0 ? and : null);
+  }
+
+  private static Predicate weightAttrsPredicate(String expr, Iterable<String> weightAttrs,
+      CompositePredicate cp) {
+    for (String attr : weightAttrs) {
+      cp.add(FlowMapGraphBuilder.filterPredicate(expr.replaceAll(ALL_WEIGHT_ATTRS_PLACEHOLDER, attr)));
+    }
+    return cp;
+  }
+
+  /**
+   * @return The names of the edge columns used by the edge filters
+   */
+  public Set<String> referencedEdgeColumns(Iterable<String> weightAttrs) {
+    Predicate p = edgePredicate(weightAttrs);
+    return (p != null ? referencedColumns(p) : Collections.<String>emptySet());
+  }
+
+  /**
+   * @return The names of the columns which are used in the expression
+   */
+  public static Set<String> referencedColumns(Expression expr) {
+    final Set<String> columns = Sets.newHashSet();
+    expr.visit(new ExpressionVisitor() {
+      public void visitExpression(Expression e) {
+        if (e instanceof ColumnExpression) {
+          columns.add(((ColumnExpression)e).getColumnName());
+        }
+      }
+      public void down() { }
+      public void up() { }
+    });
+    return columns;
+  }
+
+  /**
+   * Estimates the number of bytes which the columns of the table take per row.
+   */
+  static long estimateRowSize(Table table) {
+    long size = 0;
+    for (int i = 0; i < table.getColumnCount(); i++) {
+      Class<?> type = table.getColumnType(i);
+      if (type == int.class  ||  type == float.class) {
+        size += 4;
+      } else if (type == boolean.class) {
+        size += 1;
+      } else {
+        size += 8;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "RecordFilters [nodes=" + nodeFilter + ", edges=" + edgeFilter +
+        ", exists=" + edgeWeightAttrExistsFilter + ", forAll=" + edgeWeightAttrForAllFilter + "]";
+  }
+
+  /**
+   * Tuple which can be moved over the rows of tables, so that predicates can be
+   * evaluated on the rows without creating a tuple for each of them.
+   */
+  static class RowCursor extends TableTuple {
+    RowCursor moveTo(Table table, int row) {
+      init(table, null, row);
+      return this;
+    }
+  }
+
+}
@@ -1,193 +1,385 @@
 package jflowmap.data;
 
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.List;
 
+import jflowmap.models.map.GeoMap;
+import jflowmap.models.map.MapArea;
+import jflowmap.models.map.Polygon;
 import jflowmap.util.IOUtils;
 
 import org.apache.log4j.Logger;
-import org.geotools.dbffile.Dbf;
-import org.geotools.dbffile.DbfFileException;
-import org.geotools.shapefile.Shapefile;
 
-import prefuse.data.Table;
+import prefuse.data.Tuple;
 import prefuse.data.expression.Predicate;
 import prefuse.data.expression.parser.ExpressionParser;
-import prefuse.util.collections.IntIterator;
 import at.fhj.utils.misc.FileUtils;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
-import com.vividsolutions.jts.geom.GeometryFactory;
 
 /**
+ * Streaming reader of polygon shapefiles. The records of the .shp file (and of the .dbf
+ * file, if the attributes are needed) are read one by one and passed to a
+ * {@link ShapeVisitor}, so that only the current record is kept in memory.
+ * The records can be filtered by a bounding box and by a predicate on the attributes
+ * before their points are parsed.
+ * <p>
+ * The parts of a polygon record are assembled into polygons with holes:
+ * the clockwise parts are the exterior rings and each counterclockwise part
+ * becomes a hole of the smallest exterior ring containing it.
+ * <p>
+ * See http://www.esri.com/library/whitepapers/pdfs/shapefile.pdf
+ *
  * @author Ilya Boyandin
  */
 public class ShapefileReader {
 
   private static Logger logger = Logger.getLogger(ShapefileReader.class);
 
-  private ShapefileReader() {
+  private static final int FILE_CODE = 9994;
+  private static final int HEADER_LENGTH = 100;
+
+  private static final int SHAPE_NULL = 0;
+  private static final int SHAPE_POLYGON = 5;
+  private static final int SHAPE_POLYGON_Z = 15;
+  private static final int SHAPE_POLYGON_M = 25;
+
+  public interface ShapeVisitor {
+    /**
+     * @param recordIndex Zero-based index of the record in the shapefile
+     * @param attributes The attributes of the record from the .dbf file or null if the .dbf file
+     *        isn't read. The tuple is reused for the next records.
+     * @param polygons The polygons of the record (empty for null shapes)
+     */
+    void visit(int recordIndex, Tuple attributes, Polygon[] polygons) throws IOException;
   }
 
-  public static Iterable<Geometry> loadShapefile(String location,
-      String dbfAreaIdField,
-      String dbfSelectShapesWhere)
-      throws IOException {
-
-    logger.info("Loading shapefile '" + location + "'");
+  private final DataInputStream in;
+  private final DbfReader dbf;
+  private final Predicate where;
+  private final Rectangle2D bounds;
 
-    List<Geometry> geoms = asList(loadShapefile(location));
+  private byte[] content = new byte[1 << 12];
+  private double[] coords = new double[1 << 10];
 
-    if (dbfAreaIdField != null  ||   dbfSelectShapesWhere != null) {
-      String fname = FileUtils.getFilename(location);
-      String fpath = location.substring(0, location.length() - fname.length());
-      String dbfLocation = fpath + fname.replace(".shp", ".dbf");
+  private ShapefileReader(InputStream shp, DbfReader dbf, Predicate where, Rectangle2D bounds) {
+    this.in = new DataInputStream(new BufferedInputStream(shp, 1 << 16));
+    this.dbf = dbf;
+    this.where = where;
+    this.bounds = bounds;
+  }
 
-      Dbf dbf = loadDbf(dbfLocation);
-      Table table = asTable(dbf);  // create table which we can query and filter
+  /**
+   * @param dbfAreaIdField DBF field used as the id and name of the areas or null
+   * @param dbfSelectShapesWhere Prefuse predicate on the DBF fields which the
+   *        shapes must satisfy or null
+   * @param selectBounds Only the shapes which bounding boxes intersect with this one
+   *        are read (null to read all shapes)
+   */
+  public static GeoMap readMap(String location,
+      final String dbfAreaIdField,
+      String dbfSelectShapesWhere,
+      Rectangle2D selectBounds)
+      throws IOException {
 
-      if (dbfAreaIdField != null) {
-        if (table.getColumn(dbfAreaIdField) == null) {
-          throw new IllegalArgumentException("Cannot read DBF column '" + dbfAreaIdField + "'");
+    logger.info("Loading shapefile '" + location + "'");
+    long start = System.currentTimeMillis();
+
+    final List<MapArea> areas = Lists.newArrayList();
+    final int[] numPoints = new int[1];
+    read(location, dbfAreaIdField, dbfSelectShapesWhere, selectBounds, new ShapeVisitor() {
+      @Override
+      public void visit(int recordIndex, Tuple attributes, Polygon[] polygons) {
+        String id = null;
+        if (dbfAreaIdField != null) {
+          Object value = attributes.get(dbfAreaIdField);
+          id = (value != null ? value.toString() : null);
         }
-
-        for (int i = 0; i < geoms.size(); i++) {
-          Geometry g = geoms.get(i);
-          g.setUserData(table.get(i, dbfAreaIdField));
+        areas.add(new MapArea(id, id, polygons));
+        for (Polygon poly : polygons) {
+          numPoints[0] += poly.getNumPoints();
         }
       }
+    });
 
+    logger.info("Read " + areas.size() + " areas with " + numPoints[0] + " points from '" +
+        location + "' in " + (System.currentTimeMillis() - start) + "ms");
 
+    return new GeoMap(null, areas);
+  }
+
+  /**
+   * Reads the shapefile record by record and passes the records satisfying the
+   * conditions to the visitor. The .dbf file is only read if one of
+   * dbfRequiredField and dbfSelectShapesWhere is specified.
+   *
+   * @param dbfRequiredField DBF field which must exist or null
+   */
+  public static void read(String location,
+      String dbfRequiredField,
+      String dbfSelectShapesWhere,
+      Rectangle2D selectBounds,
+      ShapeVisitor visitor)
+      throws IOException {
+
+    DbfReader dbf = null;
+    Predicate where = null;
+    if (dbfRequiredField != null  ||  dbfSelectShapesWhere != null) {
+      String dbfLocation = dbfLocation(location);
+      logger.info("Attempting to load .dbf for the shapefile from '" + dbfLocation + "'");
+      dbf = new DbfReader(IOUtils.asInputStream(dbfLocation));
+    }
+    InputStream shp = null;
+    try {
+      if (dbfRequiredField != null  &&  dbf.getFieldIndex(dbfRequiredField) < 0) {
+        throw new IOException("Field '" + dbfRequiredField + "' not found in dbf file. " +
+            "Available fields: '" + Arrays.toString(dbf.getFieldNames()) + "'");
+      }
       if (dbfSelectShapesWhere != null) {
-        List<Geometry> filtered = Lists.newArrayList();
-        IntIterator rows = table.rows((Predicate) ExpressionParser.parse(dbfSelectShapesWhere, true));
-        while (rows.hasNext()) {
-          filtered.add(geoms.get(rows.nextInt()));
-        }
-        geoms = filtered;
+        where = (Predicate)ExpressionParser.parse(dbfSelectShapesWhere, true);
+      }
+      shp = IOUtils.asInputStream(location);
+      new ShapefileReader(shp, dbf, where, selectBounds).readRecords(visitor);
+    } finally {
+      if (shp != null) {
+        shp.close();
+      }
+      if (dbf != null) {
+        dbf.close();
       }
-
     }
-
-    return geoms;
   }
 
-  private static List<Geometry> asList(GeometryCollection gc) {
-    List<Geometry> geoms = Lists.newArrayList();
-    for (int i = 0; i < gc.getNumGeometries(); i++) {
-      geoms.add(gc.getGeometryN(i));
-    }
-    return geoms;
+  public static String dbfLocation(String shpLocation) {
+    String fname = FileUtils.getFilename(shpLocation);
+    String fpath = shpLocation.substring(0, shpLocation.length() - fname.length());
+    return fpath + fname.replace(".shp", ".dbf");
   }
 
-  public static Table asTable(Dbf dbf) throws IOException {
-    Table table = new Table();
-    for (int i = 0; i < dbf.getNumFields(); i++) {
-      Class<?> type = dbfTypeToClass(dbf.getFieldType(i));
-      table.addColumn(dbf.getFieldName(i).toString(), type);
+  private void readRecords(ShapeVisitor visitor) throws IOException {
+    ByteBuffer header = read(HEADER_LENGTH);
+    if (header.order(ByteOrder.BIG_ENDIAN).getInt(0) != FILE_CODE) {
+      throw new IOException("Not a shapefile");
     }
+    long fileLength = (header.getInt(24) & 0xffffffffL) * 2;
+    long pos = HEADER_LENGTH;
+
+    for (int recordIndex = 0; pos + 8 <= fileLength; recordIndex++) {
+      int contentLength;
+      try {
+        in.readInt();  // record number
+        contentLength = in.readInt() * 2;
+      } catch (EOFException eof) {
+        break;  // the file length in the header is wrong
+      }
+      if (contentLength < 4) {
+        throw new IOException("Invalid length of the shapefile record " + recordIndex);
+      }
+      pos += 8 + contentLength;
 
-    table.addRows(dbf.getLastRec());
+      Tuple attributes = null;
+      if (dbf != null) {
+        if (!dbf.next()) {
+          throw new IOException("The dbf file has fewer records than the shapefile");
+        }
+        attributes = dbf.getRecord();
+        if (where != null  &&  !where.getBoolean(attributes)) {
+          skip(contentLength);
+          continue;
+        }
+      }
 
-    for (int i = 0; i < dbf.getNumFields(); i++) {
-      List<?> values = getColumnValues(dbf, i);
-      for (int row = 0; row < values.size(); row++) {
-        table.set(row, i, values.get(row));
+      ByteBuffer buf = read(contentLength);
+      int shapeType = buf.getInt(0);
+      Polygon[] polygons;
+      switch (shapeType) {
+      case SHAPE_NULL:
+        if (bounds != null) {
+          continue;
+        }
+        polygons = new Polygon[0];
+        break;
+      case SHAPE_POLYGON:
+      case SHAPE_POLYGON_Z:
+      case SHAPE_POLYGON_M:
+        if (bounds != null  &&  !intersectsBounds(buf)) {
+          continue;
+        }
+        polygons = readPolygons(buf, recordIndex);
+        break;
+      default:
+        logger.warn("Skipping unsupported shape type " + shapeType + " of record " + recordIndex);
+        polygons = new Polygon[0];
       }
+      visitor.visit(recordIndex, attributes, polygons);
     }
-    return table;
   }
 
+  /**
+   * Reads the next bytes into the reused content buffer.
+   */
+  private ByteBuffer read(int length) throws IOException {
+    if (content.length < length) {
+      content = new byte[Math.max(length, content.length * 2)];
+    }
+    in.readFully(content, 0, length);
+    return ByteBuffer.wrap(content, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+  }
 
-  private static Class<?> dbfTypeToClass(char dbfFieldType) {
-    // See http://www.dbase.com/KnowledgeBase/int/db7_file_fmt.htm
-    switch (dbfFieldType) {
-    case 'N':
-    case 'F':
-    case 'O':
-      return Double.class;
-    case 'I':
-      return Integer.class;
-    default:
-      return String.class;
+  private void skip(int length) throws IOException {
+    while (length > 0) {
+      int n = in.skipBytes(length);
+      if (n <= 0) {
+        throw new EOFException();
+      }
+      length -= n;
     }
   }
 
-  private static List<?> getColumnValues(Dbf dbf, int col) throws IOException {
-    try {
-      switch (dbf.getFieldType(col)) {
-      case 'N':
-      case 'F':
-      case 'O':
-        List<Double> list = Lists.newArrayList();
-        for (float f : dbf.getFloatCol(col)) { list.add((double)f); }
-        return list;
-      case 'I':
-        return ImmutableList.copyOf(dbf.getIntegerCol(col));
+  private boolean intersectsBounds(ByteBuffer buf) {
+    double minX = buf.getDouble(4), minY = buf.getDouble(12);
+    double maxX = buf.getDouble(20), maxY = buf.getDouble(28);
+    return !(maxX < bounds.getMinX()  ||  minX > bounds.getMaxX()  ||
+             maxY < bounds.getMinY()  ||  minY > bounds.getMaxY());
+  }
 
-      default:
-        return ImmutableList.copyOf(dbf.getStringCol(col));
+  private Polygon[] readPolygons(ByteBuffer buf, int recordIndex) throws IOException {
+    int numParts = buf.getInt(36);
+    int numPoints = buf.getInt(40);
+    if (numParts < 0  ||  numPoints < 0  ||  44 + numParts * 4 + numPoints * 16 > buf.limit()) {
+      throw new IOException("Invalid polygon in the shapefile record " + recordIndex);
+    }
+    int[] partStarts = new int[numParts + 1];
+    for (int i = 0; i < numParts; i++) {
+      partStarts[i] = buf.getInt(44 + i * 4);
+    }
+    partStarts[numParts] = numPoints;
+    for (int i = 0; i < numParts; i++) {
+      if (partStarts[i] < 0  ||  partStarts[i] > partStarts[i + 1]) {
+        throw new IOException("Invalid polygon part in the shapefile record " + recordIndex);
       }
-    } catch (DbfFileException dfe) {
-      throw new IOException(dfe);
     }
-  }
 
-  private static GeometryCollection loadShapefile(String shpLocation) throws IOException {
-    try {
-      Shapefile shapefile = new Shapefile(IOUtils.asInputStream(shpLocation));
-      return shapefile.read(new GeometryFactory());
-    } catch (Exception e) {
-      throw new IOException(e);
+    if (coords.length < numPoints * 2) {
+      coords = new double[Math.max(numPoints * 2, coords.length * 2)];
     }
+    buf.position(44 + numParts * 4);
+    buf.asDoubleBuffer().get(coords, 0, numPoints * 2);
+
+    return assemblePolygons(coords, partStarts);
   }
 
-  public static Dbf loadDbf(String dbfLocation) throws IOException {
-    try {
-      logger.info("Attempting to load .dbf for the shapefile from '" + dbfLocation + "'");
-      Dbf dbf = new Dbf(IOUtils.asInputStream(dbfLocation));
-      return dbf;
-    } catch (DbfFileException dfe) {
-      throw new IOException(dfe);
+  /**
+   * Assigns the holes (counterclockwise parts) to the exterior rings (clockwise parts)
+   * containing them.
+   */
+  static Polygon[] assemblePolygons(double[] coords, int[] partStarts) {
+    int numParts = partStarts.length - 1;
+    boolean[] isHole = new boolean[numParts];
+    int numShells = 0;
+    for (int i = 0; i < numParts; i++) {
+      isHole[i] = (signedArea(coords, partStarts[i], partStarts[i + 1]) > 0);
+      if (!isHole[i]) numShells++;
+    }
+    if (numShells == 0) {
+      // the rings are oriented the wrong way, treat all of them as exterior ones
+      Arrays.fill(isHole, false);
     }
-  }
 
-  private static String[] getDbfStringColumnValues(Dbf dbf, int col) throws IOException {
-    try {
-      return dbf.getStringCol(col);
-    } catch (DbfFileException dfe) {
-      throw new IOException(dfe);
+    // shell index for each hole
+    int[] shellOf = new int[numParts];
+    for (int i = 0; i < numParts; i++) {
+      shellOf[i] = -1;
+      if (isHole[i]) {
+        shellOf[i] = findShell(coords, partStarts, isHole, i);
+        if (shellOf[i] < 0) {
+          isHole[i] = false;  // a hole outside of all shells is an exterior ring itself
+        }
+      }
+    }
+
+    List<Polygon> polygons = Lists.newArrayList();
+    for (int shell = 0; shell < numParts; shell++) {
+      if (isHole[shell]) {
+        continue;
+      }
+      int numRings = 1, numPoints = partStarts[shell + 1] - partStarts[shell];
+      for (int i = 0; i < numParts; i++) {
+        if (isHole[i]  &&  shellOf[i] == shell) {
+          numRings++;
+          numPoints += partStarts[i + 1] - partStarts[i];
+        }
+      }
+      double[] polyCoords = new double[numPoints * 2];
+      int[] ringStarts = new int[numRings];
+      int pos = copyPart(coords, partStarts, shell, polyCoords, 0);
+      for (int i = 0, ring = 1; i < numParts; i++) {
+        if (isHole[i]  &&  shellOf[i] == shell) {
+          ringStarts[ring++] = pos;
+          pos = copyPart(coords, partStarts, i, polyCoords, pos);
+        }
+      }
+      polygons.add(new Polygon(polyCoords, ringStarts, null));
     }
+    return polygons.toArray(new Polygon[polygons.size()]);
   }
 
-  private static String[] getDbfIdColumnValues(Dbf dbf, String dbfAreaIdField) throws IOException {
-    int col = findDbfColumnByName(dbf, dbfAreaIdField);
-    logger.info("dbfAreaIdField: '" + dbfAreaIdField + "'. Available fields: '" + listDbfFields(dbf) + "'");
-    if (col < 0) {
-      throw new IOException("Field '" + dbfAreaIdField + "' not found in dbf file. " +
-          "Available fields: '" + listDbfFields(dbf) + "'");
+  private static int copyPart(double[] coords, int[] partStarts, int part, double[] dest, int pos) {
+    int start = partStarts[part], end = partStarts[part + 1];
+    System.arraycopy(coords, start * 2, dest, pos * 2, (end - start) * 2);
+    return pos + end - start;
+  }
+
+  /**
+   * @return The smallest exterior ring containing the first point of the hole or -1
+   */
+  private static int findShell(double[] coords, int[] partStarts, boolean[] isHole, int hole) {
+    double x = coords[partStarts[hole] * 2], y = coords[partStarts[hole] * 2 + 1];
+    int best = -1;
+    double bestArea = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < isHole.length; i++) {
+      if (!isHole[i]  &&  contains(coords, partStarts[i], partStarts[i + 1], x, y)) {
+        double area = -signedArea(coords, partStarts[i], partStarts[i + 1]);
+        if (area < bestArea) {
+          best = i;
+          bestArea = area;
+        }
+      }
     }
-    return getDbfStringColumnValues(dbf, col);
+    return best;
   }
 
-  private static String listDbfFields(Dbf dbf) {
-    StringBuilder sb = new StringBuilder();
-    for (int i = 0; i < dbf.getNumFields(); i++) {
-      sb.append(dbf.getFieldName(i)).append(",");
+  /**
+   * @return Positive area for counterclockwise rings (in a coordinate system with
+   *         the y axis pointing up), negative for clockwise ones
+   */
+  private static double signedArea(double[] coords, int start, int end) {
+    double sum = 0;
+    for (int i = start; i < end; i++) {
+      int j = (i + 1 < end ? i + 1 : start);
+      sum += coords[i * 2] * coords[j * 2 + 1] - coords[j * 2] * coords[i * 2 + 1];
     }
-    return sb.toString();
+    return sum / 2;
   }
 
-  public static int findDbfColumnByName(Dbf dbf, String colName) {
-    for (int i = 0; i < dbf.getNumFields(); i++) {
-      if (colName.equals(dbf.getFieldName(i).toString())) {
-        return i;
+  private static boolean contains(double[] coords, int start, int end, double x, double y) {
+    boolean inside = false;
+    for (int i = start, j = end - 1; i < end; j = i++) {
+      double xi = coords[i * 2], yi = coords[i * 2 + 1];
+      double xj = coords[j * 2], yj = coords[j * 2 + 1];
+      if ((yi > y) != (yj > y)  &&  x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+        inside = !inside;
       }
     }
-    return -1;
+    return inside;
   }
 
 }
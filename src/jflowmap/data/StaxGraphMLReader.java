@@ -22,9 +22,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -32,20 +37,26 @@ import javax.xml.stream.XMLStreamReader;
 
 import jflowmap.FlowMapAttrSpec;
 import jflowmap.FlowMapGraph;
+import jflowmap.util.ConcurrencyUtils;
+import jflowmap.util.ReadAheadInputStream;
 
 import org.apache.log4j.Logger;
 
 import prefuse.data.Graph;
 import prefuse.data.Schema;
 import prefuse.data.Table;
+import prefuse.data.expression.Predicate;
 import prefuse.data.parser.DataParseException;
 import prefuse.data.parser.ParserFactory;
-import prefuse.util.collections.IntIterator;
 import prefuse.util.io.IOLib;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * GraphML reader able of loading several graphs in one file. It's based on StAX and
@@ -59,15 +70,27 @@ public class StaxGraphMLReader {
 
   private static final String DEFAULT_CHARSET = "utf-8";
   private static final String NAMESPACE = null; //  "http://graphml.graphdrawing.org/xmlns"
+  private static final String[] NO_DATA = new String[0];
 
   private String charset = DEFAULT_CHARSET;
+  private int numThreads = ConcurrencyUtils.numberOfWorkers();
 
   private final ParserFactory dataParser;
   private LineNumberReader lineNumberReader;
 
   private Schema nodeSchema, edgeSchema;
   private Map<String, String> attrIdToName;
-  private Map<String, Integer> nodeIdToIndex;
+
+  private List<String> edgeAttrNames;
+  private List<AttrDataTypes> edgeAttrTypes;
+  private Set<String> skippedEdgeAttrs;
+  private Set<String> allEdgeAttrs;
+  private boolean edgeColumnsAdded;
+
+  private Function<Iterable<String>, Iterable<String>> selectWeightAttrs;
+  private Iterable<String> weightAttrs;
+  private boolean projectEdgeAttrs;
+  private RecordFilters recordFilters = RecordFilters.NONE;
 
   public StaxGraphMLReader() {
     dataParser = ParserFactory.getDefaultFactory();
@@ -77,14 +100,53 @@ public class StaxGraphMLReader {
     this.charset = charset;
   }
 
+  /**
+   * With more than one thread, the input is read (and decompressed) ahead in
+   * a separate thread and the tables of the graphs are built in a pool of threads
+   * while the following graphs are being parsed.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * @param selectWeightAttrs Selects the weight attrs out of the edge attrs declared
+   *          in the file. They are needed for the weight attr filters and the projection.
+   */
+  public void setWeightAttrs(Function<Iterable<String>, Iterable<String>> selectWeightAttrs) {
+    this.selectWeightAttrs = selectWeightAttrs;
+  }
+
+  /**
+   * If set, only the weight attrs and the edge attrs used by the filters are read.
+   * The data of the other edge attrs is skipped without being parsed.
+   */
+  public void setProjectEdgeAttrs(boolean projectEdgeAttrs) {
+    this.projectEdgeAttrs = projectEdgeAttrs;
+  }
+
+  /**
+   * The nodes and edges which don't satisfy the filters are dropped while
+   * they are read.
+   */
+  public void setRecordFilters(RecordFilters filters) {
+    this.recordFilters = filters;
+  }
+
   public Iterable<Graph> readFromLocation(String location) throws IOException {
+    return readFromLocation(location, Integer.MAX_VALUE);
+  }
+
+  private List<Graph> readFromLocation(String location, int maxGraphs) throws IOException {
     logger.info("Loading file \"" + location + "\"");
+    long start = System.currentTimeMillis();
     InputStream is = IOLib.streamFromString(location);
     if (is == null) {
       throw new IOException("Couldn't read from location: \"" + location + "\"");
     }
-    Iterable<Graph> graphs = readFromStream(is);
-    logger.info("Finished loading file. Number of graphs loaded: " + Iterables.size(graphs));
+    List<Graph> graphs = readFromStream(is, maxGraphs);
+    logger.info("Finished loading file. Number of graphs loaded: " + graphs.size() +
+        " in " + (System.currentTimeMillis() - start) + "ms");
 
     return graphs;
   }
@@ -94,11 +156,18 @@ public class StaxGraphMLReader {
   }
 
   public static Graph readFirstGraph(String filename) throws IOException {
-    Iterator<Graph> it = readGraphs(filename).iterator();
-    if (!it.hasNext()) {
-      throw new IOException("No graphs found in " + filename);
+    return new StaxGraphMLReader().readFirstFromLocation(filename);
+  }
+
+  /**
+   * Stops reading the file after the first graph.
+   */
+  public Graph readFirstFromLocation(String location) throws IOException {
+    List<Graph> graphs = readFromLocation(location, 1);
+    if (graphs.isEmpty()) {
+      throw new IOException("No graphs found in " + location);
     }
-    return it.next();
+    return graphs.get(0);
   }
 
   public static FlowMapGraph readFlowMapGraph(String location, FlowMapAttrSpec attrSpec) throws IOException {
@@ -106,19 +175,37 @@ public class StaxGraphMLReader {
   }
 
   public Iterable<Graph> readFromStream(InputStream is) throws IOException {
-    XMLInputFactory inputFactory = XMLInputFactory.newInstance();
-    XMLStreamReader in;
+    return readFromStream(is, Integer.MAX_VALUE);
+  }
+
+  /**
+   * The StAX parser fills the node and edge tables of a graph while its elements
+   * are read: the data values are parsed right away, so that no data strings are
+   * kept and the first bad value fails the load. Only the edges which refer to nodes
+   * which weren't read yet are kept until the end of the graph. The graph (with its
+   * node-edge links) is then created from the tables: in the pool (if there is more
+   * than one thread) or right away otherwise. At most twice as many graphs as there
+   * are threads wait to be created, so that the parser doesn't run too far ahead.
+   */
+  private List<Graph> readFromStream(InputStream is, int maxGraphs) throws IOException {
+    boolean concurrent = (numThreads > 1);
+    ExecutorService pool = null;
+    final Semaphore uncreatedGraphs = new Semaphore(2 * numThreads);
+    if (concurrent) {
+      is = new ReadAheadInputStream(is, "graphml-read");
+      pool = ConcurrencyUtils.newDaemonPool(numThreads, "graphml-build");
+    }
     try {
+      XMLInputFactory inputFactory = XMLInputFactory.newInstance();
       lineNumberReader = new LineNumberReader(new InputStreamReader(is, charset));
-      in = inputFactory.createXMLStreamReader(lineNumberReader);
+      XMLStreamReader in = inputFactory.createXMLStreamReader(lineNumberReader);
 
+      List<Future<Graph>> futures = Lists.newArrayList();
       List<Graph> graphs = Lists.newArrayList();
       initSchemas();
 
       attrIdToName = Maps.newHashMap();
-      String graphId = null;
-      boolean graphDirected = false;
-      Table nodeTable = null, edgeTable = null;
+      GraphTables tables = null;
 
       OUTER: while (in.hasNext()) {
         int eventType = in.nextTag();
@@ -130,78 +217,49 @@ public class StaxGraphMLReader {
               readKey(in);
 
             } else if (tag.equals("graph")) {
+              if (!edgeColumnsAdded) {
+                addEdgeColumns();
+              }
               lockSchemas();
-
-              nodeIdToIndex = Maps.newHashMap();
-              nodeTable = nodeSchema.instantiate();
-              edgeTable = edgeSchema.instantiate();
-
-              graphId = in.getAttributeValue(NAMESPACE, "id");
-              graphDirected = ("directed".equals(in.getAttributeValue(NAMESPACE, "edgedefault")));
-
-            } else if (tag.equals("node")) {
-
-              int ri = nodeTable.addRow();
-
-              String nodeId = in.getAttributeValue(NAMESPACE, "id");
-              if (nodeIdToIndex.containsKey(nodeId)) {
-                throw new IOException("Duplicate node id: '" + nodeId + "'");
+              if (concurrent) {
+                uncreatedGraphs.acquireUninterruptibly();
               }
-              nodeIdToIndex.put(nodeId, ri);
-
-              nodeTable.set(ri, FlowMapGraph.GRAPH_NODE_ID_COLUMN, nodeId);
+              tables = new GraphTables(
+                  in.getAttributeValue(NAMESPACE, "id"),
+                  "directed".equals(in.getAttributeValue(NAMESPACE, "edgedefault")));
 
-              readData(in, nodeTable, ri, "node");
+            } else if (tag.equals("node")) {
+              tables.readNode(in);
 
             } else if (tag.equals("edge")) {
-
-              int ri = edgeTable.addRow();
-
-              edgeTable.setString(ri, FlowMapGraph.SRC_TEMP_ID, in.getAttributeValue(NAMESPACE, "source"));
-              edgeTable.setString(ri, FlowMapGraph.TRG_TEMP_ID, in.getAttributeValue(NAMESPACE, "target"));
-
-              readData(in, edgeTable, ri, "edge");
+              tables.readEdge(in);
             }
             break;
 
           case XMLStreamReader.END_ELEMENT:
 
             if (tag.equals("graph")) {
-              assert(nodeTable != null);
-              assert(edgeTable != null);
-
-              // Map edge starts/ends to nodes
-              IntIterator rows = edgeTable.rows();
-              while (rows.hasNext()) {
-                int ri = rows.nextInt();
-
-                String src = edgeTable.getString(ri, FlowMapGraph.SRC_TEMP_ID);
-                if (!nodeIdToIndex.containsKey(src)) {
-                  throw new IOException(
-                    "Tried to create edge with source node id=" + src
-                    + " which does not exist.");
-                }
-                edgeTable.setInt(ri, FlowMapGraph.SRC, nodeIdToIndex.get(src));
-
-                String trg = edgeTable.getString(ri, FlowMapGraph.TRG_TEMP_ID);
-                if (!nodeIdToIndex.containsKey(trg)) {
-                  throw new IOException(
-                    "Tried to create edge with target node id=" + trg
-                    + " which does not exist.");
-                }
-                edgeTable.setInt(ri, FlowMapGraph.TRG, nodeIdToIndex.get(trg));
+              assert(tables != null);
+              tables.addPendingEdges();
+              final GraphTables toCreate = tables;
+              tables = null;
+              if (concurrent) {
+                futures.add(pool.submit(new Callable<Graph>() {
+                  @Override
+                  public Graph call() throws Exception {
+                    try {
+                      return toCreate.createGraph();
+                    } finally {
+                      uncreatedGraphs.release();
+                    }
+                  }
+                }));
+              } else {
+                graphs.add(toCreate.createGraph());
+              }
+              if (futures.size() + graphs.size() >= maxGraphs) {
+                break OUTER;
               }
-              edgeTable.removeColumn(FlowMapGraph.SRC_TEMP_ID);
-              edgeTable.removeColumn(FlowMapGraph.TRG_TEMP_ID);
-
-
-              // Finally, create the graph
-              Graph graph = new Graph(nodeTable, edgeTable, graphDirected);
-              FlowMapGraph.setGraphId(graph, graphId);
-              graphs.add(graph);
-
-              logger.info("Loaded graph '" + graphId + "'," +
-              		" nodes: " + nodeTable.getRowCount() +  ", edges: " + edgeTable.getRowCount());
 
             } else if (tag.equals("graphml")) {
               break OUTER;
@@ -210,15 +268,57 @@ public class StaxGraphMLReader {
         }
       }
 
+      for (Future<Graph> f : futures) {
+        graphs.add(getResult(f));
+      }
       return graphs;
     } catch (XMLStreamException e) {
       throw new IOException("Parse error in line " + lineNumberReader.getLineNumber() + ": " + e.getMessage(), e);
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+      if (concurrent) {
+        is.close();
+      }
     }
   }
 
-  private void readData(XMLStreamReader in, Table table, int tableRowIdx, String untilEndOf)
-    throws IOException, XMLStreamException {
+  private static Graph getResult(Future<Graph> future) throws IOException {
+    try {
+      return ConcurrencyUtils.getResult(future);
+    } catch (RuntimeException re) {
+      if (re.getCause() instanceof IOException) {
+        throw (IOException)re.getCause();
+      }
+      throw re;
+    }
+  }
+
+  private void setValue(Table table, int tableRowIdx, String attrName, String valueStr)
+      throws IOException {
+    Class<?> columnType = table.getColumnType(attrName);
+    if (columnType == null) {
+      throw new IOException("Type of column '" + attrName + "' not found");
+    }
+    try {
+      table.set(tableRowIdx, attrName, parseData(valueStr, columnType));
+    } catch (IOException ioe) {
+      throw new IOException(ioe.getMessage() + " for column '" + attrName + "'", ioe);
+    }
+  }
 
+  /**
+   * Reads the data elements until the end of the node or edge element. The values
+   * are parsed and set in the row of the table, or, if the table is null, returned
+   * unparsed. The values of the skipped attrs are skipped without being kept.
+   *
+   * @return Pairs of attr names and values of the data elements if the table is null
+   */
+  private String[] readData(XMLStreamReader in, String untilEndOf, Set<String> skippedAttrs,
+      Table table, int row) throws IOException, XMLStreamException {
+
+    List<String> data = null;
     OUTER: while (in.hasNext()) {
       int eventType = in.nextTag();
       String tag = in.getLocalName();
@@ -228,17 +328,29 @@ public class StaxGraphMLReader {
           if (tag.equals("data")) {
             String attrId = in.getAttributeValue(NAMESPACE, "key");
             String attrName = attrIdToName.get(attrId);
+            if (attrName == null) {
+              throw new IOException("Type of column '" + attrId + "' not found");
+            }
+            if (skippedAttrs.contains(attrName)) {
+              in.getElementText();  // skip without keeping
+              continue;
+            }
             String valueStr = in.getElementText();
-            Object value;
-            if (valueStr == null) {
-              value = null;
-            } else {
-              Class<?> columnType = table.getColumnType(attrName);
-              if (columnType == null) {
-                throw new IOException("Type of column '" + attrId + "' not found");
+            if (valueStr != null) {
+              if (table != null) {
+                try {
+                  setValue(table, row, attrName, valueStr);
+                } catch (IOException ioe) {
+                  throw new IOException(ioe.getMessage() +
+                      " (line " + in.getLocation().getLineNumber() + ")", ioe);
+                }
+              } else {
+                if (data == null) {
+                  data = Lists.newArrayList();
+                }
+                data.add(attrName);
+                data.add(valueStr);
               }
-              value = parseData(valueStr, columnType);
-              table.set(tableRowIdx, attrName, value);
             }
           }
           break;
@@ -250,6 +362,40 @@ public class StaxGraphMLReader {
           break;
       }
     }
+    return (data != null ? data.toArray(new String[data.size()]) : NO_DATA);
+  }
+
+  /**
+   * Adds the columns for the edge attrs once all the keys are read. Unless projecting,
+   * the columns for all of the edge attrs are added.
+   */
+  private void addEdgeColumns() {
+    weightAttrs = (selectWeightAttrs != null ?
+        ImmutableList.copyOf(selectWeightAttrs.apply(edgeAttrNames)) : edgeAttrNames);
+
+    Set<String> edgeFilterColumns = Collections.emptySet();
+    if (!recordFilters.isEmpty()) {
+      edgeFilterColumns = recordFilters.referencedEdgeColumns(weightAttrs);
+      logger.info("Filtering records while loading: " + recordFilters);
+    }
+
+    allEdgeAttrs = ImmutableSet.copyOf(edgeAttrNames);
+    skippedEdgeAttrs = Sets.newHashSet();
+    for (int i = 0; i < edgeAttrNames.size(); i++) {
+      String name = edgeAttrNames.get(i);
+      if (projectEdgeAttrs  &&  selectWeightAttrs != null  &&
+          !Iterables.contains(weightAttrs, name)  &&  !edgeFilterColumns.contains(name)) {
+        skippedEdgeAttrs.add(name);
+      } else {
+        AttrDataTypes type = edgeAttrTypes.get(i);
+        edgeSchema.addColumn(name, type.klass, type.getDefaultValue());
+      }
+    }
+    if (!skippedEdgeAttrs.isEmpty()) {
+      logger.info("Skipping " + skippedEdgeAttrs.size() + " of " + edgeAttrNames.size() +
+          " edge attrs which are not used as weight or filter attrs");
+    }
+    edgeColumnsAdded = true;
   }
 
   private void lockSchemas() {
@@ -263,8 +409,9 @@ public class StaxGraphMLReader {
     edgeSchema = new Graph2.Schema2();
     edgeSchema.addColumn(FlowMapGraph.SRC, int.class);
     edgeSchema.addColumn(FlowMapGraph.TRG, int.class);
-    edgeSchema.addColumn(FlowMapGraph.SRC_TEMP_ID, String.class);
-    edgeSchema.addColumn(FlowMapGraph.TRG_TEMP_ID, String.class);
+    edgeAttrNames = Lists.newArrayList();
+    edgeAttrTypes = Lists.newArrayList();
+    edgeColumnsAdded = false;
   }
 
   private void readKey(XMLStreamReader in) throws IOException {
@@ -286,23 +433,217 @@ public class StaxGraphMLReader {
     */
     Object defaultVal = type.getDefaultValue();
 
+    // the edge columns are added when all the keys are read (see addEdgeColumns())
     if (forWhat == null  ||  forWhat.equals("all")) {
       nodeSchema.addColumn(name, type.klass, defaultVal);
-      edgeSchema.addColumn(name, type.klass, defaultVal);
+      addEdgeAttr(name, type);
     } else if (forWhat.equals("node")) {
       nodeSchema.addColumn(name, type.klass, defaultVal);
     } else if (forWhat.equals("edge")) {
-      edgeSchema.addColumn(name, type.klass, defaultVal);
+      addEdgeAttr(name, type);
     } else {
       throw new IOException("Unrecognized 'for' value: " + forWhat);
     }
   }
 
-  private Object parseData(String defaultValStr, Class<?> klass) throws IOException {
+  private void addEdgeAttr(String name, AttrDataTypes type) {
+    if (edgeAttrNames.contains(name)  ||  edgeSchema.getColumnIndex(name) >= 0) {
+      throw new IllegalArgumentException("Duplicate column name: " + name);
+    }
+    edgeAttrNames.add(name);
+    edgeAttrTypes.add(type);
+  }
+
+  private Object parseData(String valueStr, Class<?> klass) throws IOException {
     try {
-      return dataParser.getParser(klass).parse(defaultValStr);
+      return dataParser.getParser(klass).parse(valueStr);
     } catch (DataParseException e) {
-      throw new IOException(e);
+      throw new IOException("Cannot parse '" + valueStr + "' as " + klass.getSimpleName(), e);
+    }
+  }
+
+  private static Table newRecordTable(Schema schema) {
+    Table record = schema.instantiate();
+    record.addRow();
+    return record;
+  }
+
+  /**
+   * The node and edge tables of a graph which are filled by the parser. If there
+   * are filters, the values of every record are first set in a one-row record
+   * table with the same schema on which the filters are evaluated. Only the records
+   * which satisfy them are copied into the tables, so that the dropped ones never
+   * take a row. As the filters are compiled for every graph, the graphs
+   * can be created concurrently once their tables are filled.
+   */
+  private class GraphTables {
+    final String id;
+    final boolean directed;
+    final Table nodeTable = nodeSchema.instantiate();
+    final Table edgeTable = edgeSchema.instantiate();
+    final Predicate nodeFilter, edgeFilter;
+    /** Null if there is no respective filter */
+    final Table nodeRecord, edgeRecord;
+    final RecordFilters.RowCursor cursor = new RecordFilters.RowCursor();
+    final Map<String, Integer> nodeIdToIndex = Maps.newHashMap();
+    final Set<String> filteredOutNodeIds = Sets.newHashSet();
+    int numFilteredOutEdges;
+    /** The edges read before their nodes: source, target and the data pairs */
+    final List<String[]> pendingEdges = Lists.newArrayList();
+
+    GraphTables(String id, boolean directed) {
+      this.id = id;
+      this.directed = directed;
+      if (!recordFilters.isEmpty()) {
+        nodeFilter = recordFilters.nodePredicate();
+        edgeFilter = recordFilters.edgePredicate(weightAttrs);
+      } else {
+        nodeFilter = edgeFilter = null;
+      }
+      nodeRecord = (nodeFilter != null ? newRecordTable(nodeSchema) : null);
+      edgeRecord = (edgeFilter != null ? newRecordTable(edgeSchema) : null);
+    }
+
+    void readNode(XMLStreamReader in) throws IOException, XMLStreamException {
+      String nodeId = in.getAttributeValue(NAMESPACE, "id");
+      if (nodeIdToIndex.containsKey(nodeId)  ||  filteredOutNodeIds.contains(nodeId)) {
+        throw new IOException("Duplicate node id: '" + nodeId + "'");
+      }
+      Table table = (nodeRecord != null ? nodeRecord : nodeTable);
+      int ri = (nodeRecord != null ? 0 : nodeTable.addRow());
+      table.set(ri, FlowMapGraph.GRAPH_NODE_ID_COLUMN, nodeId);
+      readData(in, "node", Collections.<String>emptySet(), table, ri);
+
+      if (nodeRecord != null) {
+        ri = addRecord(nodeRecord, nodeFilter, nodeTable);
+        if (ri < 0) {
+          filteredOutNodeIds.add(nodeId);
+          return;
+        }
+      }
+      nodeIdToIndex.put(nodeId, ri);
+    }
+
+    void readEdge(XMLStreamReader in) throws IOException, XMLStreamException {
+      String src = in.getAttributeValue(NAMESPACE, "source");
+      String trg = in.getAttributeValue(NAMESPACE, "target");
+      if (filteredOutNodeIds.contains(src)  ||  filteredOutNodeIds.contains(trg)) {
+        readData(in, "edge", allEdgeAttrs, null, -1);  // skip the data
+        numFilteredOutEdges++;
+        return;
+      }
+      Integer srcIndex = nodeIdToIndex.get(src);
+      Integer trgIndex = nodeIdToIndex.get(trg);
+      if (srcIndex == null  ||  trgIndex == null) {
+        String[] data = readData(in, "edge", skippedEdgeAttrs, null, -1);
+        String[] edge = new String[data.length + 2];
+        edge[0] = src;
+        edge[1] = trg;
+        System.arraycopy(data, 0, edge, 2, data.length);
+        pendingEdges.add(edge);
+        return;
+      }
+      int ri = startEdge(srcIndex, trgIndex);
+      readData(in, "edge", skippedEdgeAttrs, (edgeRecord != null ? edgeRecord : edgeTable), ri);
+      endEdge();
+    }
+
+    /**
+     * Adds the edges which were read before their nodes. Must be called
+     * once all the elements of the graph are read.
+     */
+    void addPendingEdges() throws IOException {
+      for (String[] edge : pendingEdges) {
+        String src = edge[0], trg = edge[1];
+        if (filteredOutNodeIds.contains(src)  ||  filteredOutNodeIds.contains(trg)) {
+          numFilteredOutEdges++;
+          continue;
+        }
+        Integer srcIndex = nodeIdToIndex.get(src);
+        if (srcIndex == null) {
+          throw new IOException(
+            "Tried to create edge with source node id=" + src
+            + " which does not exist.");
+        }
+        Integer trgIndex = nodeIdToIndex.get(trg);
+        if (trgIndex == null) {
+          throw new IOException(
+            "Tried to create edge with target node id=" + trg
+            + " which does not exist.");
+        }
+        int ri = startEdge(srcIndex, trgIndex);
+        for (int i = 2; i < edge.length; i += 2) {
+          setValue((edgeRecord != null ? edgeRecord : edgeTable), ri, edge[i], edge[i + 1]);
+        }
+        endEdge();
+      }
+      pendingEdges.clear();
+    }
+
+    /**
+     * @return The row in which the values of the edge are to be set:
+     *         in the edge record if the edges are filtered
+     */
+    private int startEdge(int srcIndex, int trgIndex) {
+      Table table = (edgeRecord != null ? edgeRecord : edgeTable);
+      int ri = (edgeRecord != null ? 0 : edgeTable.addRow());
+      table.setInt(ri, FlowMapGraph.SRC, srcIndex);
+      table.setInt(ri, FlowMapGraph.TRG, trgIndex);
+      return ri;
+    }
+
+    private void endEdge() {
+      if (edgeRecord != null  &&  addRecord(edgeRecord, edgeFilter, edgeTable) < 0) {
+        numFilteredOutEdges++;
+      }
+    }
+
+    /**
+     * Copies the record into a new row of the table if it satisfies the filter
+     * and reverts the values of the record to the defaults.
+     *
+     * @return The row of the table or -1 if the record was dropped
+     */
+    private int addRecord(Table record, Predicate filter, Table table) {
+      int ri = -1;
+      if (filter.getBoolean(cursor.moveTo(record, 0))) {
+        ri = table.addRow();
+        for (int col = 0, n = record.getColumnCount(); col < n; col++) {
+          Class<?> type = record.getColumnType(col);
+          if (type == double.class) {
+            table.setDouble(ri, col, record.getDouble(0, col));
+          } else if (type == int.class) {
+            table.setInt(ri, col, record.getInt(0, col));
+          } else if (type == float.class) {
+            table.setFloat(ri, col, record.getFloat(0, col));
+          } else if (type == long.class) {
+            table.setLong(ri, col, record.getLong(0, col));
+          } else {
+            table.set(ri, col, record.get(0, col));
+          }
+        }
+      }
+      for (int col = 0, n = record.getColumnCount(); col < n; col++) {
+        record.getColumn(col).revertToDefault(0);
+      }
+      return ri;
+    }
+
+    Graph createGraph() {
+      if (nodeFilter != null  ||  edgeFilter != null) {
+        FlowMapGraphBuilder.logFilteredOutRecords(
+            "Nodes of graph '" + id + "'", filteredOutNodeIds.size(), nodeTable);
+        FlowMapGraphBuilder.logFilteredOutRecords(
+            "Edges of graph '" + id + "'", numFilteredOutEdges, edgeTable);
+      }
+
+      Graph graph = new Graph(nodeTable, edgeTable, directed);
+      FlowMapGraph.setGraphId(graph, id);
+
+      logger.info("Loaded graph '" + id + "'," +
+          " nodes: " + nodeTable.getRowCount() +  ", edges: " + edgeTable.getRowCount());
+
+      return graph;
     }
   }
 
@@ -18,12 +18,20 @@
 
 package jflowmap.data;
 
+import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingUtilities;
 
@@ -35,6 +43,7 @@ import jflowmap.geo.MapProjections;
 import jflowmap.models.map.GeoMap;
 import jflowmap.models.map.MapArea;
 import jflowmap.util.CollectionUtils;
+import jflowmap.util.ConcurrencyUtils;
 import jflowmap.util.IOUtils;
 import jflowmap.util.Pair;
 import jflowmap.util.PropUtils;
@@ -51,7 +60,7 @@ import prefuse.util.io.IOLib;
 import at.fhj.utils.misc.FileUtils;
 import au.com.bytecode.opencsv.CSVParser;
 
-import com.google.common.base.Strings;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 
 /**
@@ -109,6 +118,21 @@ public class ViewConfig {
   public static final String PROP_DATA_GRAPHML_SRC = PROP_DATA_GRAPHML + ".src";
 
   public static final String PROP_DATA_AGGREGATOR = PROP_DATA + ".aggregator";
+  public static final String PROP_DATA_AGGREGATOR_LAZY = PROP_DATA_AGGREGATOR + ".lazy";
+
+  public static final String PROP_DATA_SNAPSHOT = PROP_DATA + ".snapshot";
+  public static final String PROP_DATA_SNAPSHOT_DIR = PROP_DATA_SNAPSHOT + ".dir";
+
+  /**
+   * System properties with the defaults for data.snapshot/map.cache (true unless set to
+   * false) and for data.snapshot.dir/map.cache.dir (a directory in java.io.tmpdir).
+   */
+  public static final String SYSPROP_CACHE = "jflowmap.cache";
+  public static final String SYSPROP_CACHE_DIR = "jflowmap.cache.dir";
+
+  /** Snapshot and cache files which weren't used for so long are deleted */
+  private static final long CACHE_FILE_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+  private static final String SNAPSHOT_EXT = ".snapshot";
 
   public static final String PROP_MAP = "map";
   public static final String PROP_MAP_PROJECTION = PROP_MAP + ".projection";
@@ -119,6 +143,10 @@ public class ViewConfig {
   public static final String PROP_MAP_SHAPEFILE_DBF_AREAIDFIELD_ = PROP_MAP_SHAPEFILE + ".dbfAreaIdField";
   public static final String PROP_MAP_SHAPEFILE_DBF_AREAIDFIELD = PROP_MAP_SHAPEFILE + ".dbf.areaIdField";
   public static final String PROP_MAP_SHAPEFILE_DBF_SELECT_SHAPES_WHERE = PROP_MAP_SHAPEFILE + ".dbf.select.shapes.where";
+  public static final String PROP_MAP_SHAPEFILE_SELECT_BOUNDING_BOX = PROP_MAP_SHAPEFILE + ".select.boundingBox";
+
+  public static final String PROP_MAP_CACHE = PROP_MAP + ".cache";
+  public static final String PROP_MAP_CACHE_DIR = PROP_MAP_CACHE + ".dir";
 
   public static final String PROP_MAP_BACKGROUND = PROP_MAP + ".background";
   public static final String PROP_MAP_BACKGROUND_SRC = PROP_MAP_BACKGROUND + ".src";
@@ -160,8 +188,39 @@ public class ViewConfig {
     		" using " + dataLoader + " data loader" +
     	        " and " + (mapLoader != null ? mapLoader : "no") + " map loader");
     try {
-      final Object data = dataLoader.load(this);
-      final GeoMap mapModel = createMap();
+      long start = System.currentTimeMillis();
+
+      // the data and the map are independent until the view is created, so the map
+      // is loaded in the background while the data is being loaded
+      final long[] mapTime = new long[1];
+      ExecutorService mapPool = ConcurrencyUtils.newDaemonPool(1, "mapLoader");
+      Future<GeoMap> mapFuture;
+      final Object data;
+      final long dataTime;
+      try {
+        mapFuture = mapPool.submit(new Callable<GeoMap>() {
+          @Override
+          public GeoMap call() throws Exception {
+            long mapStart = System.currentTimeMillis();
+            GeoMap map = createMap();
+            mapTime[0] = System.currentTimeMillis() - mapStart;
+            return map;
+          }
+        });
+        long dataStart = System.currentTimeMillis();
+        data = loadData();
+        dataTime = System.currentTimeMillis() - dataStart;
+      } finally {
+        mapPool.shutdown();
+      }
+      final GeoMap mapModel;
+      try {
+        mapModel = mapFuture.get();
+      } catch (ExecutionException ee) {
+        throw (ee.getCause() instanceof Exception ? (Exception)ee.getCause() : ee);
+      }
+      long loadTime = System.currentTimeMillis() - start;
+
       class ViewRef {
         IView view;
         Exception ex;
@@ -182,6 +241,10 @@ public class ViewConfig {
       if (viewRef.ex != null) {
         throw viewRef.ex;
       }
+      long totalTime = System.currentTimeMillis() - start;
+      logger.info("View '" + getName() + "' created in " + totalTime + "ms: " +
+          "data " + dataTime + "ms and map " + mapTime[0] + "ms loaded concurrently in " +
+          loadTime + "ms, view " + (totalTime - loadTime) + "ms");
       return viewRef.view;
     } catch (Exception e) {
       error(e, location);  // will throw an IOException
@@ -189,12 +252,151 @@ public class ViewConfig {
     }
   }
 
+  /**
+   * Unless data.snapshot is set to false, the loaded FlowMapGraph is stored
+   * in a binary snapshot which is read instead of the sources the next time
+   * if neither the sources nor the data.* properties have changed.
+   * A snapshot which cannot be read is deleted and the sources are loaded.
+   */
+  public Object loadData() throws IOException {
+    if (!getBoolOrElse(PROP_DATA_SNAPSHOT, cachingByDefault())) {
+      return loadDataFromSources();
+    }
+    long checksum;
+    try {
+      checksum = FlowMapGraphSnapshot.checksumOf(
+          dataLoader.sourceLocations(this), propsStartingWith(PROP_DATA));
+    } catch (IOException ioe) {
+      logger.info("Not using a snapshot: " + ioe.getMessage());
+      return loadDataFromSources();
+    }
+    File dir = cacheDir(PROP_DATA_SNAPSHOT_DIR);
+    File file = new File(dir, getName() + "-" + Integer.toHexString(location.hashCode()) +
+        SNAPSHOT_EXT);
+    try {
+      FlowMapGraph fmg = FlowMapGraphSnapshot.read(file, checksum);
+      if (fmg != null) {
+        file.setLastModified(System.currentTimeMillis());
+        return fmg;
+      }
+    } catch (IOException ioe) {
+      logger.warn("Cannot read snapshot " + file + ", deleting it", ioe);
+      file.delete();
+    }
+
+    Object data = loadDataFromSources();
+    if (data instanceof FlowMapGraph) {
+      try {
+        FlowMapGraphSnapshot.write((FlowMapGraph)data, file, checksum);
+        deleteUnusedCacheFiles(dir, SNAPSHOT_EXT);
+      } catch (IOException ioe) {
+        logger.warn("Cannot write snapshot " + file + ": " + ioe.getMessage());
+      }
+    }
+    return data;
+  }
+
+  public Object loadDataFromSources() throws IOException {
+    long start = System.currentTimeMillis();
+    Object data = dataLoader.load(this);
+    logger.info("Data loaded by " + dataLoader + " data loader in " +
+        (System.currentTimeMillis() - start) + "ms");
+    return data;
+  }
+
+  private static boolean cachingByDefault() {
+    return !"false".equalsIgnoreCase(System.getProperty(SYSPROP_CACHE));
+  }
+
+  private File cacheDir(String propName) {
+    String defaultDir = System.getProperty(SYSPROP_CACHE_DIR);
+    if (defaultDir == null) {
+      defaultDir = new File(System.getProperty("java.io.tmpdir"), "jflowmap-snapshots").getPath();
+    }
+    return new File(getStringOrElse(propName, defaultDir));
+  }
+
+  /**
+   * Deletes the files with the extension in the directory which weren't modified
+   * (or read, as reading them updates their modification time) for a long time.
+   */
+  private static void deleteUnusedCacheFiles(File dir, String ext) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long oldest = System.currentTimeMillis() - CACHE_FILE_MAX_AGE;
+    for (File f : files) {
+      if (f.getName().endsWith(ext)  &&  f.lastModified() < oldest) {
+        if (f.delete()) {
+          logger.info("Deleted unused cache file " + f);
+        }
+      }
+    }
+  }
+
+  private String propsStartingWith(String prefix) {
+    StringBuilder sb = new StringBuilder();
+    for (String name : new TreeSet<String>(props.stringPropertyNames())) {
+      if (name.startsWith(prefix)) {
+        sb.append(name).append('=').append(props.getProperty(name)).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Unless map.cache is set to false, the loaded maps are kept in binary cache files
+   * named after the checksum of their sources and the map.* properties, and in memory,
+   * so that the views using the same map share it. Views which are being loaded
+   * concurrently wait for the same map to be loaded once. A cache file which
+   * cannot be read is deleted and the map is loaded from the sources.
+   */
   private GeoMap createMap() throws IOException {
-    if (mapLoader != null) {
-      return mapLoader.load(this);
-    } else {
+    if (mapLoader == null) {
       return new GeoMap("<Empty>", Collections.<MapArea>emptyList());
     }
+    if (!getBoolOrElse(PROP_MAP_CACHE, cachingByDefault())) {
+      return mapLoader.load(this);
+    }
+    final long checksum;
+    try {
+      checksum = FlowMapGraphSnapshot.checksumOf(
+          mapLoader.sourceLocations(this), propsStartingWith(PROP_MAP + "."));
+    } catch (IOException ioe) {
+      logger.info("Not using an area map cache: " + ioe.getMessage());
+      return mapLoader.load(this);
+    }
+    return GeoMapCache.getOrLoad(checksum, new Callable<GeoMap>() {
+      @Override
+      public GeoMap call() throws IOException {
+        File dir = cacheDir(PROP_MAP_CACHE_DIR);
+        File file = GeoMapCache.cacheFile(dir, checksum);
+        GeoMap map = null;
+        try {
+          map = GeoMapCache.read(file, checksum);
+          if (map != null) {
+            file.setLastModified(System.currentTimeMillis());
+          }
+        } catch (IOException ioe) {
+          logger.warn("Cannot read area map cache " + file + ", deleting it", ioe);
+          file.delete();
+        }
+        if (map == null) {
+          long start = System.currentTimeMillis();
+          map = mapLoader.load(ViewConfig.this);
+          logger.info("Area map loaded by " + mapLoader + " map loader in " +
+              (System.currentTimeMillis() - start) + "ms");
+          try {
+            GeoMapCache.write(map, file, checksum);
+            deleteUnusedCacheFiles(dir, GeoMapCache.FILE_EXT);
+          } catch (IOException ioe) {
+            logger.warn("Cannot write area map cache " + file + ": " + ioe.getMessage());
+          }
+        }
+        return map;
+      }
+    });
   }
 
   public static ViewConfig load(String location) throws Exception {
@@ -306,8 +508,24 @@ public class ViewConfig {
   enum DataLoaders {
     GRAPHML {
       @Override
-      public Object load(ViewConfig config) throws IOException {
-        final Graph graph = StaxGraphMLReader.readFirstGraph(
+      public Object load(final ViewConfig config) throws IOException {
+        StaxGraphMLReader reader = new StaxGraphMLReader();
+        reader.setRecordFilters(recordFilters(config));
+        reader.setProjectEdgeAttrs(true);
+        reader.setWeightAttrs(
+            new Function<Iterable<String>, Iterable<String>>() {
+              public Iterable<String> apply(final Iterable<String> edgeAttrs) {
+                try {
+                  return weightAttrs(config, new LazyGet<Iterable<String>>() {
+                    @Override
+                    public Iterable<String> get() { return edgeAttrs; }
+                  }, true);
+                } catch (IOException ioe) {
+                  throw new IllegalArgumentException(ioe);
+                }
+              }
+            });
+        final Graph graph = reader.readFirstFromLocation(
             config.relativeFileLocation(config.require(PROP_DATA_GRAPHML_SRC)));
 
         LazyGet<Iterable<String>> getFlowAttrs = new LazyGet<Iterable<String>>() {
@@ -315,18 +533,13 @@ public class ViewConfig {
           public Iterable<String> get() { return FlowMapGraph.listFlowAttrs(graph); }
         };
 
-        Iterable<String> attrs = weightAttrs(config, getFlowAttrs, true);
-
-        FlowMapGraphBuilder.filterNodes(graph, config.getString(PROP_DATA_SELECT_NODES));
-        FlowMapGraphBuilder.filterEdges(graph, config.getString(PROP_DATA_SELECT_FLOWS));
-        FlowMapGraphBuilder.filterEdgesWithWeightAttrForAll(
-            graph, config.getString(PROP_DATA_SELECT_FLOWS_FORALL), attrs);
-        FlowMapGraphBuilder.filterEdgesWithWeightAttrExists(
-            graph, config.getString(PROP_DATA_SELECT_FLOWS_EXISTS), attrs);
-
-
         return new FlowMapGraph(graph, createFlowMapAttrSpec(config, false, true, getFlowAttrs));
       }
+
+      @Override
+      public List<String> sourceLocations(ViewConfig config) {
+        return Arrays.asList(config.relativeFileLocation(config.require(PROP_DATA_GRAPHML_SRC)));
+      }
     },
     CSV {
       @Override
@@ -349,6 +562,15 @@ public class ViewConfig {
 
     public abstract Object load(ViewConfig config) throws IOException;
 
+    /**
+     * @return The locations of the files the data is loaded from
+     */
+    public List<String> sourceLocations(ViewConfig config) {
+      return Arrays.asList(
+          config.relativeFileLocation(config.require(PROP_DATA_CSV_NODES_SRC)),
+          config.relativeFileLocation(config.require(PROP_DATA_CSV_FLOWS_SRC)));
+    }
+
 
     public static Object loadCsv(ViewConfig config, boolean aggregated) throws IOException {
       final char csvSeparator = config.getStringOrElse(PROP_DATA_CSV_SEPARATOR, ",").charAt(0);
@@ -357,12 +579,11 @@ public class ViewConfig {
       final String nodesSrc = config.relativeFileLocation(config.require(PROP_DATA_CSV_NODES_SRC));
       final String flowsSrc = config.relativeFileLocation(config.require(PROP_DATA_CSV_FLOWS_SRC));
 
+      RecordFilters filters = recordFilters(config);
       FlowMapGraphBuilder builder;
 
       if (aggregated) {
-        builder = CsvFlowMapGraphReader.readFlowMapGraph(
-            nodesSrc,
-            flowsSrc,
+        CsvFlowMapGraphReader reader = new CsvFlowMapGraphReader(
             createFlowMapAttrSpec(
                 config, true, aggregated,
                 new LazyGet<Iterable<String>>() {
@@ -374,49 +595,53 @@ public class ViewConfig {
                   }
                 }
             ),
+            nodesSrc, flowsSrc,
             csvSeparator, csvCharset);
+
+        // the flow columns which are not needed by the view aren't parsed
+        filters.applyTo(reader.getBuilder()).withEdgeAttrsProjection();
+        builder = reader.read();
       } else {
 
         final String weightAttrsAttr = config.require(PROP_DATA_ATTRS_FLOW_WEIGHT_ATTRS_ATTR);
 
-        builder = CsvDisaggregatedFlowMapGraphReader.readFlowMapGraph(
-            nodesSrc,
+        // the flows are read only once: either when the weight attrs are discovered
+        // or (if they are listed in the config) when the graph is built
+        final CsvDisaggregatedFlowMapGraphReader reader = new CsvDisaggregatedFlowMapGraphReader(
             flowsSrc,
+            config.getString(PROP_DATA_ATTRS_FLOW_ORIGIN, true),
+            config.getString(PROP_DATA_ATTRS_FLOW_DEST, true),
+            weightAttrsAttr, csvSeparator, csvCharset);
+
+        builder = reader.read(
+            nodesSrc,
             createFlowMapAttrSpec(
                 config, true, aggregated,
                 new LazyGet<Iterable<String>>() {
                   @Override
                   public Iterable<String> get() throws IOException {
-                    return CsvDisaggregatedFlowMapGraphReader.readAttrNames(
-                        flowsSrc, weightAttrsAttr,
-                        csvSeparator, csvCharset);
+                    return reader.readWeightAttrs();
                   }
                 }
             ),
-            weightAttrsAttr, csvSeparator, csvCharset);
-      }
-
-      String nodeFilter = config.getString(PROP_DATA_SELECT_NODES);
-      String edgeFilter = config.getString(PROP_DATA_SELECT_FLOWS);
-      String edgeFilterExists = config.getString(PROP_DATA_SELECT_FLOWS_EXISTS);
-      String edgeFilterForAll = config.getString(PROP_DATA_SELECT_FLOWS_FORALL);
-
-      if (!Strings.isNullOrEmpty(nodeFilter)) {
-        builder.withNodeFilter(nodeFilter);
-      }
-      if (!Strings.isNullOrEmpty(edgeFilter)) {
-        builder.withEdgeFilter(edgeFilter);
-      }
-      if (!Strings.isNullOrEmpty(edgeFilterExists)) {
-        builder.withEdgeWeightAttrExistsFilter(edgeFilterExists);
-      }
-      if (!Strings.isNullOrEmpty(edgeFilterForAll)) {
-        builder.withEdgeWeightAttrForAllFilter(edgeFilterForAll);
+            filters);
       }
 
       return builder.build();
     }
 
+    /**
+     * The filters are passed to the readers so that the records which don't satisfy
+     * them are dropped while loading.
+     */
+    private static RecordFilters recordFilters(ViewConfig config) {
+      return new RecordFilters(
+          config.getString(PROP_DATA_SELECT_NODES),
+          config.getString(PROP_DATA_SELECT_FLOWS),
+          config.getString(PROP_DATA_SELECT_FLOWS_EXISTS),
+          config.getString(PROP_DATA_SELECT_FLOWS_FORALL));
+    }
+
     private static FlowMapAttrSpec createFlowMapAttrSpec(ViewConfig config,
         boolean requireNodeIdAttrs, boolean aggregated,
         LazyGet<Iterable<String>> getFlowAttrs) throws IOException {
@@ -451,6 +676,10 @@ public class ViewConfig {
         }
       } else {
         config.require(PROP_DATA_ATTRS_FLOW_WEIGHT_ATTRS_ATTR);
+        String list = config.getString(PROP_DATA_ATTRS_FLOW_WEIGHT_LIST);
+        if (list != null) {
+          return Lists.<String>newArrayList(new CSVParser().parseLine(list));
+        }
         return getFlowAttrs.get();
       }
     }
@@ -478,7 +707,8 @@ public class ViewConfig {
         return new FlowMapSmallMultipleView(
             VisualFlowMapModel.createFor((FlowMapGraph)data, config),
             areaMap, mapProjection(config), colorSchemeFor(config),
-            config.getIntOrElse(FlowMapSmallMultipleView.VIEWCONF_NUM_OF_COLUMNS, 7)
+            config.getIntOrElse(FlowMapSmallMultipleView.VIEWCONF_NUM_OF_COLUMNS, 7),
+            config.getBoolOrElse(FlowMapSmallMultipleView.VIEWCONF_OFFSCREEN_PANELS, false)
         );
       }
     }
@@ -510,19 +740,61 @@ public class ViewConfig {
       public GeoMap load(ViewConfig config) throws IOException {
         return GeoMap.load(config.relativeFileLocation(config.require(PROP_MAP_XML_SRC)));
       }
+
+      @Override
+      public List<String> sourceLocations(ViewConfig config) {
+        return Arrays.asList(config.relativeFileLocation(config.require(PROP_MAP_XML_SRC)));
+      }
     },
     SHAPEFILE {
       @Override
       public GeoMap load(ViewConfig config) throws IOException {
-        return GeoMap.asAreaMap(ShapefileReader.loadShapefile(
+        return ShapefileReader.readMap(
             config.relativeFileLocation(config.require(PROP_MAP_SHAPEFILE_SRC)),
             config.getStringOrElse(PROP_MAP_SHAPEFILE_DBF_AREAIDFIELD, config.getString(PROP_MAP_SHAPEFILE_DBF_AREAIDFIELD_)),
-            config.getString(PROP_MAP_SHAPEFILE_DBF_SELECT_SHAPES_WHERE)));
+            config.getString(PROP_MAP_SHAPEFILE_DBF_SELECT_SHAPES_WHERE),
+            selectBoundingBox(config));
+      }
+
+      /**
+       * @return The bounding box (x,y,width,height) the shapes must intersect with or null
+       */
+      private Rectangle2D selectBoundingBox(ViewConfig config) {
+        String bbs = config.getString(PROP_MAP_SHAPEFILE_SELECT_BOUNDING_BOX);
+        if (bbs == null) {
+          return null;
+        }
+        String[] parts = bbs.split(",");
+        if (parts.length != 4) {
+          throw new IllegalArgumentException(
+              "Bounding box must specify four floating point values separated by commas");
+        }
+        return new Rectangle2D.Double(
+            Double.parseDouble(parts[0].trim()),
+            Double.parseDouble(parts[1].trim()),
+            Double.parseDouble(parts[2].trim()),
+            Double.parseDouble(parts[3].trim()));
+      }
+
+      @Override
+      public List<String> sourceLocations(ViewConfig config) {
+        String shp = config.relativeFileLocation(config.require(PROP_MAP_SHAPEFILE_SRC));
+        List<String> locations = Lists.newArrayList(shp);
+        String dbf = ShapefileReader.dbfLocation(shp);
+        if (new File(dbf).isFile()) {
+          locations.add(dbf);
+        }
+        return locations;
       }
     }
     ;
 
     public abstract GeoMap load(ViewConfig config) throws IOException;
+
+    /**
+     * @return The locations of the files the map is loaded from
+     */
+    public abstract List<String> sourceLocations(ViewConfig config);
   }
 
 }
@@ -18,7 +18,6 @@
 
 package jflowmap.data;
 
-import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -26,11 +25,16 @@ import java.io.LineNumberReader;
 import java.util.List;
 
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 import jflowmap.models.map.MapArea;
 import jflowmap.models.map.GeoMap;
 import jflowmap.models.map.Polygon;
+
+import org.apache.log4j.Logger;
+
 import prefuse.util.io.IOLib;
 
 import com.google.common.collect.Lists;
@@ -40,6 +44,8 @@ import com.google.common.collect.Lists;
  */
 public class XmlAreaMapModelReader2 {
 
+  private static Logger logger = Logger.getLogger(XmlAreaMapModelReader2.class);
+
   private static String charset = "utf-8";
 
   private XmlAreaMapModelReader2() {
@@ -61,8 +67,11 @@ public class XmlAreaMapModelReader2 {
       lineNumberReader = new LineNumberReader(new InputStreamReader(is, charset));
       in = inputFactory.createXMLStreamReader(lineNumberReader);
 
+      long start = System.currentTimeMillis();
       List<MapArea> areas = Lists.newArrayList();
       List<Polygon> polygons = Lists.newArrayList();
+      CoordinatesScanner scanner = new CoordinatesScanner();
+      long numPoints = 0;
 
       String areaId = null;
 
@@ -80,21 +89,9 @@ public class XmlAreaMapModelReader2 {
               polygons.clear();
 
             } else if (tag.equals("poly")) {
-              String coordsStr = in.getElementText();
-              String[] coords = coordsStr.split("\\s*,\\s*");
-              Point2D[] points = new Point2D[coords.length / 2];
-              double x = Double.NaN, y;  // lat, lon
-              int coordCnt = 0;
-              for (String point : coords) {
-                if (coordCnt % 2 == 0) {
-                  x = Double.parseDouble(point);
-                } else {
-                  y = Double.parseDouble(point);
-                  points[coordCnt / 2] = new Point2D.Double(y, x);
-                }
-                coordCnt++;
-              }
-              polygons.add(new Polygon(points));
+              Polygon poly = readPolygon(in, scanner);
+              numPoints += poly.getNumPoints();
+              polygons.add(poly);
             }
             break;
 
@@ -110,6 +107,10 @@ public class XmlAreaMapModelReader2 {
         }
       }
 
+      long time = Math.max(1, System.currentTimeMillis() - start);
+      logger.info("Read " + areas.size() + " areas with " + numPoints + " points from '" + name +
+          "' in " + time + "ms (" + (numPoints * 1000 / time) + " points/s)");
+
       return new GeoMap(name, areas);
     } catch (Exception e) {
       throw new IOException("Cannot load '" + name + "': " + e.getMessage() +
@@ -120,4 +121,35 @@ public class XmlAreaMapModelReader2 {
 
   }
 
+  /**
+   * The coordinates (lat, lon, lat, lon, ...) are scanned right from the
+   * text buffers of the parser without creating strings.
+   */
+  private static Polygon readPolygon(XMLStreamReader in, CoordinatesScanner scanner)
+      throws XMLStreamException {
+    scanner.reset();
+    OUTER: while (true) {
+      switch (in.next()) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          scanner.scan(in.getTextCharacters(), in.getTextStart(), in.getTextLength());
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          break OUTER;
+        case XMLStreamConstants.START_ELEMENT:
+          throw new XMLStreamException("Unexpected element in poly: " + in.getLocalName());
+        case XMLStreamConstants.END_DOCUMENT:
+          throw new XMLStreamException("Unexpected end of document in poly");
+      }
+    }
+    int numPoints = scanner.finish() / 2;
+    double[] coords = new double[numPoints * 2];
+    for (int i = 0; i < numPoints; i++) {
+      coords[i * 2] = scanner.get(i * 2 + 1);  // lon
+      coords[i * 2 + 1] = scanner.get(i * 2);  // lat
+    }
+    return new Polygon(coords, null);
+  }
+
 }
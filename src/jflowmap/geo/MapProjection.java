@@ -9,4 +9,13 @@ public interface MapProjection {
 
   Point2D project(double lon, double lat);
 
+  /**
+   * Projects packed coordinates without creating a point per coordinate pair.
+   *
+   * @param lonLat Packed coordinates: lon0, lat0, lon1, lat1, ...
+   * @param xy Receives the packed projected coordinates (can be the same array)
+   * @param numPoints The number of coordinate pairs to project
+   */
+  void projectAll(double[] lonLat, double[] xy, int numPoints);
+
 }
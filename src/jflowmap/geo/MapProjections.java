@@ -32,15 +32,20 @@ public enum MapProjections implements MapProjection {
 
   NONE {
     @Override
-    public Point2D project(double lon, double lat) {
-      return new Point2D.Double(lon, lat);
+    public void projectAll(double[] lonLat, double[] xy, int numPoints) {
+      if (lonLat != xy) {
+        System.arraycopy(lonLat, 0, xy, 0, numPoints * 2);
+      }
     }
   },
 
   FLIPY {
     @Override
-    public Point2D project(double lon, double lat) {
-      return new Point2D.Double(lon, -lat);
+    public void projectAll(double[] lonLat, double[] xy, int numPoints) {
+      for (int i = 0, n = numPoints * 2; i < n; i += 2) {
+        xy[i] = lonLat[i];
+        xy[i + 1] = -lonLat[i + 1];
+      }
     }
   },
 
@@ -50,13 +55,15 @@ public enum MapProjections implements MapProjection {
     private final static boolean INVERT_Y = true;
 
     @Override
-    public Point2D project(double lon, double lat) {
-      return new Point2D.Double(
-          SCALE * lon / 180,
-          SCALE * (INVERT_Y ? -1 : 1) * (lat > 85 ?
+    public void projectAll(double[] lonLat, double[] xy, int numPoints) {
+      for (int i = 0, n = numPoints * 2; i < n; i += 2) {
+        double lon = lonLat[i], lat = lonLat[i + 1];
+        xy[i] = SCALE * lon / 180;
+        xy[i + 1] = SCALE * (INVERT_Y ? -1 : 1) * (lat > 85 ?
               1 : (lat < -85 ?
                   -1 : Math.log(Math.tan(Math.PI / 4 + radians(lat) / 2)) / Math.PI)
-              ));
+              );
+      }
     }
 
   },
@@ -65,30 +72,32 @@ public enum MapProjections implements MapProjection {
     private final double phi1 = Math.acos(2/Math.PI);
     private final double cos_phi1 = Math.cos(phi1);
 
-    public Point2D project(double lat, double lon) {
-      double lplam = radians(lat);
-      double lpphi = radians(lon);
-
-      double c = 0.5 * lplam;
-      double cos_lpphi = Math.cos(lpphi);
-      double alpha = Math.acos(cos_lpphi * Math.cos(c));
-
-      double x, y;
-
-      if (alpha != 0) {
-        double sinc_alpha = sinc(alpha);
-        x = 2.0 * cos_lpphi * Math.sin(c) / sinc_alpha;
-        y = Math.sin(lpphi) / sinc_alpha;
-      } else {
-        x = y = 0.0;
+    @Override
+    public void projectAll(double[] lonLat, double[] xy, int numPoints) {
+      for (int i = 0, n = numPoints * 2; i < n; i += 2) {
+        double lplam = radians(lonLat[i]);
+        double lpphi = radians(lonLat[i + 1]);
+
+        double c = 0.5 * lplam;
+        double cos_lpphi = Math.cos(lpphi);
+        double alpha = Math.acos(cos_lpphi * Math.cos(c));
+
+        double x, y;
+
+        if (alpha != 0) {
+          double sinc_alpha = sinc(alpha);
+          x = 2.0 * cos_lpphi * Math.sin(c) / sinc_alpha;
+          y = Math.sin(lpphi) / sinc_alpha;
+        } else {
+          x = y = 0.0;
+        }
+
+        x = (x + lplam * cos_phi1) * 0.5;
+        y = (y + lpphi) * 0.5;
+
+        xy[i] = x;
+        xy[i + 1] = -y;
       }
-
-      x = (x + lplam * cos_phi1) * 0.5;
-      y = (y + lpphi) * 0.5;
-
-      y = -y;
-
-      return new Point2D.Double(x, y);
     }
 
     private double sinc(double x) { return Math.sin(x)/x; }
@@ -98,6 +107,12 @@ public enum MapProjections implements MapProjection {
   ;
 
 
+  public Point2D project(double lon, double lat) {
+    double[] xy = new double[] { lon, lat };
+    projectAll(xy, xy, 1);
+    return new Point2D.Double(xy[0], xy[1]);
+  }
+
   private static double radians(double degrees) {
     return degrees * Math.PI / 180;
   }
@@ -0,0 +1,205 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.geom;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable R-tree of the bounding boxes of items, which are identified by their
+ * indices. The tree is bulk-loaded with the Sort-Tile-Recursive algorithm and
+ * kept in flat arrays: the item boxes in tile order come first, followed by the
+ * boxes of each upper level of the tree. A query visits O(log n + k) nodes,
+ * where k is the number of items found.
+ *
+ * @author Ilya Boyandin
+ */
+public class PackedRTree {
+
+  public interface ItemVisitor {
+    void visit(int item);
+  }
+
+  private static final int NODE_SIZE = 16;
+
+  private final int numItems;
+  private final int[] items;          // item indices in tile order
+  private final double[] boxes;       // minX, minY, maxX, maxY of all the entries of all levels
+  private final int[] levelStarts;    // index of the first entry of each level + the total
+
+  /**
+   * @param bounds The bounding boxes of the items (null boxes are never found)
+   */
+  public PackedRTree(Rectangle2D[] bounds) {
+    this.numItems = bounds.length;
+
+    final double[] itemBoxes = new double[numItems * 4];
+    for (int i = 0; i < numItems; i++) {
+      Rectangle2D b = bounds[i];
+      if (b == null) {
+        Arrays.fill(itemBoxes, i * 4, i * 4 + 4, Double.NaN);
+      } else {
+        itemBoxes[i * 4] = b.getMinX();
+        itemBoxes[i * 4 + 1] = b.getMinY();
+        itemBoxes[i * 4 + 2] = b.getMaxX();
+        itemBoxes[i * 4 + 3] = b.getMaxY();
+      }
+    }
+
+    // count the levels
+    int numEntries = numItems, numLevels = 1;
+    for (int n = numItems; n > 1; numLevels++) {
+      n = (n + NODE_SIZE - 1) / NODE_SIZE;
+      numEntries += n;
+    }
+    this.levelStarts = new int[numLevels + 1];
+    this.boxes = new double[numEntries * 4];
+    this.items = sortTiles(itemBoxes);
+
+    for (int i = 0; i < numItems; i++) {
+      System.arraycopy(itemBoxes, items[i] * 4, boxes, i * 4, 4);
+    }
+    levelStarts[0] = 0;
+    levelStarts[1] = numItems;
+    for (int level = 1; level < numLevels; level++) {
+      int childStart = levelStarts[level - 1], childEnd = levelStarts[level];
+      int pos = childEnd;
+      for (int first = childStart; first < childEnd; first += NODE_SIZE, pos++) {
+        double minX = Double.NaN, minY = Double.NaN, maxX = Double.NaN, maxY = Double.NaN;
+        for (int c = first, last = Math.min(first + NODE_SIZE, childEnd); c < last; c++) {
+          double cMinX = boxes[c * 4];
+          if (Double.isNaN(cMinX)) {
+            continue;
+          }
+          if (Double.isNaN(minX)) {
+            minX = cMinX; minY = boxes[c * 4 + 1];
+            maxX = boxes[c * 4 + 2]; maxY = boxes[c * 4 + 3];
+          } else {
+            minX = Math.min(minX, cMinX);
+            minY = Math.min(minY, boxes[c * 4 + 1]);
+            maxX = Math.max(maxX, boxes[c * 4 + 2]);
+            maxY = Math.max(maxY, boxes[c * 4 + 3]);
+          }
+        }
+        boxes[pos * 4] = minX;
+        boxes[pos * 4 + 1] = minY;
+        boxes[pos * 4 + 2] = maxX;
+        boxes[pos * 4 + 3] = maxY;
+      }
+      levelStarts[level + 1] = pos;
+    }
+  }
+
+  /**
+   * Sorts the items by the x of their centers, cuts them into vertical slices
+   * and sorts each slice by the y of the centers, so that the consecutive groups
+   * of NODE_SIZE items are compact tiles.
+   */
+  private int[] sortTiles(double[] itemBoxes) {
+    Integer[] order = new Integer[numItems];
+    for (int i = 0; i < numItems; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new CenterComparator(itemBoxes, 0));
+
+    int numLeaves = (numItems + NODE_SIZE - 1) / NODE_SIZE;
+    int numSlices = (int)Math.ceil(Math.sqrt(numLeaves));
+    int sliceSize = numSlices * NODE_SIZE;
+    Comparator<Integer> byY = new CenterComparator(itemBoxes, 1);
+    for (int start = 0; start < numItems; start += sliceSize) {
+      Arrays.sort(order, start, Math.min(start + sliceSize, numItems), byY);
+    }
+
+    int[] sorted = new int[numItems];
+    for (int i = 0; i < numItems; i++) {
+      sorted[i] = order[i];
+    }
+    return sorted;
+  }
+
+  private static class CenterComparator implements Comparator<Integer> {
+    private final double[] itemBoxes;
+    private final int axis;
+
+    CenterComparator(double[] itemBoxes, int axis) {
+      this.itemBoxes = itemBoxes;
+      this.axis = axis;
+    }
+
+    @Override
+    public int compare(Integer i1, Integer i2) {
+      // NaN boxes are sorted to the end
+      return Double.compare(center(i1), center(i2));
+    }
+
+    private double center(int i) {
+      return itemBoxes[i * 4 + axis] + itemBoxes[i * 4 + 2 + axis];
+    }
+  }
+
+  public int size() {
+    return numItems;
+  }
+
+  /**
+   * Visits the items which bounding boxes intersect with the given rectangle
+   * (touching counts as intersecting).
+   */
+  public void query(Rectangle2D rect, ItemVisitor visitor) {
+    query(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY(), visitor);
+  }
+
+  public void query(double minX, double minY, double maxX, double maxY, ItemVisitor visitor) {
+    if (numItems == 0) {
+      return;
+    }
+    int numLevels = levelStarts.length - 1;
+    // (level, entry) pairs; at most NODE_SIZE children are pushed per level
+    int[] stack = new int[numLevels * NODE_SIZE * 2 + 2];
+    int top = 0;
+    stack[top++] = numLevels - 1;
+    stack[top++] = levelStarts[numLevels - 1];
+    while (top > 0) {
+      int entry = stack[--top];
+      int level = stack[--top];
+      if (!intersects(entry, minX, minY, maxX, maxY)) {
+        continue;
+      }
+      if (level == 0) {
+        visitor.visit(items[entry]);
+      } else {
+        int first = levelStarts[level - 1] + (entry - levelStarts[level]) * NODE_SIZE;
+        int last = Math.min(first + NODE_SIZE, levelStarts[level]);
+        for (int c = last - 1; c >= first; c--) {
+          stack[top++] = level - 1;
+          stack[top++] = c;
+        }
+      }
+    }
+  }
+
+  private boolean intersects(int entry, double minX, double minY, double maxX, double maxY) {
+    int i = entry * 4;
+    // comparisons with NaN are false, so empty entries never intersect
+    return boxes[i] <= maxX  &&  boxes[i + 2] >= minX  &&
+           boxes[i + 1] <= maxY  &&  boxes[i + 3] >= minY;
+  }
+
+}
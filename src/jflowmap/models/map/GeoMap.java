@@ -41,10 +41,30 @@ public class GeoMap {
 
   private final String name;
   private final List<MapArea> areas;
+  private boolean junctionsMarked;
 
   public GeoMap(String name, List<MapArea> areas) {
     this.name = name;
     this.areas = ImmutableList.copyOf(areas);
+    for (MapArea area : this.areas) {
+      area.setMap(this);
+    }
+  }
+
+  /**
+   * Finds the points of the areas which the simplification must keep. As it takes
+   * a while for large maps, it's only done when a simplified outline is first requested.
+   */
+  synchronized void markJunctions() {
+    if (!junctionsMarked) {
+      long start = System.currentTimeMillis();
+      PolygonSimplifier.markJunctions(areas);
+      junctionsMarked = true;
+      if (logger.isDebugEnabled()) {
+        logger.debug("Junctions of " + areas.size() + " areas found in " +
+            (System.currentTimeMillis() - start) + "ms");
+      }
+    }
   }
 
   public String getName() {
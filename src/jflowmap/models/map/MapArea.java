@@ -20,9 +20,10 @@ package jflowmap.models.map;
 
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Path2D;
-import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 
 import jflowmap.geo.MapProjection;
 
@@ -30,6 +31,7 @@ import org.apache.log4j.Logger;
 
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.vividsolutions.jts.geom.Geometry;
 
 /**
@@ -43,6 +45,12 @@ public class MapArea {
   private final String id;
   private final String name;
   private final Polygon[] polygons;
+  /** The projected geometries by projection, usually only one */
+  private final Map<MapProjection, Projected> projections = Maps.newHashMapWithExpectedSize(1);
+  /** Per polygon, the points shared with other areas which the simplification must keep */
+  private BitSet[] fixedPoints;
+  /** The map whose areas share the borders with this one */
+  private volatile GeoMap map;
 
   public MapArea(String id, String name, Iterable<Polygon> polygons) {
     this(id, name, Iterables.toArray(polygons, Polygon.class), false);
@@ -81,35 +89,153 @@ public class MapArea {
     return true;
   }
 
+  /**
+   * @return The projected outline of the area. The geometry is projected once
+   *         per projection and shared by all the callers (e.g. the small multiples
+   *         showing the same map), so the returned path must not be modified.
+   */
   public Path2D asPath(MapProjection proj) {
-    GeneralPath path = new GeneralPath();
-    for (Polygon poly : polygons) {
-      Point2D[] points = poly.getPoints();
-      Point2D startP = proj.project(points[0].getX(), points[0].getY());
-      path.moveTo(startP.getX(), startP.getY());
-      for (int i = 1; i < points.length; i++) {
-        Point2D p = proj.project(points[i].getX(), points[i].getY());
-        path.lineTo(p.getX(), p.getY());
+    return projected(proj).path;
+  }
+
+  /**
+   * @param tolerance The maximum distance (in projected units) by which the
+   *        simplified outline can deviate from the original one
+   * @return The projected outline simplified so that the borders shared with the
+   *         other areas of the map stay shared. The simplification levels are
+   *         computed once for tolerances rounded down to powers of two and are
+   *         shared like the full path, so the returned path must not be modified.
+   */
+  public Path2D asPath(MapProjection proj, double tolerance) {
+    if (!(tolerance > 0)) {
+      return asPath(proj);
+    }
+    GeoMap m = map;
+    if (m != null) {
+      m.markJunctions();  // not holding the lock, as it sets the fixed points of all the areas
+    }
+    int level = Math.getExponent(tolerance);
+    synchronized (projections) {
+      Projected p = projected(proj);
+      if (level <= p.fullDetailLevel) {
+        return p.path;
+      }
+      Path2D path = p.levels.get(level);
+      if (path == null) {
+        path = simplify(proj, Math.scalb(1.0, level));
+        if (path == null) {  // nothing could be removed, neither at the finer levels
+          p.fullDetailLevel = level;
+          return p.path;
+        }
+        p.levels.put(level, path);
       }
+      return path;
     }
-    return path;
   }
 
   public Rectangle2D asBoundingBox(MapProjection proj) {
+    Rectangle2D bb = projected(proj).boundingBox;
+    return (bb != null ? (Rectangle2D)bb.clone() : null);
+  }
+
+  /**
+   * @return The simplified path or null if all the points must be kept
+   */
+  private Path2D simplify(MapProjection proj, double tolerance) {
+    GeneralPath path = new GeneralPath(Path2D.WIND_EVEN_ODD);
+    int numPoints = 0, numKept = 0;
+    double[] xy = null;
+    for (int p = 0; p < polygons.length; p++) {
+      Polygon poly = polygons[p];
+      numPoints += poly.getNumPoints();
+      if (xy == null  ||  xy.length < poly.getNumPoints() * 2) {
+        xy = new double[poly.getNumPoints() * 2];
+      }
+      poly.projectAll(proj, xy);
+      BitSet fixed = (fixedPoints != null ? fixedPoints[p] : null);
+      for (int ring = 0, numRings = poly.getNumRings(); ring < numRings; ring++) {
+        numKept += PolygonSimplifier.appendRing(
+            xy, poly.getRingStart(ring), poly.getRingEnd(ring), fixed, tolerance, path);
+      }
+    }
+    return (numKept < numPoints ? path : null);
+  }
+
+  void setMap(GeoMap map) {
+    this.map = map;
+  }
+
+  /**
+   * Marks the points shared with the other areas of the map which the
+   * simplification must keep.
+   */
+  void setFixedPoints(BitSet[] fixedPoints) {
+    synchronized (projections) {
+      this.fixedPoints = fixedPoints;
+      for (Projected p : projections.values()) {
+        p.levels.clear();
+        p.fullDetailLevel = Integer.MIN_VALUE;
+      }
+    }
+  }
+
+  private Projected projected(MapProjection proj) {
+    synchronized (projections) {
+      Projected p = projections.get(proj);
+      if (p == null) {
+        p = project(proj);
+        projections.put(proj, p);
+      }
+      return p;
+    }
+  }
+
+  private Projected project(MapProjection proj) {
+    // even-odd, so that the holes stay unfilled whatever their orientation is
+    GeneralPath path = new GeneralPath(Path2D.WIND_EVEN_ODD);
     Rectangle2D.Double bb = null;
+    double[] xy = null;
     for (Polygon poly : polygons) {
-      for (Point2D point : poly.getPoints()) {
-        Point2D p = proj.project(point.getX(), point.getY());
+      int numPoints = poly.getNumPoints();
+      if (xy == null  ||  xy.length < numPoints * 2) {
+        xy = new double[numPoints * 2];
+      }
+      poly.projectAll(proj, xy);
+      for (int ring = 0, numRings = poly.getNumRings(); ring < numRings; ring++) {
+        int start = poly.getRingStart(ring), end = poly.getRingEnd(ring);
+        if (start == end) {
+          continue;
+        }
+        path.moveTo(xy[start * 2], xy[start * 2 + 1]);
+        for (int i = start + 1; i < end; i++) {
+          path.lineTo(xy[i * 2], xy[i * 2 + 1]);
+        }
+      }
+      // the holes are inside of the exterior ring
+      for (int i = 0, end = poly.getRingEnd(0); i < end; i++) {
+        double x = xy[i * 2], y = xy[i * 2 + 1];
         if (bb == null) {
-          bb = new Rectangle2D.Double(p.getX(), p.getY(), 0, 0);
+          bb = new Rectangle2D.Double(x, y, 0, 0);
         } else {
-          if (!bb.contains(p)) {
-            bb.add(p);
-          }
+          bb.add(x, y);
         }
       }
     }
-    return bb;
+    return new Projected(path, bb);
+  }
+
+  private static class Projected {
+    final Path2D path;
+    final Rectangle2D boundingBox;
+    /** Simplified paths by the binary exponents of their tolerances */
+    final Map<Integer, Path2D> levels = Maps.newHashMap();
+    /** The finest level is the full path for this and lower levels */
+    int fullDetailLevel = Integer.MIN_VALUE;
+
+    Projected(Path2D path, Rectangle2D boundingBox) {
+      this.path = path;
+      this.boundingBox = boundingBox;
+    }
   }
 
   public static MapArea fromGeometry(String id, String name, Geometry g) {
@@ -19,49 +19,175 @@
 package jflowmap.models.map;
 
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.util.Arrays;
 
+import jflowmap.geo.MapProjection;
+
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 
 /**
+ * The points of the polygon are kept packed in one array of coordinates
+ * (x0, y0, x1, y1, ...), so that large maps don't need an object per point.
+ * The exterior ring comes first and is followed by the interior rings (holes),
+ * if there are any; the rings are delimited by the indices of their first points.
+ *
  * @author Ilya Boyandin
  *     Date: 25-Sep-2009
  */
 public class Polygon {
 
-  private final Point2D[] exteriorPoints;
+  private static final int[] SINGLE_RING = new int[] { 0 };
+
+  private final double[] coords;
+  private final int[] ringStarts;
+  private final Rectangle2D bounds;
 
   public Polygon(Point2D[] points) {
-    this.exteriorPoints = points.clone();
+    this(coords(points), null);
+  }
+
+  /**
+   * @param coords Packed coordinates of the points: x0, y0, x1, y1, ...
+   *        The array is not copied and must not be modified afterwards.
+   * @param bounds Bounding box of the points or null if it must be computed
+   */
+  public Polygon(double[] coords, Rectangle2D bounds) {
+    this(coords, null, bounds);
+  }
+
+  /**
+   * @param coords Packed coordinates of the points of all the rings.
+   *        The array is not copied and must not be modified afterwards.
+   * @param ringStarts Indices of the first points of the rings: 0 for the exterior ring
+   *        followed by the starts of the holes. Null if the polygon has no holes.
+   * @param bounds Bounding box of the points or null if it must be computed
+   */
+  public Polygon(double[] coords, int[] ringStarts, Rectangle2D bounds) {
+    if (coords.length % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of coordinates: " + coords.length);
+    }
+    if (ringStarts != null) {
+      if (ringStarts.length == 0  ||  ringStarts[0] != 0) {
+        throw new IllegalArgumentException("The exterior ring must start at 0");
+      }
+      for (int i = 1; i < ringStarts.length; i++) {
+        if (ringStarts[i] < ringStarts[i - 1]  ||  ringStarts[i] > coords.length / 2) {
+          throw new IllegalArgumentException("Invalid ring start: " + ringStarts[i]);
+        }
+      }
+    }
+    this.coords = coords;
+    this.ringStarts = (ringStarts == null  ||  ringStarts.length == 1 ? SINGLE_RING : ringStarts.clone());
+    this.bounds = (bounds != null ? (Rectangle2D)bounds.clone() : bounds(coords));
   }
 
   public boolean isEmpty() {
-    return exteriorPoints.length == 0;
+    return coords.length == 0;
+  }
+
+  /**
+   * @return The number of points in all the rings
+   */
+  public int getNumPoints() {
+    return coords.length / 2;
+  }
+
+  /**
+   * @return The number of rings including the exterior one
+   */
+  public int getNumRings() {
+    return ringStarts.length;
+  }
+
+  public int getRingStart(int ring) {
+    return ringStarts[ring];
+  }
+
+  /**
+   * @return The index after the last point of the ring
+   */
+  public int getRingEnd(int ring) {
+    return (ring + 1 < ringStarts.length ? ringStarts[ring + 1] : getNumPoints());
+  }
+
+  public double getX(int i) {
+    return coords[i * 2];
+  }
+
+  public double getY(int i) {
+    return coords[i * 2 + 1];
+  }
+
+  /**
+   * Projects the points of all the rings into the packed array.
+   */
+  public void projectAll(MapProjection proj, double[] xy) {
+    proj.projectAll(coords, xy, getNumPoints());
   }
 
   public Point2D[] getPoints() {
-    return exteriorPoints.clone();
+    Point2D[] points = new Point2D[getNumPoints()];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = new Point2D.Double(getX(i), getY(i));
+    }
+    return points;
+  }
+
+  /**
+   * @return The bounding box of the points (null if the polygon is empty)
+   */
+  public Rectangle2D getBounds() {
+    return (bounds != null ? (Rectangle2D)bounds.clone() : null);
   }
 
   public static Polygon convert(com.vividsolutions.jts.geom.Polygon poly) {
-    // TODO: load interior points as well
-    return new Polygon(points(poly.getExteriorRing()));
+    int numHoles = poly.getNumInteriorRing();
+    int[] ringStarts = new int[numHoles + 1];
+    double[] coords = new double[poly.getNumPoints() * 2];
+    int numPoints = addCoords(poly.getExteriorRing(), coords, 0);
+    for (int i = 0; i < numHoles; i++) {
+      ringStarts[i + 1] = numPoints;
+      numPoints = addCoords(poly.getInteriorRingN(i), coords, numPoints);
+    }
+    return new Polygon(coords, ringStarts, null);
   }
 
-  private static Point2D[] points(LineString exterior) {
-    Coordinate[] coords = exterior.getCoordinates();
-    Point2D[] points = new Point2D[coords.length];
-    for (int i = 0; i < coords.length; i++) {
-      Coordinate c = coords[i];
-      points[i] = new Point2D.Double(c.x, c.y);
+  private static int addCoords(LineString ring, double[] coords, int numPoints) {
+    for (Coordinate c : ring.getCoordinates()) {
+      coords[numPoints * 2] = c.x;
+      coords[numPoints * 2 + 1] = c.y;
+      numPoints++;
     }
-    return points;
+    return numPoints;
+  }
+
+  private static double[] coords(Point2D[] points) {
+    double[] coords = new double[points.length * 2];
+    for (int i = 0; i < points.length; i++) {
+      coords[i * 2] = points[i].getX();
+      coords[i * 2 + 1] = points[i].getY();
+    }
+    return coords;
+  }
+
+  private static Rectangle2D bounds(double[] coords) {
+    if (coords.length == 0) {
+      return null;
+    }
+    double minX = coords[0], minY = coords[1], maxX = minX, maxY = minY;
+    for (int i = 2; i < coords.length; i += 2) {
+      double x = coords[i], y = coords[i + 1];
+      if (x < minX) minX = x; else if (x > maxX) maxX = x;
+      if (y < minY) minY = y; else if (y > maxY) maxY = y;
+    }
+    return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
   }
 
   @Override
   public String toString() {
-    return "Polygon [points=" + Arrays.toString(exteriorPoints) + "]";
+    return "Polygon [rings=" + getNumRings() + ", points=" + Arrays.toString(getPoints()) + "]";
   }
 
 }
@@ -0,0 +1,208 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.models.map;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Simplifies the rings of the map areas with the Douglas-Peucker algorithm so
+ * that the borders shared by the neighboring areas stay shared. The points at
+ * which the borders meet (junctions) and the first and last points of the rings
+ * are never removed, and the chain of points between two of them is simplified
+ * the same way in all the areas it belongs to, so the simplified areas don't
+ * have gaps or overlaps between them.
+ *
+ * @author Ilya Boyandin
+ */
+class PolygonSimplifier {
+
+  private PolygonSimplifier() {
+  }
+
+  /**
+   * Finds the points of the polygons of the areas which must be kept by the
+   * simplification and marks them in the areas.
+   */
+  static void markJunctions(Collection<MapArea> areas) {
+    Map<Point2D, Vertex> vertices = Maps.newHashMap();
+    for (MapArea area : areas) {
+      for (Polygon poly : area.getPolygons()) {
+        for (int ring = 0, numRings = poly.getNumRings(); ring < numRings; ring++) {
+          addRing(poly, poly.getRingStart(ring), poly.getRingEnd(ring), vertices);
+        }
+      }
+    }
+    for (MapArea area : areas) {
+      Polygon[] polygons = area.getPolygons();
+      BitSet[] fixed = new BitSet[polygons.length];
+      for (int p = 0; p < polygons.length; p++) {
+        Polygon poly = polygons[p];
+        fixed[p] = new BitSet(poly.getNumPoints());
+        for (int i = 0, numPoints = poly.getNumPoints(); i < numPoints; i++) {
+          if (vertex(poly, i, vertices).junction) {
+            fixed[p].set(i);
+          }
+        }
+      }
+      area.setFixedPoints(fixed);
+    }
+  }
+
+  private static void addRing(Polygon poly, int start, int end, Map<Point2D, Vertex> vertices) {
+    int n = end - start;
+    if (n == 0) {
+      return;
+    }
+    // the neighbors of the points are taken cyclically whether the ring is closed or not
+    if (n > 1  &&  poly.getX(start) == poly.getX(end - 1)  &&  poly.getY(start) == poly.getY(end - 1)) {
+      n--;
+    }
+    for (int i = 0; i < n; i++) {
+      Vertex v = vertex(poly, start + i, vertices);
+      v.addNeighbor(point(poly, start + (i + n - 1) % n));
+      v.addNeighbor(point(poly, start + (i + 1) % n));
+    }
+    // the ends of the rings are kept, so they must be kept in the neighbor areas too
+    vertex(poly, start, vertices).junction = true;
+    vertex(poly, end - 1, vertices).junction = true;
+  }
+
+  private static Vertex vertex(Polygon poly, int i, Map<Point2D, Vertex> vertices) {
+    Point2D p = point(poly, i);
+    Vertex v = vertices.get(p);
+    if (v == null) {
+      v = new Vertex();
+      vertices.put(p, v);
+    }
+    return v;
+  }
+
+  private static Point2D point(Polygon poly, int i) {
+    return new Point2D.Double(poly.getX(i), poly.getY(i));
+  }
+
+  /**
+   * Appends the simplified ring to the path.
+   *
+   * @param xy Packed projected coordinates of the points of the polygon
+   * @param fixed Points of the polygon which must be kept or null
+   * @return The number of the points kept
+   */
+  static int appendRing(double[] xy, int start, int end, BitSet fixed, double tolerance,
+      Path2D path) {
+    if (start == end) {
+      return 0;
+    }
+    BitSet keep = new BitSet(end);
+    keep.set(start);
+    keep.set(end - 1);
+    int[] stack = new int[Math.max(2, (end - start) * 2)];
+    double tolSq = tolerance * tolerance;
+    int first = start;
+    for (int i = start + 1; i < end; i++) {
+      if (i == end - 1  ||  (fixed != null  &&  fixed.get(i))) {
+        keep.set(i);
+        simplifyChain(xy, first, i, tolSq, keep, stack);
+        first = i;
+      }
+    }
+    int numKept = 0;
+    for (int i = keep.nextSetBit(start); i >= 0  &&  i < end; i = keep.nextSetBit(i + 1)) {
+      if (numKept++ == 0) {
+        path.moveTo(xy[i * 2], xy[i * 2 + 1]);
+      } else {
+        path.lineTo(xy[i * 2], xy[i * 2 + 1]);
+      }
+    }
+    return numKept;
+  }
+
+  private static void simplifyChain(double[] xy, int first, int last, double tolSq,
+      BitSet keep, int[] stack) {
+    int top = 0;
+    stack[top++] = first;
+    stack[top++] = last;
+    while (top > 0) {
+      int b = stack[--top], a = stack[--top];
+      double maxDistSq = -1;
+      int farthest = -1;
+      for (int i = a + 1; i < b; i++) {
+        double d = segDistSq(xy, i, a, b);
+        if (d > maxDistSq) {
+          maxDistSq = d;
+          farthest = i;
+        }
+      }
+      if (farthest >= 0  &&  maxDistSq > tolSq) {
+        keep.set(farthest);
+        stack[top++] = a;
+        stack[top++] = farthest;
+        stack[top++] = farthest;
+        stack[top++] = b;
+      }
+    }
+  }
+
+  /**
+   * @return The squared distance from the point i to the segment (a, b) which
+   *         can be a point (the first and the last points of a closed ring)
+   */
+  private static double segDistSq(double[] xy, int i, int a, int b) {
+    double ax = xy[a * 2], ay = xy[a * 2 + 1];
+    double dx = xy[b * 2] - ax, dy = xy[b * 2 + 1] - ay;
+    double px = xy[i * 2] - ax, py = xy[i * 2 + 1] - ay;
+    double lenSq = dx * dx + dy * dy;
+    if (lenSq > 0) {
+      double t = (px * dx + py * dy) / lenSq;
+      if (t > 1) {
+        t = 1;
+      } else if (t < 0) {
+        t = 0;
+      }
+      px -= t * dx;
+      py -= t * dy;
+    }
+    return px * px + py * py;
+  }
+
+  private static class Vertex {
+    Point2D neighbor1, neighbor2;
+    boolean junction;
+
+    void addNeighbor(Point2D p) {
+      if (junction) {
+        return;
+      }
+      if (neighbor1 == null  ||  neighbor1.equals(p)) {
+        neighbor1 = p;
+      } else if (neighbor2 == null  ||  neighbor2.equals(p)) {
+        neighbor2 = p;
+      } else {
+        junction = true;  // three different neighbors: the borders meet here
+      }
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class ConcurrencyUtils {
+
+  private ConcurrencyUtils() {
+  }
+
+  public static int numberOfWorkers() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Creates a fixed pool of daemon threads, so that a forgotten pool
+   * doesn't prevent the application from exiting.
+   */
+  public static ExecutorService newDaemonPool(int numThreads, final String namePrefix) {
+    return Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, namePrefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Runs the tasks on a temporary pool and waits for all of them to finish.
+   * A new pool is created for every call, so the method can safely be used
+   * from within tasks which are themselves run by this method.
+   *
+   * @return The results in the order of the tasks
+   */
+  public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, String namePrefix) {
+    if (tasks.size() == 1) {
+      try {
+        return Collections.singletonList(tasks.get(0).call());
+      } catch (Exception e) {
+        throw propagate(e);
+      }
+    }
+    ExecutorService pool = newDaemonPool(Math.min(tasks.size(), numberOfWorkers()), namePrefix);
+    try {
+      List<Future<T>> futures = Lists.newArrayListWithCapacity(tasks.size());
+      for (Callable<T> task : tasks) {
+        futures.add(pool.submit(task));
+      }
+      List<T> results = Lists.newArrayListWithCapacity(tasks.size());
+      for (Future<T> f : futures) {
+        results.add(getResult(f));
+      }
+      return results;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for the future and rethrows the cause of a failure unchecked.
+   */
+  public static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw propagate(e.getCause());
+    }
+  }
+
+  private static RuntimeException propagate(Throwable th) {
+    if (th instanceof RuntimeException) {
+      return (RuntimeException) th;
+    }
+    if (th instanceof Error) {
+      throw (Error) th;
+    }
+    return new RuntimeException(th);
+  }
+
+}
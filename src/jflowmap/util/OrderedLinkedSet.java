@@ -0,0 +1,241 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Linked list of distinct elements which supports O(1) lookups, removals,
+ * insertions next to an element and comparisons of the positions of two elements.
+ * The order is maintained by giving the entries increasing labels with gaps
+ * between them, so that new entries can be inserted without renumbering the others.
+ * The whole list is relabeled only when a gap is exhausted.
+ *
+ * @author Ilya Boyandin
+ */
+public class OrderedLinkedSet<T> implements Iterable<T> {
+
+  private static final long LABEL_GAP = 1L << 20;
+
+  private final Map<T, Entry<T>> entries = Maps.newHashMap();
+  private final Entry<T> head;   // sentinel: head.next is the first, head.prev the last entry
+  private List<T> listCache;
+  private int modCount;
+
+  public OrderedLinkedSet() {
+    head = new Entry<T>(null);
+    head.next = head.prev = head;
+  }
+
+  public OrderedLinkedSet(Iterable<T> items) {
+    this();
+    addAll(items);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  public boolean contains(T item) {
+    return entries.containsKey(item);
+  }
+
+  public T getFirst() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return head.next.item;
+  }
+
+  public void addAll(Iterable<T> items) {
+    insert(head, items);
+  }
+
+  /**
+   * Inserts the items right before the given element which must be in the set.
+   */
+  public void insertBefore(T anchor, Iterable<T> items) {
+    insert(requireEntry(anchor), items);
+  }
+
+  /**
+   * Replaces the element which must be in the set with the given items.
+   */
+  public void replace(T what, Iterable<T> replaceWith) {
+    Entry<T> e = requireEntry(what);
+    insert(e, replaceWith);
+    unlink(e);
+  }
+
+  public boolean remove(T item) {
+    Entry<T> e = entries.get(item);
+    if (e == null) {
+      return false;
+    }
+    unlink(e);
+    return true;
+  }
+
+  /**
+   * Compares the positions of two elements which must be in the set.
+   */
+  public int compareOrder(T item1, T item2) {
+    long l1 = requireEntry(item1).label;
+    long l2 = requireEntry(item2).label;
+    return (l1 < l2 ? -1 : (l1 == l2 ? 0 : 1));
+  }
+
+  /**
+   * @return An immutable copy of the elements in their order. The copy is cached
+   *         until the set is modified, so to iterate over a set which is modified
+   *         between the iterations use {@link #iterator()} which doesn't copy.
+   */
+  public List<T> asList() {
+    if (listCache == null) {
+      ImmutableList.Builder<T> b = ImmutableList.builder();
+      for (Entry<T> e = head.next; e != head; e = e.next) {
+        b.add(e.item);
+      }
+      listCache = b.build();
+    }
+    return listCache;
+  }
+
+  /**
+   * @return A read-only iterator over the linked entries (no copy is made).
+   *         It fails if the set is modified during the iteration.
+   */
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private final int expectedModCount = modCount;
+      private Entry<T> next = head.next;
+
+      @Override
+      public boolean hasNext() {
+        return next != head;
+      }
+
+      @Override
+      public T next() {
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (next == head) {
+          throw new NoSuchElementException();
+        }
+        T item = next.item;
+        next = next.next;
+        return item;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private Entry<T> requireEntry(T item) {
+    Entry<T> e = entries.get(item);
+    if (e == null) {
+      throw new IllegalArgumentException("Element not found: " + item);
+    }
+    return e;
+  }
+
+  /**
+   * Inserts the items before the given entry (or at the end if it's the head).
+   */
+  private void insert(Entry<T> before, Iterable<T> items) {
+    int count = 0;
+    for (T item : items) {
+      if (entries.containsKey(item)) {
+        throw new IllegalArgumentException("Element is already in the set: " + item);
+      }
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+    Entry<T> after = before.prev;
+    long lower = (after == head ? 0 : after.label);
+    long upper = (before == head ? lower + LABEL_GAP * (count + 1) : before.label);
+    if (upper < lower  ||  upper - lower <= count) {
+      relabel(Math.max(LABEL_GAP, count + 2));
+      lower = (after == head ? 0 : after.label);
+      upper = (before == head ? lower + LABEL_GAP * (count + 1) : before.label);
+    }
+    long step = (upper - lower) / (count + 1);
+    long label = lower;
+    for (T item : items) {
+      label += step;
+      Entry<T> e = new Entry<T>(item);
+      e.label = label;
+      e.prev = before.prev;
+      e.next = before;
+      before.prev.next = e;
+      before.prev = e;
+      entries.put(item, e);
+    }
+    modified();
+  }
+
+  private void unlink(Entry<T> e) {
+    e.prev.next = e.next;
+    e.next.prev = e.prev;
+    entries.remove(e.item);
+    modified();
+  }
+
+  private void modified() {
+    listCache = null;
+    modCount++;
+  }
+
+  private void relabel(long gap) {
+    long label = 0;
+    for (Entry<T> e = head.next; e != head; e = e.next) {
+      label += gap;
+      e.label = label;
+    }
+  }
+
+  private static class Entry<T> {
+    final T item;
+    long label;
+    Entry<T> prev, next;
+
+    Entry(T item) {
+      this.item = item;
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the underlying stream in a background thread ahead of the consumer,
+ * so that e.g. the decompression of a gzipped file runs concurrently with parsing.
+ * At most maxChunks chunks are buffered.
+ *
+ * @author Ilya Boyandin
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  private static final byte[] EOF = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks;
+  private final Thread thread;
+  private volatile IOException error;
+  private volatile boolean closed;
+  private byte[] chunk;
+  private int pos;
+
+  public ReadAheadInputStream(InputStream in, String threadName) {
+    this(in, 1 << 16, 16, threadName);
+  }
+
+  public ReadAheadInputStream(final InputStream in, final int chunkSize, int maxChunks,
+      String threadName) {
+    this.chunks = new ArrayBlockingQueue<byte[]>(maxChunks);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          try {
+            while (!closed) {
+              byte[] buf = new byte[chunkSize];
+              int n = readFully(in, buf);
+              if (n > 0) {
+                chunks.put(n < buf.length ? Arrays.copyOf(buf, n) : buf);
+              }
+              if (n < buf.length) {
+                break;
+              }
+            }
+          } finally {
+            in.close();
+          }
+        } catch (IOException ioe) {
+          error = ioe;
+        } catch (InterruptedException ie) {
+          return;  // the stream was closed
+        }
+        try {
+          chunks.put(EOF);
+        } catch (InterruptedException ie) {
+          // the stream was closed
+        }
+      }
+    }, threadName);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int total = 0;
+    while (total < buf.length) {
+      int n = in.read(buf, total, buf.length - total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * @return False if the end of the stream is reached
+   */
+  private boolean nextChunk() throws IOException {
+    while (chunk != EOF  &&  (chunk == null  ||  pos >= chunk.length)) {
+      try {
+        chunk = chunks.take();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      pos = 0;
+    }
+    if (chunk == EOF) {
+      if (error != null) {
+        throw error;
+      }
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk()) {
+      return -1;
+    }
+    return chunk[pos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int n = Math.min(len, chunk.length - pos);
+    System.arraycopy(chunk, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    thread.interrupt();
+  }
+
+}
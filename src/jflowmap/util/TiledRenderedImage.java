@@ -0,0 +1,222 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * Opaque image which is painted on demand in tiles which are strips of the full
+ * width and a fixed height. Only one tile is kept in memory, so an image of any
+ * height can be written by a consumer reading it from top to bottom (e.g. ImageIO's
+ * PNG writer which reads it row by row) with the memory needed for width x tileSize
+ * pixels.
+ * <p>
+ * Each tile is painted in one pass, so that the antialiasing doesn't differ
+ * along tile edges inside of the rows. A tile is painted again if it is
+ * requested after the following one.
+ *
+ * @author Ilya Boyandin
+ */
+public class TiledRenderedImage implements RenderedImage {
+
+  public interface TilePainter {
+    /**
+     * Paints a tile (a strip of the full width of the image). The graphics is
+     * clipped to the tile and translated so that the tile is at its position in the image.
+     */
+    void paintTile(Graphics2D g, Rectangle tile);
+  }
+
+  private final int width, height;
+  private final int tileSize;
+  private final TilePainter painter;
+  private final BufferedImage strip;
+  private int stripRow = -1;
+
+  public TiledRenderedImage(int width, int height, int tileSize, TilePainter painter) {
+    if (width <= 0  ||  height <= 0  ||  tileSize <= 0) {
+      throw new IllegalArgumentException(
+          "Bad size " + width + "x" + height + " or tile size " + tileSize);
+    }
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    this.painter = painter;
+    this.strip = new BufferedImage(width, Math.min(tileSize, height), BufferedImage.TYPE_INT_RGB);
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * @return The strip with the tile painted into it
+   */
+  private BufferedImage stripFor(int tileRow) {
+    if (stripRow != tileRow) {
+      int y = tileRow * tileSize;
+      Rectangle tile = new Rectangle(0, y, width, Math.min(tileSize, height - y));
+      Graphics2D g = strip.createGraphics();
+      try {
+        g.translate(0, -y);
+        g.clip(tile);
+        painter.paintTile(g, tile);
+      } finally {
+        g.dispose();
+      }
+      stripRow = tileRow;
+    }
+    return strip;
+  }
+
+  @Override
+  public WritableRaster copyData(WritableRaster raster) {
+    Rectangle bounds = (raster != null ? raster.getBounds() : new Rectangle(0, 0, width, height));
+    if (raster == null) {
+      raster = getColorModel().createCompatibleWritableRaster(width, height);
+    }
+    int firstRow = Math.max(0, bounds.y) / tileSize;
+    int lastRow = (Math.min(height, bounds.y + bounds.height) - 1) / tileSize;
+    for (int row = firstRow; row <= lastRow; row++) {
+      raster.setRect(stripRaster(row));  // copies the intersection
+    }
+    return raster;
+  }
+
+  /**
+   * @return The raster of the strip, positioned where the row of tiles is in the image
+   */
+  private Raster stripRaster(int tileRow) {
+    int y = tileRow * tileSize;
+    return stripFor(tileRow).getRaster().createChild(
+        0, 0, width, Math.min(tileSize, height - y), 0, y, null);
+  }
+
+  @Override
+  public Raster getData(Rectangle rect) {
+    return copyData(getColorModel().createCompatibleWritableRaster(rect.width, rect.height)
+        .createWritableTranslatedChild(rect.x, rect.y));
+  }
+
+  @Override
+  public Raster getData() {
+    return copyData(null);
+  }
+
+  @Override
+  public Raster getTile(int tileX, int tileY) {
+    int y = tileY * tileSize;
+    return getData(new Rectangle(0, y, width, Math.min(tileSize, height - y)));
+  }
+
+  @Override
+  public Vector<RenderedImage> getSources() {
+    return null;
+  }
+
+  @Override
+  public Object getProperty(String name) {
+    return Image.UndefinedProperty;
+  }
+
+  @Override
+  public String[] getPropertyNames() {
+    return null;
+  }
+
+  @Override
+  public ColorModel getColorModel() {
+    return strip.getColorModel();
+  }
+
+  @Override
+  public SampleModel getSampleModel() {
+    return strip.getSampleModel();
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public int getMinX() {
+    return 0;
+  }
+
+  @Override
+  public int getMinY() {
+    return 0;
+  }
+
+  @Override
+  public int getNumXTiles() {
+    return 1;
+  }
+
+  @Override
+  public int getNumYTiles() {
+    return (height + tileSize - 1) / tileSize;
+  }
+
+  @Override
+  public int getMinTileX() {
+    return 0;
+  }
+
+  @Override
+  public int getMinTileY() {
+    return 0;
+  }
+
+  @Override
+  public int getTileWidth() {
+    return width;
+  }
+
+  @Override
+  public int getTileHeight() {
+    return strip.getHeight();
+  }
+
+  @Override
+  public int getTileGridXOffset() {
+    return 0;
+  }
+
+  @Override
+  public int getTileGridYOffset() {
+    return 0;
+  }
+
+}
@@ -0,0 +1,442 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util.piccolo;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.RectangularShape;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.List;
+
+import org.apache.batik.ext.awt.g2d.AbstractGraphics2D;
+import org.apache.batik.ext.awt.g2d.GraphicContext;
+
+import com.google.common.collect.Lists;
+
+import edu.umd.cs.piccolox.util.PFixedWidthStroke;
+
+/**
+ * Records the drawing operations made on its graphics, so that they can be
+ * replayed later in another thread. Piccolo keeps the state of the current
+ * paint in static fields, so the scene graph can only be painted by one thread
+ * at a time, but the recorded operations can be replayed concurrently: this is
+ * where the actual rasterization (antialiasing, gradients etc.) is done.
+ * <p>
+ * The shapes are copied when recorded, so the scene graph can be changed
+ * while the list is replayed. The semantic strokes (which depend on the scale
+ * of the current paint context) are resolved when recorded: Piccolo's only
+ * one is {@link PFixedWidthStroke}.
+ *
+ * @author Ilya Boyandin
+ */
+public class PDisplayList {
+
+  private static final BufferedImage SCRATCH_IMAGE = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+  private final List<Op> ops = Lists.newArrayList();
+  private int lastClipVersion;
+
+  public PDisplayList() {
+  }
+
+  /**
+   * @return A graphics recording into this list. It must be used by one thread
+   *         at a time.
+   */
+  public Graphics2D createGraphics() {
+    return new Recorder(this);
+  }
+
+  public int size() {
+    return ops.size();
+  }
+
+  /**
+   * Replays the recorded operations onto the graphics. The operations are
+   * transformed by and clipped to the current transform and clip of the graphics.
+   */
+  public void replay(Graphics2D g) {
+    AffineTransform baseTransform = g.getTransform();
+    Shape baseClip = g.getClip();
+    State current = null;
+    for (Op op : ops) {
+      if (op.state != current) {
+        current = op.state;
+        g.setTransform(baseTransform);
+        g.setClip(baseClip);
+        if (current.clip != null) {
+          g.clip(current.clip);
+        }
+        g.transform(current.transform);
+        g.setRenderingHints(current.hints);
+        g.setComposite(current.composite);
+        g.setPaint(current.paint);
+        g.setStroke(current.stroke);
+        g.setFont(current.font);
+        g.setBackground(current.background);
+      }
+      op.paint(g);
+    }
+    g.setTransform(baseTransform);
+    g.setClip(baseClip);
+  }
+
+  /**
+   * The graphics state shared by consecutive operations.
+   */
+  private static class State {
+    final AffineTransform transform;
+    /** In the device space of the recorder */
+    final Shape clip;
+    final int clipVersion;
+    final RenderingHints hints;
+    final Composite composite;
+    final Paint paint;
+    final Stroke stroke;
+    final Font font;
+    final Color background;
+
+    State(AffineTransform transform, Shape clip, int clipVersion, RenderingHints hints,
+        Composite composite, Paint paint, Stroke stroke, Font font, Color background) {
+      this.transform = transform;
+      this.clip = clip;
+      this.clipVersion = clipVersion;
+      this.hints = hints;
+      this.composite = composite;
+      this.paint = paint;
+      this.stroke = stroke;
+      this.font = font;
+      this.background = background;
+    }
+
+    boolean matches(AffineTransform transform, int clipVersion, RenderingHints hints,
+        Composite composite, Paint paint, Stroke stroke, Font font, Color background) {
+      return this.clipVersion == clipVersion  &&  this.paint == paint  &&  this.stroke == stroke  &&
+          this.composite == composite  &&  this.font == font  &&  this.background == background  &&
+          this.transform.equals(transform)  &&  this.hints.equals(hints);
+    }
+  }
+
+  private abstract static class Op {
+    final State state;
+
+    Op(State state) {
+      this.state = state;
+    }
+
+    abstract void paint(Graphics2D g);
+  }
+
+  private static class Recorder extends AbstractGraphics2D {
+
+    private final PDisplayList list;
+    private State last;
+    /** Changes whenever the clip is changed (the graphics context only has it in user space) */
+    private int clipVersion;
+    private Shape deviceClip;
+    /** The last resolved semantic stroke, so that the consecutive operations can share the state */
+    private PFixedWidthStroke lastFixedStroke;
+    private double lastScale;
+    private Stroke lastResolvedStroke;
+
+    Recorder(PDisplayList list) {
+      super(false);
+      this.list = list;
+      this.gc = new GraphicContext();
+    }
+
+    Recorder(Recorder toCopy) {
+      super(toCopy);
+      this.list = toCopy.list;
+      this.last = toCopy.last;
+      this.clipVersion = toCopy.clipVersion;
+      this.deviceClip = toCopy.deviceClip;
+    }
+
+    private void clipChanged() {
+      clipVersion = ++list.lastClipVersion;
+      Shape userClip = gc.getClip();
+      deviceClip = (userClip != null ? gc.getTransform().createTransformedShape(userClip) : null);
+    }
+
+    @Override
+    public void clip(Shape s) {
+      super.clip(s);
+      clipChanged();
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+      super.setClip(clip);
+      clipChanged();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+      super.clipRect(x, y, width, height);
+      clipChanged();
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+      super.setClip(x, y, width, height);
+      clipChanged();
+    }
+
+    private State state() {
+      return state(gc.getStroke());
+    }
+
+    private State state(Stroke stroke) {
+      AffineTransform transform = gc.getTransform();
+      RenderingHints hints = gc.getRenderingHints();
+      Composite composite = gc.getComposite();
+      Paint paint = gc.getPaint();
+      Font font = gc.getFont();
+      Color background = gc.getBackground();
+      if (last == null  ||
+          !last.matches(transform, clipVersion, hints, composite, paint, stroke, font, background)) {
+        last = new State(transform, deviceClip, clipVersion, (RenderingHints)hints.clone(),
+            composite, paint, stroke, font, background);
+      }
+      return last;
+    }
+
+    private void add(Op op) {
+      list.ops.add(op);
+    }
+
+    @Override
+    public void fill(final Shape s) {
+      final Shape shape = copy(s);
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.fill(shape);
+        }
+      });
+    }
+
+    @Override
+    public void draw(final Shape s) {
+      Stroke stroke = gc.getStroke();
+      if (stroke instanceof PFixedWidthStroke) {
+        double scale = scaleOf(gc.getTransform());
+        if (stroke != lastFixedStroke  ||  scale != lastScale) {
+          lastFixedStroke = (PFixedWidthStroke)stroke;
+          lastScale = scale;
+          lastResolvedStroke = resolve(lastFixedStroke, scale);
+        }
+        stroke = lastResolvedStroke;
+      }
+      final Shape shape = copy(s);
+      add(new Op(state(stroke)) {
+        @Override
+        void paint(Graphics2D g) {
+          g.draw(shape);
+        }
+      });
+    }
+
+    @Override
+    public void drawString(final String str, final float x, final float y) {
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.drawString(str, x, y);
+        }
+      });
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, final float x, final float y) {
+      final TextLayout layout = new TextLayout(iterator, getFontRenderContext());
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          layout.draw(g, x, y);
+        }
+      });
+    }
+
+    @Override
+    public void drawGlyphVector(final GlyphVector gv, final float x, final float y) {
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.drawGlyphVector(gv, x, y);
+        }
+      });
+    }
+
+    @Override
+    public boolean drawImage(final Image img, final int x, final int y, ImageObserver observer) {
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.drawImage(img, x, y, null);
+        }
+      });
+      return true;
+    }
+
+    @Override
+    public boolean drawImage(final Image img, final int x, final int y, final int width,
+        final int height, ImageObserver observer) {
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.drawImage(img, x, y, width, height, null);
+        }
+      });
+      return true;
+    }
+
+    @Override
+    public void drawRenderedImage(final RenderedImage img, AffineTransform xform) {
+      final AffineTransform at = new AffineTransform(xform);
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.drawRenderedImage(img, at);
+        }
+      });
+    }
+
+    @Override
+    public void drawRenderableImage(final RenderableImage img, AffineTransform xform) {
+      final AffineTransform at = new AffineTransform(xform);
+      add(new Op(state()) {
+        @Override
+        void paint(Graphics2D g) {
+          g.drawRenderableImage(img, at);
+        }
+      });
+    }
+
+    @Override
+    public Graphics create() {
+      return new Recorder(this);
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+      return scratchGraphics().getDeviceConfiguration();
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+      return scratchGraphics().getFontMetrics(f);
+    }
+
+    @Override
+    public void setXORMode(Color c) {
+      throw new UnsupportedOperationException("XOR mode can't be recorded");
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+      throw new UnsupportedOperationException("Copying of areas can't be recorded");
+    }
+
+    private static Graphics2D scratchGraphics() {
+      return SCRATCH_IMAGE.createGraphics();
+    }
+  }
+
+  private static Shape copy(Shape shape) {
+    if (shape == null) {
+      return null;
+    }
+    if (shape instanceof RectangularShape) {
+      return (Shape)((RectangularShape)shape).clone();
+    }
+    if (shape instanceof Path2D.Float) {
+      return (Shape)((Path2D.Float)shape).clone();
+    }
+    if (shape instanceof Path2D.Double) {
+      return (Shape)((Path2D.Double)shape).clone();
+    }
+    return new Path2D.Double(shape);
+  }
+
+  /**
+   * @return The scale of the transform as PPaintContext computes it
+   */
+  private static double scaleOf(AffineTransform at) {
+    return Math.hypot(at.getScaleX(), at.getShearY());
+  }
+
+  /**
+   * @return The stroke to which the fixed width stroke is resolved at the scale
+   */
+  private static Stroke resolve(PFixedWidthStroke stroke, double scale) {
+    float s = (float)scale;
+    float[] dash = stroke.getDashArray();
+    if (dash != null) {
+      for (int i = 0; i < dash.length; i++) {
+        dash[i] /= s;
+      }
+    }
+    return new ResolvedStroke(new BasicStroke(stroke.getLineWidth() / s, stroke.getEndCap(),
+        stroke.getLineJoin(), Math.max(1, stroke.getMiterLimit() / s), dash,
+        stroke.getDashPhase() / s));
+  }
+
+  /**
+   * Not a BasicStroke, so that like the semantic stroke it is filled as an
+   * outline and isn't normalized differently when replayed.
+   */
+  private static class ResolvedStroke implements Stroke {
+    private final BasicStroke stroke;
+
+    ResolvedStroke(BasicStroke stroke) {
+      this.stroke = stroke;
+    }
+
+    @Override
+    public Shape createStrokedShape(Shape shape) {
+      return stroke.createStrokedShape(shape);
+    }
+  }
+
+}
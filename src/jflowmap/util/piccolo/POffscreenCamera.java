@@ -0,0 +1,232 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util.piccolo;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+
+import javax.swing.SwingUtilities;
+
+import jflowmap.util.ConcurrencyUtils;
+
+import org.apache.log4j.Logger;
+
+import edu.umd.cs.piccolo.PCamera;
+import edu.umd.cs.piccolo.PLayer;
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.util.PBounds;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Camera which is painted from an offscreen image, so that a number of them
+ * (e.g. the panels of small multiples) can be rendered in parallel and the
+ * cameras which haven't changed aren't rendered again.
+ * <p>
+ * When the camera or anything it views has changed, the next paint records
+ * the drawing operations into a {@link PDisplayList} (the scene graph can only
+ * be traversed on the event dispatch thread). The list is replayed into a new
+ * image on a worker pool, and the camera is repainted when the image is ready.
+ * In the meantime the last image is shown.
+ *
+ * @author Ilya Boyandin
+ */
+public class POffscreenCamera extends PCamera {
+
+  private static final long serialVersionUID = 1L;
+  private static Logger logger = Logger.getLogger(POffscreenCamera.class);
+
+  private static final ExecutorService renderers =
+    ConcurrencyUtils.newDaemonPool(ConcurrencyUtils.numberOfWorkers(), "cameraRenderer");
+
+  /** Incremented whenever something in the camera is repainted */
+  private int generation;
+  private int recordedGeneration = -1;
+  private AffineTransform recordedTransform;
+  /** The id of the last recording, the older ones aren't replayed */
+  private volatile int lastRecording;
+  private boolean recording;
+  private Rendering rendering;
+  private boolean cachingEnabled = true;
+
+  public POffscreenCamera() {
+  }
+
+  public boolean isCachingEnabled() {
+    return cachingEnabled;
+  }
+
+  public void setCachingEnabled(boolean enabled) {
+    if (cachingEnabled != enabled) {
+      cachingEnabled = enabled;
+      rendering = null;
+      recordedGeneration = -1;
+      repaint();
+    }
+  }
+
+  /**
+   * @return True if the image shown is rendered from the current state of the
+   *         camera (it might still be rendered for a different transform)
+   */
+  public boolean isImageUpToDate() {
+    return rendering != null  &&  rendering.id == lastRecording  &&
+        recordedGeneration == generation;
+  }
+
+  @Override
+  public void fullPaint(PPaintContext paintContext) {
+    Graphics2D g2 = paintContext.getGraphics();
+    if (!cachingEnabled  ||
+        g2.getRenderingHint(PTiledLayer.KEY_TILE_CACHE) == PTiledLayer.VALUE_TILE_CACHE_OFF) {
+      super.fullPaint(paintContext);
+      return;
+    }
+    if (!getVisible()  ||  !fullIntersects(paintContext.getLocalClip())) {
+      return;
+    }
+    AffineTransform transform = g2.getTransform();
+    if (recordedGeneration != generation  ||  !transform.equals(recordedTransform)) {
+      record(paintContext, transform);
+    }
+    if (rendering != null) {
+      rendering.paint(g2, transform);
+    }
+  }
+
+  @SuppressWarnings("deprecation")  // the fixed width strokes still use CURRENT_PAINT_CONTEXT
+  private void record(PPaintContext paintContext, AffineTransform transform) {
+    recordedGeneration = generation;
+    recordedTransform = transform;
+    final Rectangle bounds = transform.createTransformedShape(getFullBoundsReference()).getBounds();
+    if (bounds.isEmpty()) {
+      return;
+    }
+    final PDisplayList list = new PDisplayList();
+    Graphics2D g = list.createGraphics();
+    g.setRenderingHint(PTiledLayer.KEY_TILE_CACHE, PTiledLayer.VALUE_TILE_CACHE_OFF);
+    g.translate(-bounds.x, -bounds.y);
+    g.clip(bounds);  // the whole pixels, as the full bounds would cut the partially covered ones
+    g.transform(transform);
+    PPaintContext outerContext = PPaintContext.CURRENT_PAINT_CONTEXT;
+    recording = true;
+    try {
+      PPaintContext pc = new PPaintContext(g);  // becomes the CURRENT_PAINT_CONTEXT
+      pc.setRenderQuality(paintContext.getRenderQuality());
+      super.fullPaint(pc);
+    } finally {
+      recording = false;
+      PPaintContext.CURRENT_PAINT_CONTEXT = outerContext;
+      g.dispose();
+    }
+
+    final int id = ++lastRecording;
+    final AffineTransform recordedAt = new AffineTransform(transform);
+    renderers.submit(new Runnable() {
+      @Override
+      public void run() {
+        if (id != lastRecording) {
+          return;  // there is a newer recording already
+        }
+        try {
+          // not premultiplied: antialiased text is drawn with artifacts onto translucent _PRE
+          BufferedImage image = new BufferedImage(
+              bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+          Graphics2D ig = image.createGraphics();
+          try {
+            list.replay(ig);
+          } finally {
+            ig.dispose();
+          }
+          final Rendering r = new Rendering(id, image, bounds, recordedAt);
+          SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+              rendered(r);
+            }
+          });
+        } catch (RuntimeException re) {
+          logger.error("Camera rendering failed", re);
+        }
+      }
+    });
+  }
+
+  private void rendered(Rendering r) {
+    if (rendering == null  ||  r.id > rendering.id) {
+      rendering = r;
+      // not through repaint() which would invalidate the image
+      PNode parent = getParent();
+      if (parent != null) {
+        parent.repaintFrom(getFullBounds(), this);
+      }
+    }
+  }
+
+  @Override
+  public void repaintFrom(PBounds localBounds, PNode childOrThis) {
+    if (!recording) {  // nothing should change while painting
+      generation++;
+    }
+    super.repaintFrom(localBounds, childOrThis);
+  }
+
+  @Override
+  public void repaintFromLayer(PBounds viewBounds, PLayer repaintedLayer) {
+    if (!recording) {
+      generation++;
+    }
+    super.repaintFromLayer(viewBounds, repaintedLayer);
+  }
+
+  private static class Rendering {
+    final int id;
+    final BufferedImage image;
+    final Rectangle bounds;
+    final AffineTransform transform;
+
+    Rendering(int id, BufferedImage image, Rectangle bounds, AffineTransform transform) {
+      this.id = id;
+      this.image = image;
+      this.bounds = bounds;
+      this.transform = transform;
+    }
+
+    void paint(Graphics2D g2, AffineTransform current) {
+      AffineTransform saved = g2.getTransform();
+      try {
+        if (current.equals(transform)) {
+          g2.setTransform(new AffineTransform());  // pixel to pixel
+        } else {
+          // rendered for a different transform: scaled until the new image is ready
+          g2.transform(transform.createInverse());
+        }
+        g2.drawImage(image, bounds.x, bounds.y, null);
+      } catch (NoninvertibleTransformException e) {
+        // nothing to show
+      } finally {
+        g2.setTransform(saved);
+      }
+    }
+  }
+
+}
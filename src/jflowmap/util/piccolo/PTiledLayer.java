@@ -0,0 +1,349 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.util.piccolo;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import jflowmap.util.ConcurrencyUtils;
+
+import org.apache.log4j.Logger;
+
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.util.PBounds;
+import edu.umd.cs.piccolo.util.PDebug;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Paints its children from a cache of raster tiles instead of the vector data,
+ * so that panning and zooming cost depends on the screen size and not on the
+ * number of the painted nodes.
+ * <p>
+ * The tiles are rendered per zoom level: the scale of the paint context is
+ * rounded up to one of {@link #LEVELS_PER_OCTAVE} levels per power of two and
+ * the tiles of the level are scaled down to the actual scale when drawn. The
+ * missing tiles in view are rendered when they are painted, and the tiles
+ * around the view are rendered ahead in background. A tile is dropped
+ * when any child repaints a region intersecting it, so only the tiles affected
+ * by a change (highlighting, filtering, colors) are rendered again.
+ * <p>
+ * Piccolo keeps the state of the current paint in static fields (which are used
+ * e.g. by the fixed width strokes) and the scene graph can only be traversed on
+ * the event dispatch thread, so the tiles rendered ahead are recorded into
+ * {@link PDisplayList}s when painting and only the recordings are rasterized in
+ * background. The tiles of recordings made before the children changed are discarded.
+ *
+ * @author Ilya Boyandin
+ */
+public class PTiledLayer extends PNode {
+
+  private static final long serialVersionUID = 1L;
+  private static Logger logger = Logger.getLogger(PTiledLayer.class);
+
+  /**
+   * Rendering hint which makes the tiled layers paint the vector data
+   * (e.g. when exporting to SVG).
+   */
+  public static final RenderingHints.Key KEY_TILE_CACHE = new RenderingHints.Key(0x7e1ed) {
+    @Override
+    public boolean isCompatibleValue(Object val) {
+      return val == VALUE_TILE_CACHE_OFF;
+    }
+  };
+  public static final Object VALUE_TILE_CACHE_OFF = "tileCacheOff";
+
+  private static final int TILE_SIZE = 256;
+  private static final int LEVELS_PER_OCTAVE = 4;
+  private static final int MAX_CACHED_TILES = 384;  // 96MB shared by all layers
+  private static final int PREFETCH_MARGIN = 1;     // in tiles
+  private static final double INVALIDATION_PAD = 2; // in pixels
+
+  /** The tiles of all the layers in the LRU order */
+  private static final Map<TileKey, BufferedImage> tiles =
+    new LinkedHashMap<TileKey, BufferedImage>(MAX_CACHED_TILES, .75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+        return size() > MAX_CACHED_TILES;
+      }
+    };
+
+  private static final ExecutorService renderers =
+    ConcurrencyUtils.newDaemonPool(ConcurrencyUtils.numberOfWorkers(), "tileRenderer");
+
+  private final Set<TileKey> pending =
+    Collections.newSetFromMap(new ConcurrentHashMap<TileKey, Boolean>());
+  private volatile int generation;
+  private volatile boolean cachingEnabled = true;
+
+  public PTiledLayer() {
+  }
+
+  public boolean isCachingEnabled() {
+    return cachingEnabled;
+  }
+
+  /**
+   * Switches the cache off e.g. while the children are animated, which would
+   * invalidate all the tiles on every frame.
+   */
+  public void setCachingEnabled(boolean enabled) {
+    if (cachingEnabled != enabled) {
+      cachingEnabled = enabled;
+      if (!enabled) {
+        invalidateTiles(null);
+      }
+    }
+  }
+
+  @Override
+  public void fullPaint(PPaintContext paintContext) {
+    if (!cachingEnabled  ||
+        paintContext.getGraphics().getRenderingHint(KEY_TILE_CACHE) == VALUE_TILE_CACHE_OFF) {
+      super.fullPaint(paintContext);
+      return;
+    }
+    if (getVisible()  &&  fullIntersects(paintContext.getLocalClip())) {
+      paintContext.pushTransform(getTransformReference(false));
+      paintContext.pushTransparency(getTransparency());
+      paintTiles(paintContext);
+      paintContext.popTransparency(getTransparency());
+      paintContext.popTransform(getTransformReference(false));
+    }
+  }
+
+  private void paintTiles(PPaintContext paintContext) {
+    int level = (int)Math.ceil(log2(paintContext.getScale()) * LEVELS_PER_OCTAVE);
+    double tileWidth = TILE_SIZE / levelScale(level);
+    Rectangle2D clip = paintContext.getLocalClip().createIntersection(getFullBoundsReference());
+    if (clip.isEmpty()) {
+      return;
+    }
+    int minX = (int)Math.floor(clip.getMinX() / tileWidth);
+    int minY = (int)Math.floor(clip.getMinY() / tileWidth);
+    int maxX = (int)Math.floor(clip.getMaxX() / tileWidth);
+    int maxY = (int)Math.floor(clip.getMaxY() / tileWidth);
+
+    Graphics2D g2 = paintContext.getGraphics();
+    Object oldInterpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    int quality = paintContext.getRenderQuality();
+    AffineTransform at = new AffineTransform();
+    for (int y = minY; y <= maxY; y++) {
+      for (int x = minX; x <= maxX; x++) {
+        TileKey key = new TileKey(this, level, x, y);
+        BufferedImage image = getTile(key);
+        if (image == null) {
+          image = renderTile(key, quality);
+          putTile(key, image);
+        }
+        at.setToTranslation(x * tileWidth, y * tileWidth);
+        at.scale(tileWidth / TILE_SIZE, tileWidth / TILE_SIZE);
+        g2.drawImage(image, at, null);
+      }
+    }
+    if (oldInterpolation != null) {
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, oldInterpolation);
+    }
+    prefetch(level, minX - PREFETCH_MARGIN, minY - PREFETCH_MARGIN,
+        maxX + PREFETCH_MARGIN, maxY + PREFETCH_MARGIN, quality);
+  }
+
+  /**
+   * Records the missing tiles around the view and rasterizes the recordings in background.
+   */
+  private void prefetch(int level, int minX, int minY, int maxX, int maxY, final int quality) {
+    double tileWidth = TILE_SIZE / levelScale(level);
+    PBounds fb = getFullBoundsReference();
+    for (int y = minY; y <= maxY; y++) {
+      for (int x = minX; x <= maxX; x++) {
+        final TileKey key = new TileKey(this, level, x, y);
+        if (!fb.intersects(x * tileWidth, y * tileWidth, tileWidth, tileWidth)  ||
+            getTile(key) != null  ||  !pending.add(key)) {
+          continue;
+        }
+        final PDisplayList list = new PDisplayList();
+        Graphics2D g = list.createGraphics();
+        try {
+          paintTile(key, quality, g);
+        } finally {
+          g.dispose();
+        }
+        final int gen = generation;
+        renderers.submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (gen == generation  &&  cachingEnabled) {
+                BufferedImage image = newTileImage();
+                Graphics2D g2 = image.createGraphics();
+                try {
+                  list.replay(g2);
+                } finally {
+                  g2.dispose();
+                }
+                if (gen == generation) {
+                  putTile(key, image);
+                }
+              }
+            } catch (RuntimeException re) {
+              logger.error("Tile rendering failed", re);
+            } finally {
+              pending.remove(key);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  private BufferedImage renderTile(TileKey key, int quality) {
+    BufferedImage image = newTileImage();
+    Graphics2D g2 = image.createGraphics();
+    try {
+      paintTile(key, quality, g2);
+    } finally {
+      g2.dispose();
+    }
+    return image;
+  }
+
+  private static BufferedImage newTileImage() {
+    return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+  }
+
+  /**
+   * Paints the children clipped to the tile, so that the tile fills the graphics
+   * from (0, 0) to ({@link #TILE_SIZE}, {@link #TILE_SIZE}). Must be called on the EDT.
+   */
+  @SuppressWarnings("deprecation")  // the fixed width strokes still use CURRENT_PAINT_CONTEXT
+  private void paintTile(TileKey key, int quality, Graphics2D g2) {
+    double scale = levelScale(key.level);
+    double tileWidth = TILE_SIZE / scale;
+    PPaintContext outerContext = PPaintContext.CURRENT_PAINT_CONTEXT;
+    boolean processingOutput = PDebug.getProcessingOutput();
+    try {
+      g2.scale(scale, scale);
+      g2.translate(-key.x * tileWidth, -key.y * tileWidth);
+      g2.clip(new Rectangle2D.Double(key.x * tileWidth, key.y * tileWidth, tileWidth, tileWidth));
+      PPaintContext pc = new PPaintContext(g2);  // becomes the CURRENT_PAINT_CONTEXT
+      pc.setRenderQuality(quality);
+      if (!processingOutput) {
+        PDebug.startProcessingOutput();
+      }
+      for (int i = 0, n = getChildrenCount(); i < n; i++) {
+        getChild(i).fullPaint(pc);
+      }
+    } finally {
+      if (!processingOutput) {
+        PDebug.endProcessingOutput(g2);
+      }
+      PPaintContext.CURRENT_PAINT_CONTEXT = outerContext;
+    }
+  }
+
+  private static BufferedImage getTile(TileKey key) {
+    synchronized (tiles) {
+      return tiles.get(key);
+    }
+  }
+
+  private static void putTile(TileKey key, BufferedImage image) {
+    synchronized (tiles) {
+      tiles.put(key, image);
+    }
+  }
+
+  /**
+   * Drops the tiles of this layer which intersect with the bounds
+   * (all of them if the bounds are null).
+   */
+  public void invalidateTiles(Rectangle2D bounds) {
+    generation++;
+    synchronized (tiles) {
+      for (Iterator<TileKey> it = tiles.keySet().iterator(); it.hasNext(); ) {
+        TileKey key = it.next();
+        if (key.layer == this  &&  (bounds == null  ||  key.intersects(bounds))) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void repaintFrom(PBounds localBounds, PNode childOrThis) {
+    if (childOrThis != this) {
+      invalidateTiles(localBounds);
+    }
+    super.repaintFrom(localBounds, childOrThis);
+  }
+
+  private static double levelScale(int level) {
+    return Math.pow(2, (double)level / LEVELS_PER_OCTAVE);
+  }
+
+  private static double log2(double v) {
+    return Math.log(v) / Math.log(2);
+  }
+
+  private static class TileKey {
+    final PTiledLayer layer;
+    final int level, x, y;
+
+    TileKey(PTiledLayer layer, int level, int x, int y) {
+      this.layer = layer;
+      this.level = level;
+      this.x = x;
+      this.y = y;
+    }
+
+    boolean intersects(Rectangle2D bounds) {
+      double scale = levelScale(level);
+      double tileWidth = TILE_SIZE / scale;
+      double pad = INVALIDATION_PAD / scale;
+      return bounds.intersects(
+          x * tileWidth - pad, y * tileWidth - pad, tileWidth + pad * 2, tileWidth + pad * 2);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((System.identityHashCode(layer) * 31 + level) * 31 + x) * 31 + y;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof TileKey)) {
+        return false;
+      }
+      TileKey other = (TileKey)obj;
+      return layer == other.layer  &&  level == other.level  &&  x == other.x  &&  y == other.y;
+    }
+  }
+
+}
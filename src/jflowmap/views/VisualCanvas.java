@@ -20,11 +20,14 @@ package jflowmap.views;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.Insets;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
@@ -40,12 +43,15 @@ import javax.swing.AbstractAction;
 import javax.swing.KeyStroke;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 import jflowmap.IView;
 import jflowmap.JFlowMapApplet;
 import jflowmap.JFlowMapAppletFrame;
+import jflowmap.util.TiledRenderedImage;
 import jflowmap.util.piccolo.PBoxLayoutNode;
 import jflowmap.util.piccolo.PNodes;
+import jflowmap.util.piccolo.PTiledLayer;
 import jflowmap.util.piccolo.PanHandler;
 import jflowmap.util.piccolo.PiccoloUtils;
 import jflowmap.util.piccolo.ZoomHandler;
@@ -68,6 +74,9 @@ public class VisualCanvas extends PCanvas {
 
   private static final String ACTION_SVG_EXPORT = "svg-export";
 
+  /** Height of the strips in which the PNG images are exported */
+  public static final int PNG_EXPORT_TILE_SIZE = 512;
+
   private static Logger logger = Logger.getLogger(VisualCanvas.class);
 
   private static final Dimension MIN_SIZE = new Dimension(150, 100);
@@ -293,7 +302,35 @@ public class VisualCanvas extends PCanvas {
     }
   }
 
+  /**
+   * Unlike Component's, doesn't return null when the canvas isn't displayable
+   * (e.g. in the headless batch export), as the nodes use it for their offscreen
+   * images.
+   */
+  @Override
+  public Image createImage(int width, int height) {
+    Image image = super.createImage(width, height);
+    if (image == null) {
+      image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+    return image;
+  }
+
   public void paintToSvg(final Writer out) throws Exception {
+    SVGGraphics2D svgGen = paintToSvgGenerator();
+    try {
+      svgGen.stream(out, false);
+      out.flush();
+    } finally {
+      if (out != null) out.close();
+    }
+  }
+
+  /**
+   * @return The SVG generator into which the canvas is painted. It doesn't refer
+   *         to the scene graph, so it can be streamed in another thread.
+   */
+  public SVGGraphics2D paintToSvgGenerator() throws ParserConfigurationException {
     DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
     DocumentBuilder builder = factory.newDocumentBuilder();
 
@@ -303,22 +340,38 @@ public class VisualCanvas extends PCanvas {
     SVGGraphics2D svgGen = new SVGGraphics2D(ctx, false);
 
     ImageWriterRegistry.getInstance().register(new PNGImageWriter());
+    svgGen.setRenderingHint(PTiledLayer.KEY_TILE_CACHE, PTiledLayer.VALUE_TILE_CACHE_OFF);
     paintComponent(svgGen);
-
-    try {
-      svgGen.stream(out, false);
-      out.flush();
-    } finally {
-      if (out != null) out.close();
-    }
+    return svgGen;
   }
 
   public void paintToPng(OutputStream out) throws IOException {
-    BufferedImage image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-
-    Graphics2D g = (Graphics2D)image.getGraphics();
-    paintComponent(g);
+    paintToPng(out, getWidth(), getHeight());
+  }
 
+  /**
+   * Paints the canvas scaled to the given size (and centered if its proportions
+   * are different) into a PNG image. The image is painted and encoded in strips
+   * of the full width and PNG_EXPORT_TILE_SIZE height one at a time, so that
+   * the memory needed doesn't depend on the height of the image (e.g. for
+   * posters much larger than the screen).
+   */
+  public void paintToPng(OutputStream out, int width, int height) throws IOException {
+    final double scale = Math.min((double)width / getWidth(), (double)height / getHeight());
+    final double offsetX = (width - getWidth() * scale) / 2;
+    final double offsetY = (height - getHeight() * scale) / 2;
+    RenderedImage image = new TiledRenderedImage(width, height, PNG_EXPORT_TILE_SIZE,
+        new TiledRenderedImage.TilePainter() {
+          @Override
+          public void paintTile(Graphics2D g, Rectangle tile) {
+            g.setColor(getBackground());  // the margins
+            g.fill(tile);
+            g.setRenderingHint(PTiledLayer.KEY_TILE_CACHE, PTiledLayer.VALUE_TILE_CACHE_OFF);
+            g.translate(offsetX, offsetY);
+            g.scale(scale, scale);
+            paintComponent(g);
+          }
+        });
     try {
       ImageIO.write(image, "PNG", out);
     } finally {
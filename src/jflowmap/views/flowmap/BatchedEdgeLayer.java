@@ -0,0 +1,436 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.views.flowmap;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import jflowmap.geom.PackedRTree;
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.event.PBasicInputEventHandler;
+import edu.umd.cs.piccolo.event.PInputEvent;
+import edu.umd.cs.piccolo.nodes.PPath;
+import edu.umd.cs.piccolo.util.PBounds;
+import edu.umd.cs.piccolo.util.PPaintContext;
+import edu.umd.cs.piccolox.util.PFixedWidthStroke;
+
+/**
+ * Draws all the edges of a visual flow map in a single paint pass instead of
+ * having them as separate nodes of the scene graph, so that picking, bounds
+ * invalidation and the paint traversal don't depend on the number of edges.
+ * <p>
+ * The {@link VisualEdge}s are still created, but they are kept in an edge container
+ * which isn't attached to the scene. They hold the state of the edges (the paints,
+ * strokes and visibility and the order of the children of the container as the
+ * drawing order), which the layer copies into packed arrays when they change.
+ * Hit-testing is done by querying the spatial index of the edge extents.
+ * <p>
+ * The state is only copied from the edges on the EDT which owns the scene graph,
+ * and all access to the packed arrays is synchronized on the layer. When painted
+ * on another thread the layer draws the state copied at the last validation.
+ *
+ * @author Ilya Boyandin
+ */
+public class BatchedEdgeLayer extends PNode {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Max number of edges for which the repainted regions are tracked separately */
+  private static final int MAX_DIRTY_REGIONS = 64;
+
+  /** Distance from the cursor within which the edges are picked, in screen pixels */
+  private static final double PICK_TOLERANCE = 1.5;
+
+  private final VisualFlowMap visualFlowMap;
+  private final EdgeContainer container = new EdgeContainer();
+
+  private VisualEdge[] edges = new VisualEdge[0];
+  private PackedRTree index;
+  private double[] boxes = new double[0];       // minX, minY, maxX, maxY of the edge extents
+  private double[] lines = new double[0];       // x1, y1, x2, y2 of the straight edges
+  private Shape[] shapes = new Shape[0];        // paths of the other edges (null for straight ones)
+  private Paint[] fillPaints = new Paint[0];
+  private Paint[] strokePaints = new Paint[0];
+  private Stroke[] strokes = new Stroke[0];
+  private float[] strokeWidths = new float[0];  // in screen pixels
+  private final BitSet visible = new BitSet();
+  private final BitSet dirty = new BitSet();
+  private int numDirty;
+
+  private int[] order = new int[0];             // edge indices in the drawing order
+  private int[] ranks = new int[0];             // positions of the edges in the drawing order
+  private boolean orderChanged;
+
+  private VisualEdge hoveredEdge;
+  private final Line2D.Double line = new Line2D.Double();
+
+  public BatchedEdgeLayer(VisualFlowMap visualFlowMap) {
+    this.visualFlowMap = visualFlowMap;
+    addInputEventListener(new PBasicInputEventHandler() {
+      @Override
+      public void mouseEntered(PInputEvent event) {
+        updateHoveredEdge(event);
+      }
+
+      @Override
+      public void mouseMoved(PInputEvent event) {
+        updateHoveredEdge(event);
+      }
+
+      @Override
+      public void mouseExited(PInputEvent event) {
+        setHoveredEdge(null, null);
+      }
+    });
+  }
+
+  /**
+   * @return The node to which the visual edges must be added instead of the scene.
+   *         The order of its children is the drawing order of the edges.
+   */
+  PNode getEdgeContainer() {
+    return container;
+  }
+
+  /**
+   * Sets the edges to draw. Their indices in the visual flow map must be the
+   * positions in the list.
+   *
+   * @param extents The extents of the edges from which the index was built
+   */
+  synchronized void setEdges(List<VisualEdge> visualEdges, Rectangle2D[] extents, PackedRTree index) {
+    int n = visualEdges.size();
+    this.edges = visualEdges.toArray(new VisualEdge[n]);
+    this.index = index;
+    this.boxes = new double[n * 4];
+    this.lines = new double[n * 4];
+    this.shapes = new Shape[n];
+    this.fillPaints = new Paint[n];
+    this.strokePaints = new Paint[n];
+    this.strokes = new Stroke[n];
+    this.strokeWidths = new float[n];
+    this.hoveredEdge = null;
+
+    Rectangle2D bounds = null;
+    for (int i = 0; i < n; i++) {
+      VisualEdge ve = edges[i];
+      Rectangle2D b = extents[i];
+      boxes[i * 4] = b.getMinX();
+      boxes[i * 4 + 1] = b.getMinY();
+      boxes[i * 4 + 2] = b.getMaxX();
+      boxes[i * 4 + 3] = b.getMaxY();
+      if (bounds == null) {
+        bounds = (Rectangle2D)b.clone();
+      } else {
+        bounds.add(b);
+      }
+      PPath ppath = ve.getEdgePPath();
+      if (ve instanceof LineVisualEdge  &&  !ve.isSelfLoop()) {
+        lines[i * 4] = ve.getSourceX();
+        lines[i * 4 + 1] = ve.getSourceY();
+        lines[i * 4 + 2] = ve.getTargetX();
+        lines[i * 4 + 3] = ve.getTargetY();
+      } else if (ppath != null) {
+        // self-loop paths are updated in place when the width changes
+        shapes[i] = ppath.getPathReference();
+      }
+    }
+    visible.clear();
+    dirty.set(0, n);
+    numDirty = n;
+    orderChanged = true;
+
+    if (bounds == null) {
+      setBounds(0, 0, 0, 0);
+    } else {
+      setBounds(bounds);
+    }
+    invalidatePaint();
+  }
+
+  /**
+   * Must be called when the paint, stroke or visibility of the edge change.
+   */
+  synchronized void invalidateEdge(int i) {
+    if (i < 0  ||  i >= edges.length) {
+      return;
+    }
+    if (!dirty.get(i)) {
+      dirty.set(i);
+      numDirty++;
+    }
+    if (numDirty <= MAX_DIRTY_REGIONS) {
+      double pad = maxStrokePadding(visualFlowMap.getCamera().getViewScale());
+      repaintFrom(new PBounds(
+          boxes[i * 4] - pad, boxes[i * 4 + 1] - pad,
+          boxes[i * 4 + 2] - boxes[i * 4] + pad * 2,
+          boxes[i * 4 + 3] - boxes[i * 4 + 1] + pad * 2), this);
+    } else {
+      invalidatePaint();
+    }
+  }
+
+  private double maxStrokePadding(double scale) {
+    // the edge strokes have a fixed width in screen pixels
+    return (1 + visualFlowMap.getModel().getMaxEdgeWidth()) / 2 / scale;
+  }
+
+  /**
+   * Copies the drawing order and the state of the changed edges from the scene graph.
+   * Must be called holding the lock of the layer. Does nothing off the EDT.
+   */
+  private void validateEdges() {
+    if (!SwingUtilities.isEventDispatchThread()) {
+      return;
+    }
+    if (orderChanged) {
+      int n = edges.length;
+      if (order.length != n) {
+        order = new int[n];
+        ranks = new int[n];
+      }
+      int count = 0;
+      for (int c = 0, numChildren = container.getChildrenCount(); c < numChildren; c++) {
+        int i = ((VisualEdge)container.getChild(c)).getIndexInVisualFlowMap();
+        if (i >= 0  &&  i < n  &&  count < n) {
+          order[count] = i;
+          ranks[i] = count;
+          count++;
+        }
+      }
+      for (int k = count; k < n; k++) {
+        order[k] = -1;
+      }
+      orderChanged = false;
+    }
+    for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+      copyStyle(i);
+    }
+    dirty.clear();
+    numDirty = 0;
+  }
+
+  private void copyStyle(int i) {
+    VisualEdge ve = edges[i];
+    PPath ppath = ve.getEdgePPath();
+    if (ppath == null  ||  !ve.getVisible()) {
+      visible.clear(i);
+      return;
+    }
+    visible.set(i);
+    fillPaints[i] = ppath.getPaint();
+    strokePaints[i] = ppath.getStrokePaint();
+    Stroke stroke = ppath.getStroke();
+    strokes[i] = stroke;
+    if (stroke instanceof PFixedWidthStroke) {
+      strokeWidths[i] = ((PFixedWidthStroke)stroke).getLineWidth();
+    } else if (stroke instanceof BasicStroke) {
+      strokeWidths[i] = ((BasicStroke)stroke).getLineWidth();
+    } else {
+      strokeWidths[i] = 1;
+    }
+  }
+
+  /**
+   * Synchronized because the layer can be painted off the EDT (e.g. when a tile of a
+   * {@link jflowmap.util.piccolo.PTiledLayer} is rendered) while the edges change.
+   */
+  @Override
+  protected synchronized void paint(PPaintContext paintContext) {
+    validateEdges();
+    Graphics2D g2 = paintContext.getGraphics();
+    Rectangle2D clip = paintContext.getLocalClip();
+    double pad = maxStrokePadding(paintContext.getScale());
+    double minX = clip.getMinX() - pad, minY = clip.getMinY() - pad;
+    double maxX = clip.getMaxX() + pad, maxY = clip.getMaxY() + pad;
+    for (int k = 0; k < order.length; k++) {
+      int i = order[k];
+      if (i < 0  ||  !visible.get(i)) {
+        continue;
+      }
+      int b = i * 4;
+      if (boxes[b] > maxX  ||  boxes[b + 2] < minX  ||  boxes[b + 1] > maxY  ||  boxes[b + 3] < minY) {
+        continue;
+      }
+      Shape shape = shapeOf(i);
+      Paint fill = fillPaints[i];
+      if (fill != null) {
+        g2.setPaint(fill);
+        g2.fill(shape);
+      }
+      Stroke stroke = strokes[i];
+      Paint strokePaint = strokePaints[i];
+      if (stroke != null  &&  strokePaint != null) {
+        g2.setPaint(strokePaint);
+        g2.setStroke(stroke);
+        g2.draw(shape);
+      }
+    }
+  }
+
+  private Shape shapeOf(int i) {
+    Shape shape = shapes[i];
+    if (shape == null) {
+      int l = i * 4;
+      line.setLine(lines[l], lines[l + 1], lines[l + 2], lines[l + 3]);
+      shape = line;
+    }
+    return shape;
+  }
+
+  /**
+   * Used by piccolo for picking: the layer is only picked if there is an edge
+   * under the pick bounds, so that the nodes below it receive the events otherwise.
+   */
+  @Override
+  public boolean intersects(Rectangle2D localBounds) {
+    double scale = visualFlowMap.getCamera().getViewScale();
+    return findEdgeAt(localBounds.getCenterX(), localBounds.getCenterY(),
+        Math.max(localBounds.getWidth(), localBounds.getHeight()) / 2 + PICK_TOLERANCE / scale,
+        scale) != null;
+  }
+
+  /**
+   * @param tolerance Max distance from the point to the stroke of the edge in local coordinates
+   * @param scale The scale at which the edges are displayed (the stroke widths are in screen pixels)
+   * @return The topmost visible edge under the point or null if there is none
+   */
+  public synchronized VisualEdge findEdgeAt(final double x, final double y, final double tolerance,
+      final double scale) {
+    if (index == null) {
+      return null;
+    }
+    validateEdges();
+    double r = tolerance + maxStrokePadding(scale);
+    final int[] topmost = { -1 };
+    index.query(x - r, y - r, x + r, y + r, new PackedRTree.ItemVisitor() {
+      @Override
+      public void visit(int i) {
+        if (visible.get(i)  &&  (topmost[0] < 0  ||  ranks[i] > ranks[topmost[0]])  &&
+            isHit(i, x, y, tolerance, scale)) {
+          topmost[0] = i;
+        }
+      }
+    });
+    return (topmost[0] >= 0 ? edges[topmost[0]] : null);
+  }
+
+  private boolean isHit(int i, double x, double y, double tolerance, double scale) {
+    boolean stroked = (strokes[i] != null  &&  strokePaints[i] != null);
+    double halfWidth = (stroked ? strokeWidths[i] / 2 / scale : 0) + tolerance;
+    Shape shape = shapes[i];
+    if (shape == null) {
+      int l = i * 4;
+      return stroked  &&
+          Line2D.ptSegDistSq(lines[l], lines[l + 1], lines[l + 2], lines[l + 3], x, y) <=
+            halfWidth * halfWidth;
+    }
+    if (fillPaints[i] != null  &&
+        shape.intersects(x - tolerance, y - tolerance, tolerance * 2, tolerance * 2)) {
+      return true;
+    }
+    return stroked  &&  outlineDistSq(shape, x, y, halfWidth / 4) <= halfWidth * halfWidth;
+  }
+
+  /**
+   * @return The squared distance from the point to the flattened outline of the shape
+   */
+  private static double outlineDistSq(Shape shape, double x, double y, double flatness) {
+    double minDistSq = Double.POSITIVE_INFINITY;
+    double[] coords = new double[6];
+    double startX = 0, startY = 0, lastX = 0, lastY = 0;
+    for (PathIterator it = shape.getPathIterator(null, flatness); !it.isDone(); it.next()) {
+      switch (it.currentSegment(coords)) {
+      case PathIterator.SEG_MOVETO:
+        startX = lastX = coords[0];
+        startY = lastY = coords[1];
+        break;
+      case PathIterator.SEG_LINETO:
+        minDistSq = Math.min(minDistSq, Line2D.ptSegDistSq(lastX, lastY, coords[0], coords[1], x, y));
+        lastX = coords[0];
+        lastY = coords[1];
+        break;
+      case PathIterator.SEG_CLOSE:
+        minDistSq = Math.min(minDistSq, Line2D.ptSegDistSq(lastX, lastY, startX, startY, x, y));
+        lastX = startX;
+        lastY = startY;
+        break;
+      }
+    }
+    return minDistSq;
+  }
+
+  private void updateHoveredEdge(PInputEvent event) {
+    Point2D pos = event.getPositionRelativeTo(this);
+    double scale = event.getCamera().getViewScale();
+    setHoveredEdge(findEdgeAt(pos.getX(), pos.getY(), PICK_TOLERANCE / scale, scale),
+        event.getPosition());
+  }
+
+  private void setHoveredEdge(VisualEdge ve, Point2D pos) {
+    if (ve == hoveredEdge) {
+      return;
+    }
+    if (hoveredEdge != null) {
+      hoveredEdge.setHighlighted(false, false, false);
+      visualFlowMap.hideTooltip();
+    }
+    hoveredEdge = ve;
+    if (ve != null) {
+      ve.setHighlighted(true, false, false);
+      visualFlowMap.showTooltip(ve, pos);
+    }
+  }
+
+  /**
+   * Keeps the visual edges outside of the scene and tracks changes of their order.
+   */
+  private class EdgeContainer extends PNode {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void addChild(int index, PNode child) {
+      super.addChild(index, child);
+      synchronized (BatchedEdgeLayer.this) {
+        orderChanged = true;
+      }
+      BatchedEdgeLayer.this.invalidatePaint();
+    }
+
+    @Override
+    public PNode removeChild(int index) {
+      synchronized (BatchedEdgeLayer.this) {
+        orderChanged = true;
+      }
+      return super.removeChild(index);
+    }
+  }
+
+}
@@ -36,6 +36,7 @@ import jflowmap.util.Pair;
 import jflowmap.util.piccolo.PBoxLayoutNode;
 import jflowmap.util.piccolo.PButton;
 import jflowmap.util.piccolo.PNodes;
+import jflowmap.util.piccolo.POffscreenCamera;
 import jflowmap.util.piccolo.ZoomHandler;
 import jflowmap.views.ColorCodes;
 import jflowmap.views.IFlowMapColorScheme;
@@ -70,6 +71,8 @@ import edu.umd.cs.piccolox.util.PFixedWidthStroke;
 public class FlowMapSmallMultipleView extends AbstractCanvasView {
 
   public static final String VIEWCONF_NUM_OF_COLUMNS = "view.flowMapSmallMultiple.numberOfColumns";
+  /** Render the panels into offscreen images in parallel */
+  public static final String VIEWCONF_OFFSCREEN_PANELS = "view.flowMapSmallMultiple.offscreenPanels";
   public static Logger logger = Logger.getLogger(FlowMapSmallMultipleView.class);
 
   private List<VisualFlowMapLayer> layers;
@@ -78,6 +81,11 @@ public class FlowMapSmallMultipleView extends AbstractCanvasView {
 
   public FlowMapSmallMultipleView(VisualFlowMapModel model, final GeoMap areaMap, final MapProjections proj,
       final IFlowMapColorScheme cs, int numberOfColumns) {
+    this(model, areaMap, proj, cs, numberOfColumns, false);
+  }
+
+  public FlowMapSmallMultipleView(VisualFlowMapModel model, final GeoMap areaMap, final MapProjections proj,
+      final IFlowMapColorScheme cs, int numberOfColumns, boolean offscreenPanels) {
 
     this.model = model;
     this.numberOfColumns = numberOfColumns;
@@ -92,7 +100,7 @@ public class FlowMapSmallMultipleView extends AbstractCanvasView {
 
     layers = Lists.newArrayList();
     for (String attr : fmg.getEdgeWeightAttrs()) {
-      final PCamera camera = new PCamera();
+      final PCamera camera = (offscreenPanels ? new POffscreenCamera() : new PCamera());
       final VisualFlowMap vfm = new VisualFlowMap(this, model, true, proj, attr, cs) {
         @Override
         public PCamera getCamera() {
@@ -38,7 +38,6 @@ import edu.umd.cs.piccolo.event.PBasicInputEventHandler;
 import edu.umd.cs.piccolo.event.PInputEvent;
 import edu.umd.cs.piccolo.event.PInputEventListener;
 import edu.umd.cs.piccolo.nodes.PPath;
-import edu.umd.cs.piccolo.util.PBounds;
 
 /**
  * @author Ilya Boyandin
@@ -47,7 +46,6 @@ public abstract class VisualEdge extends PNode {
 
   private static Logger logger = Logger.getLogger(VisualEdge.class);
 
-  protected static final Object ATTR_ANIMATION_ABS_EDGE_WEIGHT = "animAbsWeight";
   private static final int MAX_EDGE_WIDTH = 100;
   private static final long serialVersionUID = 1L;
 
@@ -63,6 +61,11 @@ public abstract class VisualEdge extends PNode {
 
   private boolean highlighted;
 
+  private int indexInVisualFlowMap = -1;
+
+  private Paint lastPaint;
+  private long lastPaintKey = -1;
+
   public VisualEdge(VisualFlowMap visualFlowMap, Edge edge, VisualNode sourceNode, VisualNode targetNode) {
     this.edge = edge;
     this.sourceNode = sourceNode;
@@ -152,8 +155,11 @@ public abstract class VisualEdge extends PNode {
       } else {
         double strokeWidth = normalizeForWidthScale(value);
         Stroke stroke = createStrokeFor(strokeWidth);
-        ppath.setStroke(stroke);
+        if (stroke != ppath.getStroke()) {  // the strokes are shared
+          ppath.setStroke(stroke);
+        }
       }
+      visualFlowMap.edgeStyleChanged(this);
     }
     updateVisibilityFor(value);
   }
@@ -165,12 +171,17 @@ public abstract class VisualEdge extends PNode {
   public void updateEdgeColorsTo(double value) {
     PPath ppath = getEdgePPath();
     if (ppath != null) {
-      double normValue = normalizeForColorScale(value);
+      Paint paint = createPaintFor(normalizeForColorScale(value));
       if (isSelfLoop) {
-        ppath.setPaint(createPaintFor(normValue));
+        if (paint != ppath.getPaint()) {
+          ppath.setPaint(paint);
+        }
       } else {
-        ppath.setStrokePaint(createPaintFor(normValue));
+        if (paint != ppath.getStrokePaint()) {
+          ppath.setStrokePaint(paint);
+        }
       }
+      visualFlowMap.edgeStyleChanged(this);
     }
   }
 
@@ -184,8 +195,11 @@ public abstract class VisualEdge extends PNode {
   }
 
   private double getSelfLoopSizeFor(double value) {
+    return getSelfLoopSizeForNormalized(Math.abs(normalizeForWidthScale(value)));
+  }
+
+  private double getSelfLoopSizeForNormalized(double normAbsValue) {
     double linewidth = Math.max(1, visualFlowMap.getModel().getMaxEdgeWidth());
-    double normAbsValue = Math.abs(normalizeForWidthScale(value));
     if (Double.isNaN(normAbsValue)) {
       return 0;
     }
@@ -207,10 +221,14 @@ public abstract class VisualEdge extends PNode {
 
   @Override
   public void setVisible(boolean visible) {
+    boolean changed = (visible != getVisible());
     super.setVisible(visible);
     if (!visible  &&  highlighted) {
       setHighlighted(false, false, false);
     }
+    if (changed) {
+      visualFlowMap.edgeStyleChanged(this);
+    }
   }
 
   public boolean getVisibilityFor(double value) {
@@ -224,8 +242,6 @@ public abstract class VisualEdge extends PNode {
 
     double absValue = Math.abs(value);
 
-    PBounds vb = getVisualFlowMap().getCamera().getViewBounds();
-
     boolean visible =
         !Double.isNaN(value)  &&
         value != 0.0  &&
@@ -233,12 +249,39 @@ public abstract class VisualEdge extends PNode {
         weightFilterMin <= absValue && absValue <= weightFilterMax  &&
 //        edgeLengthFilterMin <= length && length <= edgeLengthFilterMax &&
         (!isSelfLoop()  ||  visualFlowMap.getModel().getShowSelfLoops())  &&
-        (vb.contains(getSourceNode().getPoint())  ||  vb.contains(getTargetNode().getPoint()))
+        visualFlowMap.isInViewport(this)
     ;
 
     return visible;
   }
 
+  int getIndexInVisualFlowMap() {
+    return indexInVisualFlowMap;
+  }
+
+  void setIndexInVisualFlowMap(int index) {
+    this.indexInVisualFlowMap = index;
+  }
+
+  /**
+   * @return The bounding box of the edge geometry (not including the stroke width).
+   *         For self-loops it's the box of the largest possible loop.
+   */
+  public Rectangle2D getExtent() {
+    if (isSelfLoop) {
+      double size = getSelfLoopSizeForNormalized(1.0);
+      return new Rectangle2D.Double(getSourceX() - size/2, getSourceY() - size/2, size, size);
+    }
+    PPath ppath = getEdgePPath();
+    if (ppath == null) {
+      return new Rectangle2D.Double(
+          Math.min(getSourceX(), getTargetX()), Math.min(getSourceY(), getTargetY()),
+          Math.abs(getTargetX() - getSourceX()), Math.abs(getTargetY() - getSourceY()));
+    }
+    // for B-splines these are the bounds of the control points which contain the curve
+    return ppath.getPathReference().getBounds2D();
+  }
+
 
   public Edge getEdge() {
     return edge;
@@ -307,10 +350,19 @@ public abstract class VisualEdge extends PNode {
     return visualFlowMap.getModel().normalizeForColorScale(value);
   }
 
+  /**
+   * Reuses the last created paint if the factory would create an equal one.
+   */
   private Paint createPaintFor(double normValue) {
-    return visualFlowMap.getVisualEdgePaintFactory().createPaint(
-        normValue, getSourceX(), getSourceY(), getTargetX(), getTargetY(),
-        edgeLength, isSelfLoop);
+    VisualEdgePaintFactory factory = visualFlowMap.getVisualEdgePaintFactory();
+    long key = factory.getPaintKey(normValue);
+    if (key < 0  ||  key != lastPaintKey  ||  lastPaint == null) {
+      lastPaint = factory.createPaint(
+          normValue, getSourceX(), getSourceY(), getTargetX(), getTargetY(),
+          edgeLength, isSelfLoop);
+      lastPaintKey = key;
+    }
+    return lastPaint;
   }
 
   protected Stroke createStrokeFor(double normValue) {
@@ -346,6 +398,7 @@ public abstract class VisualEdge extends PNode {
         ppath.setStrokePaint(paint);
       }
       repaint();
+      visualFlowMap.edgeStyleChanged(this);
       if (propagateEvent) {
         if (logger.isDebugEnabled()) {
           logger.debug((value ? "H" : "Unh") + "ighlight edge [" + getLabel() + " (" +
@@ -21,14 +21,22 @@ package jflowmap.views.flowmap;
 import java.awt.Color;
 import java.awt.LinearGradientPaint;
 import java.awt.Paint;
+import java.util.Arrays;
 
 import jflowmap.data.SeqStat;
 import jflowmap.geom.GeomUtils;
 import jflowmap.util.ColorUtils;
 import jflowmap.views.ColorCodes;
+import jflowmap.views.IFlowMapColorScheme;
 import prefuse.util.ColorLib;
 
 /**
+ * Creates the paints of the visual edges. The normalized values are quantized
+ * to {@link #STEPS_PER_UNIT} steps (finer than the 8 bit color channels can
+ * show) and the colors for each step are kept in lookup tables, so that the
+ * animations don't create new colors for every edge on every frame. The tables
+ * are cleared when the color scheme or the paint settings of the model change.
+ *
  * @author Ilya Boyandin
  */
 public class VisualEdgePaintFactory {
@@ -37,12 +45,49 @@ public class VisualEdgePaintFactory {
   private static final float[] DEFAULT_GRADIENT_FRACTIONS = new float[] { 0.0f, 1.0f };
   private static final float MIN_FRACTION_DIFF = 1e-5f;
 
+  private static final int STEPS_PER_UNIT = 512;
+  private static final int NUM_STEPS = STEPS_PER_UNIT * 2 + 1;  // for values in [-1, 1]
+
+  private static final int SIMPLE = 0;
+  private static final int DIVERGING = 1;
+  private static final int SELF_LOOP = 2;
+  private static final int GRADIENT_START = 3;
+  private static final int GRADIENT_END = 4;
+  private static final int START_MARKER = 5;
+  private static final int END_MARKER = 6;
+  private static final int NUM_TABLES = 7;
+
   private final VisualFlowMap visualFlowMap;
 
+  // the settings for which the tables were filled
+  private IFlowMapColorScheme colorScheme;
+  private int alpha, markerAlpha;
+  private boolean diverging, showDirectionMarkers, fillWithGradient, proportionalMarkers;
+  private double markerSize;
+  private int styleVersion;
+
+  private final Color[][] colorTables = new Color[NUM_TABLES][];
+  private Color[][] gradientColors;
+  private float[] markerFractions;
+
   public VisualEdgePaintFactory(VisualFlowMap visualFlowMap) {
     this.visualFlowMap = visualFlowMap;
   }
 
+  /**
+   * Returns a key which is the same for all the values for which
+   * {@link #createPaint} returns equal paints (for the same edge),
+   * or -1 if the value can't be looked up.
+   */
+  public long getPaintKey(double normalizedValue) {
+    int step = stepOf(normalizedValue);
+    if (step < 0) {
+      return -1;
+    }
+    validateStyle();
+    return (long)styleVersion * NUM_STEPS + step;
+  }
+
   public Paint createPaint(double normalizedValue,
       double srcX, double srcY, double targetX, double targetY) {
     return createPaint(
@@ -60,130 +105,234 @@ public class VisualEdgePaintFactory {
       double srcX, double srcY, double targetX, double targetY,
       double edgeLength, boolean isSelfLoop)
   {
-    VisualFlowMapModel model = visualFlowMap.getModel();
-    int alpha = model.getEdgeAlpha();
+    validateStyle();
 
-    boolean diverging = visualFlowMap.getValueStat().isDiverging();
+    int step = stepOf(normalizedValue);
+    if (step >= 0) {
+      normalizedValue = valueOf(step);
+    }
 
     if (diverging) {
-      return createSimpleDivergingPaint(normalizedValue, alpha);
+      return createSimpleDivergingPaint(normalizedValue, step);
     }
 
     if (isSelfLoop) {
-      return createSelfLoopPaint(normalizedValue, alpha);
+      return createSelfLoopPaint(normalizedValue, step);
     }
 
-    if (model.getShowDirectionMarkers()  ||  model.getFillEdgesWithGradient()) {
+    if (showDirectionMarkers  ||  fillWithGradient) {
       return createCompositePaint(
-          normalizedValue, srcX, srcY, targetX, targetY, edgeLength, model, alpha);
+          normalizedValue, step, srcX, srcY, targetX, targetY, edgeLength);
     } else {
-      return createSimplePaint(normalizedValue, alpha);
+      return createSimplePaint(normalizedValue, step);
+    }
+  }
+
+  /**
+   * Clears the lookup tables if the color scheme or the paint settings changed
+   * since they were filled.
+   */
+  private void validateStyle() {
+    VisualFlowMapModel model = visualFlowMap.getModel();
+    IFlowMapColorScheme scheme = visualFlowMap.getColorScheme();
+    boolean div = visualFlowMap.getValueStat().isDiverging();
+    if (scheme != colorScheme  ||
+        model.getEdgeAlpha() != alpha  ||
+        model.getDirectionMarkerAlpha() != markerAlpha  ||
+        div != diverging  ||
+        model.getShowDirectionMarkers() != showDirectionMarkers  ||
+        model.getFillEdgesWithGradient() != fillWithGradient  ||
+        model.getUseProportionalDirectionMarkers() != proportionalMarkers  ||
+        model.getDirectionMarkerSize() != markerSize) {
+
+      colorScheme = scheme;
+      alpha = model.getEdgeAlpha();
+      markerAlpha = model.getDirectionMarkerAlpha();
+      diverging = div;
+      showDirectionMarkers = model.getShowDirectionMarkers();
+      fillWithGradient = model.getFillEdgesWithGradient();
+      proportionalMarkers = model.getUseProportionalDirectionMarkers();
+      markerSize = model.getDirectionMarkerSize();
+
+      Arrays.fill(colorTables, null);
+      gradientColors = null;
+      markerFractions = null;
+      styleVersion++;
+    }
+  }
+
+  /**
+   * @return The index of the quantization step of the value or -1 if the value
+   *         is out of the range of the tables.
+   */
+  private static int stepOf(double normalizedValue) {
+    if (!(normalizedValue >= -1.0  &&  normalizedValue <= 1.0)) {  // also NaN
+      return -1;
+    }
+    return (int)Math.round((normalizedValue + 1.0) * STEPS_PER_UNIT);
+  }
+
+  private static double valueOf(int step) {
+    return Math.min(1.0, Math.max(-1.0, (double)step / STEPS_PER_UNIT - 1.0));
+  }
+
+  private Color colorBetween(int table, ColorCodes min, ColorCodes max,
+      double normalizedValue, int step, int alpha) {
+    if (step < 0) {
+      return ColorUtils.colorBetween(
+          visualFlowMap.getColor(min), visualFlowMap.getColor(max), normalizedValue, alpha);
+    }
+    Color[] colors = colorTable(table);
+    Color color = colors[step];
+    if (color == null) {
+      color = ColorUtils.colorBetween(
+          visualFlowMap.getColor(min), visualFlowMap.getColor(max), normalizedValue, alpha);
+      colors[step] = color;
     }
+    return color;
   }
 
-  private Paint createSimplePaint(double normalizedValue, int alpha) {
-    return ColorUtils.colorBetween(
-        visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT),
-        visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT),
-        normalizedValue, alpha);
+  private Color[] colorTable(int table) {
+    Color[] colors = colorTables[table];
+    if (colors == null) {
+      colors = colorTables[table] = new Color[NUM_STEPS];
+    }
+    return colors;
+  }
+
+  private Paint createSimplePaint(double normalizedValue, int step) {
+    return colorBetween(SIMPLE,
+        ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT,
+        ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT,
+        normalizedValue, step, alpha);
   }
 
-  private Paint createSimpleDivergingPaint(double normalizedValue, int alpha) {
-    return ColorLib.getColor(ColorUtils.colorFromMap(
+  private Paint createSimpleDivergingPaint(double normalizedValue, int step) {
+    Color[] colors = (step >= 0 ? colorTable(DIVERGING) : null);
+    if (colors != null  &&  colors[step] != null) {
+      return colors[step];
+    }
+    Color color = ColorLib.getColor(ColorUtils.colorFromMap(
         new int[] {
             visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_DIVERGING_MIN).getRGB(),
             visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_DIVERGING_ZERO).getRGB(),
             visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_DIVERGING_MAX).getRGB()
         },
         normalizedValue, -1.0, 1.0, alpha, true));
-  }
-
-  private Paint createSelfLoopPaint(double normalizedValue, int alpha) {
-    if (visualFlowMap.getModel().getFillEdgesWithGradient()) {
-      return ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_SELF_LOOP_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_SELF_LOOP_MAX_WEIGHT),
-          normalizedValue, alpha);
-    } else {
-      return createSimplePaint(normalizedValue, alpha);
+    if (colors != null) {
+      colors[step] = color;
     }
+    return color;
   }
 
-  private Paint createCompositePaint(double normalizedValue, double srcX, double srcY,
-      double targetX, double targetY, double edgeLength, VisualFlowMapModel model, int alpha) {
-
-    // TODO: support for diverging color scheme
-    Color startEdgeColor, endEdgeColor;
-    if (model.getFillEdgesWithGradient()) {
-      startEdgeColor = ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_START_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_START_MAX_WEIGHT),
-          normalizedValue, alpha);
-      endEdgeColor = ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_END_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_GRADIENT_END_MAX_WEIGHT),
-          normalizedValue, alpha);
+  private Paint createSelfLoopPaint(double normalizedValue, int step) {
+    if (fillWithGradient) {
+      return colorBetween(SELF_LOOP,
+          ColorCodes.EDGE_SELF_LOOP_MIN_WEIGHT,
+          ColorCodes.EDGE_SELF_LOOP_MAX_WEIGHT,
+          normalizedValue, step, alpha);
     } else {
-      startEdgeColor = ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT),
-          normalizedValue, alpha);
-      endEdgeColor = startEdgeColor;
+      return createSimplePaint(normalizedValue, step);
     }
+  }
 
-    float[] fractions = null;
-    Color[] colors = null;
+  private Paint createCompositePaint(double normalizedValue, int step,
+      double srcX, double srcY, double targetX, double targetY, double edgeLength) {
 
-    if (model.getShowDirectionMarkers()) {
-      float markerSize;
-      if (model.getUseProportionalDirectionMarkers()) {
-        markerSize = (float)model.getDirectionMarkerSize();
+    float[] fractions;
+    if (showDirectionMarkers) {
+      if (proportionalMarkers) {
+        if (markerFractions == null) {
+          markerFractions = markerFractions((float)markerSize);
+        }
+        fractions = markerFractions;
       } else {
         SeqStat lstats = visualFlowMap.getStats().getEdgeLengthStats();
-        markerSize = (float)Math.min(
+        fractions = markerFractions((float)Math.min(
             .5 - MIN_FRACTION_DIFF,  // the markers must not be longer than half of an edge
-            ((lstats.getMin() + model.getDirectionMarkerSize() * (lstats.getMax() - lstats.getMin()))
+            ((lstats.getMin() + markerSize * (lstats.getMax() - lstats.getMin()))
             / 2)
             / edgeLength  // the markers must be of equal length for every edge
                     // (excepting the short ones)
-        );
+        ));
       }
-      if (markerSize - MIN_FRACTION_DIFF < 0) {
-        markerSize = MIN_FRACTION_DIFF;
+    } else {
+      fractions = DEFAULT_GRADIENT_FRACTIONS;
+    }
+
+    Color[] colors;
+    if (step < 0) {
+      colors = createGradientColors(normalizedValue, step);
+    } else {
+      if (gradientColors == null) {
+        gradientColors = new Color[NUM_STEPS][];
       }
-      if (markerSize > 0.5f - MIN_FRACTION_DIFF) {
-        markerSize = 0.5f - MIN_FRACTION_DIFF;
+      colors = gradientColors[step];
+      if (colors == null) {
+        colors = gradientColors[step] = createGradientColors(normalizedValue, step);
       }
-      int markerAlpha = model.getDirectionMarkerAlpha();
-      Color startMarkerColor = ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_START_MARKER_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_START_MARKER_MAX_WEIGHT),
-          normalizedValue, markerAlpha);
-      Color endMarkerColor = ColorUtils.colorBetween(
-          visualFlowMap.getColor(ColorCodes.EDGE_END_MARKER_MIN_WEIGHT),
-          visualFlowMap.getColor(ColorCodes.EDGE_END_MARKER_MAX_WEIGHT),
-          normalizedValue, markerAlpha);
-      fractions = new float[] {
-          markerSize - MIN_FRACTION_DIFF,     // start marker
-          markerSize, 1.0f - markerSize,      // line
-          1.0f - markerSize + MIN_FRACTION_DIFF   // end marker
-      };
-      colors = new Color[] {
+    }
+
+    // the paint can't be shared, because it depends on the edge position,
+    // but LinearGradientPaint copies the arrays, so they can be
+    return new LinearGradientPaint(
+        (float)srcX, (float)srcY, (float)targetX, (float)targetY,
+        fractions, colors
+    );
+  }
+
+  private Color[] createGradientColors(double normalizedValue, int step) {
+    // TODO: support for diverging color scheme
+    Color startEdgeColor, endEdgeColor;
+    if (fillWithGradient) {
+      startEdgeColor = colorBetween(GRADIENT_START,
+          ColorCodes.EDGE_GRADIENT_START_MIN_WEIGHT,
+          ColorCodes.EDGE_GRADIENT_START_MAX_WEIGHT,
+          normalizedValue, step, alpha);
+      endEdgeColor = colorBetween(GRADIENT_END,
+          ColorCodes.EDGE_GRADIENT_END_MIN_WEIGHT,
+          ColorCodes.EDGE_GRADIENT_END_MAX_WEIGHT,
+          normalizedValue, step, alpha);
+    } else {
+      startEdgeColor = colorBetween(SIMPLE,
+          ColorCodes.EDGE_NO_GRADIENT_MIN_WEIGHT,
+          ColorCodes.EDGE_NO_GRADIENT_MAX_WEIGHT,
+          normalizedValue, step, alpha);
+      endEdgeColor = startEdgeColor;
+    }
+
+    if (showDirectionMarkers) {
+      Color startMarkerColor = colorBetween(START_MARKER,
+          ColorCodes.EDGE_START_MARKER_MIN_WEIGHT,
+          ColorCodes.EDGE_START_MARKER_MAX_WEIGHT,
+          normalizedValue, step, markerAlpha);
+      Color endMarkerColor = colorBetween(END_MARKER,
+          ColorCodes.EDGE_END_MARKER_MIN_WEIGHT,
+          ColorCodes.EDGE_END_MARKER_MAX_WEIGHT,
+          normalizedValue, step, markerAlpha);
+      return new Color[] {
           startMarkerColor,
           startEdgeColor,
           endEdgeColor,
           endMarkerColor,
       };
     } else {
-      fractions = DEFAULT_GRADIENT_FRACTIONS;
-      colors = new Color[] { startEdgeColor, endEdgeColor };
+      return new Color[] { startEdgeColor, endEdgeColor };
     }
+  }
 
-    LinearGradientPaint paint = new LinearGradientPaint(
-        (float)srcX, (float)srcY, (float)targetX, (float)targetY,
-        fractions, colors
-    );
-    return paint;
+  private static float[] markerFractions(float markerSize) {
+    if (markerSize - MIN_FRACTION_DIFF < 0) {
+      markerSize = MIN_FRACTION_DIFF;
+    }
+    if (markerSize > 0.5f - MIN_FRACTION_DIFF) {
+      markerSize = 0.5f - MIN_FRACTION_DIFF;
+    }
+    return new float[] {
+        markerSize - MIN_FRACTION_DIFF,     // start marker
+        markerSize, 1.0f - markerSize,      // line
+        1.0f - markerSize + MIN_FRACTION_DIFF   // end marker
+    };
   }
 
 }
@@ -19,15 +19,29 @@
 package jflowmap.views.flowmap;
 
 import java.awt.Stroke;
+import java.util.Arrays;
 
 import edu.umd.cs.piccolox.util.PFixedWidthStroke;
 
 /**
+ * Creates the strokes of the visual edges. The strokes are shared by the edges:
+ * the absolute normalized values are quantized to {@link #STEPS_PER_UNIT} steps
+ * and the strokes for each step are kept in a lookup table which is cleared
+ * when the max edge width changes.
+ *
  * @author Ilya Boyandin
  */
 public class VisualEdgeStrokeFactory {
 
+  private static final int STEPS_PER_UNIT = 512;
+
+  // Stroke of a NaN width prevents the whole scene from rendering.
+  // Besides, the edge of a NaN value shouldn't be visible anyway.
+  private static final Stroke NAN_STROKE = new PFixedWidthStroke(0);
+
   private final VisualFlowMap visualFlowMap;
+  private final Stroke[] strokes = new Stroke[STEPS_PER_UNIT + 1];
+  private double maxEdgeWidth = Double.NaN;
 
   public VisualEdgeStrokeFactory(VisualFlowMap visualFlowMap) {
     this.visualFlowMap = visualFlowMap;
@@ -35,14 +49,27 @@ public class VisualEdgeStrokeFactory {
 
   public Stroke createStroke(double normalizedValue) {
     if (Double.isNaN(normalizedValue)) {
-      // Stroke of a NaN width prevents the whole scene from rendering.
-      // Besides, the edge of a NaN value shouldn't be visible anyway.
-      return new PFixedWidthStroke(0);
+      return NAN_STROKE;
+    }
+
+    double maxWidth = visualFlowMap.getModel().getMaxEdgeWidth();
+    if (maxWidth != maxEdgeWidth) {
+      Arrays.fill(strokes, null);
+      maxEdgeWidth = maxWidth;
     }
 
     // For a negative value the width is the same as for its absolute value.
-    float width = (float)(1 + Math.abs(normalizedValue) * visualFlowMap.getModel().getMaxEdgeWidth());
-    return new PFixedWidthStroke(width);
+    double absValue = Math.abs(normalizedValue);
+    if (absValue > 1.0) {
+      return new PFixedWidthStroke((float)(1 + absValue * maxWidth));
+    }
+    int step = (int)Math.round(absValue * STEPS_PER_UNIT);
+    Stroke stroke = strokes[step];
+    if (stroke == null) {
+      float width = (float)(1 + ((double)step / STEPS_PER_UNIT) * maxWidth);
+      stroke = strokes[step] = new PFixedWidthStroke(width);
+    }
+    return stroke;
   }
 
 }
@@ -27,7 +27,10 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -45,8 +48,10 @@ import jflowmap.data.SeqStat;
 import jflowmap.geo.MapProjection;
 import jflowmap.geo.MapProjections;
 import jflowmap.geom.GeomUtils;
+import jflowmap.geom.PackedRTree;
 import jflowmap.geom.Point;
 import jflowmap.util.piccolo.POutlinedText;
+import jflowmap.util.piccolo.PTiledLayer;
 import jflowmap.views.ColorCodes;
 import jflowmap.views.IFlowMapColorScheme;
 import jflowmap.views.Legend;
@@ -95,6 +100,9 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   private PBounds nodeBounds;
 
   private final PNode edgeLayer;
+  private final BatchedEdgeLayer batchedEdgeLayer;
+  private final PTiledLayer tiledLayer;
+  private final PNode staticLayer;
 //  private final PNode nodeLayer;
 
   private final VisualFlowMapModel model;
@@ -102,10 +110,16 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   private List<VisualEdge> visualEdges;
   private Map<Node, VisualNode> nodesToVisuals;
   private Map<Edge, VisualEdge> edgesToVisuals;
+  private PackedRTree edgeIndex;
+  private BitSet edgesInViewport = new BitSet();
+  private BitSet spareEdgeSet = new BitSet();
+  private int[] edgesInViewportList = new int[0];
+  private int numEdgesInViewport;
   private final IView view;
 
   private PGeoMap areaMap;
   private boolean bundled;
+  private ForceDirectedBundlerParameters bundlerParams;
 
   private final VisualEdgePaintFactory visualEdgePaintFactory;
   private final VisualEdgeStrokeFactory visualEdgeStrokeFactory;
@@ -137,8 +151,25 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
 //    nodeLayer = new PNode();
 
-    edgeLayer = new PNode();
-    addChild(edgeLayer);
+    if (model.getTileCache()) {
+      tiledLayer = new PTiledLayer();
+      staticLayer = tiledLayer;
+      addChild(tiledLayer);
+    } else {
+      tiledLayer = null;
+      staticLayer = this;
+    }
+
+    // the spline points are child nodes of the edges which the batched layer doesn't draw
+    if (model.getBatchedEdges()  &&  !SHOW_SPLINE_POINTS) {
+      batchedEdgeLayer = new BatchedEdgeLayer(this);
+      edgeLayer = batchedEdgeLayer.getEdgeContainer();
+      staticLayer.addChild(batchedEdgeLayer);
+    } else {
+      batchedEdgeLayer = null;
+      edgeLayer = new PNode();
+      staticLayer.addChild(edgeLayer);
+    }
 
     createVisuals();
 
@@ -160,11 +191,12 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
         if (evt.getPropertyName() == PCamera.PROPERTY_BOUNDS) {
           fitInCameraView();
           updateFlowWeightAttrLabel();
+          updateEdgesInViewport();
         } else
         if (evt.getPropertyName() == PCamera.PROPERTY_VIEW_TRANSFORM) {
           hideTooltip();
           updateNodePositions();
-          updateEdgeVisibility();
+          updateEdgesInViewport();
         }
       }
     });
@@ -193,7 +225,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
     MapBackgroundImage mapImage = model.getMapBackgroundImage();
     if (mapImage != null) {
       mapBackgroundImage = mapImage.createImageNode();
-      addChild(mapBackgroundImage);
+      staticLayer.addChild(mapBackgroundImage);
       mapBackgroundImage.moveToBack();
     }
   }
@@ -207,7 +239,9 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
     if (!oldValue.equals(attr)) {
       logger.info("Setting flow weight attr to '" + attr + "'");
       flowWeightAttr = attr;
-      resetBundling();
+      if (bundlerParams == null  ||  bundlerParams.getEdgeValueAffectsAttraction()) {
+        resetBundling();  // otherwise the bundling doesn't depend on the attr and is kept
+      }
       updateFlowWeightAttrLabel();
       if (doUpdate) {
         updateVisualEdges();
@@ -367,11 +401,11 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
   public void setAreaMap(PGeoMap areaMap) {
     if (this.areaMap != null) {
-      removeChild(this.areaMap);
+      staticLayer.removeChild(this.areaMap);
     }
     this.areaMap = areaMap;
     if (areaMap != null) {
-      addChild(areaMap);
+      staticLayer.addChild(areaMap);
       areaMap.moveToBack();
       if (mapBackgroundImage != null) {
         mapBackgroundImage.moveToBack();
@@ -413,6 +447,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
   private void createEdgeVisuals() {
     edgeLayer.removeAllChildren();
+    edgeIndex = null;
 
     visualEdges = new ArrayList<VisualEdge>();
     edgesToVisuals = new LinkedHashMap<Edge, VisualEdge>();
@@ -428,10 +463,120 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
       } else {
           VisualEdge visualEdge = createVisualEdgeFor(edge);
           edgeLayer.addChild(visualEdge);
+          visualEdge.setIndexInVisualFlowMap(visualEdges.size());
           visualEdges.add(visualEdge);
           edgesToVisuals.put(edge, visualEdge);
       }
     }
+
+    buildEdgeIndex();
+    numEdgesInViewport = 0;
+    edgesInViewport.clear();
+    findEdgesInViewport();
+    updateEdgeVisibility();
+  }
+
+  /**
+   * Builds the spatial index of the edge extents used to find the edges in the viewport.
+   * Must be called whenever the extents change, followed by an update of the
+   * edges in the viewport.
+   */
+  private void buildEdgeIndex() {
+    long start = System.currentTimeMillis();
+    Rectangle2D[] extents = new Rectangle2D[visualEdges.size()];
+    for (int i = 0; i < extents.length; i++) {
+      extents[i] = visualEdges.get(i).getExtent();
+    }
+    edgeIndex = new PackedRTree(extents);
+    if (batchedEdgeLayer != null) {
+      batchedEdgeLayer.setEdges(visualEdges, extents, edgeIndex);
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Index of " + extents.length + " edge extents built in " +
+          (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  /**
+   * Must be called by the visual edges when their paint, stroke or visibility change.
+   */
+  void edgeStyleChanged(VisualEdge ve) {
+    if (batchedEdgeLayer != null) {
+      batchedEdgeLayer.invalidateEdge(ve.getIndexInVisualFlowMap());
+    }
+  }
+
+  /**
+   * @return True if the extent of the edge intersects with the camera view bounds
+   *         (also if the index isn't built yet or the edges are painted from the
+   *         tile cache which must be able to render the tiles out of view)
+   */
+  boolean isInViewport(VisualEdge ve) {
+    int index = ve.getIndexInVisualFlowMap();
+    return (edgeIndex == null  ||  tiledLayer != null  ||  index < 0  ||  edgesInViewport.get(index));
+  }
+
+  /**
+   * Queries the index for the edges in the current viewport and updates the
+   * visibility of only those edges which entered or left it.
+   */
+  private void updateEdgesInViewport() {
+    if (edgeIndex == null  ||  tiledLayer != null) {
+      return;
+    }
+    long start = System.nanoTime();
+
+    BitSet oldSet = edgesInViewport;
+    int[] oldList = edgesInViewportList;
+    int oldCount = numEdgesInViewport;
+    edgesInViewport = spareEdgeSet;
+    edgesInViewportList = new int[Math.max(16, oldCount)];
+    numEdgesInViewport = 0;
+    findEdgesInViewport();
+
+    int numChanged = 0;
+    for (int i = 0; i < oldCount; i++) {
+      int e = oldList[i];
+      if (!edgesInViewport.get(e)) {
+        visualEdges.get(e).updateVisibility();
+        numChanged++;
+      }
+    }
+    for (int i = 0; i < numEdgesInViewport; i++) {
+      int e = edgesInViewportList[i];
+      if (!oldSet.get(e)) {
+        visualEdges.get(e).updateVisibility();
+        numChanged++;
+      }
+    }
+    for (int i = 0; i < oldCount; i++) {
+      oldSet.clear(oldList[i]);
+    }
+    spareEdgeSet = oldSet;
+
+    if (logger.isDebugEnabled()) {
+      logger.debug("Edge culling: " + numEdgesInViewport + " of " + visualEdges.size() +
+          " edges in view, " + numChanged + " changed, " +
+          ((System.nanoTime() - start) / 1000) + "us");
+    }
+  }
+
+  private void findEdgesInViewport() {
+    PCamera camera = getCamera();
+    PBounds vb = camera.getViewBounds();
+    // the edge strokes have a fixed width in screen pixels
+    double pad = (1 + model.getMaxEdgeWidth()) / 2 / camera.getViewScale();
+    edgeIndex.query(vb.getMinX() - pad, vb.getMinY() - pad, vb.getMaxX() + pad, vb.getMaxY() + pad,
+        new PackedRTree.ItemVisitor() {
+          @Override
+          public void visit(int item) {
+            if (numEdgesInViewport == edgesInViewportList.length) {
+              edgesInViewportList = Arrays.copyOf(edgesInViewportList, numEdgesInViewport * 2 + 16);
+            }
+            edgesInViewportList[numEdgesInViewport++] = item;
+            edgesInViewport.set(item);
+          }
+        });
   }
 
   private boolean hasCoordinates(Edge edge) {
@@ -452,12 +597,42 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   }
 
   private void updateVisualEdgeOrdering() {
+    // order by attr value: the last of the descending edges goes to the back
+    int numEdges = visualEdges.size();
+    int[] sorted = new int[numEdges];
+    BitSet placed = new BitSet(numEdges);
+    int k = numEdges;
     for (Edge edge : getEdgesSortedByValue(false)) {
       VisualEdge ve = edgesToVisuals.get(edge);
-      if (hasCoordinates(edge)) {
-        ve.moveToBack();  // order by attr value
+      if (ve != null  &&  hasCoordinates(edge)) {
+        sorted[--k] = ve.getIndexInVisualFlowMap();
+        placed.set(sorted[k]);
+      }
+    }
+    // the edges which weren't sorted stay in front
+    int[] backToFront = new int[numEdges];
+    System.arraycopy(sorted, k, backToFront, 0, numEdges - k);
+    int count = numEdges - k;
+    for (int c = 0, numChildren = edgeLayer.getChildrenCount(); c < numChildren; c++) {
+      int i = ((VisualEdge)edgeLayer.getChild(c)).getIndexInVisualFlowMap();
+      if (!placed.get(i)) {
+        backToFront[count++] = i;
       }
     }
+    setEdgeOrder(backToFront);
+  }
+
+  /**
+   * Replaces the children of the edge layer at once, which is much faster
+   * than moving the edges one by one.
+   *
+   * @param backToFront The indices of the visual edges in the new z-order
+   */
+  private void setEdgeOrder(int[] backToFront) {
+    edgeLayer.removeAllChildren();
+    for (int i : backToFront) {
+      edgeLayer.addChild(visualEdges.get(i));
+    }
   }
 
   private VisualEdge createVisualEdgeFor(Edge edge) {
@@ -638,6 +813,10 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
           visualLegend.update();
         } else if (prop.equals(VisualFlowMapModel.PROPERTY_MAX_EDGE_WIDTH)
             || prop.equals(VisualFlowMapModel.PROPERTY_USE_LOG_WIDTH_SCALE)) {
+          if (prop.equals(VisualFlowMapModel.PROPERTY_MAX_EDGE_WIDTH)) {
+            buildEdgeIndex();  // the self-loop extents and the stroke padding depend on it
+            updateEdgesInViewport();
+          }
           updateEdgeWidths();
           visualLegend.update();
         } else if (prop.equals(VisualFlowMapModel.PROPERTY_VALUE_FILTER_MIN)
@@ -718,12 +897,30 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   public void resetBundling() {
     if (bundled) {
       bundled = false;
+      bundlerParams = null;
       getFlowMapGraph().removeAllEdgeSubdivisionPoints();
       createEdgeVisuals();
       repaint();
     }
   }
 
+  /**
+   * Bundles the edges in the calling thread without showing the progress dialog
+   * (e.g. when exporting images in batch). Must not be called on the event dispatch
+   * thread: the edge visuals are recreated on it when the bundling is done.
+   */
+  public void bundleEdgesAndWait(ForceDirectedBundlerParameters params)
+      throws InterruptedException, InvocationTargetException {
+    bundlerParams = params;
+    new ForceDirectedEdgeBundler(getFlowMapGraph(), params).bundle(new ProgressTracker());
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+        createBundledEdgeVisuals();
+      }
+    });
+  }
+
   private void createBundledEdgeVisuals() {
     createEdgeVisuals();
     bundled = true;
@@ -731,6 +928,7 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   }
 
   public void bundleEdges(final ForceDirectedBundlerParameters params) {
+    bundlerParams = params;
     final ProgressTracker pt = new ProgressTracker();
     final ForceDirectedEdgeBundler bundler = new ForceDirectedEdgeBundler(
         getFlowMapGraph(), params);
@@ -800,6 +998,10 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
     valueAnimation = new ValueAnimationActivity(startAttrIndex, runWhenFinished, attrsPerSecond);
     if (valueAnimation.numAttrs > 1) {
+      if (tiledLayer != null) {
+        // every frame changes all the edges, so the tiles would never be reused
+        tiledLayer.setCachingEnabled(false);
+      }
       valueAnimation.start();
     } else {
       if (runWhenFinished != null) {
@@ -809,6 +1011,14 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
   }
 
 
+  /**
+   * Interpolates the edge values between the consecutive weight attrs.
+   * The values of the animated attrs are read into an array when the animation
+   * starts. On every frame only the visible edges are sorted to update their
+   * z-order, and the scene is reordered at once if the order changed. The frames
+   * coming sooner after the previous one than its update took are dropped, so
+   * that under load there's still time left for painting.
+   */
   class ValueAnimationActivity extends PInterpolatingActivity {
 
     final List<String> attrs = getFlowMapGraph().getEdgeWeightAttrs();
@@ -817,6 +1027,17 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
     private final int numAttrs;
     private int lastAttrIndex;
 
+    /** The values of the animated attrs, numAttrs per edge */
+    private final double[] series;
+    private final double[] absValues;
+    /** The edge indices in the current z-order, from back to front */
+    private int[] order;
+    private int[] newOrder;
+    private final long[] sortKeys;
+
+    private long lastFrameEnd;
+    private long lastFrameCost;
+
     public ValueAnimationActivity(int startAttrIndex, Runnable runWhenFinished,
         double attrsPerSecond) {
       super(0, 20);
@@ -825,8 +1046,24 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
       this.numAttrs = (attrs.size() - startAttrIndex);
       setSlowInSlowOut(false);
       setDuration(Math.round(numAttrs * 1000 / attrsPerSecond));
-      for (VisualEdge ve : edgesToVisuals.values()) {
-        setAbsVal(ve, ve.getEdgeWeight());
+
+      int numEdges = visualEdges.size();
+      series = new double[numEdges * Math.max(numAttrs, 0)];
+      for (int a = 0; a < numAttrs; a++) {
+        String valueAttr = getValueAttrFor(attrs.get(startAttrIndex + a));
+        for (int i = 0; i < numEdges; i++) {
+          series[i * numAttrs + a] = visualEdges.get(i).getEdge().getDouble(valueAttr);
+        }
+      }
+      absValues = new double[numEdges];
+      for (int i = 0; i < numEdges; i++) {
+        absValues[i] = Math.abs(visualEdges.get(i).getEdgeWeight());
+      }
+      order = new int[numEdges];
+      newOrder = new int[numEdges];
+      sortKeys = new long[numEdges];
+      for (int c = 0, numChildren = edgeLayer.getChildrenCount(); c < numChildren; c++) {
+        order[c] = ((VisualEdge)edgeLayer.getChild(c)).getIndexInVisualFlowMap();
       }
     }
 
@@ -841,6 +1078,11 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
     @Override
     public void setRelativeTargetValue(float zeroToOne) {
+      long start = System.nanoTime();
+      if (zeroToOne > 0  &&  zeroToOne < 1  &&  start - lastFrameEnd < lastFrameCost) {
+        return;  // drop the frame
+      }
+
       double alpha = alpha(zeroToOne);
       int lowi = lowi(zeroToOne);
       int highi = highi(zeroToOne);
@@ -849,25 +1091,60 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
 
       setFlowWeightAttr(attrs.get(lowi), false);
 
-      for (VisualEdge ve : edgesToVisuals.values()) {
+      int low = lowi - startAttrIndex, high = highi - startAttrIndex;
+      double t = alpha - low;
+      for (int i = 0, numEdges = visualEdges.size(); i < numEdges; i++) {
         double value;
 
-        if (lowi == highi) {
-          value = getValueOf(ve, attrs.get(lowi));
+        if (low == high) {
+          value = series[i * numAttrs + low];
         } else {
-          double low = getValueOf(ve, attrs.get(lowi));
-          double high = getValueOf(ve, attrs.get(highi));
-          if (Double.isNaN(low)) low = 0;
-          if (Double.isNaN(high)) high = 0;
-          value = low + (high - low) * (alpha - (lowi - startAttrIndex));
+          double lowValue = series[i * numAttrs + low];
+          double highValue = series[i * numAttrs + high];
+          if (Double.isNaN(lowValue)) lowValue = 0;
+          if (Double.isNaN(highValue)) highValue = 0;
+          value = lowValue + (highValue - lowValue) * t;
         }
 
-        orderByValue(ve, value);
-        setAbsVal(ve, value);
+        absValues[i] = Math.abs(value);
 
+        VisualEdge ve = visualEdges.get(i);
         ve.updateEdgeWidthTo(value);
         ve.updateEdgeColorsTo(value);
       }
+      updateOrder();
+
+      lastFrameEnd = System.nanoTime();
+      lastFrameCost = lastFrameEnd - start;
+    }
+
+    /**
+     * Sorts the visible edges by their absolute values keeping the current order
+     * for the equal ones. The invisible edges are moved to the back.
+     */
+    private void updateOrder() {
+      int numHidden = 0, numVisible = 0;
+      for (int rank = 0; rank < order.length; rank++) {
+        int i = order[rank];
+        if (visualEdges.get(i).getVisible()) {
+          double abs = absValues[i];
+          float key = (Double.isNaN(abs) ? 0 : (float)abs);
+          // the bits of non-negative floats are ordered as the floats
+          sortKeys[numVisible++] = ((long)Float.floatToIntBits(key) << 32) | rank;
+        } else {
+          newOrder[numHidden++] = i;
+        }
+      }
+      Arrays.sort(sortKeys, 0, numVisible);
+      for (int k = 0; k < numVisible; k++) {
+        newOrder[numHidden + k] = order[(int)sortKeys[k]];
+      }
+      if (!Arrays.equals(order, newOrder)) {
+        int[] tmp = order;
+        order = newOrder;
+        newOrder = tmp;
+        setEdgeOrder(order);
+      }
     }
 
     public int highi(float zeroToOne) {
@@ -886,48 +1163,12 @@ public class VisualFlowMap extends PNode implements ColorSchemeAware {
       return (numAttrs - 1) * zeroToOne;
     }
 
-    public void orderByValue(VisualEdge ve, double value) {
-      if (Double.isNaN(value)) {
-        return;
-      }
-      double absValue = Math.abs(value);
-      int numChildren = edgeLayer.getChildrenCount();
-      int index = edgeLayer.indexOfChild(ve);
-
-      while (index > 0   &&   absValue < getVal(index - 1)) index--;
-      while (index < numChildren - 1   &&   absValue > getVal(index + 1)) index++;
-
-      int change = edgeLayer.indexOfChild(ve) - index;
-      if (change != 0) {
-        VisualEdge nve = getVE(index);
-        double nv = getVal(nve);
-        if (nv > absValue) {
-          ve.moveInBackOf(nve);
-        } else {
-          ve.moveInFrontOf(nve);
-        }
-      }
-    }
-
-    public void setAbsVal(VisualEdge ve, double value) {
-      ve.addAttribute(VisualEdge.ATTR_ANIMATION_ABS_EDGE_WEIGHT, Math.abs(value));
-    }
-
-    public double getVal(int i) {
-      return getVal(getVE(i));
-    }
-
-    public VisualEdge getVE(int i) {
-      return (VisualEdge)edgeLayer.getChild(i);
-    }
-
-    public double getVal(VisualEdge ve) {
-      return (Double) ve.getAttribute(VisualEdge.ATTR_ANIMATION_ABS_EDGE_WEIGHT);
-    }
-
     @Override
     protected void activityFinished() {
       super.activityFinished();
+      if (tiledLayer != null) {
+        tiledLayer.setCachingEnabled(true);
+      }
       if (runWhenFinished != null) {
         runWhenFinished.run();
         valueAnimation = null;
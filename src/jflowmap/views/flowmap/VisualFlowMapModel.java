@@ -81,6 +81,8 @@ public class VisualFlowMapModel {
   public static final String VIEWCONF_SHOW_SELF_LOOPS = "view.flowmap.showSelfLoops";
   public static final String VIEWCONF_VALUE_TYPE = "view.flowmap.valueType";
   public static final String VIEWCONF_SHOW_FLOW_WEIGHT_ATTR_LABEL = "view.flowmap.showFlowWeightAttrLabel";
+  public static final String VIEWCONF_BATCHED_EDGES = "view.flowmap.batchedEdges";
+  public static final String VIEWCONF_TILE_CACHE = "view.flowmap.tileCache";
 
   public static final String VIEWCONF_BUNDLING_UPDATE_VIEW_AFTER_EACH_STEP =
     "view.flowmap.edgeBundling.updateViewAfterEachStep";
@@ -107,6 +109,8 @@ public class VisualFlowMapModel {
   private boolean showSelfLoops = true;
   private boolean fillEdgesWithGradient = true;
   private boolean useProportionalDirectionMarkers = true;
+  private boolean batchedEdges = false;
+  private boolean tileCache = false;
 
 
 //  private int edgeAlpha = 150;
@@ -173,6 +177,8 @@ public class VisualFlowMapModel {
     model.setShowSelfLoops(config.getBoolOrElse(VIEWCONF_SHOW_SELF_LOOPS, true));
     model.setShowNodes(config.getBoolOrElse(VIEWCONF_SHOW_NODES, true));
     model.setFillEdgesWithGradient(config.getBoolOrElse(VIEWCONF_FILL_EDGES_WITH_GRADIENT, true));
+    model.setBatchedEdges(config.getBoolOrElse(VIEWCONF_BATCHED_EDGES, false));
+    model.setTileCache(config.getBoolOrElse(VIEWCONF_TILE_CACHE, false));
 
     model.setValueType(ValueType.valueOf(
         config.getStringOrElse(VIEWCONF_VALUE_TYPE, "value").toUpperCase()));
@@ -384,6 +390,32 @@ public class VisualFlowMapModel {
     }
   }
 
+  public boolean getBatchedEdges() {
+    return batchedEdges;
+  }
+
+  /**
+   * If set, the edges are drawn all at once by a {@link BatchedEdgeLayer} instead
+   * of being separate nodes of the scene graph. Takes effect when the visual flow
+   * map is created.
+   */
+  public void setBatchedEdges(boolean value) {
+    this.batchedEdges = value;
+  }
+
+  public boolean getTileCache() {
+    return tileCache;
+  }
+
+  /**
+   * If set, the area map and the edges are painted from raster tiles cached
+   * by a {@link jflowmap.util.piccolo.PTiledLayer}. Takes effect when the
+   * visual flow map is created.
+   */
+  public void setTileCache(boolean value) {
+    this.tileCache = value;
+  }
+
   public boolean getFillEdgesWithGradient() {
     return fillEdgesWithGradient;
   }
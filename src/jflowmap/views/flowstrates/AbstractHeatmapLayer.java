@@ -18,11 +18,10 @@
 
 package jflowmap.views.flowstrates;
 
-import java.util.List;
-
 import jflowmap.FlowEndpoint;
 import jflowmap.data.SeqStat;
-import prefuse.data.Edge;
+
+import com.google.common.primitives.Doubles;
 
 /**
  * @author Ilya Boyandin
@@ -53,8 +52,6 @@ public abstract class AbstractHeatmapLayer extends TemporalViewLayer {
     MapLayer originMap = getFlowstratesView().getMapLayer(FlowEndpoint.ORIGIN);
     MapLayer destMap = getFlowstratesView().getMapLayer(FlowEndpoint.DEST);
 
-    List<Edge> edges = getFlowstratesView().getVisibleEdges();
-
     SeqStat wstat = getFlowstratesView().getValueStat();
 
     if (hover) {
@@ -63,8 +60,8 @@ public abstract class AbstractHeatmapLayer extends TemporalViewLayer {
           // "merge" the value stats with the max value of the sums, to construct a color
           // scale in which we can represent the totals for the nodes
           wstat = wstat
-              .mergeWith(originMap.calcNodeTotalsFor(edges, attr).values())
-              .mergeWith(destMap.calcNodeTotalsFor(edges, attr).values());
+              .mergeWith(Doubles.asList(originMap.getVisibleEdgesNodeTotals(attr)))
+              .mergeWith(Doubles.asList(destMap.getVisibleEdgesNodeTotals(attr)));
         }
         weightAttrTotalsStat = wstat;
       }
@@ -19,9 +19,20 @@ public class DefaultAggLayersBuilder implements AggLayersBuilder {
   public static final String BY_ORIGIN_LAYER = "Origin";
   public static final String ALL_TO_ALL_LAYER = "All-to-all";
 
+  private boolean lazyLayers = false;
+
+  /**
+   * If true, the aggregation layers are only built when they are first selected.
+   */
+  public void setLazyLayers(boolean lazyLayers) {
+    this.lazyLayers = lazyLayers;
+  }
+
   @Override
   public FlowMapGraphAggLayers build(FlowMapGraph flowMapGraph) {
-    return createBuilder(flowMapGraph).build(null);
+    return createBuilder(flowMapGraph)
+        .withLazyLayers(lazyLayers)
+        .build(null);
   }
 
   protected Builder createBuilder(FlowMapGraph flowMapGraph) {
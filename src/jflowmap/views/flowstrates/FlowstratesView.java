@@ -28,6 +28,8 @@ import java.beans.PropertyChangeSupport;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.swing.AbstractAction;
 import javax.swing.JComponent;
@@ -50,6 +52,7 @@ import jflowmap.data.ViewConfig;
 import jflowmap.geo.MapProjection;
 import jflowmap.models.map.GeoMap;
 import jflowmap.util.ColorUtils;
+import jflowmap.util.ConcurrencyUtils;
 import jflowmap.util.piccolo.PBoxLayoutNode;
 import jflowmap.util.piccolo.PButton;
 import jflowmap.util.piccolo.PNodes;
@@ -129,6 +132,11 @@ public class FlowstratesView extends AbstractCanvasView {
 
   private List<Edge> visibleEdges;
   private Map<Edge, Integer> visibleEdgeToIndex;
+  private VisibleEdgesNodeTotals visibleEdgesNodeTotals;
+  private Future<?> visibleEdgesNodeTotalsPrecalc;
+  /** Shared by all the views, so that the views don't have to shut it down */
+  private static final ExecutorService nodeTotalsExecutor =
+    ConcurrencyUtils.newDaemonPool(1, "flowstratesNodeTotals");
   private Predicate<Edge> customEdgeFilter;
 
   private TemporalViewLayer temporalLayer;
@@ -185,16 +193,24 @@ public class FlowstratesView extends AbstractCanvasView {
     if (aggregator == null) {
       aggregator = new DefaultAggLayersBuilder();
     }
+    if (aggregator instanceof DefaultAggLayersBuilder) {
+      ((DefaultAggLayersBuilder)aggregator).setLazyLayers(
+          config.getBoolOrElse(ViewConfig.PROP_DATA_AGGREGATOR_LAZY, false));
+    }
     this.layers = aggregator.build(fmg);
 
-    for (FlowMapGraph g : layers.getFlowMapGraphs()) {
-      g.addEdgeWeightDifferenceColumns();
-      g.addEdgeWeightRelativeDifferenceColumns();
-
-      FlowMapNodeTotals.supplyNodesWithWeightTotals(g);
-      FlowMapNodeTotals.supplyNodesWithWeightTotals(g, g.getEdgeWeightDiffAttr());
-      FlowMapNodeTotals.supplyNodesWithWeightTotals(g, g.getEdgeWeightRelativeDiffAttrNames());
-    }
+    layers.setLayerInitializer(new FlowMapGraphAggLayers.LayerInitializer() {
+      @Override
+      public void init(FlowMapGraph g) {
+        g.addEdgeWeightDifferenceColumns();
+        g.addEdgeWeightRelativeDifferenceColumns();
+
+        List<String> attrs = Lists.newArrayList(g.getEdgeWeightAttrs());
+        attrs.addAll(g.getEdgeWeightDiffAttr());
+        attrs.addAll(g.getEdgeWeightRelativeDiffAttrNames());
+        FlowMapNodeTotals.supplyNodesWithWeightTotals(g, attrs);
+      }
+    });
 
 
     SwingUtilities.invokeLater(new Runnable() {
@@ -587,6 +603,8 @@ public class FlowstratesView extends AbstractCanvasView {
   public void resetVisibleEdges() {
     this.visibleEdges = null;
     this.visibleEdgeToIndex = null;
+    this.visibleEdgesNodeTotals = null;
+    cancelNodeTotalsPrecalc();
     resetValueStat();
     temporalLayer.renew();
     getFlowLinesLayerNode().renewFlowLines();
@@ -743,13 +761,15 @@ public class FlowstratesView extends AbstractCanvasView {
   List<Edge> getVisibleEdges() {
     if (visibleEdges == null) {
       List<Edge> edges = Lists.newArrayList(
-          getTopEdges(Iterables.filter(removeEdgesWithOnlyNaNs(layers.getEdges()),
+          getTopEdges(Iterables.filter(removeEdgesWithOnlyNaNs(layers.edges()),
           getEdgePredicate())));
 
       Collections.sort(edges, rowOrdering.getComparator(this));
 
       visibleEdges = edges;
       visibleEdgesStats = null;
+      visibleEdgesNodeTotals = new VisibleEdgesNodeTotals(edges);
+      startNodeTotalsPrecalc();
 
       if (flowLinesLayerNode != null) {
         flowLinesLayerNode.updatePalette();
@@ -759,6 +779,44 @@ public class FlowstratesView extends AbstractCanvasView {
     return visibleEdges;
   }
 
+  /**
+   * Node totals of the visible edges which are used to colorize the map areas
+   * when hovering over the heatmap columns. The totals for the current value type
+   * are precalculated in background every time the visible edges change.
+   */
+  VisibleEdgesNodeTotals getVisibleEdgesNodeTotals() {
+    getVisibleEdges();
+    return visibleEdgesNodeTotals;
+  }
+
+  private void startNodeTotalsPrecalc() {
+    cancelNodeTotalsPrecalc();
+    List<String> valueAttrs = Lists.newArrayList();
+    FlowMapAttrSpec attrSpec = flowMapGraph.getAttrSpec();
+    for (String attr : flowMapGraph.getEdgeWeightAttrs()) {
+      valueAttrs.add(valueType.getColumnValueAttr(attrSpec, attr));
+    }
+    final Runnable precalc = visibleEdgesNodeTotals.precalcTask(valueAttrs);
+    visibleEdgesNodeTotalsPrecalc = nodeTotalsExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          precalc.run();
+        } catch (RuntimeException re) {
+          // the totals will be calculated on demand
+          logger.warn("Could not precalculate node totals", re);
+        }
+      }
+    });
+  }
+
+  private void cancelNodeTotalsPrecalc() {
+    if (visibleEdgesNodeTotalsPrecalc != null) {
+      visibleEdgesNodeTotalsPrecalc.cancel(true);
+      visibleEdgesNodeTotalsPrecalc = null;
+    }
+  }
+
   public int getVisibleEdgeIndex(Edge edge) {
     Integer idx = getOrInitVisibleEdgesToIndex().get(edge);
     if (idx == null) {
@@ -795,6 +853,9 @@ public class FlowstratesView extends AbstractCanvasView {
   public void setValueType(ValueType valueType) {
     if (this.valueType != valueType) {
       this.valueType = valueType;
+      if (visibleEdgesNodeTotals != null) {
+        startNodeTotalsPrecalc();
+      }
       resetValueStat();
     }
   }
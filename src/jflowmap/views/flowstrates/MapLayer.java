@@ -472,14 +472,22 @@ public class MapLayer extends PLayer implements ViewLayer {
   }
 
   void updateOnHeatmapColumnHover(String columnAttr, boolean hover) {
-    Iterable<Edge> edges;
-    // if (flowstratesView.isFilterApplied()) {
-    edges = flowstratesView.getVisibleEdges();
-    // } else {
-    // edges = getFlowMapGraph().edges();
-    // }
     setCentroidsOpaque(!hover);
-    colorizeMapAreasWithNodeTotals(edges, columnAttr, hover);
+
+    VisibleEdgesNodeTotals totals = flowstratesView.getVisibleEdgesNodeTotals();
+    List<String> nodeIds = totals.getNodeIds(endpoint);
+    double[] values = totals.getTotals(getColumnValueAttrName(columnAttr), endpoint);
+    for (int i = 0, size = nodeIds.size(); i < size; i++) {
+      colorizeMapArea(nodeIds.get(i), values[i], hover);
+    }
+  }
+
+  /**
+   * Totals of the visible edges for the nodes at this map's endpoint.
+   */
+  double[] getVisibleEdgesNodeTotals(String weightAttr) {
+    return flowstratesView.getVisibleEdgesNodeTotals().getTotals(
+        getColumnValueAttrName(weightAttr), endpoint);
   }
 
   private String getColumnValueAttrName(String columnAttr) {
@@ -0,0 +1,248 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.views.flowstrates;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jflowmap.FlowEndpoint;
+import jflowmap.FlowMapGraph;
+import prefuse.data.Edge;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Node totals of a fixed list of visible edges for every value attr.
+ * The totals are kept in primitive arrays indexed by the position of the
+ * node in the list of the distinct nodes of the respective endpoint,
+ * so that once an attr is calculated, looking up the totals doesn't require
+ * another pass over the edges.
+ * <p>
+ * The prefuse tuples aren't thread-safe, so the nodes and the table rows of the
+ * edges are resolved in the EDT when the instance is created. The background
+ * precalculation only reads the primitive values of the columns resolved
+ * in the EDT (see {@link #precalcTask(Iterable)}), while the totals are
+ * being read in the EDT.
+ *
+ * @author Ilya Boyandin
+ */
+class VisibleEdgesNodeTotals {
+
+  /** The distinct edge tables (the edges of several agg layers can be visible) */
+  private final List<Table> tables;
+  /** Per edge, the index of its table in tables */
+  private final int[] edgeTables;
+  private final int[] edgeRows;
+  private final EndpointIndex[] indices;
+
+  /** valueAttr -> [endpoint.ordinal()][nodeIndex] */
+  private final ConcurrentMap<String, double[][]> totals = new ConcurrentHashMap<String, double[][]>();
+
+  /**
+   * Must be called in the EDT.
+   */
+  public VisibleEdgesNodeTotals(List<Edge> visibleEdges) {
+    Map<Table, Integer> tableIndices = new IdentityHashMap<Table, Integer>();
+    List<Table> tableList = Lists.newArrayList();
+    int size = visibleEdges.size();
+    edgeTables = new int[size];
+    edgeRows = new int[size];
+    for (int i = 0; i < size; i++) {
+      Edge edge = visibleEdges.get(i);
+      Table table = edge.getTable();
+      Integer idx = tableIndices.get(table);
+      if (idx == null) {
+        idx = tableList.size();
+        tableIndices.put(table, idx);
+        tableList.add(table);
+      }
+      edgeTables[i] = idx;
+      edgeRows[i] = edge.getRow();
+    }
+    tables = ImmutableList.copyOf(tableList);
+
+    indices = new EndpointIndex[FlowEndpoint.values().length];
+    for (FlowEndpoint ep : FlowEndpoint.values()) {
+      indices[ep.ordinal()] = new EndpointIndex(visibleEdges, ep);
+    }
+  }
+
+  /**
+   * @return The ids of the distinct nodes of the edges at the given endpoint
+   *         in the order in which the totals are stored.
+   */
+  public List<String> getNodeIds(FlowEndpoint ep) {
+    return indices[ep.ordinal()].nodeIds;
+  }
+
+  /**
+   * Must be called in the EDT unless the totals for the attr were precalculated.
+   *
+   * @return The totals of the nodes returned by {@link #getNodeIds(FlowEndpoint)}.
+   *         The array must not be modified.
+   */
+  public double[] getTotals(String valueAttr, FlowEndpoint ep) {
+    double[][] t = totals.get(valueAttr);
+    if (t == null) {
+      t = putTotals(valueAttr, calcTotals(resolveColumns(valueAttr)));
+    }
+    return t[ep.ordinal()];
+  }
+
+  /**
+   * @return The total for the node or NaN if the node isn't an endpoint of any
+   *         of the edges or if all of its values are NaN.
+   */
+  public double getTotal(String nodeId, String valueAttr, FlowEndpoint ep) {
+    Integer idx = indices[ep.ordinal()].nodeIdToIndex.get(nodeId);
+    if (idx == null) {
+      return Double.NaN;
+    }
+    return getTotals(valueAttr, ep)[idx];
+  }
+
+  /**
+   * Resolves the columns of the given value attrs for which the totals weren't
+   * calculated yet. Must be called in the EDT. The attrs without a column
+   * in one of the edge tables are skipped: they will fail when requested.
+   *
+   * @return The task calculating the totals which is intended to be run in
+   *         a background thread
+   */
+  public Runnable precalcTask(Iterable<String> valueAttrs) {
+    final Map<String, Column[]> columns = Maps.newLinkedHashMap();
+    for (String attr : valueAttrs) {
+      if (!totals.containsKey(attr)) {
+        Column[] cols = resolveColumnsOrNull(attr);
+        if (cols != null) {
+          columns.put(attr, cols);
+        }
+      }
+    }
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (Map.Entry<String, Column[]> e : columns.entrySet()) {
+          if (Thread.currentThread().isInterrupted()) {
+            return;
+          }
+          if (!totals.containsKey(e.getKey())) {
+            putTotals(e.getKey(), calcTotals(e.getValue()));
+          }
+        }
+      }
+    };
+  }
+
+  private double[][] putTotals(String valueAttr, double[][] t) {
+    double[][] prev = totals.putIfAbsent(valueAttr, t);
+    return (prev != null ? prev : t);
+  }
+
+  private Column[] resolveColumns(String valueAttr) {
+    Column[] cols = resolveColumnsOrNull(valueAttr);
+    if (cols == null) {
+      throw new IllegalArgumentException("No edge column '" + valueAttr + "'");
+    }
+    return cols;
+  }
+
+  private Column[] resolveColumnsOrNull(String valueAttr) {
+    Column[] cols = new Column[tables.size()];
+    for (int i = 0; i < cols.length; i++) {
+      cols[i] = tables.get(i).getColumn(valueAttr);
+      if (cols[i] == null) {
+        return null;
+      }
+    }
+    return cols;
+  }
+
+  /**
+   * Same semantics as FlowMapNodeTotals.calcNodeTotalsFor: NaN values are skipped,
+   * but if all the values of a node are NaN, the total is NaN too.
+   *
+   * @param columns The value columns of the tables
+   */
+  private double[][] calcTotals(Column[] columns) {
+    EndpointIndex origins = indices[FlowEndpoint.ORIGIN.ordinal()];
+    EndpointIndex dests = indices[FlowEndpoint.DEST.ordinal()];
+    double[][] t = new double[FlowEndpoint.values().length][];
+    double[] out = t[FlowEndpoint.ORIGIN.ordinal()] = newNaNArray(origins.nodeIds.size());
+    double[] in = t[FlowEndpoint.DEST.ordinal()] = newNaNArray(dests.nodeIds.size());
+
+    int[] srcIdx = origins.edgeToNodeIndex;
+    int[] trgIdx = dests.edgeToNodeIndex;
+
+    for (int i = 0; i < edgeRows.length; i++) {
+      double v = columns[edgeTables[i]].getDouble(edgeRows[i]);
+      add(out, srcIdx[i], v);
+      add(in, trgIdx[i], v);
+    }
+    return t;
+  }
+
+  private static void add(double[] sums, int idx, double v) {
+    double sum = sums[idx];
+    if (Double.isNaN(sum)) {
+      sums[idx] = v;
+    } else if (!Double.isNaN(v)) {
+      sums[idx] = sum + v;
+    }
+  }
+
+  private static double[] newNaNArray(int size) {
+    double[] a = new double[size];
+    Arrays.fill(a, Double.NaN);
+    return a;
+  }
+
+  private static class EndpointIndex {
+    final List<String> nodeIds;
+    final Map<String, Integer> nodeIdToIndex;
+    final int[] edgeToNodeIndex;
+
+    EndpointIndex(List<Edge> edges, FlowEndpoint ep) {
+      Map<String, Integer> map = Maps.newHashMap();
+      ImmutableList.Builder<String> ids = ImmutableList.builder();
+      edgeToNodeIndex = new int[edges.size()];
+      for (int i = 0, size = edges.size(); i < size; i++) {
+        String nodeId = FlowMapGraph.getIdOfNode(ep.nodeOf(edges.get(i)));
+        Integer idx = map.get(nodeId);
+        if (idx == null) {
+          idx = map.size();
+          map.put(nodeId, idx);
+          ids.add(nodeId);
+        }
+        edgeToNodeIndex[i] = idx;
+      }
+      this.nodeIds = ids.build();
+      this.nodeIdToIndex = map;
+    }
+  }
+
+}
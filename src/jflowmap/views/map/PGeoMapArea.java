@@ -18,8 +18,12 @@
 
 package jflowmap.views.map;
 
+import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
 import java.awt.geom.Rectangle2D;
 
 import jflowmap.geo.MapProjection;
@@ -27,6 +31,7 @@ import jflowmap.models.map.MapArea;
 import jflowmap.views.ColorCodes;
 import jflowmap.views.flowmap.ColorSchemeAware;
 import edu.umd.cs.piccolo.nodes.PPath;
+import edu.umd.cs.piccolo.util.PPaintContext;
 import edu.umd.cs.piccolox.util.PFixedWidthStroke;
 
 /**
@@ -35,15 +40,19 @@ public class PGeoMapArea extends PPath {
 
   private static final long serialVersionUID = 1L;
   private static final PFixedWidthStroke mapStroke = new PFixedWidthStroke(1);
+  /** Max deviation of the painted outline from the actual one, in pixels */
+  private static final double LOD_TOLERANCE = 0.5;
   private final PGeoMap visualAreaMap;
   private final MapArea area;
+  private final MapProjection proj;
   private final Rectangle2D boundingBox;
 //  private PActivity lastActivity;
 
   public PGeoMapArea(PGeoMap visualAreaMap, MapArea area, MapProjection proj) {
-    super(area.asPath(proj));
+    super(area.asPath(proj), mapStroke);
     this.visualAreaMap = visualAreaMap;
     this.area = area;
+    this.proj = proj;
     this.boundingBox = area.asBoundingBox(proj);
     updateColors();
   }
@@ -66,7 +75,51 @@ public class PGeoMapArea extends PPath {
     Color strokePaint = cs.getColor(ColorCodes.AREA_STROKE);
     setPaint(paint);
     setStrokePaint(strokePaint);
-    setStroke(mapStroke);
+    if (getStroke() != mapStroke) {
+      setStroke(mapStroke);
+    }
+  }
+
+  /**
+   * Pads the bounds of the path by the maximum extent of the stroke instead of
+   * outlining the stroke, which would take longer than building the rest of the map.
+   */
+  @Override
+  public Rectangle2D getPathBoundsWithStroke() {
+    Rectangle2D bounds = getPathReference().getBounds2D();
+    if (getStroke() == mapStroke) {
+      double pad = mapStroke.getLineWidth() / 2;
+      if (mapStroke.getLineJoin() == BasicStroke.JOIN_MITER) {
+        pad *= Math.max(1, mapStroke.getMiterLimit());
+      }
+      bounds.setRect(bounds.getX() - pad, bounds.getY() - pad,
+          bounds.getWidth() + pad * 2, bounds.getHeight() + pad * 2);
+      return bounds;
+    }
+    return super.getPathBoundsWithStroke();
+  }
+
+  /**
+   * Paints the outline simplified for the current scale, so that zoomed out
+   * views of detailed maps don't draw lots of sub-pixel segments.
+   * Picking is still done on the full outline.
+   */
+  @Override
+  protected void paint(PPaintContext paintContext) {
+    Shape shape = area.asPath(proj, LOD_TOLERANCE / paintContext.getScale());
+    Graphics2D g2 = paintContext.getGraphics();
+    Paint paint = getPaint();
+    if (paint != null) {
+      g2.setPaint(paint);
+      g2.fill(shape);
+    }
+    Stroke stroke = getStroke();
+    Paint strokePaint = getStrokePaint();
+    if (stroke != null  &&  strokePaint != null) {
+      g2.setPaint(strokePaint);
+      g2.setStroke(stroke);
+      g2.draw(shape);
+    }
   }
 
   @Override
@@ -0,0 +1,49 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CoordinatesScannerTest {
+
+  @Test
+  public void testNumbersSplitBetweenChunks() {
+    CoordinatesScanner scanner = new CoordinatesScanner();
+    String text = " 43.953295,12.507754 , -0.5517,166.924862\n,1e3 ";
+    scanner.scan(text.substring(0, 5).toCharArray(), 0, 5);
+    char[] rest = ("xx" + text.substring(5)).toCharArray();
+    scanner.scan(rest, 2, rest.length - 2);
+
+    assertEquals(5, scanner.finish());
+    assertEquals(43.953295, scanner.get(0), 0);
+    assertEquals(12.507754, scanner.get(1), 0);
+    assertEquals(-0.5517, scanner.get(2), 0);
+    assertEquals(166.924862, scanner.get(3), 0);
+    assertEquals(1000, scanner.get(4), 0);
+
+    scanner.reset();
+    assertEquals(0, scanner.finish());
+  }
+
+  @Test
+  public void testParsesExactlyLikeParseDouble() {
+    for (String str : new String[] { "0", "-0", "+7", ".5", "5.", "1.5E-3", "0.1",
+        "9007199254740993", "0.1234567890123456789", "1e-30", "-179.999999" }) {
+      char[] chars = str.toCharArray();
+      assertEquals(str, Double.doubleToLongBits(Double.parseDouble(str)),
+          Double.doubleToLongBits(CoordinatesScanner.parseDouble(chars, chars.length)));
+    }
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testRejectsInvalidNumbers() {
+    CoordinatesScanner scanner = new CoordinatesScanner();
+    char[] chars = "1.5,abc".toCharArray();
+    scanner.scan(chars, 0, chars.length);
+    scanner.finish();
+  }
+
+}
@@ -0,0 +1,82 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CsvDisaggregatedFlowMapGraphReaderTest {
+
+  private static final String NODES =
+    "Code,Name,Lat,Lon\n" +
+    "A,Node A,1,2\n" +
+    "B,Node B,3,4\n";
+
+  private static final String FLOWS =
+    "Origin,Dest,Year\n" +
+    "A,B,2001\n" +
+    "A,B, 2002\n" +
+    "B,A,2001\n" +
+    "A,B,2001\n";
+
+  @Test
+  public void testDiscoversWeightAttrsInOnePass() throws IOException {
+    CsvDisaggregatedFlowMapGraphReader reader = createReader();
+    Iterable<String> attrs = reader.readWeightAttrs();
+    assertEquals(Arrays.asList("2001", "2002"), ImmutableList.copyOf(attrs));
+
+    FlowMapGraph fmg = reader.read(tempFile(NODES), attrSpec(attrs)).build();
+    assertEquals(2, fmg.getGraph().getEdgeCount());
+
+    Edge ab = fmg.getGraph().getEdge(0);
+    assertEquals("A", fmg.getSourceNodeId(ab));
+    assertEquals("B", fmg.getTargetNodeId(ab));
+    assertEquals(2, ab.getDouble("2001"), 0);
+    assertEquals(1, ab.getDouble("2002"), 0);
+
+    Edge ba = fmg.getGraph().getEdge(1);
+    assertEquals(1, ba.getDouble("2001"), 0);
+  }
+
+  @Test
+  public void testOnlyFlowsOfListedWeightAttrsAreCounted() throws IOException {
+    FlowMapGraph fmg = createReader().read(tempFile(NODES), attrSpec(Arrays.asList("2002"))).build();
+    assertEquals(1, fmg.getGraph().getEdgeCount());
+    assertEquals(1, fmg.getGraph().getEdge(0).getDouble("2002"), 0);
+  }
+
+  private CsvDisaggregatedFlowMapGraphReader createReader() throws IOException {
+    return new CsvDisaggregatedFlowMapGraphReader(tempFile(FLOWS), "Origin", "Dest", "Year", ',', "utf-8");
+  }
+
+  private static FlowMapAttrSpec attrSpec(Iterable<String> weightAttrs) {
+    return new FlowMapAttrSpec("Origin", "Dest", null, weightAttrs, "Code", "Name", "Lon", "Lat");
+  }
+
+  private static String tempFile(String content) throws IOException {
+    File file = File.createTempFile("jflowmap", ".csv");
+    file.deleteOnExit();
+    FileWriter w = new FileWriter(file);
+    try {
+      w.write(content);
+    } finally {
+      w.close();
+    }
+    return file.getAbsolutePath();
+  }
+
+}
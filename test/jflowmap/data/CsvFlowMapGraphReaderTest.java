@@ -0,0 +1,72 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import jflowmap.FlowMapAttrSpec;
+
+import org.junit.Test;
+
+import prefuse.data.Table;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CsvFlowMapGraphReaderTest {
+
+  private static final String NODES =
+    "Code,Name,Lat,Lon,Region\n" +
+    "A,Node A,1,2,North\n" +
+    "B,Node B,3,4,South\n";
+
+  private static final String FLOWS =
+    "Origin,Dest,2001,2002,2003,Note\n" +
+    "A,B,1,2,3,x\n" +
+    "B,A,4,5,6,y\n";
+
+  @Test
+  public void testUnusedFlowColumnsAreSkippedWhenProjecting() throws IOException {
+    CsvFlowMapGraphReader reader = createReader();
+    reader.getBuilder().withEdgeFilter("[2003] > 3").withEdgeAttrsProjection();
+    Table edges = reader.read().build().getGraph().getEdgeTable();
+
+    assertEquals(1, edges.getRowCount());
+    assertTrue(edges.canGetDouble("2002"));
+    assertTrue(edges.canGetDouble("2003"));
+    assertTrue(edges.canGetString("Origin"));
+    assertFalse(edges.canGetDouble("2001"));
+    assertFalse(edges.canGetString("Note"));
+  }
+
+  @Test
+  public void testAllFlowColumnsAreStoredByDefault() throws IOException {
+    Table edges = createReader().read().build().getGraph().getEdgeTable();
+    assertTrue(edges.canGetDouble("2001"));
+    assertTrue(edges.canGetString("Note"));
+  }
+
+  private static CsvFlowMapGraphReader createReader() throws IOException {
+    return new CsvFlowMapGraphReader(
+        new FlowMapAttrSpec("Origin", "Dest", null, Arrays.asList("2002"), "Code", "Name", "Lon", "Lat"),
+        tempFile(NODES), tempFile(FLOWS), ',', "utf-8");
+  }
+
+  private static String tempFile(String content) throws IOException {
+    File file = File.createTempFile("jflowmap", ".csv");
+    file.deleteOnExit();
+    FileWriter w = new FileWriter(file);
+    try {
+      w.write(content);
+    } finally {
+      w.close();
+    }
+    return file.getAbsolutePath();
+  }
+
+}
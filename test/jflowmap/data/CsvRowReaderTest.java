@@ -0,0 +1,92 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class CsvRowReaderTest {
+
+  @Test
+  public void testSplitsLikeOpenCsv() throws IOException {
+    String csv =
+      "a,b,c\r\n" +
+      " x , y ,\r\n" +
+      "\"quoted, value\",\"with \"\"quotes\"\"\",back\\\\slash\n" +
+      "\n" +
+      "\"multi\nline\",2,3\r" +
+      "last,,";
+    assertSameRows(csv);
+  }
+
+  @Test
+  public void testTrimsValues() throws IOException {
+    CsvRowReader reader = new CsvRowReader(new StringReader(" a\t,  ,b  "), ',');
+    assertTrue(reader.next());
+    assertEquals(3, reader.size());
+    assertEquals("a", reader.getString(0));
+    assertTrue(reader.isEmpty(1));
+    assertTrue(reader.contentEquals(2, "b"));
+    assertEquals("b".hashCode(), reader.hashCode(2));
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testGetDoubleIsSameAsParseDouble() throws IOException {
+    Random rnd = new Random(1);
+    List<String> values = Lists.newArrayList(
+        "0", "-0", "+.5", "5.", "1e3", "0x1p3", "NaN", "-Infinity", "1d",
+        "12345678901234567890", "0.1234567890123456789012345", "9007199254740993");
+    for (int i = 0; i < 1000; i++) {
+      values.add(Double.toString(rnd.nextDouble() * Math.pow(10, rnd.nextInt(20) - 10)));
+      values.add(String.format("%.6f", rnd.nextDouble() * 1e6));
+      values.add(Long.toString(rnd.nextLong() >> rnd.nextInt(64)));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String v : values) {
+      sb.append(v).append('\n');
+    }
+    CsvRowReader reader = new CsvRowReader(new StringReader(sb.toString()), ',');
+    for (String v : values) {
+      assertTrue(reader.next());
+      assertEquals(v, Double.valueOf(Double.parseDouble(v)), Double.valueOf(reader.getDouble(0)));
+    }
+    assertFalse(reader.next());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGetDoubleFailsForNonNumbers() throws IOException {
+    CsvRowReader reader = new CsvRowReader(new StringReader("abc"), ',');
+    reader.next();
+    reader.getDouble(0);
+  }
+
+  private static void assertSameRows(String csv) throws IOException {
+    CSVReader expected = new CSVReader(new StringReader(csv), ',');
+    CsvRowReader actual = new CsvRowReader(new StringReader(csv), ',');
+    String[] row;
+    while ((row = expected.readNext()) != null) {
+      assertTrue(actual.next());
+      for (int i = 0; i < row.length; i++) {
+        row[i] = row[i].trim();
+      }
+      assertArrayEquals(row, actual.toArray());
+    }
+    assertFalse(actual.next());
+  }
+
+}
@@ -100,6 +100,19 @@ public class FlowMapGraphEdgeAggregatorTest {
   }
 
 
+  @Test
+  public void testAggregateBySource_customValueAggregator() {
+    FlowMapGraph aggregated = new FlowMapGraphEdgeAggregator(fmg,
+        FlowMapGraphEdgeAggregator.GroupFunctions.SRC_NODE)
+        .withCustomValueAggregator("value", FlowMapGraphEdgeAggregator.ValueAggregators.DOUBLE_AVERAGE)
+        .aggregate();
+
+    assertEquals(
+        ImmutableSet.of("2->1,4: 150.0", "1->2,3,4: 300.0"),
+        serializeEdges(aggregated));
+  }
+
+
   private Set<String> serializeNodes(FlowMapGraph fmg) {
     Set<String> set = Sets.newHashSet();
     for (Node node : fmg.nodes()) {
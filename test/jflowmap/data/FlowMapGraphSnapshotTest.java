@@ -0,0 +1,124 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.geom.Point;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class FlowMapGraphSnapshotTest {
+
+  @Test
+  public void testReadsWhatWasWritten() throws IOException {
+    FlowMapGraph fmg = FlowMapGraphBuilderTest.buildTestFlowMapGraph();
+    // leave a gap in the node rows to check that the edges are remapped
+    fmg.getGraph().removeNode(2);
+    List<Point> points = Arrays.asList(new Point(1, 2), new Point(3, 4));
+    fmg.setEdgeSubdivisionPoints(fmg.getGraph().getEdge(0), points);
+
+    File file = tempFile();
+    FlowMapGraphSnapshot.write(fmg, file, 123);
+    FlowMapGraph read = FlowMapGraphSnapshot.read(file, 123);
+
+    Graph g = read.getGraph();
+    assertEquals("testGraph", read.getId());
+    assertEquals(fmg.getAttrSpec().getFlowWeightAttrs(), read.getAttrSpec().getFlowWeightAttrs());
+    assertEquals(3, g.getNodeCount());
+    assertEquals(4, g.getEdgeCount());
+    assertEquals(Arrays.asList("Node1", "Node2", "Node4"), Arrays.asList(
+        read.getNodeLabel(g.getNode(0)), read.getNodeLabel(g.getNode(1)),
+        read.getNodeLabel(g.getNode(2))));
+
+    Edge e = g.getEdge(2);
+    assertEquals("2", read.getSourceNodeId(e));
+    assertEquals("1", read.getTargetNodeId(e));
+    assertEquals(100, read.getEdgeWeight(e, "value"), 0);
+    assertEquals("4", read.getTargetNodeId(g.getEdge(3)));
+    assertEquals(points, read.getEdgeSubdivisionPoints(g.getEdge(0)));
+    assertNull(read.getEdgeSubdivisionPoints(g.getEdge(1)));
+  }
+
+  @Test
+  public void testOutdatedSnapshotIsIgnored() throws IOException {
+    File file = tempFile();
+    FlowMapGraphSnapshot.write(FlowMapGraphBuilderTest.buildTestFlowMapGraph(), file, 123);
+    assertNull(FlowMapGraphSnapshot.read(file, 124));
+  }
+
+  @Test
+  public void testChecksumDependsOnExtra() throws IOException {
+    List<String> none = Collections.emptyList();
+    assertEquals(FlowMapGraphSnapshot.checksumOf(none, "a"), FlowMapGraphSnapshot.checksumOf(none, "a"));
+    assertFalse(FlowMapGraphSnapshot.checksumOf(none, "a") == FlowMapGraphSnapshot.checksumOf(none, "b"));
+  }
+
+  @Test
+  public void testChecksumDependsOnFileModification() throws IOException {
+    File file = tempFile();
+    write(file, "a,b\n");
+    List<String> locations = Arrays.asList(file.getPath());
+    long checksum = FlowMapGraphSnapshot.checksumOf(locations, null);
+    assertEquals(checksum, FlowMapGraphSnapshot.checksumOf(locations, null));
+
+    write(file, "a,b,c\n");
+    assertFalse(checksum == FlowMapGraphSnapshot.checksumOf(locations, null));
+  }
+
+  @Test(expected = IOException.class)
+  public void testChecksumOfMissingSourceFails() throws IOException {
+    FlowMapGraphSnapshot.checksumOf(Arrays.asList("no/such/file.csv"), null);
+  }
+
+  @Test
+  public void testTruncatedSnapshotFailsWithIOException() throws IOException {
+    File file = tempFile();
+    FlowMapGraphSnapshot.write(FlowMapGraphBuilderTest.buildTestFlowMapGraph(), file, 123);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() / 2);
+    } finally {
+      raf.close();
+    }
+    try {
+      FlowMapGraphSnapshot.read(file, 123);
+      fail();
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("Corrupt snapshot"));
+    }
+  }
+
+  private static void write(File file, String content) throws IOException {
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static File tempFile() throws IOException {
+    File file = File.createTempFile("jflowmap", ".snapshot");
+    file.deleteOnExit();
+    return file;
+  }
+
+}
@@ -0,0 +1,60 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import jflowmap.FlowDirection;
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+
+import org.junit.Test;
+
+import prefuse.data.Graph;
+import prefuse.data.Node;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class FlowMapNodeTotalsTest {
+
+  @Test
+  public void testSupplyNodesWithWeightTotals() {
+    FlowMapGraph fmg = FlowMapGraphBuilderTest.buildTestFlowMapGraph();
+    FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg);
+
+    Graph g = fmg.getGraph();
+    assertTotals(g.getNode(0), "value", 900, 100);
+    assertTotals(g.getNode(1), "value", 300, 200);
+    assertTotals(g.getNode(2), "value", 0, 300);
+    assertTotals(g.getNode(3), "value", 0, 600);
+  }
+
+  @Test
+  public void testSupplyNodesWithWeightTotals_severalAttrsWithNaNs() {
+    FlowMapGraphBuilder builder =
+      new FlowMapGraphBuilder("testGraph", new FlowMapAttrSpec(
+          "flowSrcNodeAttr", "flowTargetNodeAttr", "legendCaption",
+          Arrays.asList("w1", "w2"), "label", "nodeLabelAttr", null, null));
+
+    Node node1 = builder.addNode("1", "Node1");
+    Node node2 = builder.addNode("2", "Node2");
+    builder.addEdge(node1, node2, Arrays.asList(1.0, Double.NaN));
+    builder.addEdge(node2, node1, Arrays.asList(2.0, 5.0));
+    builder.addEdge(node1, node1, Arrays.asList(Double.NaN, 7.0));
+    FlowMapGraph fmg = builder.build();
+
+    FlowMapNodeTotals.supplyNodesWithWeightTotals(fmg);
+
+    assertTotals(node1, "w1", 1, 2);
+    assertTotals(node2, "w1", 2, 1);
+    assertTotals(node1, "w2", 7, 12);
+    assertTotals(node2, "w2", 5, 0);
+  }
+
+  private static void assertTotals(Node node, String attr, double out, double in) {
+    assertEquals(out, FlowMapNodeTotals.getTotalWeight(node, attr, FlowDirection.OUTGOING), 1e-10);
+    assertEquals(in, FlowMapNodeTotals.getTotalWeight(node, attr, FlowDirection.INCOMING), 1e-10);
+  }
+
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertEquals;
 import java.util.List;
 import java.util.Set;
 
+import jflowmap.FlowDirection;
 import jflowmap.FlowMapGraph;
 import jflowmap.FlowMapGraphAggLayers;
 
@@ -13,7 +14,9 @@ import org.junit.Test;
 
 import prefuse.data.Edge;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
@@ -163,6 +166,7 @@ public class FlowsmapGraphAggLayersTest {
     layers.expandTarget(e2);
     layers.expandTarget(e3);
 
+    assertEquals(layers.getEdges(), ImmutableList.copyOf(layers.edges()));
     assertEquals(ImmutableSet.of(
         "1->2: 200.0", "1->3: 300.0", "1->4: 400.0", "2->1: 100.0", "2->4: 200.0"),
         serializeVisibleEdges(layers));
@@ -203,6 +207,87 @@ public class FlowsmapGraphAggLayersTest {
     layers.expandSource(e);  // not visible
   }
 
+  @Test
+  public void test_lazyLayersAddedBeforeTheirPrevLayers() {
+    FlowMapGraph fmg = FlowMapGraphBuilderTest.buildTestFlowMapGraph();
+
+    FlowMapGraphAggLayers.Builder builder = new FlowMapGraphAggLayers.Builder("base", fmg)
+        .withLazyLayers(true);
+    builder.addAggregationLayer(
+        "src-to-all", "src-node",
+        FlowMapGraphEdgeAggregator.GroupFunctions.MERGE_ALL);
+    builder.addAggregationLayer(
+        "src-node", null,
+        FlowMapGraphEdgeAggregator.GroupFunctions.SRC_NODE);
+    builder.addAggregationLayer(
+        "target-node", null,
+        FlowMapGraphEdgeAggregator.GroupFunctions.TARGET_NODE);
+
+    final List<String> initialized = Lists.newArrayList();
+    FlowMapGraphAggLayers lazyLayers = builder.build(null);
+    lazyLayers.setLayerInitializer(new FlowMapGraphAggLayers.LayerInitializer() {
+      @Override
+      public void init(FlowMapGraph g) {
+        synchronized (initialized) {
+          initialized.add(g.getId());
+        }
+      }
+    });
+    assertEquals(1, initialized.size());
+
+    lazyLayers.setSelectedLayer("src-to-all");
+    assertEquals(3, initialized.size());
+    assertEquals(ImmutableSet.of("1,2->1,4,2,3,4: 1200.0"), serializeVisibleEdges(lazyLayers));
+
+    lazyLayers.expandSource(lazyLayers.getEdges().get(0));
+    assertEquals(ImmutableSet.of("1->2,3,4: 900.0", "2->1,4: 300.0"), serializeVisibleEdges(lazyLayers));
+  }
+
+  @Test
+  public void test_lazyLayersAggregatedFromInitializedLayers() {
+    FlowMapGraph fmg = FlowMapGraphBuilderTest.buildTestFlowMapGraph();
+
+    FlowMapGraphAggLayers.Builder builder = new FlowMapGraphAggLayers.Builder("base", fmg)
+        .withLazyLayers(true);
+    builder.addAggregationLayer(
+        "src-node", null,
+        FlowMapGraphEdgeAggregator.GroupFunctions.SRC_NODE);
+    builder.addAggregationLayer(
+        "src-to-all", "src-node",
+        FlowMapGraphEdgeAggregator.GroupFunctions.MERGE_ALL);
+
+    FlowMapGraphAggLayers lazyLayers = builder.build(null);
+    // adds the columns like the initializer of the flowstrates view
+    lazyLayers.setLayerInitializer(new FlowMapGraphAggLayers.LayerInitializer() {
+      @Override
+      public void init(FlowMapGraph g) {
+        g.addEdgeWeightDifferenceColumns();
+        g.addEdgeWeightRelativeDifferenceColumns();
+        List<String> attrs = Lists.newArrayList(g.getEdgeWeightAttrs());
+        attrs.addAll(g.getEdgeWeightDiffAttr());
+        attrs.addAll(g.getEdgeWeightRelativeDiffAttrNames());
+        FlowMapNodeTotals.supplyNodesWithWeightTotals(g, attrs);
+      }
+    });
+
+    lazyLayers.setSelectedLayer("src-to-all");
+    assertEquals(ImmutableSet.of("1,2->1,4,2,3,4: 1200.0"), serializeVisibleEdges(lazyLayers));
+    Edge edge = lazyLayers.getEdges().get(0);
+    assertEquals(1200.0, FlowMapNodeTotals.getTotalWeight(
+        edge.getSourceNode(), "value", FlowDirection.OUTGOING), 1e-10);
+    assertEquals(1200.0, FlowMapNodeTotals.getTotalWeight(
+        edge.getTargetNode(), "value", FlowDirection.INCOMING), 1e-10);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void test_cyclicLayers() {
+    FlowMapGraphAggLayers.Builder builder = new FlowMapGraphAggLayers.Builder(
+        "base", FlowMapGraphBuilderTest.buildTestFlowMapGraph());
+    builder.addAggregationLayer("a", "b", FlowMapGraphEdgeAggregator.GroupFunctions.MERGE_ALL);
+    builder.addAggregationLayer("b", "a", FlowMapGraphEdgeAggregator.GroupFunctions.MERGE_ALL);
+    builder.build(null);
+  }
+
   private static Set<String> serializeVisibleEdges(FlowMapGraphAggLayers ft) {
     Set<String> set = Sets.newHashSet();
     for (Edge edge : ft.getEdges()) {
@@ -0,0 +1,121 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jflowmap.models.map.GeoMap;
+import jflowmap.models.map.MapArea;
+import jflowmap.models.map.Polygon;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class GeoMapCacheTest {
+
+  private static GeoMap createMap() {
+    return new GeoMap("test", Arrays.asList(
+        new MapArea("A", "Area A", new Polygon[] {
+            new Polygon(new double[] { 0, 0, 2, 0, 2, 1, 0, 0 }, null),
+            new Polygon(new double[] { 5, 5, 6, 7, 5, 5 }, null),
+            new Polygon(new double[] { 0, 0, 0, 4, 4, 4, 4, 0, 0, 0,  1, 1, 2, 1, 2, 2, 1, 1 },
+                new int[] { 0, 5 }, null) }),
+        new MapArea("B", null, new Polygon[] { new Polygon(new double[0], null) })));
+  }
+
+  @Test
+  public void testReadsWhatWasWritten() throws IOException {
+    File file = tempFile();
+    GeoMapCache.write(createMap(), file, 42);
+    GeoMap map = GeoMapCache.read(file, 42);
+
+    assertEquals("test", map.getName());
+    List<MapArea> areas = ImmutableList.copyOf(map.getAreas());
+    assertEquals(2, areas.size());
+    assertEquals("Area A", areas.get(0).getName());
+    assertNull(areas.get(1).getName());
+
+    Polygon[] polygons = areas.get(0).getPolygons();
+    assertEquals(3, polygons.length);
+    assertArrayEquals(createMap().getAreas().iterator().next().getPolygons()[1].getPoints(),
+        polygons[1].getPoints());
+    assertEquals(new Rectangle2D.Double(0, 0, 2, 1), polygons[0].getBounds());
+    assertEquals(0, areas.get(1).getPolygons()[0].getNumPoints());
+
+    Polygon withHole = polygons[2];
+    assertEquals(2, withHole.getNumRings());
+    assertEquals(5, withHole.getRingStart(1));
+    assertEquals(9, withHole.getRingEnd(1));
+    assertEquals(1.0, withHole.getX(5), 0);
+  }
+
+  @Test
+  public void testOutdatedCacheIsIgnored() throws IOException {
+    File file = tempFile();
+    GeoMapCache.write(createMap(), file, 42);
+    assertNull(GeoMapCache.read(file, 43));
+  }
+
+  @Test
+  public void testConcurrentLoadsOfTheSameMapLoadItOnce() throws Exception {
+    final long checksum = System.nanoTime();
+    final AtomicInteger numLoads = new AtomicInteger();
+    final CountDownLatch loading = new CountDownLatch(1);
+    final Callable<GeoMap> loader = new Callable<GeoMap>() {
+      @Override
+      public GeoMap call() throws Exception {
+        numLoads.incrementAndGet();
+        loading.await(5, TimeUnit.SECONDS);
+        return createMap();
+      }
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<GeoMap>> futures = Lists.newArrayList();
+      for (int i = 0; i < 3; i++) {
+        futures.add(pool.submit(new Callable<GeoMap>() {
+          @Override
+          public GeoMap call() throws Exception {
+            return GeoMapCache.getOrLoad(checksum, loader);
+          }
+        }));
+      }
+      Thread.sleep(100);
+      loading.countDown();
+      GeoMap map = futures.get(0).get();
+      for (Future<GeoMap> f : futures) {
+        assertSame(map, f.get());
+      }
+      assertSame(map, GeoMapCache.getOrLoad(checksum, loader));
+      assertEquals(1, numLoads.get());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static File tempFile() throws IOException {
+    File file = File.createTempFile("jflowmap", ".geomap");
+    file.deleteOnExit();
+    return file;
+  }
+
+}
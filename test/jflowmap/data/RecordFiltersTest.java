@@ -0,0 +1,128 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class RecordFiltersTest {
+
+  private static final String NODES =
+    "Code,Name,Lat,Lon,Region\n" +
+    "A,Node A,1,2,North\n" +
+    "B,Node B,3,4,South\n" +
+    "C,Node C,5,6,North\n";
+
+  private static final String FLOWS =
+    "Origin,Dest,2001,2002\n" +
+    "A,B,10,20\n" +
+    "A,C,5,\n" +
+    "C,A,30,40\n" +
+    "C,C,50,60\n";
+
+  private static final String NODES_WITH_EMPTY_FIRST_REGION =
+    "Code,Name,Lat,Lon,Region\n" +
+    "A,Node A,1,2,\n" +
+    "B,Node B,3,4,North\n" +
+    "C,Node C,5,6,North\n";
+
+  private static final String FLOWS_WITH_EMPTY_FIRST_MODE =
+    "Origin,Dest,Mode,2001\n" +
+    "B,C,,10\n" +
+    "C,B,Air,20\n" +
+    "A,B,Air,30\n";
+
+  private static final String GRAPHML =
+    "<graphml>\n" +
+    "<key id='region' for='node' attr.name='Region' attr.type='string'/>\n" +
+    "<key id='w' for='edge' attr.name='2001' attr.type='double'/>\n" +
+    "<graph id='g' edgedefault='directed'>\n" +
+    "<edge source='B' target='A'><data key='w'>1</data></edge>\n" +
+    "<node id='A'><data key='region'>North</data></node>\n" +
+    "<node id='B'><data key='region'>South</data></node>\n" +
+    "<node id='C'><data key='region'>North</data></node>\n" +
+    "<edge source='A' target='B'><data key='w'>10</data></edge>\n" +
+    "<edge source='A' target='C'><data key='w'>5</data></edge>\n" +
+    "<edge source='C' target='A'><data key='w'>30</data></edge>\n" +
+    "<edge source='C' target='C'><data key='w'>50</data></edge>\n" +
+    "</graph>\n" +
+    "</graphml>\n";
+
+  private static final RecordFilters FILTERS = new RecordFilters(
+      "[Region] = 'North'", "[source] != [target]", null, "NOT ISNAN([#weightAttr#])");
+
+  @Test
+  public void testCsvRecordsAreFilteredWhileLoading() throws IOException {
+    FlowMapGraph fmg = CsvFlowMapGraphReader.readFlowMapGraph(
+        tempFile(NODES), tempFile(FLOWS),
+        new FlowMapAttrSpec("Origin", "Dest", null, Arrays.asList("2001", "2002"),
+            "Code", "Name", "Lon", "Lat"),
+        ',', "utf-8", FILTERS).build();
+
+    Graph g = fmg.getGraph();
+    assertEquals(2, g.getNodeCount());
+    assertEquals(1, g.getEdgeCount());
+    assertEquals("C", fmg.getSourceNodeId(g.getEdge(0)));
+    assertEquals("A", fmg.getTargetNodeId(g.getEdge(0)));
+  }
+
+  @Test
+  public void testCsvRecordsAreFilteredWhenFirstFilteredValueIsEmpty() throws IOException {
+    FlowMapGraph fmg = CsvFlowMapGraphReader.readFlowMapGraph(
+        tempFile(NODES_WITH_EMPTY_FIRST_REGION), tempFile(FLOWS_WITH_EMPTY_FIRST_MODE),
+        new FlowMapAttrSpec("Origin", "Dest", null, Arrays.asList("2001"),
+            "Code", "Name", "Lon", "Lat"),
+        ',', "utf-8", new RecordFilters("[Region] = 'North'", "[Mode] = 'Air'", null, null))
+        .build();
+
+    Graph g = fmg.getGraph();
+    assertEquals(2, g.getNodeCount());
+    assertEquals(1, g.getEdgeCount());
+    Edge edge = (Edge)g.edges().next();
+    assertEquals("C", fmg.getSourceNodeId(edge));
+    assertEquals("B", fmg.getTargetNodeId(edge));
+  }
+
+  @Test
+  public void testGraphMLRecordsAreFilteredWhileLoading() throws IOException {
+    StaxGraphMLReader reader = new StaxGraphMLReader();
+    reader.setRecordFilters(FILTERS);
+    Graph g = reader.readFromStream(new ByteArrayInputStream(GRAPHML.getBytes("utf-8")))
+        .iterator().next();
+
+    assertEquals(2, g.getNodeCount());
+    assertEquals(2, g.getEdgeCount());
+    assertEquals(Arrays.asList("A", "C"), Arrays.asList(
+        g.getNode(0).getString(FlowMapGraph.GRAPH_NODE_ID_COLUMN),
+        g.getNode(1).getString(FlowMapGraph.GRAPH_NODE_ID_COLUMN)));
+    assertEquals(5, g.getEdge(0).getDouble("2001"), 0);
+    assertEquals(30, g.getEdge(1).getDouble("2001"), 0);
+  }
+
+  private static String tempFile(String content) throws IOException {
+    File file = File.createTempFile("jflowmap", ".csv");
+    file.deleteOnExit();
+    FileWriter w = new FileWriter(file);
+    try {
+      w.write(content);
+    } finally {
+      w.close();
+    }
+    return file.getAbsolutePath();
+  }
+
+}
@@ -0,0 +1,187 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import jflowmap.models.map.MapArea;
+import jflowmap.models.map.Polygon;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class ShapefileReaderTest {
+
+  private static String shpLocation;
+
+  @BeforeClass
+  public static void writeShapefile() throws IOException {
+    File dir = File.createTempFile("jflowmap", "shp");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+    File shp = new File(dir, "test.shp");
+    File dbf = new File(dir, "test.dbf");
+    shp.deleteOnExit();
+    dbf.deleteOnExit();
+
+    double[][][] records = {
+        // clockwise exterior ring with a counterclockwise hole
+        { { 0, 0, 0, 10, 10, 10, 10, 0, 0, 0 }, { 2, 2, 4, 2, 4, 4, 2, 4, 2, 2 } },
+        // two exterior rings
+        { { 20, 20, 20, 21, 21, 21, 20, 20 }, { 30, 30, 30, 31, 31, 31, 30, 30 } },
+        // null shape
+        null
+    };
+    write(shp, shapefile(records));
+    write(dbf, dbf(new String[] { "A", "B", "C" }, new int[] { 100, 5, 0 }));
+    shpLocation = shp.getPath();
+  }
+
+  @Test
+  public void testReadsHoles() throws IOException {
+    List<MapArea> areas = ImmutableList.copyOf(
+        ShapefileReader.readMap(shpLocation, "NAME", null, null).getAreas());
+    assertEquals(3, areas.size());
+    assertEquals("A", areas.get(0).getId());
+
+    Polygon[] polygons = areas.get(0).getPolygons();
+    assertEquals(1, polygons.length);
+    assertEquals(2, polygons[0].getNumRings());
+    assertEquals(5, polygons[0].getRingStart(1));
+    assertEquals(2.0, polygons[0].getX(5), 0);
+
+    assertEquals(2, areas.get(1).getPolygons().length);
+    assertEquals(1, areas.get(1).getPolygons()[1].getNumRings());
+    assertEquals(0, areas.get(2).getPolygons().length);
+  }
+
+  @Test
+  public void testNoDbfNeededWithoutIdField() throws IOException {
+    List<MapArea> areas = ImmutableList.copyOf(
+        ShapefileReader.readMap(shpLocation, null, null, null).getAreas());
+    assertEquals(3, areas.size());
+    assertNull(areas.get(0).getId());
+  }
+
+  @Test
+  public void testSelectWhere() throws IOException {
+    List<MapArea> areas = ImmutableList.copyOf(
+        ShapefileReader.readMap(shpLocation, "NAME", "POP > 10", null).getAreas());
+    assertEquals(1, areas.size());
+    assertEquals("A", areas.get(0).getId());
+  }
+
+  @Test
+  public void testSelectBoundingBox() throws IOException {
+    List<MapArea> areas = ImmutableList.copyOf(ShapefileReader.readMap(
+        shpLocation, "NAME", null, new Rectangle2D.Double(25, 25, 10, 10)).getAreas());
+    assertEquals(1, areas.size());
+    assertEquals("B", areas.get(0).getId());
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownIdField() throws IOException {
+    ShapefileReader.readMap(shpLocation, "ISO", null, null);
+  }
+
+  private static byte[] shapefile(double[][][] records) {
+    ByteBuffer buf = ByteBuffer.allocate(1 << 12);
+    buf.position(100);
+    for (int r = 0; r < records.length; r++) {
+      buf.order(ByteOrder.BIG_ENDIAN);
+      buf.putInt(r + 1);
+      int lengthPos = buf.position();
+      buf.putInt(0);
+      int start = buf.position();
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      if (records[r] == null) {
+        buf.putInt(0);
+      } else {
+        double[][] parts = records[r];
+        int numPoints = 0;
+        for (double[] part : parts) numPoints += part.length / 2;
+        buf.putInt(5);
+        for (int i = 0; i < 4; i++) {
+          buf.putDouble(bound(parts, i));
+        }
+        buf.putInt(parts.length);
+        buf.putInt(numPoints);
+        int partStart = 0;
+        for (double[] part : parts) {
+          buf.putInt(partStart);
+          partStart += part.length / 2;
+        }
+        for (double[] part : parts) {
+          for (double c : part) buf.putDouble(c);
+        }
+      }
+      buf.order(ByteOrder.BIG_ENDIAN).putInt(lengthPos, (buf.position() - start) / 2);
+    }
+    int length = buf.position();
+    buf.order(ByteOrder.BIG_ENDIAN).putInt(0, 9994).putInt(24, length / 2);
+    buf.order(ByteOrder.LITTLE_ENDIAN).putInt(28, 1000).putInt(32, 5);
+    byte[] bytes = new byte[length];
+    System.arraycopy(buf.array(), 0, bytes, 0, length);
+    return bytes;
+  }
+
+  /**
+   * @param which 0 = minX, 1 = minY, 2 = maxX, 3 = maxY
+   */
+  private static double bound(double[][] parts, int which) {
+    double v = (which < 2 ? Double.MAX_VALUE : -Double.MAX_VALUE);
+    for (double[] part : parts) {
+      for (int i = which % 2; i < part.length; i += 2) {
+        v = (which < 2 ? Math.min(v, part[i]) : Math.max(v, part[i]));
+      }
+    }
+    return v;
+  }
+
+  private static byte[] dbf(String[] names, int[] pops) {
+    int recordLength = 1 + 10 + 8;
+    int headerLength = 32 + 2 * 32 + 1;
+    ByteBuffer buf = ByteBuffer.allocate(headerLength + names.length * recordLength + 1)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buf.put((byte)3).put(new byte[3]).putInt(names.length)
+        .putShort((short)headerLength).putShort((short)recordLength).put(new byte[20]);
+    field(buf, "NAME", 'C', 10);
+    field(buf, "POP", 'N', 8);
+    buf.put((byte)0x0D);
+    for (int i = 0; i < names.length; i++) {
+      buf.put((byte)' ');
+      buf.put(String.format("%-10s%8d", names[i], pops[i]).getBytes());
+    }
+    buf.put((byte)0x1A);
+    return buf.array();
+  }
+
+  private static void field(ByteBuffer buf, String name, char type, int length) {
+    byte[] nameBytes = new byte[11];
+    System.arraycopy(name.getBytes(), 0, nameBytes, 0, name.length());
+    buf.put(nameBytes).put((byte)type).put(new byte[4]).put((byte)length).put(new byte[15]);
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,169 @@
+package jflowmap.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import jflowmap.FlowMapGraph;
+import jflowmap.util.Tables;
+
+import org.junit.Test;
+
+import prefuse.data.Graph;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class StaxGraphMLReaderTest {
+
+  private static final String GRAPHML =
+    "<graphml>\n" +
+    "<key id='name' for='node' attr.name='name' attr.type='string'/>\n" +
+    "<key id='y1' for='edge' attr.name='2001' attr.type='double'/>\n" +
+    "<key id='y2' for='edge' attr.name='2002' attr.type='double'/>\n" +
+    "<key id='y3' for='edge' attr.name='2003' attr.type='double'/>\n" +
+    "<key id='note' for='edge' attr.name='note' attr.type='string'/>\n" +
+    "<graph id='g' edgedefault='directed'>\n" +
+    "<node id='A'><data key='name'>Node A</data></node>\n" +
+    "<node id='B'><data key='name'>Node B</data></node>\n" +
+    "<edge source='A' target='B'>" +
+    "<data key='y1'>1</data><data key='y2'>2</data><data key='y3'>3</data><data key='note'>x</data>" +
+    "</edge>\n" +
+    "</graph>\n" +
+    "</graphml>\n";
+
+  @Test
+  public void testOnlyWeightAndFilterEdgeAttrsAreReadWhenProjecting() throws IOException {
+    StaxGraphMLReader reader = new StaxGraphMLReader();
+    reader.setProjectEdgeAttrs(true);
+    reader.setRecordFilters(new RecordFilters(null, "[2003] > 0", null, null));
+    reader.setWeightAttrs(new Function<Iterable<String>, Iterable<String>>() {
+      public Iterable<String> apply(Iterable<String> attrs) {
+        assertEquals(Arrays.asList("2001", "2002", "2003", "note"), ImmutableList.copyOf(attrs));
+        return Arrays.asList("2002");
+      }
+    });
+    Graph g = read(reader);
+
+    assertEquals(Arrays.asList("source", "target", "2002", "2003"), Tables.columns(g.getEdgeTable()));
+    assertEquals(2, g.getEdge(0).getDouble("2002"), 0);
+    assertEquals(3, g.getEdge(0).getDouble("2003"), 0);
+    assertEquals("Node B", g.getNode(1).getString("name"));
+  }
+
+  @Test
+  public void testAllEdgeAttrsAreReadByDefault() throws IOException {
+    Graph g = read(new StaxGraphMLReader());
+    assertEquals(Arrays.asList("source", "target", "2001", "2002", "2003", "note"),
+        Tables.columns(g.getEdgeTable()));
+  }
+
+  @Test
+  public void testGraphsAreBuiltConcurrentlyInDocumentOrder() throws IOException {
+    StringBuilder sb = new StringBuilder(
+        "<graphml>\n<key id='y1' for='edge' attr.name='2001' attr.type='double'/>\n");
+    for (int i = 0; i < 20; i++) {
+      sb.append("<graph id='g" + i + "' edgedefault='directed'>" +
+          "<node id='A'/><node id='B'/>" +
+          "<edge source='A' target='B'><data key='y1'>" + i + "</data></edge>" +
+          "</graph>\n");
+    }
+    sb.append("</graphml>\n");
+
+    StaxGraphMLReader reader = new StaxGraphMLReader();
+    reader.setNumThreads(4);
+    List<Graph> graphs = ImmutableList.copyOf(
+        reader.readFromStream(new ByteArrayInputStream(sb.toString().getBytes("utf-8"))));
+
+    assertEquals(20, graphs.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals("g" + i, FlowMapGraph.getGraphId(graphs.get(i)));
+      assertEquals(i, graphs.get(i).getEdge(0).getDouble("2001"), 0);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testEdgesOfUnknownNodesAreReported() throws IOException {
+    StaxGraphMLReader reader = new StaxGraphMLReader();
+    reader.setNumThreads(2);
+    read(reader, GRAPHML.replace("target='B'", "target='C'"));
+  }
+
+  @Test
+  public void testEdgesCanPrecedeTheirNodes() throws IOException {
+    String graphml = GRAPHML.replace("<node id='B'><data key='name'>Node B</data></node>\n", "")
+        .replace("</graph>", "<node id='B'><data key='name'>Node B</data></node>\n</graph>");
+    Graph g = read(new StaxGraphMLReader(), graphml);
+    assertEquals(1, g.getEdgeCount());
+    assertEquals("Node B", g.getEdge(0).getTargetNode().getString("name"));
+    assertEquals(3, g.getEdge(0).getDouble("2003"), 0);
+  }
+
+  @Test
+  public void testBadValueIsReportedWithItsLine() throws IOException {
+    try {
+      read(new StaxGraphMLReader(), GRAPHML.replace("<data key='y2'>2</data>", "<data key='y2'>x2</data>"));
+      fail();
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("'x2' as double for column '2002'"));
+      assertTrue(ioe.getMessage(), ioe.getMessage().contains("line 10"));
+    }
+  }
+
+  @Test
+  public void testEdgesOfFilteredOutNodesAreDropped() throws IOException {
+    StaxGraphMLReader reader = new StaxGraphMLReader();
+    reader.setRecordFilters(new RecordFilters("name != 'Node A'", null, null, null));
+    Graph g = read(reader);
+    assertEquals(1, g.getNodeCount());
+    assertEquals(0, g.getEdgeCount());
+  }
+
+  @Test
+  public void testFilteredOutRecordsDoNotTakeRows() throws IOException {
+    StringBuilder sb = new StringBuilder(
+        "<graphml>\n<key id='y1' for='edge' attr.name='2001' attr.type='double'/>\n" +
+        "<key id='note' for='edge' attr.name='note' attr.type='string'/>\n" +
+        "<graph id='g' edgedefault='directed'>");
+    for (int i = 0; i < 10; i++) {
+      sb.append("<edge source='A' target='B'><data key='y1'>" + i + "</data>" +
+          (i % 3 == 0 ? "<data key='note'>n" + i + "</data>" : "") + "</edge>");
+      if (i == 4) {
+        sb.append("<node id='A'/><node id='B'/>");  // the first edges are pending
+      }
+    }
+    sb.append("</graph>\n</graphml>\n");
+
+    StaxGraphMLReader reader = new StaxGraphMLReader();
+    reader.setRecordFilters(new RecordFilters(null, "[2001] >= 3 and [2001] != 7", null, null));
+    Graph g = read(reader, sb.toString());
+
+    assertEquals(6, g.getEdgeCount());
+    assertEquals(5, g.getEdgeTable().getMaximumRow());
+    List<String> values = Lists.newArrayList();
+    for (int row = 0; row < g.getEdgeCount(); row++) {
+      values.add(g.getEdge(row).getDouble("2001") + ":" + g.getEdge(row).getString("note"));
+    }
+    // the pending edges are added at the end of the graph, no values leak from dropped records
+    assertEquals(Arrays.asList("5.0:", "6.0:n6", "8.0:", "9.0:n9", "3.0:n3", "4.0:"),
+        values);
+  }
+
+  private static Graph read(StaxGraphMLReader reader) throws IOException {
+    return read(reader, GRAPHML);
+  }
+
+  private static Graph read(StaxGraphMLReader reader, String graphml) throws IOException {
+    return reader.readFromStream(new ByteArrayInputStream(graphml.getBytes("utf-8"))).iterator().next();
+  }
+
+}
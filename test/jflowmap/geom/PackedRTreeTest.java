@@ -0,0 +1,78 @@
+package jflowmap.geom;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class PackedRTreeTest {
+
+  @Test
+  public void testFindsTheSameItemsAsBruteForce() {
+    Random rnd = new Random(7);
+    for (int n : new int[] { 0, 1, 15, 16, 17, 300, 5000 }) {
+      Rectangle2D[] boxes = new Rectangle2D[n];
+      for (int i = 0; i < n; i++) {
+        if (i % 50 == 49) {
+          continue;  // null boxes are never found
+        }
+        double x = rnd.nextDouble() * 1000, y = rnd.nextDouble() * 1000;
+        // mostly short edges and some long ones
+        double w = rnd.nextDouble() * (i % 10 == 0 ? 800 : 20), h = rnd.nextDouble() * 20;
+        boxes[i] = new Rectangle2D.Double(x, y, w, h);
+      }
+      PackedRTree tree = new PackedRTree(boxes);
+      assertEquals(n, tree.size());
+
+      for (int q = 0; q < 50; q++) {
+        Rectangle2D query = new Rectangle2D.Double(
+            rnd.nextDouble() * 1000, rnd.nextDouble() * 1000,
+            rnd.nextDouble() * 300, rnd.nextDouble() * 300);
+        assertEquals(bruteForce(boxes, query), query(tree, query));
+      }
+    }
+  }
+
+  @Test
+  public void testTouchingBoxesIntersect() {
+    PackedRTree tree = new PackedRTree(new Rectangle2D[] {
+        new Rectangle2D.Double(0, 0, 10, 10),
+        new Rectangle2D.Double(5, 5, 0, 0),     // a point
+        new Rectangle2D.Double(20, 20, 1, 1)
+    });
+    assertEquals(Sets.newHashSet(0, 1), query(tree, new Rectangle2D.Double(5, 5, 5, 5)));
+    assertEquals(Sets.newHashSet(0), query(tree, new Rectangle2D.Double(10, 10, 5, 5)));
+  }
+
+  private static Set<Integer> query(PackedRTree tree, Rectangle2D query) {
+    final Set<Integer> found = Sets.newHashSet();
+    tree.query(query, new PackedRTree.ItemVisitor() {
+      @Override
+      public void visit(int item) {
+        found.add(item);
+      }
+    });
+    return found;
+  }
+
+  private static Set<Integer> bruteForce(Rectangle2D[] boxes, Rectangle2D query) {
+    Set<Integer> found = Sets.newHashSet();
+    for (int i = 0; i < boxes.length; i++) {
+      Rectangle2D b = boxes[i];
+      if (b != null  &&  b.getMinX() <= query.getMaxX()  &&  b.getMaxX() >= query.getMinX()  &&
+          b.getMinY() <= query.getMaxY()  &&  b.getMaxY() >= query.getMinY()) {
+        found.add(i);
+      }
+    }
+    return found;
+  }
+
+}
@@ -0,0 +1,120 @@
+package jflowmap.models.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import jflowmap.geo.MapProjections;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class MapAreaSimplificationTest {
+
+  private static final int NUM_ZIGZAGS = 50;
+
+  @Test
+  public void testSharedBorderStaysShared() {
+    GeoMap map = twoAreasWithJaggedBorder();
+    MapArea left = map.getAreas().iterator().next();
+    MapArea right = Lists.newArrayList(map.getAreas()).get(1);
+
+    for (double tolerance : new double[] { 0.001, 0.005, 0.05, 1 }) {
+      Set<Point2D> leftBorder = border(left.asPath(MapProjections.NONE, tolerance));
+      Set<Point2D> rightBorder = border(right.asPath(MapProjections.NONE, tolerance));
+      assertEquals(leftBorder, rightBorder);
+      // the junctions at which the borders meet the coast are kept
+      assertTrue(leftBorder.contains(new Point2D.Double(10, 0)));
+      assertTrue(leftBorder.contains(new Point2D.Double(10, 10)));
+    }
+    assertEquals(2, border(left.asPath(MapProjections.NONE, 1)).size());
+  }
+
+  @Test
+  public void testFullDetailWhenNothingCanBeRemoved() {
+    GeoMap map = twoAreasWithJaggedBorder();
+    MapArea left = map.getAreas().iterator().next();
+    Path2D full = left.asPath(MapProjections.NONE);
+    assertSame(full, left.asPath(MapProjections.NONE, 0.001));
+    assertSame(full, left.asPath(MapProjections.NONE, 0.0001));
+    assertSame(full, left.asPath(MapProjections.NONE, 0));
+    assertTrue(points(left.asPath(MapProjections.NONE, 1)).size() < points(full).size());
+    // the levels are shared
+    assertSame(left.asPath(MapProjections.NONE, 1), left.asPath(MapProjections.NONE, 1.5));
+  }
+
+  @Test
+  public void testIslandKeepsItsShape() {
+    double[] coords = new double[] { 0,0, 5,0.1, 10,0, 10.1,5, 10,10, 5,9.9, 0,10, -0.1,5, 0,0 };
+    MapArea island = new MapArea("i", "island", Arrays.asList(new Polygon(coords, null)));
+    new GeoMap("islands", Arrays.asList(island));
+    List<Point2D> simplified = points(island.asPath(MapProjections.NONE, 1));
+    assertEquals(Arrays.<Point2D>asList(
+        new Point2D.Double(0, 0), new Point2D.Double(10, 0), new Point2D.Double(10, 10),
+        new Point2D.Double(0, 10), new Point2D.Double(0, 0)), simplified);
+  }
+
+  private static GeoMap twoAreasWithJaggedBorder() {
+    // the border goes up along x = 10 with zigzags of 0.01
+    List<Double> border = Lists.newArrayList();
+    for (int i = 0; i <= NUM_ZIGZAGS * 2; i++) {
+      border.add(10 + (i % 2 == 0 ? 0 : 0.01));
+      border.add(10.0 * i / (NUM_ZIGZAGS * 2));
+    }
+    List<Double> left = Lists.newArrayList(0.0, 0.0);
+    left.addAll(border);
+    left.addAll(Arrays.asList(0.0, 10.0, 0.0, 0.0));
+
+    List<Double> right = Lists.newArrayList(20.0, 0.0, 20.0, 10.0);
+    for (int i = border.size() - 2; i >= 0; i -= 2) {
+      right.add(border.get(i));
+      right.add(border.get(i + 1));
+    }
+    right.addAll(Arrays.asList(20.0, 0.0));
+
+    return new GeoMap("test", Arrays.asList(
+        new MapArea("l", "left", Arrays.asList(new Polygon(toArray(left), null))),
+        new MapArea("r", "right", Arrays.asList(new Polygon(toArray(right), null)))));
+  }
+
+  private static Set<Point2D> border(Path2D path) {
+    Set<Point2D> border = Sets.newHashSet();
+    for (Point2D p : points(path)) {
+      if (p.getX() >= 10  &&  p.getX() < 10.1) {
+        border.add(p);
+      }
+    }
+    return border;
+  }
+
+  private static List<Point2D> points(Path2D path) {
+    List<Point2D> points = Lists.newArrayList();
+    double[] c = new double[6];
+    for (PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+      it.currentSegment(c);
+      points.add(new Point2D.Double(c[0], c[1]));
+    }
+    return points;
+  }
+
+  private static double[] toArray(List<Double> list) {
+    double[] array = new double[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+}
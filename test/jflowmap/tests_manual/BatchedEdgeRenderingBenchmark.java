@@ -0,0 +1,212 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapColorSchemes;
+import jflowmap.FlowMapGraph;
+import jflowmap.data.FlowMapGraphBuilder;
+import jflowmap.data.ViewConfig;
+import jflowmap.geo.MapProjections;
+import jflowmap.geom.Point;
+import jflowmap.views.VisualCanvas;
+import jflowmap.views.flowmap.FlowMapView;
+import jflowmap.views.flowmap.VisualFlowMapModel;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+import edu.umd.cs.piccolo.PCamera;
+import edu.umd.cs.piccolo.util.PDebug;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Compares the frame times of a flow map view with a synthetic graph rendered
+ * with one scene graph node per edge, with the batched edge layer and with the
+ * batched edge layer painted from the tile cache. The frames are painted
+ * offscreen while panning and zooming, and the picks are done at random positions. Arguments: [numEdges] [numNodes] [initial zoom] [high|low]
+ * (render quality).
+ *
+ * @author Ilya Boyandin
+ */
+public class BatchedEdgeRenderingBenchmark {
+
+  private static final int WIDTH = 1024, HEIGHT = 768;
+  private static final int NUM_WARMUP_FRAMES = 5;
+  private static final int NUM_FRAMES = 40;
+  private static final int NUM_PICKS = 2000;
+  private static final double NEIGHBOR_DISTANCE = 100;
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger.getRootLogger().setLevel(Level.WARN);
+    int numEdges = (args.length > 0 ? Integer.parseInt(args[0]) : 50000);
+    int numNodes = (args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+    double zoom = (args.length > 2 ? Double.parseDouble(args[2]) : 1.0);
+    int quality = (args.length > 3  &&  args[3].equals("low") ?
+        PPaintContext.LOW_QUALITY_RENDERING : PPaintContext.HIGH_QUALITY_RENDERING);
+
+    String[] modes = { "per-node", "batched", "tiled" };
+    for (String mode : modes) {
+      System.out.println(mode + ": " + run(mode, numNodes, numEdges, zoom, quality));
+    }
+    System.exit(0);
+  }
+
+  /** The scene graph is built, painted and picked on the EDT like in the app */
+  private static String run(final String mode, final int numNodes, final int numEdges,
+      final double zoom, final int quality) throws Exception {
+    final String[] result = new String[1];
+    final Exception[] error = new Exception[1];
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          FlowMapGraph fmg = buildGraph(numNodes, numEdges);
+          long start = System.nanoTime();
+          FlowMapView view = createView(fmg, !mode.equals("per-node"), mode.equals("tiled"));
+          long createMs = (System.nanoTime() - start) / 1000000;
+          result[0] = numEdges + " edges, view created in " + createMs + "ms, " +
+              measure(view, zoom, quality);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    });
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return result[0];
+  }
+
+  private static FlowMapGraph buildGraph(int numNodes, int numEdges) {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("synthetic", new FlowMapAttrSpec(
+        "src", "target", "Value", Arrays.asList("value"), null, "label", "lon", "lat"));
+    Random rnd = new Random(1);
+    Node[] nodes = new Node[numNodes];
+    Point[] positions = new Point[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      positions[i] = new Point(1 + rnd.nextDouble() * 1000, 1 + rnd.nextDouble() * 700);
+      nodes[i] = builder.addNode("n" + i, positions[i], "Node " + i);
+    }
+    // like in real flow maps, most of the flows are between nearby nodes
+    List<List<Integer>> neighbors = Lists.newArrayList();
+    for (int i = 0; i < numNodes; i++) {
+      List<Integer> near = Lists.newArrayList();
+      for (int j = 0; j < numNodes; j++) {
+        if (j != i  &&  positions[i].distanceTo(positions[j]) < NEIGHBOR_DISTANCE) {
+          near.add(j);
+        }
+      }
+      neighbors.add(near);
+    }
+    for (int e = 0; e < numEdges; e++) {
+      int src = rnd.nextInt(numNodes);
+      List<Integer> near = neighbors.get(src);
+      int target;
+      if (near.isEmpty()  ||  rnd.nextInt(10) == 0) {
+        target = (src + 1 + rnd.nextInt(numNodes - 1)) % numNodes;
+      } else {
+        target = near.get(rnd.nextInt(near.size()));
+      }
+      builder.addEdge(nodes[src], nodes[target], Math.exp(rnd.nextDouble() * 10));
+    }
+    return builder.build();
+  }
+
+  private static FlowMapView createView(FlowMapGraph fmg, boolean batched, boolean tiled)
+      throws Exception {
+    File file = File.createTempFile("batched", ".jfmv");
+    file.deleteOnExit();
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write("view=flowmap\ndata=csv\n");  // the data is not loaded from the config
+      out.write(VisualFlowMapModel.VIEWCONF_BATCHED_EDGES + "=" + batched + "\n");
+      out.write(VisualFlowMapModel.VIEWCONF_TILE_CACHE + "=" + tiled + "\n");
+    } finally {
+      out.close();
+    }
+    ViewConfig config = ViewConfig.load(file.getPath());
+    FlowMapView view = new FlowMapView(VisualFlowMapModel.createFor(fmg, config), null,
+        MapProjections.NONE, FlowMapColorSchemes.LIGHT.getScheme(), config);
+    view.getVisualCanvas().setBounds(0, 0, WIDTH, HEIGHT);
+    view.fitInView();
+    return view;
+  }
+
+  private static String measure(FlowMapView view, double zoom, int quality) {
+    VisualCanvas canvas = view.getVisualCanvas();
+    PCamera camera = canvas.getCamera();
+    camera.scaleViewAboutPoint(zoom, WIDTH / 2.0, HEIGHT / 2.0);
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+
+    long paintNanos = 0, worst = 0;
+    for (int f = -NUM_WARMUP_FRAMES; f < NUM_FRAMES; f++) {
+      // pan and zoom in for the first half of the frames, back out for the second
+      if (f < 0  ||  f < NUM_FRAMES / 2) {
+        camera.scaleViewAboutPoint(1.05, WIDTH / 2.0, HEIGHT / 2.0);
+        camera.translateView(3, 2);
+      } else {
+        camera.translateView(-3, -2);
+        camera.scaleViewAboutPoint(1 / 1.05, WIDTH / 2.0, HEIGHT / 2.0);
+      }
+      long start = System.nanoTime();
+      canvas.getRoot().processInputs();  // validates the bounds and the paint
+      g.setClip(0, 0, WIDTH, HEIGHT);
+      PPaintContext pc = new PPaintContext(g);
+      pc.setRenderQuality(quality);
+      PDebug.startProcessingOutput();
+      camera.fullPaint(pc);
+      PDebug.endProcessingOutput(g);
+      long time = System.nanoTime() - start;
+      if (f >= 0) {
+        paintNanos += time;
+        worst = Math.max(worst, time);
+      }
+    }
+    g.dispose();
+
+    Random rnd = new Random(2);
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_PICKS; i++) {
+      camera.pick(rnd.nextDouble() * WIDTH, rnd.nextDouble() * HEIGHT, 1);
+    }
+    long pickNanos = System.nanoTime() - start;
+
+    return "frame avg " + (paintNanos / NUM_FRAMES / 1000000) + "ms, " +
+        "worst " + (worst / 1000000) + "ms, " +
+        "pick avg " + (pickNanos / NUM_PICKS / 1000) + "us";
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapColorSchemes;
+import jflowmap.FlowMapGraph;
+import jflowmap.data.FlowMapGraphBuilder;
+import jflowmap.data.ViewConfig;
+import jflowmap.geo.MapProjections;
+import jflowmap.geom.Point;
+import jflowmap.views.flowmap.FlowMapView;
+import jflowmap.views.flowmap.VisualEdge;
+import jflowmap.views.flowmap.VisualFlowMap;
+import jflowmap.views.flowmap.VisualFlowMapModel;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import prefuse.data.Edge;
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the memory allocated for updating the edge widths and colors in the
+ * way the value animation does it: the edge values are interpolated between the
+ * consecutive weight attributes of a synthetic graph over a number of frames.
+ * Arguments: [numEdges] [numAttrs] [framesPerAttr].
+ *
+ * @author Ilya Boyandin
+ */
+public class EdgeStyleAllocationBenchmark {
+
+  private static final int NUM_NODES = 300;
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger.getRootLogger().setLevel(Level.WARN);
+    int numEdges = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+    int numAttrs = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+    int framesPerAttr = (args.length > 2 ? Integer.parseInt(args[2]) : 25);
+
+    List<String> attrs = Lists.newArrayList();
+    for (int i = 0; i < numAttrs; i++) {
+      attrs.add("v" + (2000 + i));
+    }
+    FlowMapView view = createView(buildGraph(numEdges, attrs));
+    VisualFlowMap vfm = view.getVisualFlowMap();
+    List<VisualEdge> edges = vfm.getVisualEdges();
+
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    for (int run = 0; run < 3; run++) {  // the first runs warm up
+      long allocated = threads.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+      int numFrames = 0;
+      for (int a = 0; a < numAttrs - 1; a++) {
+        for (int f = 0; f < framesPerAttr; f++) {
+          double alpha = (double)f / framesPerAttr;
+          for (VisualEdge ve : edges) {
+            Edge edge = ve.getEdge();
+            double low = edge.getDouble(attrs.get(a));
+            double high = edge.getDouble(attrs.get(a + 1));
+            double value = low + (high - low) * alpha;
+            ve.updateEdgeWidthTo(value);
+            ve.updateEdgeColorsTo(value);
+          }
+          numFrames++;
+        }
+      }
+      long nanos = System.nanoTime() - start;
+      allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+      System.out.println("run " + run + ": " + numFrames + " frames of " + edges.size() + " edges, " +
+          (allocated / numFrames / 1024) + "KB allocated per frame, " +
+          (allocated / numFrames / edges.size()) + " bytes per edge update, " +
+          (nanos / numFrames / 1000) + "us per frame");
+    }
+    System.exit(0);
+  }
+
+  private static FlowMapGraph buildGraph(int numEdges, List<String> attrs) {
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("synthetic", new FlowMapAttrSpec(
+        "src", "target", "Value", attrs, null, "label", "lon", "lat"));
+    Random rnd = new Random(1);
+    Node[] nodes = new Node[NUM_NODES];
+    for (int i = 0; i < NUM_NODES; i++) {
+      nodes[i] = builder.addNode("n" + i,
+          new Point(1 + rnd.nextDouble() * 1000, 1 + rnd.nextDouble() * 700), "Node " + i);
+    }
+    for (int e = 0; e < numEdges; e++) {
+      int src = rnd.nextInt(NUM_NODES);
+      int target = (src + 1 + rnd.nextInt(NUM_NODES - 1)) % NUM_NODES;
+      double[] weights = new double[attrs.size()];
+      double w = Math.exp(rnd.nextDouble() * 10);
+      for (int i = 0; i < weights.length; i++) {
+        w *= 0.7 + rnd.nextDouble() * 0.6;
+        weights[i] = w;
+      }
+      builder.addEdge(nodes[src], nodes[target], weights);
+    }
+    return builder.build();
+  }
+
+  private static FlowMapView createView(FlowMapGraph fmg) throws Exception {
+    File file = File.createTempFile("edgestyle", ".jfmv");
+    file.deleteOnExit();
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write("view=flowmap\ndata=csv\n");  // the data is not loaded from the config
+    } finally {
+      out.close();
+    }
+    ViewConfig config = ViewConfig.load(file.getPath());
+    return new FlowMapView(VisualFlowMapModel.createFor(fmg, config), null,
+        MapProjections.NONE, FlowMapColorSchemes.LIGHT.getScheme(), config);
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import jflowmap.data.StaxGraphMLReader;
+import jflowmap.util.ConcurrencyUtils;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Compares the times of reading GraphML files (e.g. demo/data/*.xml.gz) with one thread
+ * and with the read-ahead and the concurrent building of the graphs. The speedup
+ * mostly shows on files with many graphs.
+ *
+ * @author Ilya Boyandin
+ */
+public class GraphMLLoadBenchmark {
+
+  private static final int NUM_RUNS = 5;
+
+  public static void main(String[] args) throws Exception {
+    Logger.getRootLogger().setLevel(Level.WARN);
+    int numThreads = ConcurrencyUtils.numberOfWorkers();
+    for (String location : args) {
+      long sequential = bestTime(location, 1);
+      long concurrent = bestTime(location, numThreads);
+      System.out.println(location + ": 1 thread " + sequential + "ms, " +
+          numThreads + " threads " + concurrent + "ms, speedup " +
+          String.format("%.2f", (double)sequential / concurrent));
+    }
+  }
+
+  private static long bestTime(String location, int numThreads) throws Exception {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < NUM_RUNS; run++) {
+      long start = System.currentTimeMillis();
+      StaxGraphMLReader reader = new StaxGraphMLReader();
+      reader.setNumThreads(numThreads);
+      Iterables.size(reader.readFromLocation(location));
+      best = Math.min(best, System.currentTimeMillis() - start);
+    }
+    return best;
+  }
+
+}
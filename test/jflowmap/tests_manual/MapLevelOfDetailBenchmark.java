@@ -0,0 +1,212 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import jflowmap.FlowMapColorSchemes;
+import jflowmap.data.ShapefileReader;
+import jflowmap.geo.MapProjection;
+import jflowmap.geo.MapProjections;
+import jflowmap.models.map.GeoMap;
+import jflowmap.models.map.MapArea;
+import jflowmap.models.map.Polygon;
+import jflowmap.views.ColorCodes;
+import jflowmap.views.flowmap.ColorSchemeAware;
+import jflowmap.views.map.PGeoMap;
+import jflowmap.views.map.PGeoMapArea;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+
+import edu.umd.cs.piccolo.util.PDebug;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Compares the time of painting the world map with the full outlines of the
+ * areas and with the outlines simplified for the zoom level. To simulate a
+ * high resolution map, every segment of the shapefile can be subdivided into
+ * a number of slightly displaced segments. Arguments: [subdivisions].
+ *
+ * @author Ilya Boyandin
+ */
+public class MapLevelOfDetailBenchmark {
+
+  private static final String SHAPEFILE_MAP = "demo/data/maps/countries/countries.shp.gz";
+  private static final int WIDTH = 1024, HEIGHT = 768;
+  private static final int NUM_FRAMES = 20;
+  private static final double[] ZOOMS = { 1, 4, 16 };
+  private static final MapProjection PROJ = MapProjections.WINKELTRIPEL;
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger.getRootLogger().setLevel(Level.WARN);
+    int subdivisions = (args.length > 0 ? Integer.parseInt(args[0]) : 1);
+
+    GeoMap map = ShapefileReader.readMap(SHAPEFILE_MAP, null, null, null);
+    if (subdivisions > 1) {
+      long start = System.nanoTime();
+      map = subdivide(map, subdivisions);
+      System.out.println("Map subdivided in " +
+          (System.nanoTime() - start) / 1000000 + "ms");
+    }
+    int numPoints = 0;
+    for (MapArea area : map.getAreas()) {
+      for (Polygon poly : area.getPolygons()) {
+        numPoints += poly.getNumPoints();
+      }
+    }
+    System.out.println(map.getAreas().size() + " areas, " + numPoints + " points");
+
+    PGeoMap pmap = new PGeoMap(new ColorSchemeAware() {
+      @Override
+      public Color getColor(ColorCodes code) {
+        return FlowMapColorSchemes.LIGHT.get(code);
+      }
+    }, map, PROJ);
+    Rectangle2D bounds = pmap.getBoundingBox();
+
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    for (int run = 0; run < 2; run++) {  // the first run warms up
+      for (double zoom : ZOOMS) {
+        double scale = Math.min(WIDTH / bounds.getWidth(), HEIGHT / bounds.getHeight()) * zoom;
+        AffineTransform at = new AffineTransform();
+        at.translate(WIDTH / 2.0, HEIGHT / 2.0);
+        at.scale(scale, scale);
+        at.translate(-bounds.getCenterX(), -bounds.getCenterY());
+
+        long fullNanos = 0, lodNanos = 0;
+        for (int f = 0; f < NUM_FRAMES; f++) {
+          fullNanos += paint(image, at, pmap, false);
+          lodNanos += paint(image, at, pmap, true);
+        }
+        if (run > 0) {
+          System.out.println("zoom " + zoom + ": full " + (fullNanos / NUM_FRAMES / 1000) + "us, " +
+              "simplified " + (lodNanos / NUM_FRAMES / 1000) + "us per frame, " +
+              numPointsAtLevel(map, 0.5 / scale) + " points at this level");
+        }
+      }
+    }
+    System.exit(0);
+  }
+
+  private static long paint(BufferedImage image, AffineTransform at, PGeoMap pmap, boolean lod) {
+    Graphics2D g = image.createGraphics();
+    long start = System.nanoTime();
+    g.setClip(0, 0, WIDTH, HEIGHT);
+    g.transform(at);
+    PPaintContext pc = new PPaintContext(g);
+    pc.setRenderQuality(PPaintContext.HIGH_QUALITY_RENDERING);
+    PDebug.startProcessingOutput();
+    if (lod) {
+      pmap.fullPaint(pc);
+    } else {
+      // what PPath does: paint the full outlines of the visible areas
+      Rectangle2D clip = pc.getLocalClip();
+      for (int i = 0; i < pmap.getChildrenCount(); i++) {
+        PGeoMapArea va = (PGeoMapArea)pmap.getChild(i);
+        if (va.getFullBoundsReference().intersects(clip)) {
+          g.setPaint(va.getPaint());
+          g.fill(va.getPathReference());
+          g.setPaint(va.getStrokePaint());
+          g.setStroke(va.getStroke());
+          g.draw(va.getPathReference());
+        }
+      }
+    }
+    PDebug.endProcessingOutput(g);
+    long time = System.nanoTime() - start;
+    g.dispose();
+    return time;
+  }
+
+  private static int numPointsAtLevel(GeoMap map, double tolerance) {
+    int numPoints = 0;
+    double[] c = new double[6];
+    for (MapArea area : map.getAreas()) {
+      for (PathIterator it = area.asPath(PROJ, tolerance).getPathIterator(null);
+          !it.isDone(); it.next()) {
+        it.currentSegment(c);
+        numPoints++;
+      }
+    }
+    return numPoints;
+  }
+
+  /**
+   * Splits every segment into the given number of segments with the inner
+   * points displaced a little. The neighbor areas get the same points on
+   * their shared borders.
+   */
+  private static GeoMap subdivide(GeoMap map, int n) {
+    List<MapArea> areas = Lists.newArrayList();
+    for (MapArea area : map.getAreas()) {
+      List<Polygon> polygons = Lists.newArrayList();
+      for (Polygon poly : area.getPolygons()) {
+        int numRings = poly.getNumRings();
+        int[] ringStarts = new int[numRings];
+        double[] coords = new double[Math.max(0, (poly.getNumPoints() - 1) * n + 1) * 2];
+        int k = 0;
+        for (int ring = 0; ring < numRings; ring++) {
+          int start = poly.getRingStart(ring), end = poly.getRingEnd(ring);
+          ringStarts[ring] = k;
+          for (int i = start; i < end; i++) {
+            coords[k * 2] = poly.getX(i);
+            coords[k * 2 + 1] = poly.getY(i);
+            k++;
+            if (i + 1 < end) {
+              k = addInnerPoints(poly, i, i + 1, n, coords, k);
+            }
+          }
+        }
+        double[] packed = new double[k * 2];
+        System.arraycopy(coords, 0, packed, 0, packed.length);
+        polygons.add(new Polygon(packed, ringStarts, null));
+      }
+      areas.add(new MapArea(area.getId(), area.getName(), polygons));
+    }
+    return new GeoMap(map.getName(), areas);
+  }
+
+  private static int addInnerPoints(Polygon poly, int a, int b, int n, double[] coords, int k) {
+    // computed in the same order for both directions of the segment
+    boolean reversed = (poly.getX(a) > poly.getX(b)  ||
+        (poly.getX(a) == poly.getX(b)  &&  poly.getY(a) > poly.getY(b)));
+    int from = (reversed ? b : a), to = (reversed ? a : b);
+    double x0 = poly.getX(from), y0 = poly.getY(from);
+    double dx = poly.getX(to) - x0, dy = poly.getY(to) - y0;
+    for (int j = 1; j < n; j++) {
+      double t = (double)(reversed ? n - j : j) / n;
+      double jitter = Math.sin((x0 + dx * t) * 12.9898 + (y0 + dy * t) * 78.233) * 0.001;
+      coords[k * 2] = x0 + dx * t - dy * jitter;
+      coords[k * 2 + 1] = y0 + dy * t + dx * jitter;
+      k++;
+    }
+    return k;
+  }
+
+}
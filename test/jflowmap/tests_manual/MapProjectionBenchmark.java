@@ -0,0 +1,106 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import java.awt.Color;
+import java.util.List;
+
+import jflowmap.FlowMapColorSchemes;
+import jflowmap.data.ShapefileReader;
+import jflowmap.geo.MapProjections;
+import jflowmap.models.map.GeoMap;
+import jflowmap.models.map.MapArea;
+import jflowmap.models.map.Polygon;
+import jflowmap.views.ColorCodes;
+import jflowmap.views.flowmap.ColorSchemeAware;
+import jflowmap.views.map.PGeoMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the time and the memory needed to create the area maps of a number
+ * of views or small multiple panels showing the same world map in the Winkel
+ * Tripel projection. The maps are loaded anew for every run, so the first
+ * panel of each map projects the geometry. Arguments: [numPanels].
+ *
+ * @author Ilya Boyandin
+ */
+public class MapProjectionBenchmark {
+
+  private static final String XML_MAP = "demo/data/maps/countries-areas-ll.xml.gz";
+  private static final String SHAPEFILE_MAP = "demo/data/maps/countries/countries.shp.gz";
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger.getRootLogger().setLevel(Level.WARN);
+    int numPanels = (args.length > 0 ? Integer.parseInt(args[0]) : 20);
+
+    for (int run = 0; run < 2; run++) {  // the first run warms up
+      measure(XML_MAP, GeoMap.load(XML_MAP), numPanels);
+      measure(SHAPEFILE_MAP, ShapefileReader.readMap(SHAPEFILE_MAP, null, null, null), numPanels);
+    }
+    System.exit(0);
+  }
+
+  private static void measure(String name, GeoMap map, int numPanels) {
+    ColorSchemeAware cs = new ColorSchemeAware() {
+      @Override
+      public Color getColor(ColorCodes code) {
+        return FlowMapColorSchemes.LIGHT.get(code);
+      }
+    };
+    int numPoints = 0;
+    for (MapArea area : map.getAreas()) {
+      for (Polygon poly : area.getPolygons()) {
+        numPoints += poly.getNumPoints();
+      }
+    }
+
+    long baseHeap = usedHeap();
+    List<PGeoMap> panels = Lists.newArrayList();
+    long start = System.nanoTime();
+    panels.add(new PGeoMap(cs, map, MapProjections.WINKELTRIPEL));
+    long firstNanos = System.nanoTime() - start;
+    long firstHeap = usedHeap() - baseHeap;
+
+    start = System.nanoTime();
+    for (int i = 1; i < numPanels; i++) {
+      panels.add(new PGeoMap(cs, map, MapProjections.WINKELTRIPEL));
+    }
+    long restNanos = System.nanoTime() - start;
+    long restHeap = usedHeap() - baseHeap - firstHeap;
+
+    System.out.println(name + ": " + map.getAreas().size() + " areas, " + numPoints + " points, " +
+        "first panel " + (firstNanos / 1000) + "us, " + (firstHeap / 1024) + "KB, " +
+        "next panels avg " + (restNanos / Math.max(1, numPanels - 1) / 1000) + "us, " +
+        (restHeap / Math.max(1, numPanels - 1) / 1024) + "KB");
+  }
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapColorSchemes;
+import jflowmap.FlowMapGraph;
+import jflowmap.data.FlowMapGraphBuilder;
+import jflowmap.data.ShapefileReader;
+import jflowmap.data.ViewConfig;
+import jflowmap.geo.MapProjections;
+import jflowmap.geom.Point;
+import jflowmap.models.map.GeoMap;
+import jflowmap.util.ConcurrencyUtils;
+import jflowmap.util.piccolo.POffscreenCamera;
+import jflowmap.views.VisualCanvas;
+import jflowmap.views.flowmap.FlowMapSmallMultipleView;
+import jflowmap.views.flowmap.VisualFlowMapModel;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.util.PDebug;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Measures how long the event dispatch thread is blocked when the small
+ * multiples of a synthetic graph on the world map are resized, with the panels
+ * painted directly and with the panels rendered offscreen on the worker pool.
+ * For the latter, also the time until all the panels are rendered is reported,
+ * and the final frame is compared to the directly painted one.
+ * Arguments: [numEdges] [numAttrs].
+ *
+ * @author Ilya Boyandin
+ */
+public class SmallMultipleRenderingBenchmark {
+
+  private static final String SHAPEFILE_MAP = "demo/data/maps/countries/countries.shp.gz";
+  private static final int NUM_NODES = 150;
+  private static final int NUM_COLUMNS = 8;
+  private static final int NUM_RESIZES = 6;
+  private static final int[][] SIZES = { { 1600, 1000 }, { 1500, 940 } };
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger.getRootLogger().setLevel(Level.WARN);
+    int numEdges = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+    int numAttrs = (args.length > 1 ? Integer.parseInt(args[1]) : 40);
+    GeoMap map = ShapefileReader.readMap(SHAPEFILE_MAP, null, null, null);
+    System.out.println(numEdges + " edges, " + numAttrs + " panels, " +
+        ConcurrencyUtils.numberOfWorkers() + " workers");
+
+    BufferedImage direct = run(false, buildGraph(numEdges, numAttrs), map);
+    BufferedImage offscreen = run(true, buildGraph(numEdges, numAttrs), map);
+    System.out.println(compare(direct, offscreen));
+    System.exit(0);
+  }
+
+  private static BufferedImage run(final boolean offscreen, FlowMapGraph fmg, GeoMap map)
+      throws Exception {
+    final FlowMapSmallMultipleView view = createView(fmg, map, offscreen);
+    final VisualCanvas canvas = view.getVisualCanvas();
+    final BufferedImage[] frame = new BufferedImage[1];
+    long edtNanos = 0, worstEdt = 0, latencyNanos = 0;
+    for (int i = -1; i < NUM_RESIZES; i++) {  // the first one warms up
+      final int[] size = SIZES[(i + 2) % SIZES.length];
+      final long[] time = new long[1];
+      long start = System.nanoTime();
+      SwingUtilities.invokeAndWait(new Runnable() {
+        @Override
+        public void run() {
+          canvas.setBounds(0, 0, size[0], size[1]);
+          long start = System.nanoTime();
+          frame[0] = paint(canvas);
+          time[0] = System.nanoTime() - start;
+        }
+      });
+      if (offscreen) {
+        waitForPanels(view);
+        SwingUtilities.invokeAndWait(new Runnable() {
+          @Override
+          public void run() {
+            frame[0] = paint(canvas);
+          }
+        });
+      }
+      if (i >= 0) {
+        edtNanos += time[0];
+        worstEdt = Math.max(worstEdt, time[0]);
+        latencyNanos += System.nanoTime() - start;
+      }
+    }
+    System.out.println((offscreen ? "offscreen" : "direct") + ": " +
+        "event thread blocked avg " + (edtNanos / NUM_RESIZES / 1000000) + "ms, " +
+        "worst " + (worstEdt / 1000000) + "ms per resize, " +
+        "all panels shown after " + (latencyNanos / NUM_RESIZES / 1000000) + "ms");
+    return frame[0];
+  }
+
+  private static void waitForPanels(final FlowMapSmallMultipleView view) throws Exception {
+    final boolean[] done = new boolean[1];
+    while (!done[0]) {
+      Thread.sleep(5);
+      SwingUtilities.invokeAndWait(new Runnable() {
+        @Override
+        public void run() {
+          done[0] = true;
+          PNode layer = view.getVisualCanvas().getLayer();
+          for (int i = 0; i < layer.getChildrenCount(); i++) {
+            PNode node = layer.getChild(i);
+            if (node instanceof POffscreenCamera  &&  !((POffscreenCamera)node).isImageUpToDate()) {
+              done[0] = false;
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /** Like VisualCanvas.paintComponent */
+  private static BufferedImage paint(VisualCanvas canvas) {
+    BufferedImage image = new BufferedImage(
+        canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    canvas.getRoot().processInputs();  // validates the bounds and the paint
+    g.setColor(canvas.getBackground());
+    g.fillRect(0, 0, image.getWidth(), image.getHeight());
+    PPaintContext pc = new PPaintContext(g);
+    pc.setRenderQuality(PPaintContext.HIGH_QUALITY_RENDERING);
+    PDebug.startProcessingOutput();
+    canvas.getCamera().fullPaint(pc);
+    PDebug.endProcessingOutput(g);
+    g.dispose();
+    return image;
+  }
+
+  private static String compare(BufferedImage a, BufferedImage b) {
+    int numDifferent = 0, numNoticeable = 0, maxDiff = 0;
+    for (int y = 0; y < a.getHeight(); y++) {
+      for (int x = 0; x < a.getWidth(); x++) {
+        int pa = a.getRGB(x, y), pb = b.getRGB(x, y);
+        int diff = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+          diff = Math.max(diff, Math.abs(((pa >> shift) & 0xff) - ((pb >> shift) & 0xff)));
+        }
+        if (diff > 0) {
+          numDifferent++;
+          if (diff > 8) {  // more than the rounding of the blending of the offscreen images
+            numNoticeable++;
+          }
+          maxDiff = Math.max(maxDiff, diff);
+        }
+      }
+    }
+    return "final frames differ in " + numDifferent + " of " + (a.getWidth() * a.getHeight()) +
+        " pixels, by more than 8 in " + numNoticeable + ", max channel difference " + maxDiff;
+  }
+
+  private static FlowMapGraph buildGraph(int numEdges, int numAttrs) {
+    List<String> attrs = Lists.newArrayList();
+    for (int i = 0; i < numAttrs; i++) {
+      attrs.add("v" + (1970 + i));
+    }
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("synthetic", new FlowMapAttrSpec(
+        "src", "target", "Value", attrs, null, "label", "lon", "lat"));
+    Random rnd = new Random(1);
+    Node[] nodes = new Node[NUM_NODES];
+    for (int i = 0; i < NUM_NODES; i++) {
+      nodes[i] = builder.addNode("n" + i,
+          new Point(-170 + rnd.nextDouble() * 340, -50 + rnd.nextDouble() * 120), "Node " + i);
+    }
+    for (int e = 0; e < numEdges; e++) {
+      int src = rnd.nextInt(NUM_NODES);
+      int target = (src + 1 + rnd.nextInt(NUM_NODES - 1)) % NUM_NODES;
+      double[] weights = new double[numAttrs];
+      double w = Math.exp(rnd.nextDouble() * 10);
+      for (int i = 0; i < numAttrs; i++) {
+        w *= 0.7 + rnd.nextDouble() * 0.6;
+        weights[i] = w;
+      }
+      builder.addEdge(nodes[src], nodes[target], weights);
+    }
+    return builder.build();
+  }
+
+  private static FlowMapSmallMultipleView createView(FlowMapGraph fmg, GeoMap map,
+      boolean offscreen) throws Exception {
+    File file = File.createTempFile("smallmultiple", ".jfmv");
+    file.deleteOnExit();
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write("view=flowmap\ndata=csv\n");  // the data is not loaded from the config
+    } finally {
+      out.close();
+    }
+    ViewConfig config = ViewConfig.load(file.getPath());
+    return new FlowMapSmallMultipleView(VisualFlowMapModel.createFor(fmg, config), map,
+        MapProjections.WINKELTRIPEL, FlowMapColorSchemes.LIGHT.getScheme(), NUM_COLUMNS, offscreen);
+  }
+
+}
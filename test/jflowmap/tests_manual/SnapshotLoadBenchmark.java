@@ -0,0 +1,66 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import jflowmap.data.ViewConfig;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Compares the times of loading the data of view configs from the sources
+ * and from the snapshots. Since only the first load in a JVM is really cold,
+ * run it once with "parse" and once with "snapshot" as the first argument
+ * (the snapshots are written in the default snapshot dir if they don't exist).
+ * The remaining arguments are the view config locations.
+ *
+ * @author Ilya Boyandin
+ */
+public class SnapshotLoadBenchmark {
+
+  private static final int NUM_RUNS = 5;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: SnapshotLoadBenchmark parse|snapshot <config.jfmv> ...");
+      return;
+    }
+    Logger.getRootLogger().setLevel(Level.WARN);
+    boolean useSnapshot = args[0].equals("snapshot");
+
+    for (int i = 1; i < args.length; i++) {
+      ViewConfig config = ViewConfig.load(args[i]);
+      long first = -1, best = Long.MAX_VALUE;
+      for (int run = 0; run < NUM_RUNS; run++) {
+        long start = System.nanoTime();
+        if (useSnapshot) {
+          config.loadData();
+        } else {
+          config.loadDataFromSources();
+        }
+        long time = (System.nanoTime() - start) / 1000000;
+        if (first < 0) first = time;
+        best = Math.min(best, time);
+      }
+      System.out.println(args[i] + ": " + (useSnapshot ? "snapshot" : "parse") +
+          " first=" + first + "ms best=" + best + "ms");
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of JFlowMap.
+ *
+ * Copyright 2009 Ilya Boyandin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jflowmap.tests_manual;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapColorSchemes;
+import jflowmap.FlowMapGraph;
+import jflowmap.data.FlowMapGraphBuilder;
+import jflowmap.data.ViewConfig;
+import jflowmap.geo.MapProjections;
+import jflowmap.geom.Point;
+import jflowmap.views.VisualCanvas;
+import jflowmap.views.flowmap.FlowMapView;
+import jflowmap.views.flowmap.VisualFlowMap;
+import jflowmap.views.flowmap.VisualFlowMapModel;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+import edu.umd.cs.piccolo.PRoot;
+import edu.umd.cs.piccolo.util.PDebug;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * Runs the flow value animation of a synthetic graph in real time like the
+ * canvas would: the activities are processed and the frame is painted offscreen
+ * in a loop until the animation finishes. Reports the time spent in the
+ * animation steps and the achieved frame rate.
+ * Arguments: [numEdges] [numAttrs] [attrsPerSecond] [paint|nopaint].
+ *
+ * @author Ilya Boyandin
+ */
+public class ValueAnimationBenchmark {
+
+  private static final int WIDTH = 800, HEIGHT = 600;
+  private static final int NUM_NODES = 300;
+
+  public static void main(final String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger.getRootLogger().setLevel(Level.WARN);
+    // on the event dispatch thread like the canvas, because the activity
+    // scheduler steps the activities there
+    SwingUtilities.invokeAndWait(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runAnimation(args);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    System.exit(0);
+  }
+
+  private static void runAnimation(String[] args) throws Exception {
+    int numEdges = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+    int numAttrs = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+    double attrsPerSecond = (args.length > 2 ? Double.parseDouble(args[2]) : 2);
+    boolean paint = !(args.length > 3  &&  args[3].equals("nopaint"));
+
+    FlowMapView view = createView(buildGraph(numEdges, numAttrs));
+    VisualCanvas canvas = view.getVisualCanvas();
+    canvas.setBounds(0, 0, WIDTH, HEIGHT);
+    view.fitInView();
+    VisualFlowMap vfm = view.getVisualFlowMap();
+    PRoot root = canvas.getRoot();
+
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+
+    long start = System.nanoTime();
+    vfm.startValueAnimation(null, 0, attrsPerSecond);
+    long stepNanos = 0, paintNanos = 0;
+    int numFrames = 0, numSteps = 0;
+    do {  // the animation isn't running until its first step
+      long t0 = System.nanoTime();
+      root.getActivityScheduler().processActivities(System.currentTimeMillis());
+      long t1 = System.nanoTime();
+      if (t1 - t0 > 1000000) {
+        numSteps++;  // the activity did something
+      }
+      stepNanos += t1 - t0;
+      if (paint  ||  !vfm.isValueAnimationRunning()) {
+        root.processInputs();  // validates the bounds and the paint
+        g.setClip(0, 0, WIDTH, HEIGHT);
+        PPaintContext pc = new PPaintContext(g);
+        pc.setRenderQuality(PPaintContext.LOW_QUALITY_RENDERING);
+        PDebug.startProcessingOutput();
+        canvas.getCamera().fullPaint(pc);
+        PDebug.endProcessingOutput(g);
+        paintNanos += System.nanoTime() - t1;
+        numFrames++;
+      }
+    } while (vfm.isValueAnimationRunning());
+    long total = System.nanoTime() - start;
+    g.dispose();
+
+    System.out.println(numEdges + " edges, " + numAttrs + " attrs: animation took " +
+        (total / 1000000) + "ms (expected " + Math.round(numAttrs * 1000 / attrsPerSecond) + "ms), " +
+        numFrames + " frames painted, " + String.format("%.1f", numFrames / (total / 1e9)) + " fps, " +
+        numSteps + " steps taking over 1ms, avg " + (stepNanos / Math.max(1, numSteps) / 1000) + "us, " +
+        "paint avg " + (paintNanos / numFrames / 1000000) + "ms");
+  }
+
+  private static FlowMapGraph buildGraph(int numEdges, int numAttrs) {
+    List<String> attrs = Lists.newArrayList();
+    for (int i = 0; i < numAttrs; i++) {
+      attrs.add("v" + (2000 + i));
+    }
+    FlowMapGraphBuilder builder = new FlowMapGraphBuilder("synthetic", new FlowMapAttrSpec(
+        "src", "target", "Value", attrs, null, "label", "lon", "lat"));
+    Random rnd = new Random(1);
+    Node[] nodes = new Node[NUM_NODES];
+    for (int i = 0; i < NUM_NODES; i++) {
+      nodes[i] = builder.addNode("n" + i,
+          new Point(1 + rnd.nextDouble() * 1000, 1 + rnd.nextDouble() * 700), "Node " + i);
+    }
+    for (int e = 0; e < numEdges; e++) {
+      int src = rnd.nextInt(NUM_NODES);
+      int target = (src + 1 + rnd.nextInt(NUM_NODES - 1)) % NUM_NODES;
+      double[] weights = new double[numAttrs];
+      double w = Math.exp(rnd.nextDouble() * 10);
+      for (int i = 0; i < numAttrs; i++) {
+        w *= 0.5 + rnd.nextDouble();
+        weights[i] = w;
+      }
+      builder.addEdge(nodes[src], nodes[target], weights);
+    }
+    return builder.build();
+  }
+
+  private static FlowMapView createView(FlowMapGraph fmg) throws Exception {
+    File file = File.createTempFile("animation", ".jfmv");
+    file.deleteOnExit();
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write("view=flowmap\ndata=csv\n");  // the data is not loaded from the config
+    } finally {
+      out.close();
+    }
+    ViewConfig config = ViewConfig.load(file.getPath());
+    return new FlowMapView(VisualFlowMapModel.createFor(fmg, config), null,
+        MapProjections.NONE, FlowMapColorSchemes.LIGHT.getScheme(), config);
+  }
+
+}
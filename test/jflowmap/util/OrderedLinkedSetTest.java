@@ -0,0 +1,79 @@
+package jflowmap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class OrderedLinkedSetTest {
+
+  @Test
+  public void testReplaceAndRemove() {
+    OrderedLinkedSet<String> set = new OrderedLinkedSet<String>(Arrays.asList("a", "b", "c"));
+    set.replace("b", Arrays.asList("b1", "b2"));
+    assertEquals(Arrays.asList("a", "b1", "b2", "c"), set.asList());
+    assertFalse(set.contains("b"));
+
+    assertTrue(set.remove("a"));
+    assertFalse(set.remove("a"));
+    set.insertBefore("c", ImmutableList.of("x"));
+    assertEquals(Arrays.asList("b1", "b2", "x", "c"), set.asList());
+    assertEquals("b1", set.getFirst());
+    assertEquals(4, set.size());
+  }
+
+  @Test
+  public void testCompareOrder() {
+    OrderedLinkedSet<String> set = new OrderedLinkedSet<String>(Arrays.asList("a", "c"));
+    set.insertBefore("c", ImmutableList.of("b"));
+    assertTrue(set.compareOrder("a", "b") < 0);
+    assertTrue(set.compareOrder("c", "b") > 0);
+    assertEquals(0, set.compareOrder("b", "b"));
+  }
+
+  @Test
+  public void testManyInsertionsIntoTheSameGap() {
+    OrderedLinkedSet<Integer> set = new OrderedLinkedSet<Integer>(Arrays.asList(0, 1000));
+    Integer before = 1000;
+    for (int i = 999; i > 0; i--) {
+      set.insertBefore(before, ImmutableList.of(i));
+      before = i;
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(Integer.valueOf(i), set.asList().get(i));
+      assertTrue(set.compareOrder(i, i + 1) < 0);
+    }
+  }
+
+  @Test
+  public void testIteratorDoesNotCopy() {
+    OrderedLinkedSet<String> set = new OrderedLinkedSet<String>(Arrays.asList("a", "b", "c"));
+    set.replace("b", Arrays.asList("b1", "b2"));
+    assertEquals(Arrays.asList("a", "b1", "b2", "c"), ImmutableList.copyOf(set));
+    set.remove("c");
+    assertEquals(Arrays.asList("a", "b1", "b2"), ImmutableList.copyOf(set));
+  }
+
+  @Test(expected = ConcurrentModificationException.class)
+  public void testIteratorFailsIfModified() {
+    OrderedLinkedSet<String> set = new OrderedLinkedSet<String>(Arrays.asList("a", "b", "c"));
+    Iterator<String> it = set.iterator();
+    it.next();
+    set.remove("c");
+    it.next();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicatesAreRejected() {
+    OrderedLinkedSet<String> set = new OrderedLinkedSet<String>(Arrays.asList("a", "b"));
+    set.insertBefore("b", ImmutableList.of("a"));
+  }
+
+}
@@ -0,0 +1,117 @@
+package jflowmap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import jflowmap.util.TiledRenderedImage.TilePainter;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class TiledRenderedImageTest {
+
+  private static final int WIDTH = 300, HEIGHT = 230, TILE_SIZE = 64;
+
+  /**
+   * Since JDK 9 the Marlin renderer clips the shapes crossing the clip before
+   * rasterizing them, which slightly changes the antialiased coverage along their
+   * curves, also far from the tile edges (by up to 13 in 1% of the pixels of this
+   * scene, and not at all with -Dsun.java2d.renderer.clip=false). As every tile
+   * clips the shapes, the tiles can't match the image painted at once exactly.
+   */
+  private static final int MAX_CHANNEL_DIFF = 16;
+  private static final int MAX_DIFFERENT_PIXELS = WIDTH * HEIGHT / 50;
+
+  private static void paintScene(Graphics2D g) {
+    g.setColor(Color.white);
+    g.fillRect(0, 0, WIDTH, HEIGHT);
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setColor(new Color(200, 30, 30, 150));
+    g.fill(new Ellipse2D.Double(20.5, 10.25, 250, 190));
+    g.setColor(Color.blue);
+    g.setStroke(new BasicStroke(3.5f));
+    g.draw(new Line2D.Double(0, HEIGHT, WIDTH, 0));
+  }
+
+  @Test
+  public void testWrittenPngEqualsImagePaintedAtOnce() throws Exception {
+    final List<Rectangle> tiles = Lists.newArrayList();
+    TiledRenderedImage image = new TiledRenderedImage(WIDTH, HEIGHT, TILE_SIZE, new TilePainter() {
+      @Override
+      public void paintTile(Graphics2D g, Rectangle tile) {
+        tiles.add(tile);
+        paintScene(g);
+      }
+    });
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(ImageIO.write(image, "PNG", out));
+    BufferedImage written = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+
+    BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = expected.createGraphics();
+    paintScene(g);
+    g.dispose();
+
+    assertEquals(WIDTH, written.getWidth());
+    assertEquals(HEIGHT, written.getHeight());
+    int numDifferent = 0;
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int e = expected.getRGB(x, y), w = written.getRGB(x, y);
+        if ((e & 0xffffff) != (w & 0xffffff)) {
+          numDifferent++;
+          for (int shift = 0; shift < 24; shift += 8) {
+            int diff = Math.abs(((e >> shift) & 0xff) - ((w >> shift) & 0xff));
+            assertTrue("Pixel at " + x + "," + y + " expected:<" + Integer.toHexString(e) +
+                "> but was:<" + Integer.toHexString(w) + ">", diff <= MAX_CHANNEL_DIFF);
+          }
+        }
+      }
+    }
+    assertTrue(numDifferent + " pixels differ", numDifferent <= MAX_DIFFERENT_PIXELS);
+
+    // every tile is painted once when the image is read from top to bottom
+    assertEquals(4, tiles.size());
+    assertEquals(new Rectangle(0, 0, WIDTH, TILE_SIZE), tiles.get(0));
+    assertEquals(new Rectangle(0, 192, WIDTH, HEIGHT - 192), tiles.get(tiles.size() - 1));
+  }
+
+  @Test
+  public void testGetDataAcrossRowsOfTiles() {
+    TiledRenderedImage image = new TiledRenderedImage(WIDTH, HEIGHT, TILE_SIZE, new TilePainter() {
+      @Override
+      public void paintTile(Graphics2D g, Rectangle tile) {
+        g.setColor(new Color(tile.y));  // the row of tiles in the blue component
+        g.fill(tile);
+      }
+    });
+    Rectangle rect = new Rectangle(10, 60, 50, 80);
+    int[] pixel = new int[3];
+    for (int y = rect.y; y < rect.y + rect.height; y++) {
+      image.getData(rect).getPixel(15, y, pixel);
+      assertEquals((y / TILE_SIZE) * TILE_SIZE, pixel[2]);
+    }
+    assertEquals(TILE_SIZE, image.getTile(0, 0).getHeight());
+    assertEquals(HEIGHT - 3 * TILE_SIZE, image.getTile(0, 3).getHeight());
+    assertEquals(3 * TILE_SIZE, image.getTile(0, 3).getMinY());
+  }
+
+}
@@ -0,0 +1,103 @@
+package jflowmap.views.flowstrates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jflowmap.FlowEndpoint;
+import jflowmap.FlowMapAttrSpec;
+import jflowmap.FlowMapGraph;
+import jflowmap.data.FlowMapGraphBuilder;
+import jflowmap.data.FlowMapNodeTotals;
+
+import org.junit.Test;
+
+import prefuse.data.Edge;
+import prefuse.data.Node;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Ilya Boyandin
+ */
+public class VisibleEdgesNodeTotalsTest {
+
+  private static final List<String> ATTRS = Arrays.asList("w1", "w2", "w3");
+
+  private static FlowMapGraph buildGraph() {
+    FlowMapGraphBuilder builder =
+      new FlowMapGraphBuilder("testGraph", new FlowMapAttrSpec(
+          "flowSrcNodeAttr", "flowTargetNodeAttr", "legendCaption",
+          ATTRS, "label", "nodeLabelAttr", null, null));
+    Random rnd = new Random(1);
+    Node[] nodes = new Node[12];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = builder.addNode("n" + i, "Node" + i);
+    }
+    for (int i = 0; i < 100; i++) {
+      double[] weights = new double[ATTRS.size()];
+      for (int j = 0; j < weights.length; j++) {
+        weights[j] = (rnd.nextInt(5) == 0 ? Double.NaN : rnd.nextInt(1000));
+      }
+      builder.addEdge(nodes[rnd.nextInt(nodes.length)], nodes[rnd.nextInt(nodes.length)], weights);
+    }
+    return builder.build();
+  }
+
+  private static List<Edge> filterEdges(FlowMapGraph fmg) {
+    List<Edge> edges = Lists.newArrayList();
+    for (Edge e : fmg.edges()) {
+      if (e.getRow() % 3 != 0) {
+        edges.add(e);
+      }
+    }
+    return edges;
+  }
+
+  @Test
+  public void testTotalsEqualFlowMapNodeTotalsForFilteredEdges() {
+    FlowMapGraph fmg = buildGraph();
+    List<Edge> edges = filterEdges(fmg);
+    VisibleEdgesNodeTotals totals = new VisibleEdgesNodeTotals(edges);
+    assertTotalsEqual(fmg, edges, totals);
+  }
+
+  @Test
+  public void testPrecalculatedTotalsEqualFlowMapNodeTotals() throws Exception {
+    FlowMapGraph fmg = buildGraph();
+    List<Edge> edges = filterEdges(fmg);
+    VisibleEdgesNodeTotals totals = new VisibleEdgesNodeTotals(edges);
+    Thread thread = new Thread(totals.precalcTask(ATTRS));
+    thread.start();
+    thread.join();
+    assertTotalsEqual(fmg, edges, totals);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownAttr() {
+    FlowMapGraph fmg = buildGraph();
+    new VisibleEdgesNodeTotals(filterEdges(fmg)).getTotals("unknown", FlowEndpoint.ORIGIN);
+  }
+
+  private static void assertTotalsEqual(FlowMapGraph fmg, List<Edge> edges,
+      VisibleEdgesNodeTotals totals) {
+    for (String attr : ATTRS) {
+      for (FlowEndpoint ep : FlowEndpoint.values()) {
+        Map<String, Double> expected = FlowMapNodeTotals.calcNodeTotalsFor(fmg, edges, attr, ep);
+        List<String> nodeIds = totals.getNodeIds(ep);
+        assertEquals(expected.keySet().size(), nodeIds.size());
+        assertTrue(expected.keySet().containsAll(nodeIds));
+        for (String nodeId : nodeIds) {
+          assertEquals(attr + " " + ep + " " + nodeId,
+              expected.get(nodeId), totals.getTotal(nodeId, attr, ep), 1e-10);
+        }
+      }
+    }
+    assertEquals(Double.NaN, totals.getTotal("unknown", ATTRS.get(0), FlowEndpoint.DEST), 0);
+  }
+
+}